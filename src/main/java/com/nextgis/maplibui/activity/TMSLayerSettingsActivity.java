@@ -26,6 +26,7 @@ package com.nextgis.maplibui.activity;
 import android.content.DialogInterface;
 import android.os.Bundle;
 import android.support.v4.app.Fragment;
+import android.support.v7.app.AlertDialog;
 import android.support.v7.widget.SwitchCompat;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -43,8 +44,11 @@ import com.nextgis.maplib.map.TMSLayer;
 import com.nextgis.maplib.util.Constants;
 import com.nextgis.maplibui.R;
 import com.nextgis.maplibui.fragment.LayerGeneralSettingsFragment;
+import com.nextgis.maplibui.mapui.RemoteTMSLayerUI;
 import com.nextgis.maplibui.util.ClearCacheTask;
 import com.nextgis.maplibui.util.ControlHelper;
+import com.nextgis.maplibui.util.PackedCacheTask;
+import com.nextgis.maplibui.util.TileArchive;
 
 /**
  * TMS layer settings activity. Include common settings (layer name) and renderer settings.
@@ -247,6 +251,24 @@ public class TMSLayerSettingsActivity
                         }
                     });
 
+            // packed tiles are read by RemoteTMSLayerUI only, other remote layers keep tile files
+            SwitchCompat packedCache = (SwitchCompat) v.findViewById(R.id.packed_cache);
+            if (mRasterLayer instanceof RemoteTMSLayerUI) {
+                packedCache.setChecked(TileArchive.exists(mRasterLayer.getPath()));
+                packedCache.setOnCheckedChangeListener(
+                        new CompoundButton.OnCheckedChangeListener() {
+                            @Override
+                            public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+                                if (isChecked)
+                                    setPacked(true);
+                                else
+                                    confirmUnpack(buttonView, this);
+                            }
+                        });
+            } else {
+                packedCache.setVisibility(View.GONE);
+            }
+
             Button clearCache = (Button) v.findViewById(R.id.clear_cache);
             clearCache.setOnClickListener(new View.OnClickListener() {
                 @Override
@@ -264,5 +286,39 @@ public class TMSLayerSettingsActivity
 
             return v;
         }
+
+        protected void setPacked(boolean isPacked) {
+            new PackedCacheTask(getActivity(), isPacked, mRasterLayer.getTMSType())
+                    .execute(mRasterLayer.getPath());
+        }
+
+        // the archive is deleted with all its tiles, the switch turns back if it is not confirmed
+        protected void confirmUnpack(
+                final CompoundButton packedCache,
+                final CompoundButton.OnCheckedChangeListener listener) {
+            new AlertDialog.Builder(getActivity())
+                    .setMessage(R.string.delete_packed_tile_cache)
+                    .setPositiveButton(R.string.yes, new DialogInterface.OnClickListener() {
+                        @Override
+                        public void onClick(DialogInterface dialog, int which) {
+                            setPacked(false);
+                        }
+                    })
+                    .setNegativeButton(R.string.no, new DialogInterface.OnClickListener() {
+                        @Override
+                        public void onClick(DialogInterface dialog, int which) {
+                            dialog.cancel();
+                        }
+                    })
+                    .setOnCancelListener(new DialogInterface.OnCancelListener() {
+                        @Override
+                        public void onCancel(DialogInterface dialog) {
+                            packedCache.setOnCheckedChangeListener(null);
+                            packedCache.setChecked(true);
+                            packedCache.setOnCheckedChangeListener(listener);
+                        }
+                    })
+                    .show();
+        }
     }
 }
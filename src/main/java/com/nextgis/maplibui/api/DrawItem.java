@@ -24,17 +24,23 @@ package com.nextgis.maplibui.api;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
+import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.Path;
 import android.graphics.PointF;
+import android.graphics.RectF;
+import android.graphics.Region;
+import android.os.Build;
 
 import com.nextgis.maplib.datasource.GeoEnvelope;
 import com.nextgis.maplib.datasource.GeoPoint;
 import com.nextgis.maplib.map.VectorLayer;
 import com.nextgis.maplib.util.Constants;
 import com.nextgis.maplib.util.GeoConstants;
+import com.nextgis.maplibui.overlay.PolylineSimplifier;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 public class DrawItem {
@@ -55,13 +61,309 @@ public class DrawItem {
     private static VertexStyle mEdgeStyle, mVertexStyle;
     private static EditStyle mLineStyle, mPolygonStyle;
 
-    protected List<float[]> mDrawItemsVertex;
-    protected List<float[]> mDrawItemsEdge;
+    // screen coordinates of all rings packed in one buffer
+    protected final Rings mVertices;
+    protected final Rings mEdges;
     protected int mSelectedRing = 0, mSelectedPoint = 0;
 
+    // screen paths of the rings, rebuilt only after the vertices change, simplified for the
+    // screen size they were built for
+    protected Path[] mPaths;
+    protected Path mPathFill;
+    protected boolean mIsPathsClosed;
+    protected int mPathsWidth, mPathsHeight;
+    // area the paths keep vertices of, moved with the paths by transform()
+    protected final RectF mPathsBounds = new RectF();
+    // while a point is dragged its ring is drawn as the ring path without the point, built once
+    // per dragged point, and the two edges of the point, so a drag frame does not copy the ring
+    protected Path mRestPath;
+    // other rings and the rest of the dragged ring closed by a chord, the fill is this path
+    // xor the triangle of the dragged point
+    protected Path mRestFill;
+    protected final Path mDragTriangle = new Path();
+    protected final float[] mDragEdges = new float[8];
+    protected int mDragEdgeCount;
+    protected int mRestRing = Constants.NOT_FOUND, mRestPoint = Constants.NOT_FOUND;
+    // scale of the transform the item is drawn with, keeps line widths and radii in pixels
+    protected float mDrawScale = 1;
+    protected final float[] mMappedPoint = new float[2];
+    protected float[] mSimplified = new float[0];
+
+    /**
+     * x, y pairs of several rings in one array, a ring is the range between its start and the
+     * start of the next ring. Editing a ring moves the tail of the array instead of allocating
+     * a new ring array.
+     * <p>
+     * Hit tests use a sparse grid of fixed screen size cells, built on the first search after a
+     * change. Cells do not grow with the extent of the rings, so a search costs the same at any
+     * zoom, and only cells with points are stored, sorted by row and column. Cells hold point
+     * indexes in the array order, so the first point found in ring order is the same as a
+     * linear scan returns.
+     */
+    protected static class Rings {
+        protected static final float CELL_SIZE   = 64;
+        // a cell key is a row and a column of CELL_BITS each, the point number takes the rest
+        protected static final int   CELL_BITS   = 20;
+        protected static final int   CELL_MASK   = (1 << CELL_BITS) - 1;
+        protected static final int   POINT_BITS  = 63 - 2 * CELL_BITS;
+        protected static final long  POINT_MASK  = (1L << POINT_BITS) - 1;
+
+        protected float[] mData = new float[32];
+        // start of every ring, the last item is the length of the data
+        protected int[] mStarts = new int[4];
+        protected int mCount;
+
+        protected boolean mIsIndexValid;
+        protected float mGridMinX, mGridMinY;
+        protected int mCells;
+        // point indexes of the cell mCellKeys[c] are mCellItems[mCellStarts[c]] to
+        // mCellItems[mCellStarts[c + 1]]
+        protected long[] mCellKeys, mEntries;
+        protected int[] mCellStarts, mCellItems;
+
+        public int getCount() {
+            return mCount;
+        }
+
+        public int getStart(int ring) {
+            return mStarts[ring];
+        }
+
+        public int getEnd(int ring) {
+            return mStarts[ring + 1];
+        }
+
+        public int getLength() {
+            return mStarts[mCount];
+        }
+
+        public float[] getData() {
+            return mData;
+        }
+
+        public float[] copy(int ring) {
+            return Arrays.copyOfRange(mData, mStarts[ring], mStarts[ring + 1]);
+        }
+
+        public void add(float[] points) {
+            int length = getLength();
+            ensureData(length + points.length);
+            if (mCount + 2 > mStarts.length)
+                mStarts = Arrays.copyOf(mStarts, mStarts.length * 2);
+
+            System.arraycopy(points, 0, mData, length, points.length);
+            mCount++;
+            mStarts[mCount] = length + points.length;
+            mIsIndexValid = false;
+        }
+
+        public void setPoint(int index, float x, float y) {
+            mData[index] = x;
+            mData[index + 1] = y;
+            mIsIndexValid = false;
+        }
+
+        public void set(int ring, float[] points) {
+            int start = mStarts[ring];
+            splice(ring, start, mStarts[ring + 1] - start, points.length);
+            System.arraycopy(points, 0, mData, start, points.length);
+        }
+
+        public void insert(int ring, int position, float x, float y) {
+            int at = mStarts[ring] + position;
+            splice(ring, at, 0, 2);
+            mData[at] = x;
+            mData[at + 1] = y;
+        }
+
+        public void delete(int ring, int position, int length) {
+            splice(ring, mStarts[ring] + position, length, 0);
+        }
+
+        public void remove(int ring) {
+            splice(ring, mStarts[ring], mStarts[ring + 1] - mStarts[ring], 0);
+            System.arraycopy(mStarts, ring + 1, mStarts, ring, mCount - ring);
+            mCount--;
+        }
+
+        public void clear() {
+            mCount = 0;
+            mStarts[0] = 0;
+            mIsIndexValid = false;
+        }
+
+        /**
+         * Replaces the values of the ring at the position, following rings are moved.
+         */
+        protected void splice(int ring, int at, int removed, int inserted) {
+            int length = getLength();
+            int delta = inserted - removed;
+            ensureData(length + delta);
+            System.arraycopy(mData, at + removed, mData, at + inserted, length - at - removed);
+            for (int i = ring + 1; i <= mCount; i++)
+                mStarts[i] += delta;
+            mIsIndexValid = false;
+        }
+
+        protected void ensureData(int length) {
+            if (length > mData.length)
+                mData = Arrays.copyOf(mData, Math.max(length, mData.length * 2));
+        }
+
+        /**
+         * Copies the rings moved as by a pan or a zoom frame.
+         */
+        protected void copyTo(Rings rings, float scale, float offsetX, float offsetY) {
+            int length = getLength();
+            rings.ensureData(length);
+            if (rings.mStarts.length < mCount + 1)
+                rings.mStarts = new int[mCount + 1];
+
+            for (int i = 0; i < length; i += 2) {
+                rings.mData[i] = mData[i] * scale + offsetX;
+                rings.mData[i + 1] = mData[i + 1] * scale + offsetY;
+            }
+            System.arraycopy(mStarts, 0, rings.mStarts, 0, mCount + 1);
+            rings.mCount = mCount;
+            rings.mIsIndexValid = false;
+        }
+
+        /**
+         * Maps all points by the matrix in place.
+         */
+        protected void transform(Matrix matrix) {
+            matrix.mapPoints(mData, 0, mData, 0, getLength() / 2);
+            mIsIndexValid = false;
+        }
+
+        /**
+         * @return ring containing the point index
+         */
+        public int getRing(int index) {
+            int low = 0, high = mCount - 1;
+            while (low < high) {
+                int middle = (low + high + 1) / 2;
+                if (mStarts[middle] <= index)
+                    low = middle;
+                else
+                    high = middle - 1;
+            }
+            return low;
+        }
+
+        /**
+         * @return index in the array of the first point inside the rect in ring order, -1 if
+         * there is none
+         */
+        public int find(float minX, float minY, float maxX, float maxY) {
+            if (!mIsIndexValid)
+                buildIndex();
+
+            if (mCells == 0 || maxX < mGridMinX || maxY < mGridMinY)
+                return -1;
+
+            int fromColumn = getCell(minX, mGridMinX);
+            int toColumn = getCell(maxX, mGridMinX);
+            int fromRow = getCell(minY, mGridMinY);
+            int toRow = getCell(maxY, mGridMinY);
+
+            int found = -1;
+            for (int row = fromRow; row <= toRow; row++) {
+                long toKey = getKey(row, toColumn);
+                int c = findCell(getKey(row, fromColumn));
+                for (; c < mCells && mCellKeys[c] <= toKey; c++) {
+                    for (int k = mCellStarts[c]; k < mCellStarts[c + 1]; k++) {
+                        int i = mCellItems[k];
+                        if (found != -1 && i >= found)
+                            break;
+
+                        float x = mData[i], y = mData[i + 1];
+                        if (x >= minX && x <= maxX && y >= minY && y <= maxY) {
+                            found = i;
+                            break;
+                        }
+                    }
+                }
+            }
+            return found;
+        }
+
+        /**
+         * @return position of the first stored cell with the key or a greater one
+         */
+        protected int findCell(long key) {
+            int low = 0, high = mCells;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (mCellKeys[middle] < key)
+                    low = middle + 1;
+                else
+                    high = middle;
+            }
+            return low;
+        }
+
+        protected static long getKey(int row, int column) {
+            return (long) row << CELL_BITS | column;
+        }
+
+        // far cells merge into the last one, the search checks the coordinates anyway
+        protected static int getCell(float value, float min) {
+            float cell = (value - min) / CELL_SIZE;
+            return cell < 0 ? 0 : cell >= CELL_MASK ? CELL_MASK : (int) cell;
+        }
+
+        protected void buildIndex() {
+            mIsIndexValid = true;
+            mCells = 0;
+
+            int points = 0;
+            float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE;
+            for (int ring = 0; ring < mCount; ring++) {
+                for (int i = mStarts[ring]; i < mStarts[ring + 1] - 1; i += 2) {
+                    minX = Math.min(minX, mData[i]);
+                    minY = Math.min(minY, mData[i + 1]);
+                    points++;
+                }
+            }
+            if (points == 0)
+                return;
+
+            mGridMinX = minX;
+            mGridMinY = minY;
+            if (mEntries == null || mEntries.length < points) {
+                mEntries = new long[points];
+                mCellItems = new int[points];
+                mCellKeys = new long[points];
+                mCellStarts = new int[points + 1];
+            }
+
+            // the cell key above the point index, so sorting groups cells in the array order
+            int count = 0;
+            for (int ring = 0; ring < mCount; ring++) {
+                for (int i = mStarts[ring]; i < mStarts[ring + 1] - 1; i += 2) {
+                    long key = getKey(getCell(mData[i + 1], minY), getCell(mData[i], minX));
+                    mEntries[count++] = key << POINT_BITS | (i >> 1) & POINT_MASK;
+                }
+            }
+            Arrays.sort(mEntries, 0, count);
+
+            for (int k = 0; k < count; k++) {
+                long key = mEntries[k] >>> POINT_BITS;
+                if (mCells == 0 || mCellKeys[mCells - 1] != key) {
+                    mCellKeys[mCells] = key;
+                    mCellStarts[mCells] = k;
+                    mCells++;
+                }
+                mCellItems[k] = (int) (mEntries[k] & POINT_MASK) << 1;
+            }
+            mCellStarts[mCells] = count;
+        }
+    }
+
     public DrawItem() {
-        mDrawItemsVertex = new ArrayList<>();
-        mDrawItemsEdge = new ArrayList<>();
+        mVertices = new Rings();
+        mEdges = new Rings();
 
         if (mPaint == null) {
             mPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
@@ -105,116 +407,129 @@ public class DrawItem {
         }
     }
 
+    /**
+     * @deprecated copies the item, draw it with a transform instead, see
+     * {@link #drawLines(Canvas, Matrix, boolean, boolean, boolean, boolean)}
+     */
+    @Deprecated
     public DrawItem zoom(PointF location, float scale) {
-        DrawItem drawItem = new DrawItem();
-        drawItem.setSelectedRing(mSelectedRing);
-        drawItem.setSelectedPoint(mSelectedPoint);
-
-        for (float[] items : mDrawItemsVertex) {
-            float[] newItems = new float[items.length];
-            for (int i = 0; i < items.length - 1; i += 2) {
-                newItems[i] = items[i] - (1 - scale) * (items[i] + location.x);
-                newItems[i + 1] = items[i + 1] - (1 - scale) * (items[i + 1] + location.y);
-            }
-            drawItem.addVertices(newItems);
-        }
-
-        for (float[] items : mDrawItemsEdge) {
-            float[] newItems = new float[items.length];
-            for (int i = 0; i < items.length - 1; i += 2) {
-                newItems[i] = items[i] - (1 - scale) * (items[i] + location.x);
-                newItems[i + 1] = items[i + 1] - (1 - scale) * (items[i + 1] + location.y);
-            }
-            drawItem.addEdges(newItems);
-        }
-
-        return drawItem;
+        return copy(scale, -(1 - scale) * location.x, -(1 - scale) * location.y);
     }
 
+    /**
+     * @deprecated copies the item, draw it with a transform instead, see
+     * {@link #drawLines(Canvas, Matrix, boolean, boolean, boolean, boolean)}
+     */
+    @Deprecated
     public DrawItem pan(PointF offset) {
+        return copy(1, -offset.x, -offset.y);
+    }
+
+    protected DrawItem copy(float scale, float offsetX, float offsetY) {
         DrawItem drawItem = new DrawItem();
+        mVertices.copyTo(drawItem.mVertices, scale, offsetX, offsetY);
+        mEdges.copyTo(drawItem.mEdges, scale, offsetX, offsetY);
         drawItem.setSelectedRing(mSelectedRing);
         drawItem.setSelectedPoint(mSelectedPoint);
+        return drawItem;
+    }
 
-        for (float[] items : mDrawItemsVertex) {
-            float[] newItems = new float[items.length];
-            for (int i = 0; i < items.length - 1; i += 2) {
-                newItems[i] = items[i] - offset.x;
-                newItems[i + 1] = items[i + 1] - offset.y;
-            }
-            drawItem.addVertices(newItems);
+    public void addVertices(float[] points) {
+        if (points != null) {
+            mVertices.add(points);
+            invalidatePaths();
         }
+    }
 
-        for (float[] items : mDrawItemsEdge) {
-            float[] newItems = new float[items.length];
-            for (int i = 0; i < items.length - 1; i += 2) {
-                newItems[i] = items[i] - offset.x;
-                newItems[i + 1] = items[i + 1] - offset.y;
-            }
-            drawItem.addEdges(newItems);
+    /**
+     * Moves the item as the map moved, e.g. after a pan or a zoom, instead of projecting the
+     * geometry again. Cached paths are moved too while they still cover the screen and are not
+     * zoomed in, a zoomed in path would show its simplification.
+     */
+    public void transform(Matrix matrix) {
+        mVertices.transform(matrix);
+        mEdges.transform(matrix);
+        if (mPaths == null)
+            return;
+
+        matrix.mapRect(mPathsBounds);
+        if (mRestPath != null || matrix.mapRadius(1) > 1 ||
+                !mPathsBounds.contains(0, 0, mPathsWidth, mPathsHeight)) {
+            invalidatePaths();
+            return;
         }
 
-        return drawItem;
+        for (Path path : mPaths)
+            if (path != null)
+                path.transform(matrix);
+        mPathFill.transform(matrix);
     }
 
-    public void addVertices(float[] points) {
-        if (points != null)
-            mDrawItemsVertex.add(points);
+    /**
+     * Drops cached paths. Must be called if ring arrays are changed outside of this class.
+     */
+    public void invalidatePaths() {
+        mPaths = null;
+        mPathFill = null;
+        mRestPath = null;
+        mRestFill = null;
+        mRestRing = mRestPoint = Constants.NOT_FOUND;
     }
 
     public void addEdges(float[] points) {
-        mDrawItemsEdge.add(points);
+        if (points != null)
+            mEdges.add(points);
     }
 
+    /**
+     * @return copies of the edge rings
+     */
     public List<float[]> getEdges() {
-        return mDrawItemsEdge;
+        List<float[]> edges = new ArrayList<>(mEdges.getCount());
+        for (int i = 0; i < mEdges.getCount(); i++)
+            edges.add(mEdges.copy(i));
+        return edges;
     }
 
     public void addNewPoint(float x, float y) {
-        float[] points = getSelectedRing();
-        if (null == points) {
+        if (!isRing(mSelectedRing))
             return;
-        }
-        float[] newPoints = new float[points.length + 2];
-        System.arraycopy(points, 0, newPoints, 0, points.length);
-        newPoints[points.length] = x;
-        newPoints[points.length + 1] = y;
 
-        setRing(mSelectedRing, newPoints);
+        insertNewPoint(mVertices.getEnd(mSelectedRing) - mVertices.getStart(mSelectedRing), x, y);
     }
 
     public void insertNewPoint(int insertPosition, float x, float y) {
-        float[] points = getSelectedRing();
-        if (null == points) {
+        if (!isRing(mSelectedRing))
+            return;
+
+        int size = mVertices.getEnd(mSelectedRing) - mVertices.getStart(mSelectedRing);
+        if (insertPosition < 0 || insertPosition > size)
             return;
-        }
-        float[] newPoints = new float[points.length + 2];
-        int count = 0;
-        for (int i = 0; i < newPoints.length - 1; i += 2) {
-            if (i == insertPosition) {
-                newPoints[i] = x;
-                newPoints[i + 1] = y;
-            } else {
-                newPoints[i] = points[count++];
-                newPoints[i + 1] = points[count++];
-            }
-        }
 
-        setRing(mSelectedRing, newPoints);
+        mVertices.insert(mSelectedRing, insertPosition, x, y);
+        invalidatePaths();
     }
 
     public void setSelectedPointCoordinates(float x, float y) {
-        float[] points = mDrawItemsVertex.get(mSelectedRing);
-        if (null != points && mSelectedPoint >= 0 && mSelectedPoint < points.length - 1) {
-            points[mSelectedPoint] = x;
-            points[mSelectedPoint + 1] = y;
+        if (!isRing(mSelectedRing))
+            return;
+
+        int start = mVertices.getStart(mSelectedRing);
+        int size = mVertices.getEnd(mSelectedRing) - start;
+        if (mSelectedPoint >= 0 && mSelectedPoint < size - 1) {
+            mVertices.setPoint(start + mSelectedPoint, x, y);
+            moveSelectedPathPoint();
         }
     }
 
     public PointF getSelectedPoint() {
-        float[] points = getSelectedRing();
-        if (null != points && mSelectedPoint >= 0 && mSelectedPoint < points.length - 1)
-            return new PointF(points[mSelectedPoint], points[mSelectedPoint + 1]);
+        if (!isRing(mSelectedRing))
+            return null;
+
+        int start = mVertices.getStart(mSelectedRing);
+        int size = mVertices.getEnd(mSelectedRing) - start;
+        if (mSelectedPoint >= 0 && mSelectedPoint < size - 1)
+            return new PointF(mVertices.mData[start + mSelectedPoint], mVertices.mData[start + mSelectedPoint + 1]);
         else
             return null;
     }
@@ -224,48 +539,44 @@ public class DrawItem {
     }
 
     public void deleteSelectedPoint(VectorLayer layer) {
-        float[] points = getSelectedRing();
-        if (null == points || mSelectedPoint < 0)
+        if (!isRing(mSelectedRing) || mSelectedPoint < 0)
             return;
 
-        if (points.length <= getMinPointCount(layer.getGeometryType()) * 2) {
-            mDrawItemsVertex.remove(mSelectedRing);
-            mSelectedRing = mDrawItemsVertex.size() > 0 ? 0 : Constants.NOT_FOUND;
+        int size = mVertices.getEnd(mSelectedRing) - mVertices.getStart(mSelectedRing);
+        if (size <= getMinPointCount(layer.getGeometryType()) * 2) {
+            mVertices.remove(mSelectedRing);
+            invalidatePaths();
+            mSelectedRing = mVertices.getCount() > 0 ? 0 : Constants.NOT_FOUND;
             mSelectedPoint = Constants.NOT_FOUND;
             return;
         }
 
-        float[] newPoints = new float[points.length - 2];
-        int counter = 0;
-        for (int i = 0; i < points.length; i++) {
-            if (i == mSelectedPoint || i == mSelectedPoint + 1)
-                continue;
-
-            newPoints[counter++] = points[i];
-        }
-
-        if (mSelectedPoint >= newPoints.length)
+        mVertices.delete(mSelectedRing, mSelectedPoint, Math.min(2, size - mSelectedPoint));
+        if (mSelectedPoint >= size - 2)
             mSelectedPoint = 0;
 
-        setRing(mSelectedRing, newPoints);
+        invalidatePaths();
     }
 
     public void setSelectedPoint(int selectedPoint) {
-        float[] ring = getSelectedRing();
-        if (ring != null)
-            if (selectedPoint >= 0 && selectedPoint < ring.length - 1) {
+        if (isRing(mSelectedRing)) {
+            int size = mVertices.getEnd(mSelectedRing) - mVertices.getStart(mSelectedRing);
+            if (selectedPoint >= 0 && selectedPoint < size - 1) {
                 mSelectedPoint = selectedPoint;
             } else
-                mSelectedRing = ring.length - 2;
+                mSelectedRing = size - 2;
+        }
     }
 
     public void setRing(int ring, float[] points) {
-        if (ring >= 0 && ring < mDrawItemsVertex.size())
-            mDrawItemsVertex.set(ring, points);
+        if (isRing(ring)) {
+            mVertices.set(ring, points);
+            invalidatePaths();
+        }
     }
 
     public void setSelectedRing(int selectedRing) {
-        if (selectedRing >= 0 && selectedRing < mDrawItemsVertex.size())
+        if (isRing(selectedRing))
             mSelectedRing = selectedRing;
         else
             mSelectedRing = 0;
@@ -280,22 +591,51 @@ public class DrawItem {
     }
 
     public float[] getRing(int ring) {
-        return ring < 0 || ring >= mDrawItemsVertex.size() ? null : mDrawItemsVertex.get(ring).clone();
+        return isRing(ring) ? mVertices.copy(ring) : null;
+    }
+
+    /**
+     * @return count of values of the ring, twice the vertex count
+     */
+    public int getRingLength(int ring) {
+        return isRing(ring) ? mVertices.getEnd(ring) - mVertices.getStart(ring) : 0;
+    }
+
+    /**
+     * Reads a value of the ring without copying it as {@link #getRing(int)} does.
+     *
+     * @param index x of a vertex at even indexes, y at odd
+     */
+    public float getRingValue(int ring, int index) {
+        return mVertices.getData()[mVertices.getStart(ring) + index];
     }
 
     public int getRingCount() {
-        return mDrawItemsVertex.size();
+        return mVertices.getCount();
+    }
+
+    protected boolean isRing(int ring) {
+        return ring >= 0 && ring < mVertices.getCount();
     }
 
     public void deleteSelectedRing() {
-        mDrawItemsVertex.remove(mSelectedRing);
-        mSelectedRing = mSelectedPoint = mDrawItemsVertex.size() > 0 ? 0 : Constants.NOT_FOUND;
+        if (!isRing(mSelectedRing))
+            return;
+
+        mVertices.remove(mSelectedRing);
+        invalidatePaths();
+        mSelectedRing = mSelectedPoint = mVertices.getCount() > 0 ? 0 : Constants.NOT_FOUND;
     }
 
     public boolean isTapNearSelectedPoint(GeoEnvelope screenEnv) {
-        float[] points = getSelectedRing();
-        if (null != points && mSelectedPoint >= 0 && points.length > mSelectedPoint + 1) {
-            if (screenEnv.contains(new GeoPoint(points[mSelectedPoint], points[mSelectedPoint + 1]))) {
+        if (!isRing(mSelectedRing))
+            return false;
+
+        int start = mVertices.getStart(mSelectedRing);
+        int size = mVertices.getEnd(mSelectedRing) - start;
+        if (mSelectedPoint >= 0 && size > mSelectedPoint + 1) {
+            float[] data = mVertices.getData();
+            if (screenEnv.contains(new GeoPoint(data[start + mSelectedPoint], data[start + mSelectedPoint + 1]))) {
                 return true;
             }
         }
@@ -303,38 +643,34 @@ public class DrawItem {
     }
 
     public boolean intersectsVertices(GeoEnvelope screenEnv) {
-        int point;
-        for (int ring = 0; ring < mDrawItemsVertex.size(); ring++) {
-            point = 0;
-            float[] items = mDrawItemsVertex.get(ring);
-            for (int i = 0; i < items.length - 1; i += 2) {
-                if (screenEnv.contains(new GeoPoint(items[i], items[i + 1]))) {
-                    mSelectedRing = ring;
-                    mSelectedPoint = point;
-                    return true;
-                }
-                point += 2;
-            }
-        }
+        int index = find(mVertices, screenEnv);
+        if (index == -1)
+            return false;
 
-        return false;
+        mSelectedRing = mVertices.getRing(index);
+        mSelectedPoint = index - mVertices.getStart(mSelectedRing);
+        return true;
     }
 
+    /**
+     * Inserts a vertex at the edge midpoint inside the rect.
+     */
     public boolean intersectsEdges(GeoEnvelope screenEnv) {
-        for (int ring = 0; ring < mDrawItemsEdge.size(); ring++) {
-            float[] items = mDrawItemsEdge.get(ring);
-            for (int i = 0; i < items.length - 1; i += 2) {
-                if (screenEnv.contains(new GeoPoint(items[i], items[i + 1]))) {
-                    mSelectedPoint = i + 2;
-                    mSelectedRing = ring;
-                    insertNewPoint(mSelectedPoint, items[i], items[i + 1]);
-
-                    return true;
-                }
-            }
-        }
+        int index = find(mEdges, screenEnv);
+        if (index == -1)
+            return false;
 
-        return false;
+        float[] data = mEdges.getData();
+        int ring = mEdges.getRing(index);
+        mSelectedPoint = index - mEdges.getStart(ring) + 2;
+        mSelectedRing = ring;
+        insertNewPoint(mSelectedPoint, data[index], data[index + 1]);
+        return true;
+    }
+
+    protected static int find(Rings rings, GeoEnvelope screenEnv) {
+        return rings.find((float) screenEnv.getMinX(), (float) screenEnv.getMinY(),
+                (float) screenEnv.getMaxX(), (float) screenEnv.getMaxY());
     }
 
     public static int getMinPointCount(int type) {
@@ -354,119 +690,321 @@ public class DrawItem {
     }
 
     public void drawPoints(Canvas canvas, boolean isSelected) {
+        drawPoints(canvas, null, isSelected);
+    }
+
+    /**
+     * Draws vertices moved by the transform, e.g. while the map is panned or zoomed, without
+     * copying them.
+     *
+     * @param transform screen transform or null
+     */
+    public void drawPoints(Canvas canvas, Matrix transform, boolean isSelected) {
         if (mVertexStyle == null)
             return;
 
+        int saveCount = beginTransform(canvas, transform);
         mPaint.setStyle(Paint.Style.STROKE);
         mPaint.setAlpha(mVertexStyle.getAlpha());
+        float[] data = mVertices.getData();
         for (int i = 0; i < getRingCount(); i++) {
-            float[] items = getRing(i);
-            if (items == null)
-                continue;
+            int start = mVertices.getStart(i);
+            int end = mVertices.getEnd(i);
 
             mPaint.setColor(mVertexStyle.getOutColor());
-            mPaint.setStrokeWidth(mVertexStyle.getOutWidth());
-            drawPoints(canvas, items, mVertexStyle.getOutRadius());
+            mPaint.setStrokeWidth(mVertexStyle.getOutWidth() / mDrawScale);
+            drawPoints(canvas, data, start, end, mVertexStyle.getOutRadius() / mDrawScale);
 
             mPaint.setColor(mVertexStyle.getColor());
-            mPaint.setStrokeWidth(mVertexStyle.getWidth());
-            drawPoints(canvas, items, mVertexStyle.getRadius());
+            mPaint.setStrokeWidth(mVertexStyle.getWidth() / mDrawScale);
+            drawPoints(canvas, data, start, end, mVertexStyle.getRadius() / mDrawScale);
         }
+        endTransform(canvas, saveCount);
 
         //draw selected point
-        if (isSelected && getSelectedRingId() != Constants.NOT_FOUND && getSelectedPointId() != Constants.NOT_FOUND) {
-            float[] items = getSelectedRing();
-            if (null != items && items.length > 0) {
+        if (isSelected && isRing(getSelectedRingId()) && getSelectedPointId() != Constants.NOT_FOUND) {
+            int start = mVertices.getStart(getSelectedRingId());
+            int size = mVertices.getEnd(getSelectedRingId()) - start;
+            if (size > getSelectedPointId() + 1) {
+                mMappedPoint[0] = data[start + getSelectedPointId()];
+                mMappedPoint[1] = data[start + getSelectedPointId() + 1];
+                if (transform != null)
+                    transform.mapPoints(mMappedPoint);
+
                 mPaint.setColor(mVertexStyle.getSelectedColor());
                 mPaint.setStrokeWidth(mVertexStyle.getSelectedWidth());
-                float[] point = new float[]{items[getSelectedPointId()], items[getSelectedPointId() + 1]};
-                drawPoints(canvas, point, mVertexStyle.getSelectedRadius());
-                drawAnchor(canvas, items);
+                drawPoints(canvas, mMappedPoint, 0, 2, mVertexStyle.getSelectedRadius());
+                drawAnchor(canvas, mMappedPoint[0], mMappedPoint[1]);
             }
         }
     }
 
     public void drawLines(Canvas canvas, boolean isSelected, boolean drawPoints, boolean drawEdges, boolean closed) {
-        Path[] paths = new Path[getRingCount()];
-        Path pathFill = new Path();
-
-        // fill paths
-        for (int j = 0; j < getRingCount(); j++) {
-            float[] itemsVertex = getRing(j);
-            if (itemsVertex == null)
-                continue;
-
-            if (itemsVertex.length >= 2) {
-                Path path = new Path();
-                path.moveTo(itemsVertex[0], itemsVertex[1]);
-                for (int i = 2; i < itemsVertex.length - 1; i += 2)
-                    path.lineTo(itemsVertex[i], itemsVertex[i + 1]);
-
-                if (closed)
-                    path.lineTo(itemsVertex[0], itemsVertex[1]);
-
-                paths[j] = path;
-                pathFill.addPath(path);
-            }
-        }
+        drawLines(canvas, null, isSelected, drawPoints, drawEdges, closed);
+    }
+
+    /**
+     * Draws cached ring paths moved by the transform. Paths are built once for the current
+     * vertices, so a pan or zoom frame does not depend on the vertex count on the CPU side.
+     *
+     * @param transform screen transform or null
+     */
+    public void drawLines(Canvas canvas, Matrix transform, boolean isSelected, boolean drawPoints, boolean drawEdges, boolean closed) {
+        if (mPaths == null || mIsPathsClosed != closed)
+            buildPaths(closed, canvas.getWidth(), canvas.getHeight());
+
+        int saveCount = beginTransform(canvas, transform);
 
         // draw filled polygon
         if (closed && mPolygonStyle != null) {
-            pathFill.setFillType(Path.FillType.EVEN_ODD);
             mPaint.setColor(isSelected ? mPolygonStyle.getSelectedColor() : mPolygonStyle.getColor());
             mPaint.setStyle(Paint.Style.FILL);
             mPaint.setAlpha(mPolygonStyle.getAlpha());
-            canvas.drawPath(pathFill, mPaint);
+            if (mRestFill != null)
+                drawDraggedFill(canvas);
+            else
+                canvas.drawPath(mPathFill, mPaint);
         }
 
         if (mLineStyle != null) {
             mPaint.setStyle(Paint.Style.STROKE);
             mPaint.setAlpha(mLineStyle.getAlpha());
-            for (int i = 0; i < paths.length; i++) {
-                Path path = paths[i];
+            for (int i = 0; i < mPaths.length; i++) {
+                Path path = mPaths[i];
                 if (path == null)
                     continue;
 
                 if (isSelected && getSelectedRingId() == i) {
                     mPaint.setColor(mLineStyle.getSelectedColor());
-                    mPaint.setStrokeWidth(mLineStyle.getSelectedWidth());
+                    mPaint.setStrokeWidth(mLineStyle.getSelectedWidth() / mDrawScale);
                 } else {
                     mPaint.setColor(mLineStyle.getColor());
-                    mPaint.setStrokeWidth(mLineStyle.getWidth());
+                    mPaint.setStrokeWidth(mLineStyle.getWidth() / mDrawScale);
                 }
 
-                canvas.drawPath(path, mPaint);
+                if (i == mRestRing) {
+                    canvas.drawPath(mRestPath, mPaint);
+                    canvas.drawLines(mDragEdges, 0, mDragEdgeCount, mPaint);
+                } else {
+                    canvas.drawPath(path, mPaint);
+                }
             }
         }
 
         if (drawEdges && mEdgeStyle != null) {
             mPaint.setStyle(Paint.Style.STROKE);
             mPaint.setAlpha(mEdgeStyle.getAlpha());
-            for (float[] items : getEdges()) {
+            float[] data = mEdges.getData();
+            for (int i = 0; i < mEdges.getCount(); i++) {
+                int start = mEdges.getStart(i);
+                int end = mEdges.getEnd(i);
+
                 mPaint.setColor(mEdgeStyle.getOutColor());
-                mPaint.setStrokeWidth(mEdgeStyle.getOutWidth());
-                drawPoints(canvas, items, mEdgeStyle.getOutRadius());
+                mPaint.setStrokeWidth(mEdgeStyle.getOutWidth() / mDrawScale);
+                drawPoints(canvas, data, start, end, mEdgeStyle.getOutRadius() / mDrawScale);
 
                 mPaint.setColor(mEdgeStyle.getColor());
-                mPaint.setStrokeWidth(mEdgeStyle.getWidth());
-                drawPoints(canvas, items, mEdgeStyle.getRadius());
+                mPaint.setStrokeWidth(mEdgeStyle.getWidth() / mDrawScale);
+                drawPoints(canvas, data, start, end, mEdgeStyle.getRadius() / mDrawScale);
             }
         }
 
+        endTransform(canvas, saveCount);
+
         if (drawPoints)
-            drawPoints(canvas, isSelected);
+            drawPoints(canvas, transform, isSelected);
+    }
+
+    /**
+     * Builds ring paths simplified by {@link PolylineSimplifier} for the screen. Vertices are
+     * kept in the margin of two screens around it, so the paths can be panned and zoomed out
+     * until the next redraw.
+     */
+    protected void buildPaths(boolean closed, int width, int height) {
+        mPaths = new Path[getRingCount()];
+        mIsPathsClosed = closed;
+        mPathsWidth = width;
+        mPathsHeight = height;
+        mPathsBounds.set(-width * 2, -height * 2, width * 3, height * 3);
+        mRestPath = null;
+        mRestFill = null;
+        mRestRing = mRestPoint = Constants.NOT_FOUND;
+
+        for (int j = 0; j < getRingCount(); j++)
+            mPaths[j] = buildRingPath(j);
+        buildFillPath();
+    }
+
+    protected Path buildRingPath(int ring) {
+        float[] data = mVertices.getData();
+        int start = mVertices.getStart(ring);
+        int size = (mVertices.getEnd(ring) - start) & ~1;
+        if (size < 2)
+            return null;
+
+        if (mSimplified.length < size)
+            mSimplified = new float[size];
+        int length = PolylineSimplifier.simplify(data, start, size,
+                PolylineSimplifier.DEFAULT_TOLERANCE, -mPathsWidth * 2, -mPathsHeight * 2,
+                mPathsWidth * 3, mPathsHeight * 3, mSimplified);
+
+        Path path = new Path();
+        path.moveTo(mSimplified[0], mSimplified[1]);
+        for (int i = 2; i < length - 1; i += 2)
+            path.lineTo(mSimplified[i], mSimplified[i + 1]);
+
+        if (mIsPathsClosed)
+            path.lineTo(data[start], data[start + 1]);
+        return path;
     }
 
-    protected void drawAnchor(Canvas canvas, float[] items) {
-        if (mAnchor != null) {
-            float anchorX = items[getSelectedPointId()] + mAnchorRectOffsetX;
-            float anchorY = items[getSelectedPointId() + 1] + mAnchorRectOffsetY;
-            canvas.drawBitmap(mAnchor, anchorX, anchorY, null);
+    protected void buildFillPath() {
+        mPathFill = new Path();
+        mPathFill.setFillType(Path.FillType.EVEN_ODD);
+        for (Path path : mPaths)
+            if (path != null)
+                mPathFill.addPath(path);
+    }
+
+    /**
+     * Updates the dragged point edges after the selected point moved. The rest of the ring is
+     * built once per dragged point, so a drag frame does not walk or copy the vertices.
+     */
+    protected void moveSelectedPathPoint() {
+        if (mPaths == null || mSelectedRing >= mPaths.length || mPaths[mSelectedRing] == null)
+            return;
+
+        float[] data = mVertices.getData();
+        int start = mVertices.getStart(mSelectedRing);
+        int count = (mVertices.getEnd(mSelectedRing) - start) / 2;
+        if (count < 3) {
+            invalidatePaths();
+            return;
+        }
+
+        int point = mSelectedPoint / 2;
+        int prev = point - 1, next = point + 1;
+        if (mIsPathsClosed) {
+            prev = (prev + count) % count;
+            next = next % count;
+        }
+
+        if (mRestPath == null || mRestRing != mSelectedRing || mRestPoint != mSelectedPoint) {
+            if (mRestPath != null) {
+                // another point is dragged, the previous ring is drawn from its path again
+                mPaths[mRestRing] = buildRingPath(mRestRing);
+                buildFillPath();
+            }
+
+            mRestPath = new Path();
+            if (mIsPathsClosed) {
+                // from the next point around the ring to the previous one
+                mRestPath.moveTo(data[start + next * 2], data[start + next * 2 + 1]);
+                for (int i = 1; i < count - 1; i++) {
+                    int j = (next + i) % count;
+                    mRestPath.lineTo(data[start + j * 2], data[start + j * 2 + 1]);
+                }
+
+                mRestFill = new Path();
+                mRestFill.setFillType(Path.FillType.EVEN_ODD);
+                for (int i = 0; i < mPaths.length; i++)
+                    if (i != mSelectedRing && mPaths[i] != null)
+                        mRestFill.addPath(mPaths[i]);
+                mRestFill.addPath(mRestPath);
+                mRestFill.close();
+            } else {
+                addPolyline(mRestPath, data, start, 0, point - 1);
+                addPolyline(mRestPath, data, start, point + 1, count - 1);
+            }
+            mRestRing = mSelectedRing;
+            mRestPoint = mSelectedPoint;
+        }
+
+        float x = data[start + mSelectedPoint], y = data[start + mSelectedPoint + 1];
+        mDragEdgeCount = 0;
+        if (prev >= 0)
+            addDragEdge(data[start + prev * 2], data[start + prev * 2 + 1], x, y);
+        if (next < count)
+            addDragEdge(x, y, data[start + next * 2], data[start + next * 2 + 1]);
+
+        if (mIsPathsClosed) {
+            mDragTriangle.rewind();
+            mDragTriangle.moveTo(data[start + prev * 2], data[start + prev * 2 + 1]);
+            mDragTriangle.lineTo(x, y);
+            mDragTriangle.lineTo(data[start + next * 2], data[start + next * 2 + 1]);
+            mDragTriangle.close();
+        }
+    }
+
+    protected void addDragEdge(float x0, float y0, float x1, float y1) {
+        mDragEdges[mDragEdgeCount++] = x0;
+        mDragEdges[mDragEdgeCount++] = y0;
+        mDragEdges[mDragEdgeCount++] = x1;
+        mDragEdges[mDragEdgeCount++] = y1;
+    }
+
+    /**
+     * Fills the polygon with a dragged point as the cached rest fill xor the triangle of the
+     * point, drawn as two disjoint clipped areas.
+     */
+    protected void drawDraggedFill(Canvas canvas) {
+        int saveCount = canvas.save();
+        clipOutPath(canvas, mDragTriangle);
+        canvas.drawPath(mRestFill, mPaint);
+        canvas.restoreToCount(saveCount);
+
+        saveCount = canvas.save();
+        canvas.clipPath(mDragTriangle);
+        clipOutPath(canvas, mRestFill);
+        canvas.drawPath(mDragTriangle, mPaint);
+        canvas.restoreToCount(saveCount);
+    }
+
+    @SuppressWarnings("deprecation")
+    protected static void clipOutPath(Canvas canvas, Path path) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O)
+            canvas.clipOutPath(path);
+        else
+            canvas.clipPath(path, Region.Op.DIFFERENCE);
+    }
+
+    protected static void addPolyline(Path path, float[] data, int start, int from, int to) {
+        if (to - from < 1)
+            return;
+
+        path.moveTo(data[start + from * 2], data[start + from * 2 + 1]);
+        for (int i = from + 1; i <= to; i++)
+            path.lineTo(data[start + i * 2], data[start + i * 2 + 1]);
+    }
+
+    protected int beginTransform(Canvas canvas, Matrix transform) {
+        if (transform == null) {
+            mDrawScale = 1;
+            return Constants.NOT_FOUND;
         }
+
+        mDrawScale = transform.mapRadius(1);
+        if (mDrawScale <= 0)
+            mDrawScale = 1;
+
+        int saveCount = canvas.save();
+        canvas.concat(transform);
+        return saveCount;
+    }
+
+    protected void endTransform(Canvas canvas, int saveCount) {
+        if (saveCount != Constants.NOT_FOUND)
+            canvas.restoreToCount(saveCount);
+        mDrawScale = 1;
+    }
+
+    protected void drawAnchor(Canvas canvas, float x, float y) {
+        if (mAnchor != null)
+            canvas.drawBitmap(mAnchor, x + mAnchorRectOffsetX, y + mAnchorRectOffsetY, null);
     }
 
-    protected void drawPoints(Canvas canvas, float[] items, float radius) {
-        for (int i = 0; i < items.length - 1; i += 2)
-            canvas.drawCircle(items[i], items[i + 1], radius, mPaint);
+    protected void drawPoints(Canvas canvas, float[] data, int start, int end, float radius) {
+        for (int i = start; i < end - 1; i += 2)
+            canvas.drawCircle(data[i], data[i + 1], radius, mPaint);
     }
 }
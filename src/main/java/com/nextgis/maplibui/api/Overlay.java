@@ -27,6 +27,7 @@ import android.content.Context;
 import android.graphics.Canvas;
 import android.graphics.Matrix;
 import android.graphics.PointF;
+import android.graphics.Rect;
 import android.os.Bundle;
 import com.nextgis.maplib.datasource.GeoPoint;
 import com.nextgis.maplib.map.MapDrawable;
@@ -162,9 +163,80 @@ public abstract class Overlay
     }
 
 
+    /**
+     * Cacheable overlays are drawn into the overlay layer of {@link MapViewOverlays} and are
+     * redrawn only when the map extent changes or inside rects passed to {@link #invalidate(Rect)}.
+     * Overlays which change their content without reporting it must keep this false.
+     */
+    public boolean isCacheable()
+    {
+        return false;
+    }
+
+
+    /**
+     * Redraws a part of the overlay.
+     *
+     * @param dirty
+     *         screen rect to redraw, null to redraw the whole overlay layer
+     */
+    public void invalidate(Rect dirty)
+    {
+        if (null != mMapViewOverlays) {
+            mMapViewOverlays.invalidateOverlay(dirty);
+        }
+    }
+
+
+    public void invalidate()
+    {
+        invalidate(null);
+    }
+
+
+    protected static void getScreenBounds(
+            OverlayItem overlayItem,
+            Rect bounds)
+    {
+        if (null == overlayItem || null == overlayItem.getMarker()) {
+            bounds.setEmpty();
+            return;
+        }
+
+        int left = (int) Math.floor(overlayItem.getScreenX());
+        int top = (int) Math.floor(overlayItem.getScreenY());
+        bounds.set(
+                left, top, left + overlayItem.getMarker().getWidth() + 1,
+                top + overlayItem.getMarker().getHeight() + 1);
+    }
+
+
+    /**
+     * Called when the overlay is added to an attached map view or its map view is attached to
+     * a window, e.g. to register receivers.
+     */
+    public void onAttach()
+    {
+
+    }
+
+
+    /**
+     * Called when the overlay is removed from an attached map view or its map view is detached
+     * from the window. Receivers registered in {@link #onAttach()} must be unregistered here.
+     */
+    public void onDetach()
+    {
+
+    }
+
+
     public void setVisibility(boolean isVisible)
     {
-        mIsVisible = isVisible;
+        if (mIsVisible != isVisible) {
+            mIsVisible = isVisible;
+            invalidate();
+        }
     }
 
 
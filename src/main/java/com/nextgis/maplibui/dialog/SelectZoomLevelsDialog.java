@@ -40,6 +40,7 @@ import com.appyvet.materialrangebar.RangeBar;
 import com.nextgis.maplib.api.IGISApplication;
 import com.nextgis.maplib.api.ILayer;
 import com.nextgis.maplib.datasource.GeoEnvelope;
+import com.nextgis.maplib.datasource.GeoGeometry;
 import com.nextgis.maplib.map.MapBase;
 import com.nextgis.maplib.map.MapDrawable;
 import com.nextgis.maplib.map.TMSLayer;
@@ -47,9 +48,12 @@ import com.nextgis.maplib.util.GeoConstants;
 import com.nextgis.maplib.util.MapUtil;
 import com.nextgis.maplibui.R;
 import com.nextgis.maplibui.service.TileDownloadService;
+import com.nextgis.maplibui.service.TileShape;
 import com.nextgis.maplibui.util.ConstantsUI;
 import com.nextgis.maplibui.util.ControlHelper;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.Locale;
 
 /**
@@ -60,6 +64,9 @@ public class SelectZoomLevelsDialog extends DialogFragment {
 
     private TextView mTilesCount;
     private GeoEnvelope mEnvelope;
+    private TileShape mShape;
+    // the saved state keeps the shape in this file, a geometry may not fit a bundle
+    private File mShapeFile;
     private int mLayerId;
     private CountTilesTask mCountTask;
 
@@ -72,6 +79,19 @@ public class SelectZoomLevelsDialog extends DialogFragment {
         return this;
     }
 
+    /**
+     * Limits the download to tiles of the geometry, e.g. a feature or a track.
+     *
+     * @param geometry geometry in map coordinates
+     * @param buffer   distance around the geometry in map units
+     */
+    public SelectZoomLevelsDialog setShape(GeoGeometry geometry, double buffer) {
+        mShape = new TileShape(geometry, buffer);
+        mEnvelope = mShape.getEnvelope();
+        mShapeFile = null;
+        return this;
+    }
+
     public int getLayerId() {
         return mLayerId;
     }
@@ -91,6 +111,15 @@ public class SelectZoomLevelsDialog extends DialogFragment {
             double dfMaxX = savedInstanceState.getDouble(TileDownloadService.KEY_MAXX);
             double dfMaxY = savedInstanceState.getDouble(TileDownloadService.KEY_MAXY);
             mEnvelope = new GeoEnvelope(dfMinX, dfMaxX, dfMinY, dfMaxY);
+            if (savedInstanceState.containsKey(TileDownloadService.KEY_SHAPE))
+                try {
+                    File file = new File(savedInstanceState.getString(TileDownloadService.KEY_SHAPE));
+                    mShape = TileShape.load(file);
+                    mEnvelope = mShape.getEnvelope();
+                    mShapeFile = file;
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
         }
 
         final Context context = getActivity();
@@ -156,6 +185,14 @@ public class SelectZoomLevelsDialog extends DialogFragment {
                             intent.putExtra(TileDownloadService.KEY_MAXX, env.getMaxX());
                             intent.putExtra(TileDownloadService.KEY_MINY, env.getMinY());
                             intent.putExtra(TileDownloadService.KEY_MAXY, env.getMaxY());
+                            if (null != mShape)
+                                try {
+                                    File file = mShape.save(context.getCacheDir());
+                                    intent.putExtra(TileDownloadService.KEY_SHAPE, file.getPath());
+                                } catch (IOException e) {
+                                    e.printStackTrace();
+                                    return;
+                                }
 
                             ContextCompat.startForegroundService(context, intent);
                         }
@@ -183,7 +220,10 @@ public class SelectZoomLevelsDialog extends DialogFragment {
             if (task != null && task.isCancelled())
                 return total;
 
-            total += MapUtil.getTileCount(task, envelope, zoom, layer.getTMSType());
+            if (null != mShape)
+                total += mShape.getTileCount(zoom);
+            else
+                total += MapUtil.getTileCount(task, envelope, zoom, layer.getTMSType());
         }
 
         return total;
@@ -196,9 +236,25 @@ public class SelectZoomLevelsDialog extends DialogFragment {
         outState.putDouble(TileDownloadService.KEY_MAXX, mEnvelope.getMaxX());
         outState.putDouble(TileDownloadService.KEY_MINY, mEnvelope.getMinY());
         outState.putDouble(TileDownloadService.KEY_MAXY, mEnvelope.getMaxY());
+        if (null != mShape)
+            try {
+                if (null == mShapeFile)
+                    mShapeFile = mShape.save(getActivity().getCacheDir());
+                outState.putString(TileDownloadService.KEY_SHAPE, mShapeFile.getPath());
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
         super.onSaveInstanceState(outState);
     }
 
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        // a dialog which is not recreated does not need its state file
+        if (null != mShapeFile && (isRemoving() || null == getActivity() || getActivity().isFinishing()))
+            mShapeFile.delete();
+    }
+
     private class CountTilesTask extends AsyncTask<Void, Void, String> {
         private int mFrom, mTo;
         private MapBase mMap;
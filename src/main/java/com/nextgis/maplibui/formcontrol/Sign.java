@@ -45,6 +45,7 @@ import android.view.ViewGroup;
 import com.nextgis.maplib.datasource.Field;
 import com.nextgis.maplibui.R;
 import com.nextgis.maplibui.api.IFormControl;
+import com.nextgis.maplibui.util.BitmapPool;
 import com.nextgis.maplibui.util.ControlHelper;
 
 import org.json.JSONObject;
@@ -249,15 +250,27 @@ public class Sign extends View implements IFormControl {
         Matrix matrix = new Matrix();
         matrix.setScale(scale, scale);
 
-        Bitmap bmp = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        BitmapPool pool = BitmapPool.getInstance(getContext());
+        Bitmap bmp = pool.get(width, height, Bitmap.Config.ARGB_8888);
+        if (bmp == null)
+            throw new IOException("Not enough memory to save the signature");
+
         Canvas canvas = new Canvas(bmp);
         canvas.setMatrix(matrix);
 
         int color = transparentBackground ? Color.TRANSPARENT : 0xFFFFFF - mPaint.getColor();
         drawSign(canvas, color, mPaint);
-        if(sigFile.exists() || sigFile.createNewFile()) {
-            FileOutputStream out = new FileOutputStream(sigFile);
-            bmp.compress(Bitmap.CompressFormat.PNG, 90, out);
+        try {
+            if (sigFile.exists() || sigFile.createNewFile()) {
+                FileOutputStream out = new FileOutputStream(sigFile);
+                try {
+                    bmp.compress(Bitmap.CompressFormat.PNG, 90, out);
+                } finally {
+                    out.close();
+                }
+            }
+        } finally {
+            pool.put(bmp);
         }
     }
 
@@ -30,6 +30,7 @@ import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Color;
+import android.graphics.drawable.BitmapDrawable;
 import android.hardware.GeomagneticField;
 import android.hardware.Sensor;
 import android.hardware.SensorEvent;
@@ -52,6 +53,7 @@ import android.widget.TextView;
 
 import com.nextgis.maplib.util.PermissionUtil;
 import com.nextgis.maplibui.R;
+import com.nextgis.maplibui.util.BitmapPool;
 import com.nextgis.maplibui.util.BubbleSurfaceView;
 import com.nextgis.maplibui.util.CompassImage;
 import com.nextgis.maplibui.util.ControlHelper;
@@ -163,13 +165,26 @@ public class CompassFragment extends Fragment implements View.OnTouchListener {
             is = getContext().getAssets().open(image);
             BitmapFactory.Options options = ControlHelper.getOptions(is, width, height);
             is = getContext().getAssets().open(image);
-            Bitmap bitmap = ControlHelper.getBitmap(is, options);
+            Bitmap bitmap = BitmapPool.getInstance(getContext()).decodeStream(is, options);
+            if (bitmap == null) {
+                is = getContext().getAssets().open(image);
+                bitmap = ControlHelper.getBitmap(is, options);
+            }
             view.setImageBitmap(bitmap);
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    private void releaseImage(ImageView view) {
+        if (view == null || !(view.getDrawable() instanceof BitmapDrawable))
+            return;
+
+        Bitmap bitmap = ((BitmapDrawable) view.getDrawable()).getBitmap();
+        view.setImageDrawable(null);
+        BitmapPool.getInstance(getContext()).put(bitmap);
+    }
+
     @SuppressLint("MissingPermission")
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -201,6 +216,15 @@ public class CompassFragment extends Fragment implements View.OnTouchListener {
             mDeclination = getDeclination(mCurrentLocation, System.currentTimeMillis());
     }
 
+    @Override
+    public void onDestroyView() {
+        releaseImage(mBasePlate);
+        releaseImage(mCompass);
+        releaseImage(mCompassNeedle);
+        releaseImage(mCompassNeedleMagnetic);
+        super.onDestroyView();
+    }
+
     @Override
     public void onDestroy() {
         super.onDestroy();
@@ -0,0 +1,268 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2019 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplibui.mapui;
+
+import android.util.Log;
+
+import com.nextgis.maplib.api.ILayer;
+import com.nextgis.maplib.datasource.GeoEnvelope;
+import com.nextgis.maplib.datasource.TileItem;
+import com.nextgis.maplib.map.Layer;
+import com.nextgis.maplib.map.RemoteTMSLayer;
+import com.nextgis.maplib.map.VectorLayer;
+import com.nextgis.maplib.util.Constants;
+import com.nextgis.maplib.util.MapUtil;
+import com.nextgis.maplibui.service.TileDownloadEngine;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.nextgis.maplib.util.Constants.TAG;
+
+
+/**
+ * Prefetches raster tiles and vector features of the viewport a fling is going to stop at while
+ * the fling animation runs. A request is a hit if it loaded its data before the fling settled,
+ * a failed request is a miss.
+ */
+public class FlingPrefetcher
+{
+    protected static final int  THREAD_COUNT    = 2;
+    protected static final long KEEP_ALIVE_TIME = 10000;
+    protected static final int  MAX_TILES       = 64;
+
+    protected final ThreadPoolExecutor mExecutor;
+    protected final List<Request>      mPending;
+
+    protected final AtomicLong mRequests;
+    protected final AtomicLong mHits;
+    protected final AtomicLong mMisses;
+    protected final AtomicLong mErrors;
+
+
+    /**
+     * Prefetch of one tile or layer, it knows if the data was loaded, a future only if it ran.
+     */
+    protected abstract static class Request
+            implements Runnable
+    {
+        Future           mFuture;
+        volatile boolean mIsLoaded;
+
+
+        @Override
+        public void run()
+        {
+            mIsLoaded = load();
+        }
+
+
+        protected abstract boolean load();
+    }
+
+
+    public FlingPrefetcher()
+    {
+        mExecutor = new ThreadPoolExecutor(
+                THREAD_COUNT, THREAD_COUNT, KEEP_ALIVE_TIME, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        mExecutor.allowCoreThreadTimeOut(true);
+        mPending = new ArrayList<>();
+
+        mRequests = new AtomicLong();
+        mHits = new AtomicLong();
+        mMisses = new AtomicLong();
+        mErrors = new AtomicLong();
+    }
+
+
+    /**
+     * @param rasters
+     *         layers to download tiles of
+     * @param vectors
+     *         layers to query features of
+     * @param mapEnv
+     *         the viewport the fling will stop at in map coordinates
+     * @param zoom
+     *         current map zoom
+     */
+    public synchronized void prefetch(
+            List<ILayer> rasters,
+            List<ILayer> vectors,
+            final GeoEnvelope mapEnv,
+            float zoom)
+    {
+        cancel();
+
+        for (ILayer layer : rasters) {
+            if (!(layer instanceof RemoteTMSLayer) || !((Layer) layer).isVisible()) {
+                continue;
+            }
+
+            final RemoteTMSLayer tmsLayer = (RemoteTMSLayer) layer;
+            List<TileItem> tiles = MapUtil.getTileItems(mapEnv, zoom, tmsLayer.getTMSType());
+            if (tiles.size() > MAX_TILES) {
+                continue; // not a fling destination but a world overview
+            }
+
+            // tiles go through the shared engine to overtake bulk downloads of the process
+            String host = TileDownloadEngine.getHost(tmsLayer.getURL());
+            for (final TileItem tile : tiles) {
+                submitTile(host, new Request()
+                {
+                    @Override
+                    protected boolean load()
+                    {
+                        if (!tmsLayer.downloadTile(tile, false)) {
+                            mErrors.incrementAndGet();
+                            return false;
+                        }
+                        return true;
+                    }
+                });
+            }
+        }
+
+        for (ILayer layer : vectors) {
+            if (!(layer instanceof VectorLayer) || !((Layer) layer).isVisible()) {
+                continue;
+            }
+
+            final VectorLayer vectorLayer = (VectorLayer) layer;
+            submit(new Request()
+            {
+                @Override
+                protected boolean load()
+                {
+                    // warms up the spatial index and feature cache for the renderer
+                    vectorLayer.query(mapEnv);
+                    return true;
+                }
+            });
+        }
+
+        if (Constants.DEBUG_MODE) {
+            Log.d(TAG, "FlingPrefetcher: " + mPending.size() + " requests for " + mapEnv);
+        }
+    }
+
+
+    protected void submit(Request request)
+    {
+        mRequests.incrementAndGet();
+        request.mFuture = mExecutor.submit(request);
+        mPending.add(request);
+    }
+
+
+    protected void submitTile(
+            String host,
+            Request request)
+    {
+        try {
+            request.mFuture = TileDownloadEngine.getInstance()
+                    .submit(TileDownloadEngine.PRIORITY_PREFETCH, host, request);
+            mPending.add(request);
+            mRequests.incrementAndGet();
+        } catch (InterruptedException e) {
+            // only bulk downloads wait for the queue
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    /**
+     * Counts requests which loaded their data as hits, failed ones as misses, and cancels the
+     * rest as misses. Call when the fling animation is over.
+     */
+    public synchronized void settle()
+    {
+        for (Request request : mPending) {
+            if (!request.mFuture.isDone()) {
+                // running downloads are still useful for the renderer, drop only queued ones
+                request.mFuture.cancel(false);
+                mMisses.incrementAndGet();
+            } else if (request.mIsLoaded) {
+                mHits.incrementAndGet();
+            } else {
+                mMisses.incrementAndGet();
+            }
+        }
+        mPending.clear();
+    }
+
+
+    public synchronized void cancel()
+    {
+        for (Request request : mPending) {
+            request.mFuture.cancel(true);
+        }
+        mPending.clear();
+    }
+
+
+    public long getRequestCount()
+    {
+        return mRequests.get();
+    }
+
+
+    public long getHitCount()
+    {
+        return mHits.get();
+    }
+
+
+    public long getMissCount()
+    {
+        return mMisses.get();
+    }
+
+
+    public long getErrorCount()
+    {
+        return mErrors.get();
+    }
+
+
+    public float getHitRate()
+    {
+        long total = mHits.get() + mMisses.get();
+        return total == 0 ? 0 : (float) mHits.get() / total;
+    }
+
+
+    public void resetCounters()
+    {
+        mRequests.set(0);
+        mHits.set(0);
+        mMisses.set(0);
+        mErrors.set(0);
+    }
+}
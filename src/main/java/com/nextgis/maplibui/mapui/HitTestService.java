@@ -0,0 +1,384 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2019 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplibui.mapui;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.nextgis.maplib.api.ILayer;
+import com.nextgis.maplib.datasource.GeoEnvelope;
+import com.nextgis.maplib.datasource.GeoGeometry;
+import com.nextgis.maplib.datasource.GeoLineString;
+import com.nextgis.maplib.datasource.GeoMultiLineString;
+import com.nextgis.maplib.datasource.GeoMultiPoint;
+import com.nextgis.maplib.datasource.GeoMultiPolygon;
+import com.nextgis.maplib.datasource.GeoPoint;
+import com.nextgis.maplib.datasource.GeoPolygon;
+import com.nextgis.maplib.map.Layer;
+import com.nextgis.maplib.map.VectorLayer;
+import com.nextgis.maplib.util.GeoConstants;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Finds features under a screen point off the UI thread. Every visible vector layer is queried in
+ * parallel and ranked candidates are delivered to the main thread. A new hit test cancels the
+ * previous one, so only the result of the latest tap is delivered.
+ */
+public class HitTestService
+{
+    protected static final long KEEP_ALIVE_TIME = 10000;
+
+    public interface OnHitTestListener
+    {
+        /**
+         * @param candidates
+         *         features sorted from the best match, may be empty
+         */
+        void onHitTestFinished(List<Candidate> candidates);
+    }
+
+
+    public static class Candidate
+    {
+        protected final VectorLayer mLayer;
+        protected final long        mFeatureId;
+        protected final GeoGeometry mGeometry;
+        protected final double      mDistance;
+        protected final double      mArea;
+
+
+        public Candidate(
+                VectorLayer layer,
+                long featureId,
+                GeoGeometry geometry,
+                double distance,
+                double area)
+        {
+            mLayer = layer;
+            mFeatureId = featureId;
+            mGeometry = geometry;
+            mDistance = distance;
+            mArea = area;
+        }
+
+
+        public VectorLayer getLayer()
+        {
+            return mLayer;
+        }
+
+
+        public long getFeatureId()
+        {
+            return mFeatureId;
+        }
+
+
+        public GeoGeometry getGeometry()
+        {
+            return mGeometry;
+        }
+
+
+        /**
+         * @return distance from the tap to the feature geometry in map units, 0 inside a polygon
+         */
+        public double getDistance()
+        {
+            return mDistance;
+        }
+    }
+
+
+    // all candidates are within the tap tolerance, the smallest feature wins, so a point on a
+    // polygon wins over the polygon, then the nearest one
+    protected static final Comparator<Candidate> RANK = new Comparator<Candidate>()
+    {
+        @Override
+        public int compare(
+                Candidate lhs,
+                Candidate rhs)
+        {
+            int result = Double.compare(lhs.mArea, rhs.mArea);
+            return result != 0 ? result : Double.compare(lhs.mDistance, rhs.mDistance);
+        }
+    };
+
+
+    protected final MapViewBase        mMapView;
+    protected final ThreadPoolExecutor mExecutor;
+    protected final Handler            mHandler;
+    protected final AtomicInteger      mGeneration;
+    protected final List<Future>       mFutures;
+
+
+    public HitTestService(MapViewBase mapView)
+    {
+        mMapView = mapView;
+        int threads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        mExecutor = new ThreadPoolExecutor(
+                threads, threads, KEEP_ALIVE_TIME, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        mExecutor.allowCoreThreadTimeOut(true);
+        mHandler = new Handler(Looper.getMainLooper());
+        mGeneration = new AtomicInteger();
+        mFutures = new ArrayList<>();
+    }
+
+
+    /**
+     * Hit test over all visible vector layers of the map.
+     */
+    public void hitTest(
+            float x,
+            float y,
+            float tolerancePX,
+            OnHitTestListener listener)
+    {
+        List<VectorLayer> layers = new ArrayList<>();
+        for (ILayer layer : mMapView.getVectorLayersByType(GeoConstants.GTAnyCheck)) {
+            if (layer instanceof VectorLayer && ((Layer) layer).isVisible()) {
+                layers.add((VectorLayer) layer);
+            }
+        }
+
+        hitTest(x, y, tolerancePX, layers, listener);
+    }
+
+
+    public synchronized void hitTest(
+            float x,
+            float y,
+            float tolerancePX,
+            List<VectorLayer> layers,
+            final OnHitTestListener listener)
+    {
+        cancel();
+        final int generation = mGeneration.get();
+
+        GeoEnvelope screenEnv =
+                new GeoEnvelope(x - tolerancePX, x + tolerancePX, y - tolerancePX, y + tolerancePX);
+        final GeoEnvelope mapEnv = mMapView.screenToMap(screenEnv);
+        final GeoPoint mapPoint = null != mapEnv ? mapEnv.getCenter() : null;
+        if (null == mapEnv || layers.isEmpty()) {
+            deliver(generation, new ArrayList<Candidate>(), listener);
+            return;
+        }
+
+        final List<Candidate> candidates = Collections.synchronizedList(new ArrayList<Candidate>());
+        final AtomicInteger remaining = new AtomicInteger(layers.size());
+
+        for (final VectorLayer layer : layers) {
+            mFutures.add(mExecutor.submit(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try {
+                        queryLayer(generation, layer, mapEnv, mapPoint, candidates);
+                    } finally {
+                        // a failed layer must not hold back the others
+                        if (remaining.decrementAndGet() == 0) {
+                            List<Candidate> result = new ArrayList<>(candidates);
+                            Collections.sort(result, RANK);
+                            deliver(generation, result, listener);
+                        }
+                    }
+                }
+            }));
+        }
+    }
+
+
+    protected void queryLayer(
+            int generation,
+            VectorLayer layer,
+            GeoEnvelope mapEnv,
+            GeoPoint mapPoint,
+            List<Candidate> candidates)
+    {
+        double tolerance = mapEnv.width() / 2;
+        List<Long> ids = layer.query(mapEnv);
+        for (Long id : ids) {
+            if (generation != mGeneration.get() || Thread.currentThread().isInterrupted()) {
+                return;
+            }
+
+            GeoGeometry geometry = layer.getGeometryForId(id);
+            if (null == geometry) {
+                continue; // stale spatial index entry
+            }
+
+            double distance = getDistance(geometry, mapPoint.getX(), mapPoint.getY());
+            if (distance > tolerance) {
+                continue; // only the envelope is under the tap
+            }
+
+            GeoEnvelope env = geometry.getEnvelope();
+            candidates.add(new Candidate(layer, id, geometry, distance, env.width() * env.height()));
+        }
+    }
+
+
+    /**
+     * @return distance from the point to the geometry, 0 inside a polygon
+     */
+    public static double getDistance(
+            GeoGeometry geometry,
+            double x,
+            double y)
+    {
+        double distance = Double.MAX_VALUE;
+        switch (geometry.getType()) {
+            case GeoConstants.GTPoint:
+                GeoPoint point = (GeoPoint) geometry;
+                return Math.hypot(point.getX() - x, point.getY() - y);
+
+            case GeoConstants.GTMultiPoint:
+                GeoMultiPoint multiPoint = (GeoMultiPoint) geometry;
+                for (int i = 0; i < multiPoint.size(); i++) {
+                    distance = Math.min(distance, getDistance(multiPoint.get(i), x, y));
+                }
+                return distance;
+
+            case GeoConstants.GTLineString:
+                return getDistance(((GeoLineString) geometry).getPoints(), x, y);
+
+            case GeoConstants.GTMultiLineString:
+                GeoMultiLineString multiLine = (GeoMultiLineString) geometry;
+                for (int i = 0; i < multiLine.size(); i++) {
+                    distance = Math.min(distance, getDistance(multiLine.get(i).getPoints(), x, y));
+                }
+                return distance;
+
+            case GeoConstants.GTPolygon:
+                GeoPolygon polygon = (GeoPolygon) geometry;
+                List<GeoPoint> outer = polygon.getOuterRing().getPoints();
+                boolean isInside = contains(outer, x, y);
+                distance = getDistance(outer, x, y);
+                for (int i = 0; i < polygon.getInnerRingCount(); i++) {
+                    List<GeoPoint> inner = polygon.getInnerRing(i).getPoints();
+                    isInside &= !contains(inner, x, y);
+                    distance = Math.min(distance, getDistance(inner, x, y));
+                }
+                return isInside ? 0 : distance;
+
+            case GeoConstants.GTMultiPolygon:
+                GeoMultiPolygon multiPolygon = (GeoMultiPolygon) geometry;
+                for (int i = 0; i < multiPolygon.size(); i++) {
+                    distance = Math.min(distance, getDistance(multiPolygon.get(i), x, y));
+                }
+                return distance;
+
+            default:
+                GeoEnvelope env = geometry.getEnvelope();
+                double dx = Math.max(0, Math.max(env.getMinX() - x, x - env.getMaxX()));
+                double dy = Math.max(0, Math.max(env.getMinY() - y, y - env.getMaxY()));
+                return Math.hypot(dx, dy);
+        }
+    }
+
+
+    protected static double getDistance(
+            List<GeoPoint> points,
+            double x,
+            double y)
+    {
+        if (points.size() == 1) {
+            return Math.hypot(points.get(0).getX() - x, points.get(0).getY() - y);
+        }
+
+        double distance = Double.MAX_VALUE;
+        for (int i = 1; i < points.size(); i++) {
+            double x0 = points.get(i - 1).getX(), y0 = points.get(i - 1).getY();
+            double dx = points.get(i).getX() - x0, dy = points.get(i).getY() - y0;
+            double length = dx * dx + dy * dy;
+            double t = length == 0 ? 0 : ((x - x0) * dx + (y - y0) * dy) / length;
+            t = Math.max(0, Math.min(1, t));
+            distance = Math.min(distance, Math.hypot(x0 + t * dx - x, y0 + t * dy - y));
+        }
+        return distance;
+    }
+
+
+    /**
+     * Even-odd ray casting, the ring may be open or closed.
+     */
+    protected static boolean contains(
+            List<GeoPoint> ring,
+            double x,
+            double y)
+    {
+        boolean isInside = false;
+        for (int i = 0, j = ring.size() - 1; i < ring.size(); j = i++) {
+            double xi = ring.get(i).getX(), yi = ring.get(i).getY();
+            double xj = ring.get(j).getX(), yj = ring.get(j).getY();
+            if (yi > y != yj > y && x < (xj - xi) * (y - yi) / (yj - yi) + xi) {
+                isInside = !isInside;
+            }
+        }
+        return isInside;
+    }
+
+
+    protected void deliver(
+            final int generation,
+            final List<Candidate> candidates,
+            final OnHitTestListener listener)
+    {
+        mHandler.post(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                if (generation == mGeneration.get() && null != listener) {
+                    listener.onHitTestFinished(candidates);
+                }
+            }
+        });
+    }
+
+
+    /**
+     * Cancels the running hit test. Its listener will not be called.
+     */
+    public synchronized void cancel()
+    {
+        mGeneration.incrementAndGet();
+        for (Future future : mFutures) {
+            future.cancel(true);
+        }
+        mFutures.clear();
+    }
+}
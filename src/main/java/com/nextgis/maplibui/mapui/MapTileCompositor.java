@@ -0,0 +1,482 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2019 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplibui.mapui;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.PointF;
+import android.graphics.RectF;
+import android.graphics.Region;
+import android.os.Build;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.nextgis.maplib.datasource.GeoPoint;
+import com.nextgis.maplib.map.MapDrawable;
+import com.nextgis.maplib.util.Constants;
+import com.nextgis.maplibui.util.BitmapPool;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.nextgis.maplib.util.Constants.TAG;
+
+
+/**
+ * Keeps screen tiles of the rendered map in a LRU pool and composes them during pan and zoom
+ * gestures. The current map buffer is drawn shifted or scaled as usual, and the area it does not
+ * cover is filled with tiles cached from earlier frames at the same zoom, so gestures do not need
+ * to call {@link MapDrawable#buffer(float, float, float)} on every touch move.
+ */
+public class MapTileCompositor
+{
+    public static final int TILE_SIZE = 256;
+
+    protected static final long KEEP_ALIVE_TIME = 30000;
+
+    protected static final GeoPoint WORLD_ORIGIN = new GeoPoint(0, 0);
+
+    protected final LruCache<Long, Bitmap> mTiles;
+    protected final BitmapPool             mBitmapPool;
+    protected final ThreadPoolExecutor     mExecutor;
+    protected final AtomicInteger          mGeneration;
+    protected final Paint                  mPaint;
+    protected final Matrix                 mMatrix;
+    protected final RectF                  mBufferRect;
+    // removed tiles may be in a frame still drawn, they go back to the pool a frame later
+    protected final Queue<Bitmap>          mEvicted;
+    protected final List<Bitmap>           mRetired;
+
+    // screen position of the world origin and zoom the tile grid is bound to
+    protected volatile float mOriginX, mOriginY;
+    protected volatile float mZoom;
+
+    protected volatile long mFrameCount;
+    protected volatile long mFrameTimeTotal;
+    protected volatile long mLastFrameTime;
+    protected volatile long mMaxFrameTime;
+    protected final AtomicLong mTileHits   = new AtomicLong();
+    protected final AtomicLong mTileMisses = new AtomicLong();
+    // origin of the tile grid mapped to the frame
+    protected final float[]    mOrigin     = new float[2];
+
+
+    /**
+     * Caches tiles in a half of the pool budget, the other half is left for snapshots and
+     * other pool users.
+     */
+    public MapTileCompositor(BitmapPool bitmapPool)
+    {
+        this(bitmapPool, (int) Math.min(bitmapPool.getMaxSize() / 2, Integer.MAX_VALUE));
+    }
+
+
+    public MapTileCompositor(
+            BitmapPool bitmapPool,
+            int maxBytes)
+    {
+        mBitmapPool = bitmapPool;
+        mEvicted = new ConcurrentLinkedQueue<>();
+        mRetired = new ArrayList<>();
+        mTiles = new LruCache<Long, Bitmap>(maxBytes)
+        {
+            @Override
+            protected int sizeOf(
+                    Long key,
+                    Bitmap value)
+            {
+                return (int) BitmapPool.getByteCount(value);
+            }
+
+
+            @Override
+            protected void entryRemoved(
+                    boolean evicted,
+                    Long key,
+                    Bitmap oldValue,
+                    Bitmap newValue)
+            {
+                // evicted and replaced tiles are reused for the next capture, but not before
+                // a frame which may draw them is done, see releaseEvicted()
+                mEvicted.add(oldValue);
+            }
+        };
+
+        mExecutor = new ThreadPoolExecutor(
+                1, 1, KEEP_ALIVE_TIME, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+        mExecutor.allowCoreThreadTimeOut(true);
+        mGeneration = new AtomicInteger();
+        mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+        mMatrix = new Matrix();
+        mBufferRect = new RectF();
+    }
+
+
+    /**
+     * Binds the tile grid to the current map position. Must be called when a gesture starts.
+     */
+    public void beginGesture(MapDrawable map)
+    {
+        GeoPoint origin = map.mapToScreen(WORLD_ORIGIN);
+        mOriginX = (float) origin.getX();
+        mOriginY = (float) origin.getY();
+        mZoom = map.getZoomLevel();
+    }
+
+
+    /**
+     * Splits the just rendered map buffer to tiles in background. Tiles which are already in the
+     * pool for the same zoom are replaced, so layer changes are picked up on the next capture.
+     * Must be called on the thread which draws the map: the buffer is copied to a snapshot before
+     * it returns, so the background split never touches the live map buffer.
+     */
+    public void capture(
+            MapDrawable map,
+            final int width,
+            final int height)
+    {
+        if (null == map || width <= 0 || height <= 0) {
+            return;
+        }
+
+        final Bitmap snapshot = mBitmapPool.get(width, height, Bitmap.Config.ARGB_8888);
+        if (null == snapshot) {
+            mTiles.evictAll();
+            if (Constants.DEBUG_MODE) {
+                Log.d(TAG, "MapTileCompositor: out of memory, pool cleared");
+            }
+            return;
+        }
+        map.draw(new Canvas(snapshot), 0, 0, false);
+
+        GeoPoint origin = map.mapToScreen(WORLD_ORIGIN);
+        final int generation = mGeneration.incrementAndGet();
+        final float originX = (float) origin.getX();
+        final float originY = (float) origin.getY();
+        final float zoom = map.getZoomLevel();
+
+        mExecutor.submit(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try {
+                    split(snapshot, generation, originX, originY, zoom);
+                } finally {
+                    mBitmapPool.put(snapshot);
+                }
+            }
+        });
+    }
+
+
+    protected void split(
+            Bitmap snapshot,
+            int generation,
+            float originX,
+            float originY,
+            float zoom)
+    {
+        int width = snapshot.getWidth();
+        int height = snapshot.getHeight();
+        int minX = (int) Math.floor(-originX / TILE_SIZE);
+        int minY = (int) Math.floor(-originY / TILE_SIZE);
+        int maxX = (int) Math.floor((width - originX) / TILE_SIZE);
+        int maxY = (int) Math.floor((height - originY) / TILE_SIZE);
+
+        for (int x = minX; x <= maxX; x++) {
+            for (int y = minY; y <= maxY; y++) {
+                if (generation != mGeneration.get()) {
+                    return;
+                }
+
+                float left = originX + x * TILE_SIZE;
+                float top = originY + y * TILE_SIZE;
+                // cache only tiles fully covered by the rendered buffer
+                if (left < 0 || top < 0 || left + TILE_SIZE > width || top + TILE_SIZE > height) {
+                    continue;
+                }
+
+                Bitmap tile = mBitmapPool.get(TILE_SIZE, TILE_SIZE, Bitmap.Config.ARGB_8888);
+                if (null == tile) {
+                    mTiles.evictAll();
+                    if (Constants.DEBUG_MODE) {
+                        Log.d(TAG, "MapTileCompositor: out of memory, pool cleared");
+                    }
+                    return;
+                }
+
+                new Canvas(tile).drawBitmap(snapshot, -left, -top, null);
+                if (generation == mGeneration.get()) {
+                    // cached tiles are counted against the pool budget until released
+                    mBitmapPool.reserve(BitmapPool.getByteCount(tile));
+                    mTiles.put(getKey(zoom, x, y), tile);
+                } else {
+                    mBitmapPool.put(tile);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Drops tiles being captured. Already pooled tiles stay valid until replaced.
+     */
+    public void cancelCapture()
+    {
+        mGeneration.incrementAndGet();
+    }
+
+
+    /**
+     * Must be called on the UI thread outside of a frame, removed tiles are released at once.
+     */
+    public void clear()
+    {
+        cancelCapture();
+        mTiles.evictAll();
+
+        // no frame draws the removed tiles now
+        releaseEvicted();
+        Bitmap tile;
+        while (null != (tile = mEvicted.poll())) {
+            release(tile);
+        }
+    }
+
+
+    /**
+     * Returns tiles removed before the previous frame to the pool. Called on the UI thread when
+     * a frame starts: a tile drawn by the previous frame is synced to the render thread by now,
+     * and a tile removed while that frame was drawn waits for one more frame.
+     */
+    protected void releaseEvicted()
+    {
+        for (Bitmap tile : mRetired) {
+            release(tile);
+        }
+        mRetired.clear();
+
+        Bitmap tile;
+        while (null != (tile = mEvicted.poll())) {
+            mRetired.add(tile);
+        }
+    }
+
+
+    protected void release(Bitmap tile)
+    {
+        mBitmapPool.reserve(-BitmapPool.getByteCount(tile));
+        mBitmapPool.put(tile);
+    }
+
+
+    public void drawOnPanning(
+            Canvas canvas,
+            MapDrawable map,
+            PointF currentMouseOffset)
+    {
+        long start = System.nanoTime();
+        releaseEvicted();
+
+        map.draw(canvas, -currentMouseOffset.x, -currentMouseOffset.y, true);
+
+        mBufferRect.set(
+                -currentMouseOffset.x, -currentMouseOffset.y,
+                canvas.getWidth() - currentMouseOffset.x,
+                canvas.getHeight() - currentMouseOffset.y);
+        mMatrix.reset();
+        mMatrix.setTranslate(-currentMouseOffset.x, -currentMouseOffset.y);
+        drawExposedTiles(canvas, 1);
+
+        countFrame(start);
+    }
+
+
+    public void drawOnZooming(
+            Canvas canvas,
+            MapDrawable map,
+            PointF currentFocusLocation,
+            float scale)
+    {
+        long start = System.nanoTime();
+        releaseEvicted();
+
+        map.draw(canvas, -currentFocusLocation.x, -currentFocusLocation.y, scale);
+
+        // same transform as the map uses: p' = (p + focus) * scale - focus
+        mMatrix.reset();
+        mMatrix.setTranslate(currentFocusLocation.x, currentFocusLocation.y);
+        mMatrix.postScale(scale, scale);
+        mMatrix.postTranslate(-currentFocusLocation.x, -currentFocusLocation.y);
+        mBufferRect.set(0, 0, canvas.getWidth(), canvas.getHeight());
+        mMatrix.mapRect(mBufferRect);
+        drawExposedTiles(canvas, scale);
+
+        countFrame(start);
+    }
+
+
+    protected void drawExposedTiles(
+            Canvas canvas,
+            float scale)
+    {
+        int width = canvas.getWidth();
+        int height = canvas.getHeight();
+        if (mBufferRect.left <= 0 && mBufferRect.top <= 0 && mBufferRect.right >= width &&
+            mBufferRect.bottom >= height) {
+            return;
+        }
+
+        mOrigin[0] = mOriginX;
+        mOrigin[1] = mOriginY;
+        mMatrix.mapPoints(mOrigin);
+        float originX = mOrigin[0];
+        float originY = mOrigin[1];
+        float tileSize = TILE_SIZE * scale;
+
+        int minX = (int) Math.floor(-originX / tileSize);
+        int minY = (int) Math.floor(-originY / tileSize);
+        int maxX = (int) Math.floor((width - originX) / tileSize);
+        int maxY = (int) Math.floor((height - originY) / tileSize);
+
+        canvas.save();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            canvas.clipOutRect(mBufferRect);
+        } else {
+            canvas.clipRect(mBufferRect, Region.Op.DIFFERENCE);
+        }
+
+        for (int x = minX; x <= maxX; x++) {
+            for (int y = minY; y <= maxY; y++) {
+                float left = originX + x * tileSize;
+                float top = originY + y * tileSize;
+                if (mBufferRect.contains(left, top, left + tileSize, top + tileSize)) {
+                    continue;
+                }
+
+                Bitmap tile = mTiles.get(getKey(mZoom, x, y));
+                if (null == tile) {
+                    mTileMisses.incrementAndGet();
+                    continue;
+                }
+
+                mTileHits.incrementAndGet();
+                canvas.save();
+                canvas.translate(left, top);
+                canvas.scale(scale, scale);
+                canvas.drawBitmap(tile, 0, 0, mPaint);
+                canvas.restore();
+            }
+        }
+
+        canvas.restore();
+    }
+
+
+    protected static long getKey(
+            float zoom,
+            int x,
+            int y)
+    {
+        long z = Math.round(zoom * 100) & 0xFFFF;
+        return z << 48 | (x & 0xFFFFFFL) << 24 | (y & 0xFFFFFFL);
+    }
+
+
+    protected void countFrame(long start)
+    {
+        mLastFrameTime = System.nanoTime() - start;
+        mFrameTimeTotal += mLastFrameTime;
+        mFrameCount++;
+        if (mLastFrameTime > mMaxFrameTime) {
+            mMaxFrameTime = mLastFrameTime;
+        }
+    }
+
+
+    public long getFrameCount()
+    {
+        return mFrameCount;
+    }
+
+
+    /**
+     * @return last composed frame time in nanoseconds
+     */
+    public long getLastFrameTime()
+    {
+        return mLastFrameTime;
+    }
+
+
+    public long getMaxFrameTime()
+    {
+        return mMaxFrameTime;
+    }
+
+
+    public long getAverageFrameTime()
+    {
+        return mFrameCount == 0 ? 0 : mFrameTimeTotal / mFrameCount;
+    }
+
+
+    public long getTileHits()
+    {
+        return mTileHits.get();
+    }
+
+
+    public long getTileMisses()
+    {
+        return mTileMisses.get();
+    }
+
+
+    /**
+     * @return pooled tiles size in bytes
+     */
+    public int getPoolSize()
+    {
+        return mTiles.size();
+    }
+
+
+    public void resetCounters()
+    {
+        mFrameCount = mFrameTimeTotal = mLastFrameTime = mMaxFrameTime = 0;
+        mTileHits.set(0);
+        mTileMisses.set(0);
+    }
+}
@@ -24,10 +24,10 @@
 package com.nextgis.maplibui.mapui;
 
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.PointF;
 import android.os.Build;
-import android.os.Handler;
 import android.support.annotation.NonNull;
 import android.util.Log;
 import android.view.GestureDetector;
@@ -41,16 +41,18 @@ import com.nextgis.maplib.datasource.GeoEnvelope;
 import com.nextgis.maplib.datasource.GeoPoint;
 import com.nextgis.maplib.map.MapDrawable;
 import com.nextgis.maplib.util.Constants;
+import com.nextgis.maplib.util.GeoConstants;
 import com.nextgis.maplib.util.MapUtil;
 import com.nextgis.maplibui.api.MapViewEventListener;
-
-import java.util.Timer;
-import java.util.TimerTask;
+import com.nextgis.maplibui.service.TileDownloadEngine;
+import com.nextgis.maplibui.service.TileDownloadService;
+import com.nextgis.maplibui.util.BitmapPool;
 
 import static com.nextgis.maplib.util.Constants.DRAW_FINISH_ID;
 import static com.nextgis.maplib.util.Constants.TAG;
 import static com.nextgis.maplibui.util.ConstantsUI.DRAW_STATE_drawing;
 import static com.nextgis.maplibui.util.ConstantsUI.DRAW_STATE_drawing_noclearbk;
+import static com.nextgis.maplibui.util.ConstantsUI.DRAW_STATE_drawing_progressive;
 import static com.nextgis.maplibui.util.ConstantsUI.DRAW_STATE_panning;
 import static com.nextgis.maplibui.util.ConstantsUI.DRAW_STATE_panning_fling;
 import static com.nextgis.maplibui.util.ConstantsUI.DRAW_STATE_zooming;
@@ -59,7 +61,8 @@ import static com.nextgis.maplibui.util.ConstantsUI.DRAW_STATE_zooming;
 public class MapView
         extends MapViewBase
         implements GestureDetector.OnGestureListener, GestureDetector.OnDoubleTapListener,
-                   ScaleGestureDetector.OnScaleGestureListener, MapEventListener
+                   ScaleGestureDetector.OnScaleGestureListener, MapEventListener,
+                   RedrawScheduler.OnRedrawListener, PreviewRenderer.OnPreviewListener
 {
     protected final GestureDetector      mGestureDetector;
     protected final ScaleGestureDetector mScaleGestureDetector;
@@ -71,35 +74,39 @@ public class MapView
     protected       double               mCurrentSpan;
     protected       Scroller             mScroller;
     protected       long                 mStartDrawTime;
-    private Timer mTimer;
-    private InvalidateTask mInvalidateTask;
-    final Handler uiHandler = new Handler();
+    protected       MapTileCompositor    mCompositor;
+    protected final RedrawScheduler      mRedrawScheduler;
+    protected       boolean              mIsInteractive;
+    protected       FlingPrefetcher      mPrefetcher;
+    protected       Bitmap               mPreview;
+    protected       boolean              mHasPreview;
+    protected       boolean              mIsPreviewCovered;
+    protected       PreviewRenderer      mPreviewRenderer;
+    protected       long                 mInteractionSentTime;
+    protected final Runnable             mInteractionEnd;
 
     //display redraw timeout ms
     public static final int DISPLAY_REDRAW_TIMEOUT = 750;
+    //quiet period ms before the tile download service is told that the interaction ended
+    public static final int INTERACTION_END_DELAY  = 1000;
 
-    class InvalidateTask extends TimerTask {
+    public void scheduleInvalidate() {
+        mRedrawScheduler.schedule(RedrawScheduler.REDRAW_REFRESH, DISPLAY_REDRAW_TIMEOUT);
+    }
 
-        @Override
-        public void run() {
-            uiHandler.post(new Runnable() {
-                @Override
-                public void run() {
-                    mDrawingState = DRAW_STATE_drawing;
-                    setZoomAndCenter(getZoomLevel(), getMapCenter());
-                }
-            });
-        }
+
+    /**
+     * Sets time in ms to collect layer change events before the map is redrawn.
+     */
+    public void setRedrawDebounce(long debounce)
+    {
+        mRedrawScheduler.setDebounce(debounce);
     }
 
-    public void scheduleInvalidate() {
-        if (mTimer != null) {
-            mTimer.cancel();
-        }
 
-        mTimer = new Timer();
-        mInvalidateTask = new InvalidateTask();
-        mTimer.schedule(mInvalidateTask, DISPLAY_REDRAW_TIMEOUT);
+    public long getRedrawDebounce()
+    {
+        return mRedrawScheduler.getDebounce();
     }
 
     public MapView(
@@ -118,6 +125,18 @@ public class MapView
         mScaleGestureDetector = new ScaleGestureDetector(getContext(), this);
 
         mScroller = new Scroller(context);
+        mRedrawScheduler = new RedrawScheduler(this);
+        mPrefetcher = new FlingPrefetcher();
+        mPreviewRenderer = new PreviewRenderer(BitmapPool.getInstance(context));
+        mInteractionEnd = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                mInteractionSentTime = 0;
+                TileDownloadService.notifyMapInteraction(getContext(), false);
+            }
+        };
 
         mStartMouseLocation = new PointF();
         mCurrentMouseOffset = new PointF();
@@ -157,6 +176,25 @@ public class MapView
         if (mMap != null) {
             mMap.removeListener(this);
         }
+
+        mRedrawScheduler.cancel();
+        setInteractive(false);
+        removeCallbacks(mInteractionEnd);
+        if (mInteractionSentTime != 0) {
+            mInteractionEnd.run();
+        }
+
+        if (mPrefetcher != null) {
+            mPrefetcher.cancel();
+        }
+
+        if (mCompositor != null) {
+            mCompositor.clear();
+        }
+
+        dropPreview();
+        BitmapPool.getInstance(getContext()).put(mPreview);
+        mPreview = null;
     }
 
 
@@ -166,18 +204,28 @@ public class MapView
         //Log.d(TAG, "state: " + mDrawingState + ", current loc: " +  mCurrentMouseOffset.toString() + " current focus: " + mCurrentFocusLocation.toString() + " scale: "  + mScaleFactor);
 
         if (mMap != null) {
+            long start = null != mMetrics ? System.nanoTime() : 0;
 
             switch (mDrawingState) {
 
                 case DRAW_STATE_panning:
                 case DRAW_STATE_panning_fling:
-                    mMap.draw(canvas, -mCurrentMouseOffset.x, -mCurrentMouseOffset.y, true);
+                    if (mCompositor != null) {
+                        mCompositor.drawOnPanning(canvas, mMap, mCurrentMouseOffset);
+                    } else {
+                        mMap.draw(canvas, -mCurrentMouseOffset.x, -mCurrentMouseOffset.y, true);
+                    }
                     break;
 
                 case DRAW_STATE_zooming:
-                    mMap.draw(
-                            canvas, -mCurrentFocusLocation.x, -mCurrentFocusLocation.y,
-                            (float) mScaleFactor);
+                    if (mCompositor != null) {
+                        mCompositor.drawOnZooming(
+                                canvas, mMap, mCurrentFocusLocation, (float) mScaleFactor);
+                    } else {
+                        mMap.draw(
+                                canvas, -mCurrentFocusLocation.x, -mCurrentFocusLocation.y,
+                                (float) mScaleFactor);
+                    }
                     break;
 //TODO: add invalidate rect to prevent flicker
                 case DRAW_STATE_drawing_noclearbk:
@@ -188,6 +236,18 @@ public class MapView
                     mMap.draw(canvas, 0, 0, true);
                     break;
 
+                case DRAW_STATE_drawing_progressive:
+                    if (mHasPreview) {
+                        canvas.drawBitmap(mPreview, 0, 0, null);
+                        // until the first layer is buffered the buffer holds the old zoom
+                        if (mIsPreviewCovered) {
+                            mMap.draw(canvas, 0, 0, false);
+                        }
+                    } else {
+                        mMap.draw(canvas, 0, 0, true);
+                    }
+                    break;
+
                 //case DRAW_STATE_none:
                 //    break;
 
@@ -195,6 +255,10 @@ public class MapView
                     break;
             }
 
+            if (null != mMetrics) {
+                mMetrics.record(RenderMetrics.MAP_DRAW, start);
+            }
+
         } else {
             super.onDraw(canvas);
         }
@@ -208,13 +272,18 @@ public class MapView
             return;
         }
 
+        dropPreview();
         mDrawingState = DRAW_STATE_zooming;
+        setInteractive(true);
         mCurrentSpan = scaleGestureDetector.getCurrentSpan();
         mCurrentFocusLocation.set(
                 -scaleGestureDetector.getFocusX(), -scaleGestureDetector.getFocusY());
         mScaleFactor = 1.f;
 
-        mMap.buffer(0, 0, 1);
+        bufferMap();
+        if (mCompositor != null) {
+            mCompositor.beginGesture(mMap);
+        }
     }
 
 
@@ -235,7 +304,9 @@ public class MapView
             }
 
             mScaleFactor = scaleFactor;
-            mMap.buffer(0, 0, 1);
+            if (mCompositor == null) {
+                bufferMap();
+            }
             invalidate();
         }
     }
@@ -264,6 +335,7 @@ public class MapView
             }
 
             setZoomAndCenter(zoom, newCenterPtMap);
+            setInteractive(false);
         }
     }
 
@@ -283,11 +355,16 @@ public class MapView
             }
         }
 
+        dropPreview();
         mDrawingState = DRAW_STATE_panning;
+        setInteractive(true);
         mStartMouseLocation.set(e.getX(), e.getY());
         mCurrentMouseOffset.set(0, 0);
 
-        mMap.buffer(0, 0, 1);
+        bufferMap();
+        if (mCompositor != null) {
+            mCompositor.beginGesture(mMap);
+        }
     }
 
 
@@ -295,7 +372,7 @@ public class MapView
     {
 
         if (mDrawingState == DRAW_STATE_zooming || mDrawingState == DRAW_STATE_drawing_noclearbk ||
-            mDrawingState == DRAW_STATE_drawing) {
+            mDrawingState == DRAW_STATE_drawing || mDrawingState == DRAW_STATE_drawing_progressive) {
             return;
         }
 
@@ -325,7 +402,9 @@ public class MapView
             }
 
             mCurrentMouseOffset.set(x, y);
-            mMap.buffer(0, 0, 1);
+            if (mCompositor == null) {
+                bufferMap();
+            }
             invalidate();
         }
     }
@@ -353,6 +432,7 @@ public class MapView
             //Log.d(TAG, "panStop: setZoomAndCenter");
 
             setZoomAndCenter(getZoomLevel(), pt);
+            setInteractive(false);
 
             for (MapViewEventListener listener : mListeners) {
                 if (null != listener) {
@@ -377,6 +457,9 @@ public class MapView
                 case MotionEvent.ACTION_DOWN:
                     if (!mScroller.isFinished()) {
                         mScroller.forceFinished(true);
+                        if (mPrefetcher != null) {
+                            mPrefetcher.settle();
+                        }
                     }
                     break;
 
@@ -417,7 +500,7 @@ public class MapView
         }
 
         if (mDrawingState == DRAW_STATE_zooming || mDrawingState == DRAW_STATE_drawing_noclearbk ||
-            mDrawingState == DRAW_STATE_drawing) {
+            mDrawingState == DRAW_STATE_drawing || mDrawingState == DRAW_STATE_drawing_progressive) {
             return false;
         }
 
@@ -434,6 +517,7 @@ public class MapView
 
         //Log.d(Constants.TAG, "Fling");
 
+        prefetchFlingDestination();
         postInvalidate();
 
         return true;
@@ -447,6 +531,7 @@ public class MapView
         if (mDrawingState == DRAW_STATE_panning_fling && mMap != null) {
             if (mScroller.computeScrollOffset()) {
                 if (mScroller.isFinished()) {
+                    settlePrefetch();
                     mDrawingState = DRAW_STATE_panning;
                     panStop();
                 } else {
@@ -473,6 +558,7 @@ public class MapView
                     postInvalidate();
                 }
             } else if (mScroller.isFinished()) {
+                settlePrefetch();
                 mDrawingState = DRAW_STATE_panning;
                 panStop();
             }
@@ -480,6 +566,86 @@ public class MapView
     }
 
 
+    /**
+     * Throttles bulk tile downloads while the user pans or zooms the map, so tiles of the
+     * viewport are not queued behind them.
+     * <p>
+     * The engine of this process is switched at once. The tile download service gets a
+     * broadcast only when its interaction timeout is half spent, and the end of the interaction
+     * after {@link #INTERACTION_END_DELAY}, so a series of gestures sends a single pair.
+     */
+    protected void setInteractive(boolean interactive)
+    {
+        if (mIsInteractive == interactive) {
+            return;
+        }
+
+        mIsInteractive = interactive;
+        TileDownloadEngine.getInstance().setInteractive(interactive);
+
+        if (interactive) {
+            removeCallbacks(mInteractionEnd);
+            long now = System.currentTimeMillis();
+            if (now - mInteractionSentTime > TileDownloadEngine.INTERACTIVE_TIMEOUT / 2) {
+                mInteractionSentTime = now;
+                TileDownloadService.notifyMapInteraction(getContext(), true);
+            }
+        } else if (mInteractionSentTime != 0) {
+            postDelayed(mInteractionEnd, INTERACTION_END_DELAY);
+        }
+    }
+
+
+    protected void prefetchFlingDestination()
+    {
+        if (mPrefetcher == null) {
+            return;
+        }
+
+        GeoEnvelope bounds = mMap.getFullScreenBounds();
+        bounds.offset(mScroller.getFinalX(), mScroller.getFinalY());
+        GeoEnvelope mapEnv = mMap.screenToMap(bounds);
+        if (null == mapEnv) {
+            return;
+        }
+
+        mPrefetcher.prefetch(
+                getLayersByType(Constants.LAYERTYPE_REMOTE_TMS | Constants.LAYERTYPE_NGW_RASTER),
+                getVectorLayersByType(GeoConstants.GTAnyCheck), mapEnv, getZoomLevel());
+    }
+
+
+    protected void settlePrefetch()
+    {
+        if (mPrefetcher != null) {
+            mPrefetcher.settle();
+        }
+    }
+
+
+    /**
+     * Enables prefetch of tiles and features at the point a fling is going to stop at.
+     */
+    public void setFlingPrefetchEnabled(boolean enabled)
+    {
+        if (enabled && mPrefetcher == null) {
+            mPrefetcher = new FlingPrefetcher();
+        } else if (!enabled && mPrefetcher != null) {
+            mPrefetcher.cancel();
+            mPrefetcher = null;
+        }
+    }
+
+
+    /**
+     * @return the prefetcher to read hit/miss counters from or null if prefetch is disabled
+     */
+    public FlingPrefetcher getFlingPrefetcher()
+    {
+        return mPrefetcher;
+    }
+
+
     @Override
     public void onLongPress(MotionEvent event)
     {
@@ -550,7 +716,7 @@ public class MapView
 
         //Log.d(TAG, "onDoubleTap: setZoomAndCenter");
 
-        mMap.buffer(0, 0, 1);
+        bufferMap();
         setZoomAndCenter((float) Math.ceil(getZoomLevel() + 0.5), newCenterPtMap);
 
         postInvalidate();
@@ -586,7 +752,7 @@ public class MapView
         mScaleFactor = 2;
         mCurrentFocusLocation.set(-getWidth() / 2, -getHeight() / 2);
 
-        mMap.buffer(0, 0, 1); //TODO: zoom the buffer and just draw it, not draw with scale
+        bufferMap(); //TODO: zoom the buffer and just draw it, not draw with scale
 
 
 //        scheduleInvalidate();
@@ -604,7 +770,7 @@ public class MapView
         mScaleFactor = 0.5;
         mCurrentFocusLocation.set(-getWidth() / 2, -getHeight() / 2);
 
-        mMap.buffer(0, 0, 1); //TODO: zoom the buffer and just draw it, not draw with scale
+        bufferMap(); //TODO: zoom the buffer and just draw it, not draw with scale
 
 //        scheduleInvalidate();
 
@@ -640,21 +806,24 @@ public class MapView
     @Override
     public void onLayerAdded(int id)
     {
-        drawMapDrawable();
+        clearCompositor();
+        mRedrawScheduler.schedule(RedrawScheduler.REDRAW_LAYERS);
     }
 
 
     @Override
     public void onLayerDeleted(int id)
     {
-        drawMapDrawable();
+        clearCompositor();
+        mRedrawScheduler.schedule(RedrawScheduler.REDRAW_LAYERS);
     }
 
 
     @Override
     public void onLayerChanged(int id)
     {
-        drawMapDrawable();
+        clearCompositor();
+        mRedrawScheduler.schedule(RedrawScheduler.REDRAW_LAYERS);
     }
 
 
@@ -663,27 +832,101 @@ public class MapView
             float zoom,
             GeoPoint center)
     {
-        drawMapDrawable();
+        mRedrawScheduler.schedule(RedrawScheduler.REDRAW_EXTENT);
     }
 
 
     @Override
     public void onLayersReordered()
     {
-        drawMapDrawable();
+        clearCompositor();
+        mRedrawScheduler.schedule(RedrawScheduler.REDRAW_LAYERS);
+    }
+
+
+    protected void clearCompositor()
+    {
+        if (mCompositor != null) {
+            mCompositor.clear();
+        }
     }
 
 
     public void drawMapDrawable()
     {
         if (mMap != null) {
-            mDrawingState = DRAW_STATE_drawing;
+            // after zoom show the scaled old frame until new layers stream in
+            if (mDrawingState == DRAW_STATE_zooming && createPreview()) {
+                mDrawingState = DRAW_STATE_drawing_progressive;
+            } else {
+                dropPreview();
+                mDrawingState = DRAW_STATE_drawing;
+            }
+
             mStartDrawTime = System.currentTimeMillis();
             mMap.runDraw(null);
         }
     }
 
 
+    protected boolean createPreview()
+    {
+        int width = getWidth();
+        int height = getHeight();
+        if (width <= 0 || height <= 0) {
+            return false;
+        }
+
+        if (null == mPreview || mPreview.getWidth() != width || mPreview.getHeight() != height) {
+            BitmapPool pool = BitmapPool.getInstance(getContext());
+            pool.put(mPreview);
+            mPreview = pool.get(width, height, Bitmap.Config.ARGB_8888);
+            if (null == mPreview) {
+                return mHasPreview = false;
+            }
+        }
+
+        Canvas canvas = new Canvas(mPreview);
+        if (mCompositor != null) {
+            // pooled tiles of the previous zoom fill the area the old buffer does not cover
+            mCompositor.drawOnZooming(canvas, mMap, mCurrentFocusLocation, (float) mScaleFactor);
+        } else {
+            mMap.draw(
+                    canvas, -mCurrentFocusLocation.x, -mCurrentFocusLocation.y,
+                    (float) mScaleFactor);
+        }
+
+        // the low-detail pass of the new zoom is drawn over the scaled frame when ready
+        mPreviewRenderer.render(
+                getVectorLayersByType(GeoConstants.GTAnyCheck),
+                screenToMap(new GeoEnvelope(0, width, 0, height)), getZoomLevel(), width, height,
+                this);
+
+        mIsPreviewCovered = false;
+        return mHasPreview = true;
+    }
+
+
+    @Override
+    public void onPreviewReady(Bitmap preview)
+    {
+        if (mHasPreview && mDrawingState == DRAW_STATE_drawing_progressive) {
+            new Canvas(mPreview).drawBitmap(preview, 0, 0, null);
+            invalidate();
+        }
+        BitmapPool.getInstance(getContext()).put(preview);
+    }
+
+
+    protected void dropPreview()
+    {
+        mHasPreview = false;
+        if (null != mPreviewRenderer) {
+            mPreviewRenderer.cancel();
+        }
+    }
+
+
     @Override
     public synchronized void onLayerDrawFinished(int id, float percent)
     {
@@ -691,20 +934,60 @@ public class MapView
             Log.d(TAG, "onLayerDrawFinished: " + id + " percent " + percent + " | draw state: " + mDrawingState);
         }
 
-        if (mDrawingState > DRAW_STATE_drawing_noclearbk) {
+        if (null != mMetrics) {
+            mMetrics.onLayerDrawFinished(id, percent);
+        }
+
+        if (mDrawingState > DRAW_STATE_drawing_noclearbk &&
+            mDrawingState != DRAW_STATE_drawing_progressive) {
             return;
         }
 
-        if (System.currentTimeMillis() - mStartDrawTime > DISPLAY_REDRAW_TIMEOUT) {
+        if (id == DRAW_FINISH_ID && percent >= 1.0) {
+            //Log.d(TAG, "LayerDrawFinished: id - " + id + ", percent - " + percent);
+            mRedrawScheduler.schedule(RedrawScheduler.REDRAW_FINISHED);
+
+        } else if (mDrawingState == DRAW_STATE_drawing_progressive) {
+            // stream every finished layer over the preview
+            mRedrawScheduler.schedule(RedrawScheduler.REDRAW_PROGRESS);
+
+        } else if (System.currentTimeMillis() - mStartDrawTime > DISPLAY_REDRAW_TIMEOUT) {
             mStartDrawTime = System.currentTimeMillis();
-            mMap.buffer(0, 0, 1);
-            postInvalidate();
+            mRedrawScheduler.schedule(RedrawScheduler.REDRAW_PROGRESS);
+        }
+    }
 
-        } else if (id == DRAW_FINISH_ID && percent >= 1.0) {
-            //Log.d(TAG, "LayerDrawFinished: id - " + id + ", percent - " + percent);
 
-            mMap.buffer(0, 0, 1);
-            postInvalidate();
+    @Override
+    public void onRedraw(int reasons)
+    {
+        if ((reasons & RedrawScheduler.REDRAW_REFRESH) != 0) {
+            mDrawingState = DRAW_STATE_drawing;
+            setZoomAndCenter(getZoomLevel(), getMapCenter());
+            return;
+        }
+
+        if ((reasons & (RedrawScheduler.REDRAW_EXTENT | RedrawScheduler.REDRAW_LAYERS)) != 0) {
+            drawMapDrawable();
+            return;
+        }
+
+        if (mMap == null || mDrawingState > DRAW_STATE_drawing_noclearbk &&
+                            mDrawingState != DRAW_STATE_drawing_progressive) {
+            return;
+        }
+
+        bufferMap();
+        mIsPreviewCovered = true;
+        if ((reasons & RedrawScheduler.REDRAW_FINISHED) != 0 &&
+            mDrawingState == DRAW_STATE_drawing_progressive) {
+            dropPreview();
+            mDrawingState = DRAW_STATE_drawing;
+        }
+        invalidate();
+
+        if ((reasons & RedrawScheduler.REDRAW_FINISHED) != 0 && mCompositor != null) {
+            mCompositor.capture(mMap, getWidth(), getHeight());
         }
     }
 
@@ -712,7 +995,9 @@ public class MapView
     @Override
     public void onLayerDrawStarted()
     {
-
+        if (null != mMetrics) {
+            mMetrics.onDrawStarted();
+        }
     }
 
 
@@ -50,6 +50,7 @@ public class MapViewBase
 
     protected MapDrawable                mMap;
     protected List<MapViewEventListener> mListeners;
+    protected RenderMetrics              mMetrics;
 
     interface OnNeedRedraw {
         public void OnDirty();
@@ -139,11 +140,54 @@ public class MapViewBase
     }
 
 
+    /**
+     * Starts or stops collecting draw phase timings. Collected values are available from
+     * {@link #getMetrics()} until metrics are disabled.
+     */
+    public void setMetricsEnabled(boolean enabled)
+    {
+        if (enabled && null == mMetrics) {
+            mMetrics = new RenderMetrics();
+        } else if (!enabled) {
+            mMetrics = null;
+        }
+    }
+
+
+    public boolean isMetricsEnabled()
+    {
+        return null != mMetrics;
+    }
+
+
+    public RenderMetrics getMetrics()
+    {
+        return mMetrics;
+    }
+
+
+    protected void bufferMap()
+    {
+        if (null == mMetrics) {
+            mMap.buffer(0, 0, 1);
+            return;
+        }
+
+        long start = System.nanoTime();
+        mMap.buffer(0, 0, 1);
+        mMetrics.record(RenderMetrics.MAP_BUFFER, start);
+    }
+
+
     @Override
     protected void onDraw(Canvas canvas)
     {
         if (mMap != null) {
+            long start = null != mMetrics ? System.nanoTime() : 0;
             mMap.draw(canvas, 0, 0, false);
+            if (null != mMetrics) {
+                mMetrics.record(RenderMetrics.MAP_DRAW, start);
+            }
         } else {
             super.onDraw(canvas);
         }
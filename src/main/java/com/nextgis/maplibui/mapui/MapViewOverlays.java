@@ -24,7 +24,10 @@
 package com.nextgis.maplibui.mapui;
 
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
+import android.graphics.PorterDuff;
+import android.graphics.Rect;
 import android.os.Bundle;
 import android.os.Parcel;
 import android.os.Parcelable;
@@ -34,6 +37,7 @@ import android.util.Log;
 import com.nextgis.maplib.datasource.GeoPoint;
 import com.nextgis.maplib.map.MapDrawable;
 import com.nextgis.maplibui.api.Overlay;
+import com.nextgis.maplibui.util.BitmapPool;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -47,6 +51,12 @@ public class MapViewOverlays
 {
     protected List<Overlay> mOverlays;
     protected boolean       mLockMap;
+    protected boolean       mIsOverlayLayerEnabled;
+    protected Bitmap        mOverlayLayer;
+    protected Canvas        mOverlayCanvas;
+    protected boolean       mIsOverlayLayerValid;
+    protected final Rect    mOverlayDirty;
+    protected final Rect    mOverlayClip;
     //protected boolean mSkipNextDraw;
     //protected long mDelay;
 
@@ -58,6 +68,8 @@ public class MapViewOverlays
         super(context, map);
         mOverlays = new ArrayList<>();
         mLockMap = false;
+        mOverlayDirty = new Rect();
+        mOverlayClip = new Rect();
 //        mSkipNextDraw = false;
 //        mDelay = 0;
     }
@@ -75,6 +87,36 @@ public class MapViewOverlays
     }
 
 
+    /**
+     * Switches pan and zoom drawing to the tile compositor, which moves cached tiles of already
+     * rendered map instead of buffering the whole map on every touch move.
+     */
+    public void setTileCompositorEnabled(boolean enabled)
+    {
+        if (enabled && mCompositor == null) {
+            mCompositor = new MapTileCompositor(BitmapPool.getInstance(getContext()));
+        } else if (!enabled && mCompositor != null) {
+            mCompositor.clear();
+            mCompositor = null;
+        }
+    }
+
+
+    public boolean isTileCompositorEnabled()
+    {
+        return mCompositor != null;
+    }
+
+
+    /**
+     * @return the compositor to read frame time counters from or null if it is disabled
+     */
+    public MapTileCompositor getTileCompositor()
+    {
+        return mCompositor;
+    }
+
+
     @Override
     protected void onDraw(Canvas canvas)
     {
@@ -88,35 +130,195 @@ public class MapViewOverlays
             switch (mDrawingState) {
                 case DRAW_STATE_drawing:
                 case DRAW_STATE_drawing_noclearbk:
+                case DRAW_STATE_drawing_progressive:
+                    boolean isLayerDrawn = mIsOverlayLayerEnabled && drawOverlayLayer(canvas);
                     for (Overlay overlay : mOverlays)
-                        if (overlay.isVisible())
+                        if (overlay.isVisible() && !(isLayerDrawn && overlay.isCacheable())) {
+                            long start = null != mMetrics ? System.nanoTime() : 0;
                             overlay.draw(canvas, mMap);
+                            if (null != mMetrics)
+                                mMetrics.record(RenderMetrics.OVERLAY_DRAW, overlay, start);
+                        }
                     break;
                 case DRAW_STATE_panning:
                 case DRAW_STATE_panning_fling:
                     for (Overlay overlay : mOverlays)
-                        if (overlay.isVisible())
+                        if (overlay.isVisible()) {
+                            long start = null != mMetrics ? System.nanoTime() : 0;
                             overlay.drawOnPanning(canvas, mCurrentMouseOffset);
+                            if (null != mMetrics)
+                                mMetrics.record(RenderMetrics.OVERLAY_PANNING, overlay, start);
+                        }
                     break;
                 case DRAW_STATE_zooming:
                     for (Overlay overlay : mOverlays)
-                        if (overlay.isVisible())
+                        if (overlay.isVisible()) {
+                            long start = null != mMetrics ? System.nanoTime() : 0;
                             overlay.drawOnZooming(canvas, mCurrentFocusLocation, (float) mScaleFactor);
+                            if (null != mMetrics)
+                                mMetrics.record(RenderMetrics.OVERLAY_ZOOMING, overlay, start);
+                        }
                     break;
             }
         }
     }
 
 
+    /**
+     * Redraws cacheable overlays into the overlay layer inside the dirty rect and draws the layer.
+     *
+     * @return false if the layer bitmap can not be allocated
+     */
+    protected boolean drawOverlayLayer(Canvas canvas)
+    {
+        int width = getWidth();
+        int height = getHeight();
+        if (width <= 0 || height <= 0) {
+            return false;
+        }
+
+        if (null == mOverlayLayer || mOverlayLayer.getWidth() != width ||
+            mOverlayLayer.getHeight() != height) {
+            BitmapPool pool = BitmapPool.getInstance(getContext());
+            pool.put(mOverlayLayer);
+            mOverlayLayer = pool.get(width, height, Bitmap.Config.ARGB_8888);
+            mIsOverlayLayerValid = false;
+            if (null == mOverlayLayer) {
+                mOverlayCanvas = null;
+                return false;
+            }
+            mOverlayCanvas = new Canvas(mOverlayLayer);
+        }
+
+        synchronized (mOverlayDirty) {
+            if (mIsOverlayLayerValid) {
+                mOverlayClip.set(mOverlayDirty);
+            } else {
+                mOverlayClip.set(0, 0, width, height);
+                mIsOverlayLayerValid = true;
+            }
+            mOverlayDirty.setEmpty();
+        }
+
+        if (!mOverlayClip.isEmpty()) {
+            mOverlayCanvas.save();
+            mOverlayCanvas.clipRect(mOverlayClip);
+            mOverlayCanvas.drawColor(0, PorterDuff.Mode.CLEAR);
+            for (Overlay overlay : mOverlays)
+                if (overlay.isVisible() && overlay.isCacheable()) {
+                    long start = null != mMetrics ? System.nanoTime() : 0;
+                    overlay.draw(mOverlayCanvas, mMap);
+                    if (null != mMetrics)
+                        mMetrics.record(RenderMetrics.OVERLAY_DRAW, overlay, start);
+                }
+            mOverlayCanvas.restore();
+        }
+
+        canvas.drawBitmap(mOverlayLayer, 0, 0, null);
+        return true;
+    }
+
+
+    /**
+     * Marks a part of the overlay layer to redraw and invalidates only this part of the view.
+     * Only the overlays are redrawn, the map is blitted from its buffer. The view clips drawing
+     * to the rect on software canvases only, hardware accelerated views ignore the rect and blit
+     * the whole map buffer and overlay layer.
+     *
+     * @param dirty
+     *         screen rect, null to redraw the whole layer
+     */
+    public void invalidateOverlay(Rect dirty)
+    {
+        if (!mIsOverlayLayerEnabled || null == dirty) {
+            synchronized (mOverlayDirty) {
+                mIsOverlayLayerValid = false;
+            }
+            postInvalidate();
+            return;
+        }
+
+        if (dirty.isEmpty()) {
+            return;
+        }
+
+        synchronized (mOverlayDirty) {
+            mOverlayDirty.union(dirty);
+        }
+        postInvalidate(dirty.left, dirty.top, dirty.right, dirty.bottom);
+    }
+
+
+    /**
+     * Draws cacheable overlays through a cached bitmap layer, so an overlay changing a small area
+     * (e.g. a moving location marker) does not redraw all other overlays.
+     */
+    public void setOverlayLayerEnabled(boolean enabled)
+    {
+        mIsOverlayLayerEnabled = enabled;
+        if (!enabled) {
+            BitmapPool.getInstance(getContext()).put(mOverlayLayer);
+            mOverlayLayer = null;
+            mOverlayCanvas = null;
+        }
+        invalidateOverlay(null);
+    }
+
+
+    public boolean isOverlayLayerEnabled()
+    {
+        return mIsOverlayLayerEnabled;
+    }
+
+
+    @Override
+    public void onExtentChanged(
+            float zoom,
+            GeoPoint center)
+    {
+        synchronized (mOverlayDirty) {
+            mIsOverlayLayerValid = false;
+        }
+        super.onExtentChanged(zoom, center);
+    }
+
+
+    @Override
+    protected void onAttachedToWindow()
+    {
+        super.onAttachedToWindow();
+        for (Overlay overlay : mOverlays) {
+            overlay.onAttach();
+        }
+    }
+
+
+    @Override
+    protected void onDetachedFromWindow()
+    {
+        for (Overlay overlay : mOverlays) {
+            overlay.onDetach();
+        }
+        super.onDetachedFromWindow();
+    }
+
+
     public void addOverlay(Overlay overlay)
     {
         mOverlays.add(overlay);
+        if (null != getWindowToken()) {
+            overlay.onAttach();
+        }
+        invalidateOverlay(null);
     }
 
 
     public void removeOverlay(Overlay overlay)
     {
-        mOverlays.remove(overlay);
+        if (mOverlays.remove(overlay) && null != getWindowToken()) {
+            overlay.onDetach();
+        }
+        invalidateOverlay(null);
     }
 
 
@@ -175,7 +377,7 @@ public class MapViewOverlays
     public void buffer()
     {
         if (null != mMap) {
-            mMap.buffer(0, 0, 1);
+            bufferMap();
         }
     }
 
@@ -0,0 +1,402 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2019 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplibui.mapui;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.nextgis.maplib.api.ILayer;
+import com.nextgis.maplib.api.IRenderer;
+import com.nextgis.maplib.datasource.GeoEnvelope;
+import com.nextgis.maplib.datasource.GeoGeometry;
+import com.nextgis.maplib.datasource.GeoLineString;
+import com.nextgis.maplib.datasource.GeoMultiLineString;
+import com.nextgis.maplib.datasource.GeoMultiPoint;
+import com.nextgis.maplib.datasource.GeoMultiPolygon;
+import com.nextgis.maplib.datasource.GeoPoint;
+import com.nextgis.maplib.datasource.GeoPolygon;
+import com.nextgis.maplib.display.SimpleFeatureRenderer;
+import com.nextgis.maplib.map.Layer;
+import com.nextgis.maplib.map.VectorLayer;
+import com.nextgis.maplib.util.Constants;
+import com.nextgis.maplib.util.GeoConstants;
+import com.nextgis.maplibui.overlay.PolylineSimplifier;
+import com.nextgis.maplibui.util.BitmapPool;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.nextgis.maplib.util.Constants.TAG;
+
+
+/**
+ * Draws a low-detail pass of visible vector layers in background, shown while the layer
+ * renderers draw the full pass. Lines and rings are decimated to a few pixels with
+ * {@link PolylineSimplifier}, features smaller than that are drawn as a dot, layers are drawn
+ * with a single colour of their style and the pass stops at a time budget, so the first frame
+ * after a zoom does not depend on the feature count.
+ */
+public class PreviewRenderer
+{
+    protected static final long  KEEP_ALIVE_TIME = 10000;
+    // the pass is cut at this time in ms and what is drawn is shown
+    protected static final long  TIME_BUDGET     = 80;
+    // distance in pixels between drawn vertices
+    protected static final float TOLERANCE       = 2;
+    protected static final int   CHECK_INTERVAL  = 64;
+    protected static final int   FILL_ALPHA      = 64;
+    protected static final int   DEFAULT_COLOR   = Color.GRAY;
+
+    protected final BitmapPool         mBitmapPool;
+    protected final ThreadPoolExecutor mExecutor;
+    protected final Handler            mHandler;
+    protected final AtomicInteger      mGeneration;
+
+    // used by the executor thread only
+    protected final Paint mStrokePaint;
+    protected final Paint mFillPaint;
+    protected final Path  mPath;
+    protected       float[] mPoints = new float[256];
+    protected       float[] mSimplified = new float[256];
+    protected       float[] mDots = new float[256];
+    protected       int     mDotCount;
+
+    protected double mMinX, mMaxY, mScaleX, mScaleY;
+    protected float  mWidth, mHeight;
+
+
+    public interface OnPreviewListener
+    {
+        /**
+         * Called on the main thread. The listener owns the bitmap and should return it to the
+         * {@link BitmapPool}.
+         */
+        void onPreviewReady(Bitmap preview);
+    }
+
+
+    public PreviewRenderer(BitmapPool bitmapPool)
+    {
+        mBitmapPool = bitmapPool;
+        mExecutor = new ThreadPoolExecutor(
+                1, 1, KEEP_ALIVE_TIME, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+        mExecutor.allowCoreThreadTimeOut(true);
+        mHandler = new Handler(Looper.getMainLooper());
+        mGeneration = new AtomicInteger();
+
+        mStrokePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        mStrokePaint.setStyle(Paint.Style.STROKE);
+        mStrokePaint.setStrokeCap(Paint.Cap.ROUND);
+        mFillPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        mFillPaint.setStyle(Paint.Style.FILL);
+        mPath = new Path();
+        mPath.setFillType(Path.FillType.EVEN_ODD);
+    }
+
+
+    /**
+     * Starts the pass, a running one is cancelled.
+     *
+     * @param mapEnv
+     *         the viewport in map coordinates
+     */
+    public void render(
+            List<ILayer> layers,
+            final GeoEnvelope mapEnv,
+            float zoom,
+            final int width,
+            final int height,
+            final OnPreviewListener listener)
+    {
+        final int generation = mGeneration.incrementAndGet();
+        if (null == mapEnv || width <= 0 || height <= 0) {
+            return;
+        }
+
+        final VectorLayer[] visible = new VectorLayer[layers.size()];
+        int count = 0;
+        for (ILayer layer : layers) {
+            if (layer instanceof VectorLayer && ((Layer) layer).isVisible() &&
+                zoom >= ((Layer) layer).getMinZoom() && zoom <= ((Layer) layer).getMaxZoom()) {
+                visible[count++] = (VectorLayer) layer;
+            }
+        }
+        if (count == 0) {
+            return;
+        }
+
+        final int layerCount = count;
+        mExecutor.submit(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                Bitmap bitmap = mBitmapPool.get(width, height, Bitmap.Config.ARGB_8888);
+                if (null == bitmap) {
+                    return;
+                }
+
+                long start = System.currentTimeMillis();
+                draw(new Canvas(bitmap), visible, layerCount, mapEnv, start + TIME_BUDGET,
+                     generation);
+                if (Constants.DEBUG_MODE) {
+                    Log.d(TAG, "PreviewRenderer: pass took " +
+                               (System.currentTimeMillis() - start) + " ms");
+                }
+
+                deliver(generation, bitmap, listener);
+            }
+        });
+    }
+
+
+    /**
+     * Drops the running pass, its listener will not be called.
+     */
+    public void cancel()
+    {
+        mGeneration.incrementAndGet();
+    }
+
+
+    protected void deliver(
+            final int generation,
+            final Bitmap bitmap,
+            final OnPreviewListener listener)
+    {
+        if (generation != mGeneration.get()) {
+            mBitmapPool.put(bitmap);
+            return;
+        }
+
+        mHandler.post(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                if (generation == mGeneration.get() && null != listener) {
+                    listener.onPreviewReady(bitmap);
+                } else {
+                    mBitmapPool.put(bitmap);
+                }
+            }
+        });
+    }
+
+
+    protected void draw(
+            Canvas canvas,
+            VectorLayer[] layers,
+            int layerCount,
+            GeoEnvelope mapEnv,
+            long deadline,
+            int generation)
+    {
+        mWidth = canvas.getWidth();
+        mHeight = canvas.getHeight();
+        mMinX = mapEnv.getMinX();
+        mMaxY = mapEnv.getMaxY();
+        mScaleX = mWidth / mapEnv.width();
+        mScaleY = mHeight / mapEnv.height();
+
+        // the renderers draw layers from the last one to the first
+        for (int i = layerCount - 1; i >= 0; i--) {
+            if (!drawLayer(canvas, layers[i], mapEnv, deadline, generation)) {
+                return;
+            }
+        }
+    }
+
+
+    /**
+     * @return false if the pass is out of time or cancelled
+     */
+    protected boolean drawLayer(
+            Canvas canvas,
+            VectorLayer layer,
+            GeoEnvelope mapEnv,
+            long deadline,
+            int generation)
+    {
+        int color = getColor(layer);
+        mStrokePaint.setColor(color);
+        mStrokePaint.setStrokeWidth(1);
+        mFillPaint.setColor(color);
+        mFillPaint.setAlpha(FILL_ALPHA);
+        mDotCount = 0;
+
+        boolean isInTime = true;
+        List<Long> ids = layer.query(mapEnv);
+        for (int i = 0; i < ids.size(); i++) {
+            if (i % CHECK_INTERVAL == 0 && (generation != mGeneration.get() ||
+                                            System.currentTimeMillis() > deadline)) {
+                isInTime = false;
+                break;
+            }
+
+            GeoGeometry geometry = layer.getGeometryForId(ids.get(i));
+            if (null == geometry) {
+                continue;
+            }
+
+            GeoEnvelope env = geometry.getEnvelope();
+            if (env.width() * mScaleX < TOLERANCE && env.height() * mScaleY < TOLERANCE) {
+                addDot(env.getCenter().getX(), env.getCenter().getY());
+            } else {
+                drawGeometry(canvas, geometry);
+            }
+        }
+
+        if (mDotCount > 0) {
+            mStrokePaint.setStrokeWidth(TOLERANCE * 2);
+            canvas.drawPoints(mDots, 0, mDotCount, mStrokePaint);
+        }
+        return isInTime;
+    }
+
+
+    protected void drawGeometry(
+            Canvas canvas,
+            GeoGeometry geometry)
+    {
+        switch (geometry.getType()) {
+            case GeoConstants.GTPoint:
+                GeoPoint point = (GeoPoint) geometry;
+                addDot(point.getX(), point.getY());
+                break;
+            case GeoConstants.GTMultiPoint:
+                GeoMultiPoint multiPoint = (GeoMultiPoint) geometry;
+                for (int i = 0; i < multiPoint.size(); i++) {
+                    addDot(multiPoint.get(i).getX(), multiPoint.get(i).getY());
+                }
+                break;
+            case GeoConstants.GTLineString:
+                mPath.rewind();
+                addRing((GeoLineString) geometry, false);
+                canvas.drawPath(mPath, mStrokePaint);
+                break;
+            case GeoConstants.GTMultiLineString:
+                GeoMultiLineString multiLine = (GeoMultiLineString) geometry;
+                mPath.rewind();
+                for (int i = 0; i < multiLine.size(); i++) {
+                    addRing(multiLine.get(i), false);
+                }
+                canvas.drawPath(mPath, mStrokePaint);
+                break;
+            case GeoConstants.GTPolygon:
+                mPath.rewind();
+                addPolygon((GeoPolygon) geometry);
+                canvas.drawPath(mPath, mFillPaint);
+                canvas.drawPath(mPath, mStrokePaint);
+                break;
+            case GeoConstants.GTMultiPolygon:
+                GeoMultiPolygon multiPolygon = (GeoMultiPolygon) geometry;
+                mPath.rewind();
+                for (int i = 0; i < multiPolygon.size(); i++) {
+                    addPolygon(multiPolygon.get(i));
+                }
+                canvas.drawPath(mPath, mFillPaint);
+                canvas.drawPath(mPath, mStrokePaint);
+                break;
+            default:
+                break;
+        }
+    }
+
+
+    protected void addPolygon(GeoPolygon polygon)
+    {
+        addRing(polygon.getOuterRing(), true);
+        for (int i = 0; i < polygon.getInnerRingCount(); i++) {
+            addRing(polygon.getInnerRing(i), true);
+        }
+    }
+
+
+    protected void addRing(
+            GeoLineString line,
+            boolean closed)
+    {
+        List<GeoPoint> points = line.getPoints();
+        int length = points.size() * 2;
+        if (mPoints.length < length) {
+            mPoints = new float[length];
+            mSimplified = new float[length];
+        }
+        for (int i = 0; i < points.size(); i++) {
+            GeoPoint point = points.get(i);
+            mPoints[i * 2] = (float) ((point.getX() - mMinX) * mScaleX);
+            mPoints[i * 2 + 1] = (float) ((mMaxY - point.getY()) * mScaleY);
+        }
+
+        // keep a screen of margin, so clipped chords stay outside the viewport
+        int count = PolylineSimplifier.simplify(
+                mPoints, 0, length, TOLERANCE, -mWidth, -mHeight, mWidth * 2, mHeight * 2,
+                mSimplified);
+        if (count < 4) {
+            return;
+        }
+
+        mPath.moveTo(mSimplified[0], mSimplified[1]);
+        for (int i = 2; i < count; i += 2) {
+            mPath.lineTo(mSimplified[i], mSimplified[i + 1]);
+        }
+        if (closed) {
+            mPath.close();
+        }
+    }
+
+
+    protected void addDot(
+            double x,
+            double y)
+    {
+        if (mDotCount + 2 > mDots.length) {
+            mDots = Arrays.copyOf(mDots, mDots.length * 2);
+        }
+        mDots[mDotCount++] = (float) ((x - mMinX) * mScaleX);
+        mDots[mDotCount++] = (float) ((mMaxY - y) * mScaleY);
+    }
+
+
+    protected static int getColor(VectorLayer layer)
+    {
+        IRenderer renderer = layer.getRenderer();
+        if (renderer instanceof SimpleFeatureRenderer &&
+            ((SimpleFeatureRenderer) renderer).getStyle() != null) {
+            return ((SimpleFeatureRenderer) renderer).getStyle().getColor();
+        }
+        return DEFAULT_COLOR;
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2019 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplibui.mapui;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.view.Choreographer;
+
+
+/**
+ * Coalesces redraw requests of a map view coming from any thread into at most one callback per
+ * frame. Requests are merged as bit flags, so the listener knows what caused the redraw.
+ */
+public class RedrawScheduler
+{
+    public static final int REDRAW_PROGRESS = 1;
+    public static final int REDRAW_FINISHED = 1 << 1;
+    public static final int REDRAW_EXTENT   = 1 << 2;
+    public static final int REDRAW_LAYERS   = 1 << 3;
+    public static final int REDRAW_REFRESH  = 1 << 4;
+
+    public static final long DEFAULT_DEBOUNCE = 100; // ms
+
+    public interface OnRedrawListener
+    {
+        void onRedraw(int reasons);
+    }
+
+
+    protected final Handler          mHandler;
+    protected final OnRedrawListener mListener;
+    protected final Runnable         mDebounceRunnable;
+    protected final Runnable         mFrameRunnable;
+    protected       Object           mFrameCallback;
+    protected       long             mDebounce;
+    protected       int              mPendingReasons;
+    protected       long             mScheduledTime;
+    protected       boolean          mIsScheduled;
+
+
+    public RedrawScheduler(OnRedrawListener listener)
+    {
+        mHandler = new Handler(Looper.getMainLooper());
+        mListener = listener;
+        mDebounce = DEFAULT_DEBOUNCE;
+
+        mDebounceRunnable = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                postFrame();
+            }
+        };
+
+        mFrameRunnable = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                dispatch();
+            }
+        };
+    }
+
+
+    /**
+     * @param debounce
+     *         time in ms to collect layer and refresh requests before the redraw. Extent and draw
+     *         progress requests are not delayed and fire on the next frame.
+     */
+    public void setDebounce(long debounce)
+    {
+        mDebounce = Math.max(0, debounce);
+    }
+
+
+    public long getDebounce()
+    {
+        return mDebounce;
+    }
+
+
+    public void schedule(int reason)
+    {
+        schedule(reason, (reason & (REDRAW_LAYERS | REDRAW_REFRESH)) != 0 ? mDebounce : 0);
+    }
+
+
+    public synchronized void schedule(
+            int reason,
+            long delay)
+    {
+        mPendingReasons |= reason;
+
+        long time = SystemClock.uptimeMillis() + delay;
+        if (mIsScheduled) {
+            // the window is not restarted by new requests, so a storm can not starve the redraw
+            if (time >= mScheduledTime) {
+                return;
+            }
+            mHandler.removeCallbacks(mDebounceRunnable);
+        }
+
+        mIsScheduled = true;
+        mScheduledTime = time;
+        mHandler.postAtTime(mDebounceRunnable, time);
+    }
+
+
+    public synchronized void cancel()
+    {
+        mHandler.removeCallbacks(mDebounceRunnable);
+        mHandler.removeCallbacks(mFrameRunnable);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN && null != mFrameCallback) {
+            removeFrameCallback();
+        }
+        mPendingReasons = 0;
+        mIsScheduled = false;
+    }
+
+
+    public synchronized boolean isScheduled()
+    {
+        return mIsScheduled;
+    }
+
+
+    protected void postFrame()
+    {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            postFrameCallback();
+        } else {
+            mHandler.post(mFrameRunnable);
+        }
+    }
+
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    protected void postFrameCallback()
+    {
+        if (null == mFrameCallback) {
+            mFrameCallback = new Choreographer.FrameCallback()
+            {
+                @Override
+                public void doFrame(long frameTimeNanos)
+                {
+                    dispatch();
+                }
+            };
+        }
+
+        Choreographer.getInstance().postFrameCallback((Choreographer.FrameCallback) mFrameCallback);
+    }
+
+
+    /**
+     * Drops a posted frame callback, so a redraw scheduled after the cancel is not dispatched by
+     * it before its delay. The choreographer belongs to the main thread, other threads post it.
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    protected void removeFrameCallback()
+    {
+        final Choreographer.FrameCallback callback = (Choreographer.FrameCallback) mFrameCallback;
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            Choreographer.getInstance().removeFrameCallback(callback);
+            return;
+        }
+
+        mHandler.post(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                Choreographer.getInstance().removeFrameCallback(callback);
+            }
+        });
+    }
+
+
+    protected void dispatch()
+    {
+        int reasons;
+        synchronized (this) {
+            reasons = mPendingReasons;
+            mPendingReasons = 0;
+            mIsScheduled = false;
+        }
+
+        if (reasons != 0 && null != mListener) {
+            mListener.onRedraw(reasons);
+        }
+    }
+}
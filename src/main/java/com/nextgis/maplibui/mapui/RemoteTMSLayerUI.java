@@ -25,17 +25,25 @@ package com.nextgis.maplibui.mapui;
 
 import android.content.Context;
 import android.content.Intent;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import android.graphics.drawable.Drawable;
+import android.os.SystemClock;
 import android.support.v4.app.FragmentActivity;
 import android.support.v4.content.ContextCompat;
 
 import com.nextgis.maplib.datasource.GeoEnvelope;
+import com.nextgis.maplib.datasource.GeoGeometry;
+import com.nextgis.maplib.datasource.TileItem;
 import com.nextgis.maplib.map.RemoteTMSLayer;
 import com.nextgis.maplibui.R;
 import com.nextgis.maplibui.activity.TMSLayerSettingsActivity;
 import com.nextgis.maplibui.api.ILayerUI;
 import com.nextgis.maplibui.dialog.SelectZoomLevelsDialog;
+import com.nextgis.maplibui.service.TileCacheChecker;
+import com.nextgis.maplibui.service.TileDownloadEngine;
 import com.nextgis.maplibui.util.ConstantsUI;
+import com.nextgis.maplibui.util.TileArchive;
 
 import java.io.File;
 
@@ -44,6 +52,33 @@ public class RemoteTMSLayerUI
         extends RemoteTMSLayer
         implements ILayerUI
 {
+    // a packed cache created by the download service process is noticed within this time, ms
+    protected static final long ARCHIVE_CHECK_INTERVAL = 2000;
+
+    protected volatile ArchiveHandle mArchiveHandle;
+
+
+    /**
+     * Result of an archive lookup, replaced as a whole, so tile loaders read it without a lock.
+     */
+    protected static class ArchiveHandle
+    {
+        final TileArchive mArchive;
+        final int         mGeneration;
+        final long        mTime;
+
+
+        ArchiveHandle(
+                TileArchive archive,
+                int generation,
+                long time)
+        {
+            mArchive = archive;
+            mGeneration = generation;
+            mTime = time;
+        }
+    }
+
     public RemoteTMSLayerUI(
             Context context,
             File path)
@@ -68,10 +103,82 @@ public class RemoteTMSLayerUI
         context.startActivity(settings);
     }
 
+    /**
+     * @return the packed cache of the layer or null, looked up again only when an archive of the
+     * process is opened or deleted, or after {@link #ARCHIVE_CHECK_INTERVAL} if there was none
+     */
+    protected TileArchive getArchive()
+    {
+        int generation = TileArchive.getGeneration();
+        long now = SystemClock.uptimeMillis();
+        ArchiveHandle handle = mArchiveHandle;
+        if (null == handle || handle.mGeneration != generation ||
+                null == handle.mArchive && now - handle.mTime > ARCHIVE_CHECK_INTERVAL) {
+            handle = new ArchiveHandle(
+                    TileArchive.openExisting(getPath(), getTMSType()), generation, now);
+            mArchiveHandle = handle;
+        }
+        return handle.mArchive;
+    }
+
+
+    /**
+     * Takes the tile from the packed cache if the layer has one, other tiles load as usual.
+     * A tile which is not cached or is outdated loads through the engine of the process.
+     */
+    @Override
+    public Bitmap getBitmap(final TileItem tile)
+    {
+        TileArchive archive = getArchive();
+        if (null != archive) {
+            byte[] data = archive.get(tile);
+            if (null != data) {
+                Bitmap bitmap = BitmapFactory.decodeByteArray(data, 0, data.length);
+                if (null != bitmap) {
+                    return bitmap;
+                }
+            }
+        }
+
+        // a cached tile is read from the disk, the engine would only count it against the host
+        File cached = TileCacheChecker.getTileFile(getPath(), tile);
+        if (System.currentTimeMillis() - cached.lastModified() < TileCacheChecker.DEFAULT_MAX_AGE) {
+            return super.getBitmap(tile);
+        }
+
+        // network loads the renderer waits for take their host capacity from queued prefetch
+        // downloads of this process, bulk jobs of the download service have their own engine
+        final Bitmap[] result = new Bitmap[1];
+        TileDownloadEngine.getInstance().runInteractive(TileDownloadEngine.getHost(getURL()),
+                new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        result[0] = RemoteTMSLayerUI.super.getBitmap(tile);
+                    }
+                });
+        return result[0];
+    }
+
+
     public void downloadTiles(Context context, GeoEnvelope env) {
         FragmentActivity fragmentActivity = (FragmentActivity) context;
         SelectZoomLevelsDialog newFragment = new SelectZoomLevelsDialog();
         newFragment.setEnvelope(env).setLayerId(getId()).
                 show(fragmentActivity.getSupportFragmentManager(), "select_zoom_levels");
     }
+
+    /**
+     * Downloads only tiles of the geometry, e.g. a feature polygon or a track with a buffer.
+     *
+     * @param geometry geometry in map coordinates
+     * @param buffer   distance around the geometry in map units
+     */
+    public void downloadTiles(Context context, GeoGeometry geometry, double buffer) {
+        FragmentActivity fragmentActivity = (FragmentActivity) context;
+        SelectZoomLevelsDialog newFragment = new SelectZoomLevelsDialog();
+        newFragment.setShape(geometry, buffer).setLayerId(getId()).
+                show(fragmentActivity.getSupportFragmentManager(), "select_zoom_levels");
+    }
 }
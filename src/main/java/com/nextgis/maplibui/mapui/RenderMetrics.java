@@ -0,0 +1,209 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2019 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplibui.mapui;
+
+import android.util.Log;
+
+import com.nextgis.maplibui.util.LatencyHistogram;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.nextgis.maplib.util.Constants.DRAW_FINISH_ID;
+
+
+/**
+ * Draw phase timings of a map view collected to histograms.
+ */
+public class RenderMetrics
+{
+    public static final String MAP_DRAW        = "map.draw";
+    public static final String MAP_BUFFER      = "map.buffer";
+    // from the draw start to a layer finished, a layer reports only its finish, not its start
+    public static final String LAYER_READY     = "layer.ready";
+    public static final String MAP_DRAW_FULL   = "layer.all";
+    public static final String OVERLAY_DRAW    = "overlay.draw";
+    public static final String OVERLAY_PANNING = "overlay.panning";
+    public static final String OVERLAY_ZOOMING = "overlay.zooming";
+
+    protected final Map<String, LatencyHistogram>                mHistograms;
+    protected final Map<String, Map<Class<?>, LatencyHistogram>> mOwnerHistograms;
+    protected volatile long                                      mDrawStartTime;
+
+
+    public RenderMetrics()
+    {
+        mHistograms = new ConcurrentHashMap<>();
+        mOwnerHistograms = new ConcurrentHashMap<>();
+    }
+
+
+    public LatencyHistogram getHistogram(String name)
+    {
+        LatencyHistogram histogram = mHistograms.get(name);
+        if (null == histogram) {
+            synchronized (mHistograms) {
+                histogram = mHistograms.get(name);
+                if (null == histogram) {
+                    histogram = new LatencyHistogram();
+                    mHistograms.put(name, histogram);
+                }
+            }
+        }
+        return histogram;
+    }
+
+
+    /**
+     * Histogram of a phase split by owner class, e.g. overlay draw time per overlay type.
+     */
+    public LatencyHistogram getHistogram(
+            String phase,
+            Class<?> owner)
+    {
+        Map<Class<?>, LatencyHistogram> owners = mOwnerHistograms.get(phase);
+        if (null == owners) {
+            synchronized (mOwnerHistograms) {
+                owners = mOwnerHistograms.get(phase);
+                if (null == owners) {
+                    owners = new ConcurrentHashMap<>();
+                    mOwnerHistograms.put(phase, owners);
+                }
+            }
+        }
+
+        LatencyHistogram histogram = owners.get(owner);
+        if (null == histogram) {
+            synchronized (owners) {
+                histogram = owners.get(owner);
+                if (null == histogram) {
+                    histogram = new LatencyHistogram();
+                    owners.put(owner, histogram);
+                }
+            }
+        }
+        return histogram;
+    }
+
+
+    /**
+     * @param startTime
+     *         phase start from {@link System#nanoTime()}
+     */
+    public void record(
+            String name,
+            long startTime)
+    {
+        getHistogram(name).recordNanos(System.nanoTime() - startTime);
+    }
+
+
+    public void record(
+            String phase,
+            Object owner,
+            long startTime)
+    {
+        getHistogram(phase, owner.getClass()).recordNanos(System.nanoTime() - startTime);
+    }
+
+
+    public void onDrawStarted()
+    {
+        mDrawStartTime = System.nanoTime();
+    }
+
+
+    public void onLayerDrawFinished(
+            int id,
+            float percent)
+    {
+        long start = mDrawStartTime;
+        if (start == 0) {
+            return;
+        }
+
+        if (id == DRAW_FINISH_ID) {
+            if (percent >= 1.0) {
+                record(MAP_DRAW_FULL, start);
+                mDrawStartTime = 0;
+            }
+        } else {
+            record(LAYER_READY, start);
+        }
+    }
+
+
+    public void reset()
+    {
+        mHistograms.clear();
+        mOwnerHistograms.clear();
+    }
+
+
+    public List<String> getReport()
+    {
+        List<String> lines = new ArrayList<>();
+        for (Map.Entry<String, LatencyHistogram> entry : mHistograms.entrySet()) {
+            lines.add(entry.getKey() + ": " + entry.getValue());
+        }
+        for (Map.Entry<String, Map<Class<?>, LatencyHistogram>> phase : mOwnerHistograms.entrySet()) {
+            for (Map.Entry<Class<?>, LatencyHistogram> entry : phase.getValue().entrySet()) {
+                lines.add(phase.getKey() + "." + entry.getKey().getSimpleName() + ": " +
+                          entry.getValue());
+            }
+        }
+        Collections.sort(lines);
+        return lines;
+    }
+
+
+    public void dump(String tag)
+    {
+        for (String line : getReport()) {
+            Log.i(tag, line);
+        }
+    }
+
+
+    public void dump(File file)
+            throws IOException
+    {
+        FileWriter writer = new FileWriter(file, true);
+        try {
+            writer.write("# " + System.currentTimeMillis() + "\n");
+            for (String line : getReport()) {
+                writer.write(line);
+                writer.write('\n');
+            }
+        } finally {
+            writer.close();
+        }
+    }
+}
@@ -27,7 +27,6 @@ import android.app.Activity;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.graphics.ColorFilter;
 import android.graphics.Matrix;
@@ -35,6 +34,8 @@ import android.graphics.Paint;
 import android.graphics.PointF;
 import android.graphics.PorterDuff;
 import android.graphics.PorterDuffColorFilter;
+import android.graphics.Rect;
+import android.graphics.RectF;
 import android.location.Location;
 import android.preference.PreferenceManager;
 
@@ -50,6 +51,7 @@ import com.nextgis.maplibui.R;
 import com.nextgis.maplibui.api.Overlay;
 import com.nextgis.maplibui.api.OverlayItem;
 import com.nextgis.maplibui.mapui.MapViewOverlays;
+import com.nextgis.maplibui.util.BitmapPool;
 import com.nextgis.maplibui.util.ControlHelper;
 import com.nextgis.maplibui.util.SettingsConstantsUI;
 
@@ -70,12 +72,19 @@ public class CurrentLocationOverlay extends Overlay implements GpsEventListener
     private int mMarkerColor;
     private OverlayItem mMarker, mAccuracy;
     private int mShowMode;
+    private final Rect mDrawnBounds = new Rect(), mDirtyBounds = new Rect(), mItemBounds = new Rect();
+    private final BitmapPool mBitmapPool;
+    private Bitmap mMarkerBitmap, mAccuracyBitmap;
+    private boolean mIsMarkerStanding;
+    private int mMarkerBitmapRes, mMarkerBitmapRotate, mMarkerBitmapColor;
+    private int mAccuracyBitmapRadius, mAccuracyBitmapColor;
 
     public CurrentLocationOverlay(Context context, MapViewOverlays mapViewOverlays) {
         super(context, mapViewOverlays);
         Activity parent = (Activity) context;
         mGpsEventSource = ((IGISApplication) parent.getApplication()).getGpsEventSource();
         mMarkerColor = ControlHelper.getColor(mContext, R.attr.colorAccent);
+        mBitmapPool = BitmapPool.getInstance(context);
 
         mTolerancePX = context.getResources().getDisplayMetrics().density * AUTOPAN_THRESHOLD;
 
@@ -120,8 +129,14 @@ public class CurrentLocationOverlay extends Overlay implements GpsEventListener
         }
     }
 
+    @Override
+    public boolean isCacheable() {
+        return true;
+    }
+
     @Override
     public void draw(Canvas canvas, MapDrawable mapDrawable) {
+        mDrawnBounds.setEmpty();
         if (mCurrentLocation != null && isMarkerEnabled()) {
             double lat = mCurrentLocation.getLatitude();
             double lon = mCurrentLocation.getLongitude();
@@ -156,13 +171,49 @@ public class CurrentLocationOverlay extends Overlay implements GpsEventListener
             if (mIsInBounds) {
                 if (mIsAccuracyEnabled) {
                     drawOverlayItem(canvas, mAccuracy);
+                    getScreenBounds(mAccuracy, mDrawnBounds);
                 }
 
                 drawOverlayItem(canvas, mMarker);
+                getScreenBounds(mMarker, mItemBounds);
+                mDrawnBounds.union(mItemBounds);
             }
         }
     }
 
+    /**
+     * Estimates screen bounds of the marker and accuracy circle for the location.
+     */
+    private void getLocationBounds(Location location, Rect bounds) {
+        MapDrawable map = mMapViewOverlays.getMap();
+        double lat = location.getLatitude();
+        double lon = location.getLongitude();
+
+        GeoPoint centerPoint = new GeoPoint(lon, lat);
+        centerPoint.setCRS(GeoConstants.CRS_WGS84);
+        centerPoint.project(GeoConstants.CRS_WEB_MERCATOR);
+        centerPoint = map.mapToScreen(centerPoint);
+
+        int radius = 0;
+        if (mIsAccuracyEnabled) {
+            GeoPoint newPoint = new GeoPoint(lon, getAccuracyRadius(lat, location.getAccuracy()));
+            newPoint.setCRS(GeoConstants.CRS_WGS84);
+            newPoint.project(GeoConstants.CRS_WEB_MERCATOR);
+            newPoint = map.mapToScreen(newPoint);
+            radius = (int) Math.ceil(centerPoint.getY() - newPoint.getY());
+        }
+
+        // the marker may be rotated, so reserve its largest side in every direction
+        Bitmap marker = mMarker.getMarker();
+        if (null != marker) {
+            radius = Math.max(radius, Math.max(marker.getWidth(), marker.getHeight()));
+        }
+
+        int x = (int) centerPoint.getX();
+        int y = (int) centerPoint.getY();
+        bounds.set(x - radius - 1, y - radius - 1, x + radius + 1, y + radius + 1);
+    }
+
     private double getAccuracyRadius(double lat, double accuracy) {
         int R = 6378137;
         double dxLat = accuracy / R;
@@ -183,6 +234,7 @@ public class CurrentLocationOverlay extends Overlay implements GpsEventListener
     public void updateMode(String newMode) {
         mShowMode = Integer.parseInt(newMode);
         setShowAccuracy(0 != (mShowMode & WITH_ACCURACY));
+        invalidate();
     }
 
     private boolean isMarkerEnabled() {
@@ -225,7 +277,10 @@ public class CurrentLocationOverlay extends Overlay implements GpsEventListener
 
             if (update) {
                 mCurrentLocation = location;
-                mMapViewOverlays.postInvalidate();
+                // redraw only the area of the old and new marker positions
+                getLocationBounds(location, mDirtyBounds);
+                mDirtyBounds.union(mDrawnBounds);
+                invalidate(mDirtyBounds);
             }
 
             if (mIsAutopanningEnabled) {
@@ -280,37 +335,65 @@ public class CurrentLocationOverlay extends Overlay implements GpsEventListener
         mMapViewOverlays.panTo(newCenter);
     }
 
+    /**
+     * The marker is cached for the current resource, color and bearing, so the returned bitmap
+     * is reused and must not be recycled by the caller.
+     */
     public Bitmap getDefaultMarker() {
         boolean isStanding = mCurrentLocation == null || !mCurrentLocation.hasBearing() || !mCurrentLocation.hasSpeed() || mCurrentLocation.getSpeed() == 0;
 
         int resource = isStanding ? mStandingMarkerRes : mMovingMarkerRes;
-        Bitmap marker = BitmapFactory.decodeResource(mContext.getResources(), resource);
-        marker = marker.copy(Bitmap.Config.ARGB_8888, true);
-
-        if (isStanding) {
-            if (!mIsStandingMarkerCustom) {
-                applyColorFilter(marker);
-            }
-        } else {
-            Matrix matrix = new Matrix();
-            int arrowRotate = 0;
-
+        int arrowRotate = 0;
+        if (!isStanding) {
             if (!mIsMovingMarkerCustom) {
-                applyColorFilter(marker);
                 arrowRotate += 90;
             }
 
             if (mCurrentLocation.hasBearing()) {
-                arrowRotate += mCurrentLocation.getBearing();
+                arrowRotate += Math.round(mCurrentLocation.getBearing());
             }
+            arrowRotate %= 360;
+        }
+
+        if (null != mMarkerBitmap && isStanding == mIsMarkerStanding && resource == mMarkerBitmapRes
+                && arrowRotate == mMarkerBitmapRotate && mMarkerColor == mMarkerBitmapColor) {
+            return mMarkerBitmap;
+        }
+
+        Bitmap marker = mBitmapPool.decodeResource(mContext.getResources(), resource);
+        if (null == marker) {
+            return mMarkerBitmap;
+        }
+
+        boolean isCustom = isStanding ? mIsStandingMarkerCustom : mIsMovingMarkerCustom;
+        if (!isCustom) {
+            applyColorFilter(marker);
+        }
 
+        if (!isStanding) {
+            Matrix matrix = new Matrix();
             matrix.setRotate(arrowRotate);
 
-            int w = marker.getWidth();
-            int h = marker.getHeight();
-            marker = Bitmap.createBitmap(marker, 0, 0, w, h, matrix, true);
+            RectF bounds = new RectF(0, 0, marker.getWidth(), marker.getHeight());
+            matrix.mapRect(bounds);
+            matrix.postTranslate(-bounds.left, -bounds.top);
+
+            Bitmap rotated = mBitmapPool.get(Math.round(bounds.width()), Math.round(bounds.height()), Bitmap.Config.ARGB_8888);
+            if (null != rotated) {
+                new Canvas(rotated).drawBitmap(marker, matrix, new Paint(Paint.FILTER_BITMAP_FLAG));
+                mBitmapPool.put(marker);
+                marker = rotated;
+            }
         }
 
+        // the old marker is replaced in the overlay item right after this call
+        mBitmapPool.put(mMarkerBitmap);
+        mMarkerBitmap = marker;
+        mIsMarkerStanding = isStanding;
+        mMarkerBitmapRes = resource;
+        mMarkerBitmapRotate = arrowRotate;
+        mMarkerBitmapColor = mMarkerColor;
+
         return marker;
     }
 
@@ -330,6 +413,8 @@ public class CurrentLocationOverlay extends Overlay implements GpsEventListener
         int max = Math.max(mContext.getResources().getDisplayMetrics().widthPixels, mContext.getResources().getDisplayMetrics().heightPixels);
 
         if (accuracy * 2 > max) {
+            mBitmapPool.put(mAccuracyBitmap);
+            mAccuracyBitmap = null;
             return null;
         }
 
@@ -337,9 +422,13 @@ public class CurrentLocationOverlay extends Overlay implements GpsEventListener
             accuracy = 1;
         }
 
-        Bitmap result = null;
-        try {
-            result = Bitmap.createBitmap(accuracy * 2, accuracy * 2, Bitmap.Config.ARGB_4444);
+        if (null != mAccuracyBitmap && accuracy == mAccuracyBitmapRadius && mMarkerColor == mAccuracyBitmapColor) {
+            return mAccuracyBitmap;
+        }
+
+        mBitmapPool.put(mAccuracyBitmap);
+        Bitmap result = mBitmapPool.get(accuracy * 2, accuracy * 2, Bitmap.Config.ARGB_4444);
+        if (null != result) {
             Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
             Canvas canvas = new Canvas(result);
             paint.setColor(mMarkerColor);
@@ -349,10 +438,12 @@ public class CurrentLocationOverlay extends Overlay implements GpsEventListener
             paint.setStyle(Paint.Style.STROKE);
             paint.setStrokeWidth(2);
             canvas.drawCircle(accuracy, accuracy, accuracy - 2, paint);
-        } catch (OutOfMemoryError oom) {
-            oom.printStackTrace();
         }
 
+        mAccuracyBitmap = result;
+        mAccuracyBitmapRadius = accuracy;
+        mAccuracyBitmapColor = mMarkerColor;
+
         return result;
     }
 
@@ -24,12 +24,16 @@
 package com.nextgis.maplibui.overlay;
 
 import android.app.Activity;
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.database.ContentObserver;
 import android.database.Cursor;
 import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.graphics.PointF;
+import android.graphics.Rect;
 import android.net.Uri;
 import android.os.Handler;
 import com.nextgis.maplib.api.IGISApplication;
@@ -40,25 +44,54 @@ import com.nextgis.maplib.util.GeoConstants;
 import com.nextgis.maplibui.R;
 import com.nextgis.maplibui.api.Overlay;
 import com.nextgis.maplibui.mapui.MapViewOverlays;
+import com.nextgis.maplibui.service.TrackerService;
 import com.nextgis.maplibui.util.ControlHelper;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
 
 
+/**
+ * Draws the track being recorded. Points of the track are read from the provider once and then
+ * appended as the tracker reports them, they are kept projected and decimated per zoom level by
+ * {@link PolylineSimplifier}, so a redraw walks only the blocks near the screen and draws them
+ * clipped with one {@link Canvas#drawLines(float[], int, int, Paint)} call.
+ */
 public class CurrentTrackOverlay
         extends Overlay
 {
     private       Cursor         mCursor;
     private final Uri            mContentUriTracks;
     private       Paint          mPaint;
-    private       List<GeoPoint> mTrackpoints;
 
     String[] mProjection = new String[] {TrackLayer.FIELD_ID};
     String   mSelection  = TrackLayer.FIELD_VISIBLE + " = 1 AND (" + TrackLayer.FIELD_END +
                            " IS NULL OR " + TrackLayer.FIELD_END +
                            " = '')";
 
+    protected BroadcastReceiver mPointReceiver;
+    protected boolean           mIsAttached;
+
+    protected String mTrackId;
+    protected long   mLastTime;
+
+    // the active track in map coordinates
+    protected final PolylineSimplifier mPolyline =
+            new PolylineSimplifier(PolylineSimplifier.DEFAULT_TOLERANCE);
+    protected PolylineSimplifier.Level mLevel;
+
+    // screen segments of the last draw and the map to screen transform they were built with,
+    // the segment to the floating last point of the level follows them
+    protected float[] mSegments     = new float[1024];
+    protected float[] mZoomSegments = new float[0];
+    protected int     mSegmentLength;
+    protected int     mTailLength;
+    protected int     mSegmentPointCount;
+    protected boolean mIsSegmentsValid;
+    protected double  mScaleX, mScaleY, mOffsetX, mOffsetY;
+    protected double  mCullMinX, mCullMinY, mCullMaxX, mCullMaxY;
+    protected final double[] mClip  = new double[4];
+    protected final Rect     mDirty = new Rect();
+
 
     public CurrentTrackOverlay(
             Context context,
@@ -74,7 +107,6 @@ public class CurrentTrackOverlay
         mPaint.setColor(ControlHelper.getColor(mContext, R.attr.colorAccent));
         mPaint.setStrokeWidth(4);
 
-        mTrackpoints = new ArrayList<>();
         IGISApplication app = (IGISApplication) parent.getApplication();
         String authority = app.getAuthority();
         mContentUriTracks = Uri.parse("content://" + authority + "/" + TrackLayer.TABLE_TRACKS);
@@ -90,6 +122,118 @@ public class CurrentTrackOverlay
     }
 
 
+    /**
+     * Points are received while the map view is attached and the overlay is visible, so the
+     * receiver does not outlive the activity.
+     */
+    @Override
+    public void onAttach()
+    {
+        mIsAttached = true;
+        if (isVisible()) {
+            startShowingCurrentTrack();
+        }
+    }
+
+
+    @Override
+    public void onDetach()
+    {
+        mIsAttached = false;
+        stopShowingCurrentTrack();
+    }
+
+
+    @Override
+    public void setVisibility(boolean isVisible)
+    {
+        super.setVisibility(isVisible);
+        if (isVisible && mIsAttached) {
+            startShowingCurrentTrack();
+        } else {
+            stopShowingCurrentTrack();
+        }
+    }
+
+
+    /**
+     * Starts receiving points of the tracker, the track is reloaded to catch up points recorded
+     * while stopped.
+     */
+    public void startShowingCurrentTrack()
+    {
+        if (null != mPointReceiver) {
+            return;
+        }
+
+        mPointReceiver = new TrackPointReceiver();
+        mContext.registerReceiver(
+                mPointReceiver, new IntentFilter(TrackerService.ACTION_TRACK_POINT));
+        loadTrack(getActiveTrackId());
+        invalidate();
+    }
+
+
+    public void stopShowingCurrentTrack()
+    {
+        if (null != mPointReceiver) {
+            mContext.unregisterReceiver(mPointReceiver);
+            mPointReceiver = null;
+        }
+    }
+
+
+    protected String getActiveTrackId()
+    {
+        if (mCursor == null || mCursor.getCount() == 0 || !mCursor.moveToFirst()) {
+            return null;
+        }
+        return mCursor.getString(0);
+    }
+
+
+    protected void loadTrack(String id)
+    {
+        mTrackId = id;
+        mLastTime = Long.MIN_VALUE;
+        mPolyline.clear();
+        mLevel = null;
+        mIsSegmentsValid = false;
+
+        if (null == id) {
+            return;
+        }
+
+        String[] proj = new String[] {
+                TrackLayer.FIELD_LON, TrackLayer.FIELD_LAT, TrackLayer.FIELD_TIMESTAMP};
+        Cursor track = mContext.getContentResolver().query(
+                Uri.withAppendedPath(mContentUriTracks, id), proj, null, null, null);
+
+        if (track == null) {
+            return;
+        }
+
+        if (track.moveToFirst()) {
+            int lonId = track.getColumnIndex(TrackLayer.FIELD_LON);
+            int latId = track.getColumnIndex(TrackLayer.FIELD_LAT);
+            int timeId = track.getColumnIndex(TrackLayer.FIELD_TIMESTAMP);
+            do {
+                mPolyline.add(track.getDouble(lonId), track.getDouble(latId));
+                mLastTime = Math.max(mLastTime, track.getLong(timeId));
+            } while (track.moveToNext());
+        }
+
+        track.close();
+    }
+
+
+    @Override
+    public boolean isCacheable()
+    {
+        return true;
+    }
+
+
     @Override
     public void drawOnPanning(
             Canvas canvas,
@@ -99,19 +243,15 @@ public class CurrentTrackOverlay
             return;
         }
 
-        if (mTrackpoints.size() < 2) {
+        int length = mSegmentLength + mTailLength;
+        if (!mIsSegmentsValid || length == 0) {
             return;
         }
 
-        float x0, y0, x1, y1;
-
-        for (int i = 1; i < mTrackpoints.size(); i++) {
-            x0 = (float) mTrackpoints.get(i - 1).getX() - currentMouseOffset.x;
-            y0 = (float) mTrackpoints.get(i - 1).getY() - currentMouseOffset.y;
-            x1 = (float) mTrackpoints.get(i).getX() - currentMouseOffset.x;
-            y1 = (float) mTrackpoints.get(i).getY() - currentMouseOffset.y;
-            canvas.drawLine(x0, y0, x1, y1, mPaint);
-        }
+        canvas.save();
+        canvas.translate(-currentMouseOffset.x, -currentMouseOffset.y);
+        canvas.drawLines(mSegments, 0, length, mPaint);
+        canvas.restore();
     }
 
 
@@ -125,28 +265,23 @@ public class CurrentTrackOverlay
             return;
         }
 
-        float x0, y0, x1, y1;
-        double dx, dy;
-
-        if (mTrackpoints.size() < 2) {
+        int length = mSegmentLength + mTailLength;
+        if (!mIsSegmentsValid || length == 0) {
             return;
-        } else {
-            dx = mTrackpoints.get(0).getX() + currentFocusLocation.x;
-            dy = mTrackpoints.get(0).getY() + currentFocusLocation.y;
-            x0 = (float) (mTrackpoints.get(0).getX() - (1 - scale) * dx);
-            y0 = (float) (mTrackpoints.get(0).getY() - (1 - scale) * dy);
         }
 
-        for (int i = 1; i < mTrackpoints.size(); i++) {
-            dx = mTrackpoints.get(i).getX() + currentFocusLocation.x;
-            dy = mTrackpoints.get(i).getY() + currentFocusLocation.y;
-            x1 = (float) (mTrackpoints.get(i).getX() - (1 - scale) * dx);
-            y1 = (float) (mTrackpoints.get(i).getY() - (1 - scale) * dy);
+        if (mZoomSegments.length < length) {
+            mZoomSegments = new float[mSegments.length];
+        }
 
-            canvas.drawLine(x0, y0, x1, y1, mPaint);
-            x0 = x1;
-            y0 = y1;
+        // x - (1 - scale) * (x + focus), the stroke keeps its width
+        float shiftX = (1 - scale) * currentFocusLocation.x;
+        float shiftY = (1 - scale) * currentFocusLocation.y;
+        for (int i = 0; i < length; i += 2) {
+            mZoomSegments[i] = mSegments[i] * scale - shiftX;
+            mZoomSegments[i + 1] = mSegments[i + 1] * scale - shiftY;
         }
+        canvas.drawLines(mZoomSegments, 0, length, mPaint);
     }
 
 
@@ -155,65 +290,188 @@ public class CurrentTrackOverlay
             Canvas canvas,
             MapDrawable mapDrawable)
     {
-        mTrackpoints.clear();
-
-        if (mCursor == null || mCursor.getCount() == 0 || !mCursor.moveToFirst()) {
+        if (mPolyline.getPointCount() < 2) {
+            mSegmentLength = mTailLength = 0;
             return;
         }
 
-        String id = mCursor.getString(0);
-        String[] proj = new String[] {TrackLayer.FIELD_LON, TrackLayer.FIELD_LAT};
+        // the projection is linear, two points give the map to screen transform
+        GeoPoint origin = new GeoPoint(0, 0);
+        origin.setCRS(GeoConstants.CRS_WEB_MERCATOR);
+        GeoPoint corner = new GeoPoint(GeoConstants.MERCATOR_MAX, GeoConstants.MERCATOR_MAX);
+        corner.setCRS(GeoConstants.CRS_WEB_MERCATOR);
+        GeoPoint screenOrigin = mapDrawable.mapToScreen(origin);
+        GeoPoint screenCorner = mapDrawable.mapToScreen(corner);
+
+        double scaleX = (screenCorner.getX() - screenOrigin.getX()) / GeoConstants.MERCATOR_MAX;
+        double scaleY = (screenCorner.getY() - screenOrigin.getY()) / GeoConstants.MERCATOR_MAX;
+        double offsetX = screenOrigin.getX();
+        double offsetY = screenOrigin.getY();
+
+        PolylineSimplifier.Level level = mPolyline.getLevel(1 / Math.abs(scaleX));
+        if (!mIsSegmentsValid || level != mLevel || scaleX != mScaleX || scaleY != mScaleY ||
+            offsetX != mOffsetX || offsetY != mOffsetY) {
+            mLevel = level;
+            mScaleX = scaleX;
+            mScaleY = scaleY;
+            mOffsetX = offsetX;
+            mOffsetY = offsetY;
+            buildSegments();
+        } else {
+            // the same view, only points appended since the last draw are added
+            int count = level.getStableCount();
+            for (int i = Math.max(1, mSegmentPointCount); i < count; i++) {
+                addSegment(i);
+            }
+            mSegmentPointCount = count;
+        }
 
-        Cursor track = mContext.getContentResolver().query(
-                Uri.withAppendedPath(mContentUriTracks, id), proj, null, null, null);
+        mTailLength = 0;
+        int count = level.getCount();
+        if (count > level.getStableCount() && count > 1) {
+            int length = mSegmentLength;
+            addSegment(count - 1);
+            mTailLength = mSegmentLength - length;
+            mSegmentLength = length;
+        }
 
-        if (track == null) {
-            return;
+        if (mSegmentLength + mTailLength > 0) {
+            canvas.drawLines(mSegments, 0, mSegmentLength + mTailLength, mPaint);
         }
+    }
 
-        if (track.moveToFirst()) {
-            float x0 = track.getFloat(track.getColumnIndex(TrackLayer.FIELD_LON)),
-                    y0 = track.getFloat(track.getColumnIndex(TrackLayer.FIELD_LAT)), x1, y1;
-            GeoPoint point;
-            point = new GeoPoint(x0, y0);
-            point.setCRS(GeoConstants.CRS_WEB_MERCATOR);
 
-            GeoPoint mts = mapDrawable.mapToScreen(point);
-            x0 = (float) (mts.getX());
-            y0 = (float) (mts.getY());
+    /**
+     * Collects segments of blocks around the screen. The area is a screen wider in every
+     * direction, so a short pan draws the track from the same buffer.
+     */
+    protected void buildSegments()
+    {
+        int width = mMapViewOverlays.getWidth();
+        int height = mMapViewOverlays.getHeight();
+        double x0 = (-width - mOffsetX) / mScaleX;
+        double x1 = (width * 2 - mOffsetX) / mScaleX;
+        double y0 = (-height - mOffsetY) / mScaleY;
+        double y1 = (height * 2 - mOffsetY) / mScaleY;
+        mCullMinX = Math.min(x0, x1);
+        mCullMaxX = Math.max(x0, x1);
+        mCullMinY = Math.min(y0, y1);
+        mCullMaxY = Math.max(y0, y1);
+
+        mSegmentLength = 0;
+        int count = mLevel.getStableCount();
+        int blocks = mLevel.getBlockCount();
+        for (int block = 0; block < blocks; block++) {
+            if (!mLevel.intersectsBlock(block, mCullMinX, mCullMinY, mCullMaxX, mCullMaxY)) {
+                continue;
+            }
+
+            int end = Math.min(count, PolylineSimplifier.Level.getBlockStart(block + 1));
+            for (int i = Math.max(1, PolylineSimplifier.Level.getBlockStart(block)); i < end; i++) {
+                addSegment(i);
+            }
+        }
+
+        mSegmentPointCount = count;
+        mIsSegmentsValid = true;
+    }
 
-            while (track.moveToNext()) {
-                x1 = track.getFloat(track.getColumnIndex(TrackLayer.FIELD_LON));
-                y1 = track.getFloat(track.getColumnIndex(TrackLayer.FIELD_LAT));
 
-                point = new GeoPoint(x1, y1);
-                point.setCRS(GeoConstants.CRS_WEB_MERCATOR);
+    /**
+     * Adds the segment of the level ending at the point clipped to the area near the screen.
+     */
+    protected void addSegment(int index)
+    {
+        double[] clip = mClip;
+        clip[0] = mLevel.getX(index - 1);
+        clip[1] = mLevel.getY(index - 1);
+        clip[2] = mLevel.getX(index);
+        clip[3] = mLevel.getY(index);
+        if (!PolylineSimplifier.clipSegment(clip, mCullMinX, mCullMinY, mCullMaxX, mCullMaxY)) {
+            return;
+        }
 
-                mts = mapDrawable.mapToScreen(point);
+        if (mSegmentLength + 4 > mSegments.length) {
+            mSegments = Arrays.copyOf(mSegments, mSegments.length * 2);
+        }
+        mSegments[mSegmentLength++] = (float) (clip[0] * mScaleX + mOffsetX);
+        mSegments[mSegmentLength++] = (float) (clip[1] * mScaleY + mOffsetY);
+        mSegments[mSegmentLength++] = (float) (clip[2] * mScaleX + mOffsetX);
+        mSegments[mSegmentLength++] = (float) (clip[3] * mScaleY + mOffsetY);
+    }
 
-                canvas.drawLine(x0, y0, (float) mts.getX(), (float) mts.getY(), mPaint);
 
-                mTrackpoints.add(new GeoPoint(x0, y0));
-                x0 = (float) (mts.getX());
-                y0 = (float) (mts.getY());
+    protected void onTrackPoint(
+            String trackId,
+            double x,
+            double y,
+            long time)
+    {
+        if (null == trackId || !trackId.equals(mTrackId)) {
+            // a new track started, its first points may be in the provider already
+            if (null != mCursor) {
+                mCursor.requery();
             }
+            loadTrack(getActiveTrackId());
+            invalidate();
+            return;
+        }
 
-            mTrackpoints.add(new GeoPoint(x0, y0));
+        if (time <= mLastTime) {
+            return; // already read from the provider
         }
 
-        track.close();
+        mLastTime = time;
+        mPolyline.add(x, y);
+        if (mPolyline.getPointCount() < 2) {
+            return;
+        }
+
+        if (!mIsSegmentsValid || null == mLevel) {
+            invalidate();
+            return;
+        }
+
+        // only the tail from the last stable point of the drawn level to the new point is redrawn
+        double minX = x, minY = y, maxX = x, maxY = y;
+        for (int i = Math.max(0, mLevel.getStableCount() - 1); i < mLevel.getCount(); i++) {
+            minX = Math.min(minX, mLevel.getX(i));
+            minY = Math.min(minY, mLevel.getY(i));
+            maxX = Math.max(maxX, mLevel.getX(i));
+            maxY = Math.max(maxY, mLevel.getY(i));
+        }
+        for (int i = mLevel.getSourceCount(); i < mPolyline.getPointCount(); i++) {
+            minX = Math.min(minX, mPolyline.getX(i));
+            minY = Math.min(minY, mPolyline.getY(i));
+            maxX = Math.max(maxX, mPolyline.getX(i));
+            maxY = Math.max(maxY, mPolyline.getY(i));
+        }
+
+        float ax = (float) (minX * mScaleX + mOffsetX);
+        float ay = (float) (minY * mScaleY + mOffsetY);
+        float bx = (float) (maxX * mScaleX + mOffsetX);
+        float by = (float) (maxY * mScaleY + mOffsetY);
+        int pad = (int) Math.ceil(mPaint.getStrokeWidth() / 2) + 1;
+        mDirty.set(
+                (int) Math.floor(Math.min(ax, bx)) - pad, (int) Math.floor(Math.min(ay, by)) - pad,
+                (int) Math.ceil(Math.max(ax, bx)) + pad, (int) Math.ceil(Math.max(ay, by)) + pad);
+        if (mDirty.intersect(0, 0, mMapViewOverlays.getWidth(), mMapViewOverlays.getHeight())) {
+            invalidate(mDirty);
+        }
     }
 
 
     public void setLineColor(int color)
     {
         mPaint.setColor(color);
+        invalidate();
     }
 
 
     public void setLineWidth(float width)
     {
         mPaint.setStrokeWidth(width);
+        invalidate();
     }
 
 
@@ -233,8 +491,30 @@ public class CurrentTrackOverlay
             super.onChange(selfChange);
 
             mCursor.requery();
-            mMapViewOverlays.postInvalidate();
+            String id = getActiveTrackId();
+            // points of the active track come from the receiver
+            if (null == id ? null != mTrackId : !id.equals(mTrackId)) {
+                loadTrack(id);
+                invalidate();
+            }
         }
 
     }
+
+
+    private class TrackPointReceiver
+            extends BroadcastReceiver
+    {
+        @Override
+        public void onReceive(
+                Context context,
+                Intent intent)
+        {
+            onTrackPoint(
+                    intent.getStringExtra(TrackerService.EXTRA_TRACK_ID),
+                    intent.getDoubleExtra(TrackerService.EXTRA_X, 0),
+                    intent.getDoubleExtra(TrackerService.EXTRA_Y, 0),
+                    intent.getLongExtra(TrackerService.EXTRA_TIME, 0));
+        }
+    }
 }
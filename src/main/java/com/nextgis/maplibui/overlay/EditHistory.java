@@ -0,0 +1,549 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2016-2019 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplibui.overlay;
+
+import com.nextgis.maplib.datasource.GeoGeometry;
+import com.nextgis.maplib.datasource.GeoLineString;
+import com.nextgis.maplib.datasource.GeoLinearRing;
+import com.nextgis.maplib.datasource.GeoMultiLineString;
+import com.nextgis.maplib.datasource.GeoMultiPoint;
+import com.nextgis.maplib.datasource.GeoMultiPolygon;
+import com.nextgis.maplib.datasource.GeoPoint;
+import com.nextgis.maplib.datasource.GeoPolygon;
+import com.nextgis.maplib.util.GeoConstants;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Geometry edit history stored as a log of edit operations. A step is kept as the operations
+ * turning the previous geometry into the next one: a vertex moved, inserted or deleted (a splice
+ * of a ring), or rings and parts added or removed. A full checkpoint is stored for the first
+ * step, when the geometry type changes and when the operations since the last checkpoint grow
+ * larger than the geometry, so memory grows with the edits and any step is restored by replaying
+ * at most a geometry size of operations.
+ */
+public class EditHistory {
+    protected static final int VERSION = 1;
+
+    protected static final byte OP_SPLICE = 1;
+    protected static final byte OP_RINGS = 2;
+
+    protected final List<Entry> mEntries = new ArrayList<>();
+    // the geometry of a step, undo and redo move it by one step
+    protected Shape mCurrent;
+    protected int mCurrentIndex = -1;
+
+    /**
+     * Geometry flattened to rings, parts are consecutive runs of rings. Ring arrays are never
+     * changed in place, so shapes and operations share them.
+     */
+    protected static class Shape {
+        protected int mType, mCrs;
+        // ring count of every part
+        protected int[] mParts;
+        // x, y pairs
+        protected List<double[]> mRings;
+
+        protected Shape(int type, int crs, int[] parts, List<double[]> rings) {
+            mType = type;
+            mCrs = crs;
+            mParts = parts;
+            mRings = rings;
+        }
+
+        protected Shape copy() {
+            return new Shape(mType, mCrs, mParts, new ArrayList<>(mRings));
+        }
+
+        /**
+         * @return count of coordinate values
+         */
+        protected int getSize() {
+            int size = 0;
+            for (double[] ring : mRings)
+                size += ring.length;
+            return size;
+        }
+
+        protected static Shape from(GeoGeometry geometry) {
+            List<double[]> rings = new ArrayList<>();
+            List<Integer> parts = new ArrayList<>();
+            switch (geometry.getType()) {
+                case GeoConstants.GTPoint:
+                    addPoint(rings, parts, (GeoPoint) geometry);
+                    break;
+                case GeoConstants.GTMultiPoint:
+                    GeoMultiPoint multiPoint = (GeoMultiPoint) geometry;
+                    for (int i = 0; i < multiPoint.size(); i++)
+                        addPoint(rings, parts, multiPoint.get(i));
+                    break;
+                case GeoConstants.GTLineString:
+                    addLine(rings, parts, (GeoLineString) geometry);
+                    break;
+                case GeoConstants.GTMultiLineString:
+                    GeoMultiLineString multiLine = (GeoMultiLineString) geometry;
+                    for (int i = 0; i < multiLine.size(); i++)
+                        addLine(rings, parts, multiLine.get(i));
+                    break;
+                case GeoConstants.GTPolygon:
+                    addPolygon(rings, parts, (GeoPolygon) geometry);
+                    break;
+                case GeoConstants.GTMultiPolygon:
+                    GeoMultiPolygon multiPolygon = (GeoMultiPolygon) geometry;
+                    for (int i = 0; i < multiPolygon.size(); i++)
+                        addPolygon(rings, parts, multiPolygon.get(i));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unsupported geometry type " + geometry.getType());
+            }
+
+            int[] counts = new int[parts.size()];
+            for (int i = 0; i < counts.length; i++)
+                counts[i] = parts.get(i);
+            return new Shape(geometry.getType(), geometry.getCRS(), counts, rings);
+        }
+
+        protected static void addPoint(List<double[]> rings, List<Integer> parts, GeoPoint point) {
+            rings.add(new double[] {point.getX(), point.getY()});
+            parts.add(1);
+        }
+
+        protected static void addLine(List<double[]> rings, List<Integer> parts, GeoLineString line) {
+            rings.add(toArray(line.getPoints()));
+            parts.add(1);
+        }
+
+        protected static void addPolygon(List<double[]> rings, List<Integer> parts, GeoPolygon polygon) {
+            rings.add(toArray(polygon.getOuterRing().getPoints()));
+            for (int i = 0; i < polygon.getInnerRingCount(); i++)
+                rings.add(toArray(polygon.getInnerRing(i).getPoints()));
+            parts.add(1 + polygon.getInnerRingCount());
+        }
+
+        protected static double[] toArray(List<GeoPoint> points) {
+            double[] result = new double[points.size() * 2];
+            for (int i = 0; i < points.size(); i++) {
+                result[i * 2] = points.get(i).getX();
+                result[i * 2 + 1] = points.get(i).getY();
+            }
+            return result;
+        }
+
+        protected GeoGeometry toGeometry() {
+            GeoGeometry geometry;
+            int ring = 0;
+            switch (mType) {
+                case GeoConstants.GTPoint:
+                    geometry = toPoint(mRings.get(0));
+                    break;
+                case GeoConstants.GTMultiPoint:
+                    GeoMultiPoint multiPoint = new GeoMultiPoint();
+                    for (int part : mParts) {
+                        multiPoint.add(toPoint(mRings.get(ring)));
+                        ring += part;
+                    }
+                    geometry = multiPoint;
+                    break;
+                case GeoConstants.GTLineString:
+                    geometry = toLine(new GeoLineString(), mRings.get(0));
+                    break;
+                case GeoConstants.GTMultiLineString:
+                    GeoMultiLineString multiLine = new GeoMultiLineString();
+                    for (int part : mParts) {
+                        multiLine.add(toLine(new GeoLineString(), mRings.get(ring)));
+                        ring += part;
+                    }
+                    geometry = multiLine;
+                    break;
+                case GeoConstants.GTPolygon:
+                    geometry = toPolygon(0, mParts[0]);
+                    break;
+                case GeoConstants.GTMultiPolygon:
+                    GeoMultiPolygon multiPolygon = new GeoMultiPolygon();
+                    for (int part : mParts) {
+                        multiPolygon.add(toPolygon(ring, part));
+                        ring += part;
+                    }
+                    geometry = multiPolygon;
+                    break;
+                default:
+                    return null;
+            }
+
+            geometry.setCRS(mCrs);
+            return geometry;
+        }
+
+        protected GeoPoint toPoint(double[] ring) {
+            GeoPoint point = new GeoPoint(ring[0], ring[1]);
+            point.setCRS(mCrs);
+            return point;
+        }
+
+        protected GeoLineString toLine(GeoLineString line, double[] ring) {
+            for (int i = 0; i < ring.length - 1; i += 2)
+                line.add(toPoint(new double[] {ring[i], ring[i + 1]}));
+            return line;
+        }
+
+        protected GeoPolygon toPolygon(int first, int count) {
+            GeoPolygon polygon = new GeoPolygon();
+            double[] outer = mRings.get(first);
+            for (int i = 0; i < outer.length - 1; i += 2)
+                polygon.add(new GeoPoint(outer[i], outer[i + 1]));
+
+            for (int i = first + 1; i < first + count; i++) {
+                GeoLinearRing ring = new GeoLinearRing();
+                ring.setCRS(mCrs);
+                toLine(ring, mRings.get(i));
+                polygon.addInnerRing(ring);
+            }
+            return polygon;
+        }
+    }
+
+    /**
+     * Replaces values of a ring (OP_SPLICE) or rings of the shape (OP_RINGS). Undo applies it
+     * with the removed and inserted parts swapped.
+     */
+    protected static class Op {
+        protected byte mKind;
+        protected int mRing, mPosition;
+        protected double[] mRemoved, mInserted;
+        protected List<double[]> mRemovedRings, mInsertedRings;
+        protected int[] mOldParts, mNewParts;
+
+        protected int getSize() {
+            if (mKind == OP_SPLICE)
+                return mRemoved.length + mInserted.length + 4;
+
+            int size = mOldParts.length + mNewParts.length;
+            for (double[] ring : mRemovedRings)
+                size += ring.length;
+            for (double[] ring : mInsertedRings)
+                size += ring.length;
+            return size;
+        }
+
+        protected void apply(Shape shape, boolean forward) {
+            if (mKind == OP_SPLICE) {
+                double[] removed = forward ? mRemoved : mInserted;
+                double[] inserted = forward ? mInserted : mRemoved;
+                double[] ring = shape.mRings.get(mRing);
+                double[] result = new double[ring.length - removed.length + inserted.length];
+                System.arraycopy(ring, 0, result, 0, mPosition);
+                System.arraycopy(inserted, 0, result, mPosition, inserted.length);
+                System.arraycopy(ring, mPosition + removed.length, result,
+                        mPosition + inserted.length, ring.length - mPosition - removed.length);
+                shape.mRings.set(mRing, result);
+            } else {
+                List<double[]> removed = forward ? mRemovedRings : mInsertedRings;
+                List<double[]> inserted = forward ? mInsertedRings : mRemovedRings;
+                shape.mRings.subList(mRing, mRing + removed.size()).clear();
+                shape.mRings.addAll(mRing, inserted);
+                shape.mParts = forward ? mNewParts : mOldParts;
+            }
+        }
+    }
+
+    protected static class Entry {
+        // a full shape or operations from the previous entry
+        protected Shape mCheckpoint;
+        protected List<Op> mOps;
+        // size of operations since the last checkpoint including this entry
+        protected int mDeltaSize;
+    }
+
+    public int size() {
+        return mEntries.size();
+    }
+
+    public void clear() {
+        mEntries.clear();
+        mCurrent = null;
+        mCurrentIndex = -1;
+    }
+
+    /**
+     * Drops steps from the index on.
+     */
+    public void truncate(int size) {
+        while (mEntries.size() > size)
+            mEntries.remove(mEntries.size() - 1);
+        if (mCurrentIndex >= size) {
+            mCurrent = null;
+            mCurrentIndex = -1;
+        }
+    }
+
+    /**
+     * Adds the geometry as the last step.
+     */
+    public void add(GeoGeometry geometry) {
+        Shape shape = Shape.from(geometry);
+        Entry entry = new Entry();
+        int index = mEntries.size();
+
+        if (index > 0) {
+            Entry last = mEntries.get(index - 1);
+            List<Op> ops = diff(getShape(index - 1), shape);
+            if (ops != null) {
+                int size = 0;
+                for (Op op : ops)
+                    size += op.getSize();
+                entry.mDeltaSize = last.mDeltaSize + size;
+                if (entry.mDeltaSize < shape.getSize())
+                    entry.mOps = ops;
+            }
+        }
+
+        if (entry.mOps == null) {
+            entry.mCheckpoint = shape.copy();
+            entry.mDeltaSize = 0;
+        }
+
+        mEntries.add(entry);
+        mCurrent = shape;
+        mCurrentIndex = index;
+    }
+
+    /**
+     * @return the geometry of the step
+     */
+    public GeoGeometry get(int index) {
+        return getShape(index).toGeometry();
+    }
+
+    protected Shape getShape(int index) {
+        if (index == mCurrentIndex)
+            return mCurrent;
+
+        Entry entry = mEntries.get(index);
+        if (mCurrent != null && index == mCurrentIndex - 1 && mEntries.get(mCurrentIndex).mOps != null) {
+            apply(mCurrent, mEntries.get(mCurrentIndex).mOps, false);
+        } else if (mCurrent != null && index == mCurrentIndex + 1 && entry.mOps != null) {
+            apply(mCurrent, entry.mOps, true);
+        } else {
+            int checkpoint = index;
+            while (mEntries.get(checkpoint).mCheckpoint == null)
+                checkpoint--;
+            mCurrent = mEntries.get(checkpoint).mCheckpoint.copy();
+            for (int i = checkpoint + 1; i <= index; i++)
+                apply(mCurrent, mEntries.get(i).mOps, true);
+        }
+
+        mCurrentIndex = index;
+        return mCurrent;
+    }
+
+    protected static void apply(Shape shape, List<Op> ops, boolean forward) {
+        if (forward) {
+            for (Op op : ops)
+                op.apply(shape, true);
+        } else {
+            for (int i = ops.size() - 1; i >= 0; i--)
+                ops.get(i).apply(shape, false);
+        }
+    }
+
+    /**
+     * @return operations turning the old shape to the new one, null if the types differ
+     */
+    protected static List<Op> diff(Shape from, Shape to) {
+        if (from.mType != to.mType || from.mCrs != to.mCrs)
+            return null;
+
+        List<Op> ops = new ArrayList<>();
+        int fromCount = from.mRings.size(), toCount = to.mRings.size();
+        int prefix = 0;
+        while (prefix < fromCount && prefix < toCount &&
+                Arrays.equals(from.mRings.get(prefix), to.mRings.get(prefix)))
+            prefix++;
+        int suffix = 0;
+        while (suffix < fromCount - prefix && suffix < toCount - prefix &&
+                Arrays.equals(from.mRings.get(fromCount - 1 - suffix), to.mRings.get(toCount - 1 - suffix)))
+            suffix++;
+
+        if (fromCount == toCount && Arrays.equals(from.mParts, to.mParts)) {
+            // the same rings with changed vertices
+            for (int i = prefix; i < fromCount - suffix; i++)
+                ops.add(diffRing(i, from.mRings.get(i), to.mRings.get(i)));
+        } else {
+            Op op = new Op();
+            op.mKind = OP_RINGS;
+            op.mRing = prefix;
+            op.mRemovedRings = new ArrayList<>(from.mRings.subList(prefix, fromCount - suffix));
+            op.mInsertedRings = new ArrayList<>(to.mRings.subList(prefix, toCount - suffix));
+            op.mOldParts = from.mParts;
+            op.mNewParts = to.mParts;
+            ops.add(op);
+        }
+        return ops;
+    }
+
+    protected static Op diffRing(int index, double[] from, double[] to) {
+        // compare whole vertices
+        int prefix = 0;
+        while (prefix + 1 < from.length && prefix + 1 < to.length &&
+                from[prefix] == to[prefix] && from[prefix + 1] == to[prefix + 1])
+            prefix += 2;
+        int suffix = 0;
+        while (suffix + 1 < from.length - prefix && suffix + 1 < to.length - prefix &&
+                from[from.length - 2 - suffix] == to[to.length - 2 - suffix] &&
+                from[from.length - 1 - suffix] == to[to.length - 1 - suffix])
+            suffix += 2;
+
+        Op op = new Op();
+        op.mKind = OP_SPLICE;
+        op.mRing = index;
+        op.mPosition = prefix;
+        op.mRemoved = Arrays.copyOfRange(from, prefix, from.length - suffix);
+        op.mInserted = Arrays.copyOfRange(to, prefix, to.length - suffix);
+        return op;
+    }
+
+    public void write(DataOutputStream out) throws IOException {
+        out.writeInt(VERSION);
+        out.writeInt(mEntries.size());
+        for (Entry entry : mEntries) {
+            out.writeInt(entry.mDeltaSize);
+            out.writeBoolean(entry.mCheckpoint != null);
+            if (entry.mCheckpoint != null) {
+                writeShape(out, entry.mCheckpoint);
+                continue;
+            }
+
+            out.writeInt(entry.mOps.size());
+            for (Op op : entry.mOps) {
+                out.writeByte(op.mKind);
+                out.writeInt(op.mRing);
+                if (op.mKind == OP_SPLICE) {
+                    out.writeInt(op.mPosition);
+                    writeArray(out, op.mRemoved);
+                    writeArray(out, op.mInserted);
+                } else {
+                    writeRings(out, op.mRemovedRings);
+                    writeRings(out, op.mInsertedRings);
+                    writeParts(out, op.mOldParts);
+                    writeParts(out, op.mNewParts);
+                }
+            }
+        }
+    }
+
+    public void read(DataInputStream in) throws IOException {
+        clear();
+        if (in.readInt() != VERSION)
+            throw new IOException("Unsupported edit history version");
+
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            Entry entry = new Entry();
+            entry.mDeltaSize = in.readInt();
+            if (in.readBoolean()) {
+                entry.mCheckpoint = readShape(in);
+            } else {
+                int opCount = in.readInt();
+                entry.mOps = new ArrayList<>(opCount);
+                for (int j = 0; j < opCount; j++) {
+                    Op op = new Op();
+                    op.mKind = in.readByte();
+                    op.mRing = in.readInt();
+                    if (op.mKind == OP_SPLICE) {
+                        op.mPosition = in.readInt();
+                        op.mRemoved = readArray(in);
+                        op.mInserted = readArray(in);
+                    } else {
+                        op.mRemovedRings = readRings(in);
+                        op.mInsertedRings = readRings(in);
+                        op.mOldParts = readParts(in);
+                        op.mNewParts = readParts(in);
+                    }
+                    entry.mOps.add(op);
+                }
+            }
+            mEntries.add(entry);
+        }
+
+        if (!mEntries.isEmpty() && mEntries.get(0).mCheckpoint == null)
+            throw new IOException("Edit history does not start with a checkpoint");
+    }
+
+    protected static void writeShape(DataOutputStream out, Shape shape) throws IOException {
+        out.writeInt(shape.mType);
+        out.writeInt(shape.mCrs);
+        writeParts(out, shape.mParts);
+        writeRings(out, shape.mRings);
+    }
+
+    protected static Shape readShape(DataInputStream in) throws IOException {
+        int type = in.readInt();
+        int crs = in.readInt();
+        int[] parts = readParts(in);
+        return new Shape(type, crs, parts, readRings(in));
+    }
+
+    protected static void writeParts(DataOutputStream out, int[] parts) throws IOException {
+        out.writeInt(parts.length);
+        for (int part : parts)
+            out.writeInt(part);
+    }
+
+    protected static int[] readParts(DataInputStream in) throws IOException {
+        int[] parts = new int[in.readInt()];
+        for (int i = 0; i < parts.length; i++)
+            parts[i] = in.readInt();
+        return parts;
+    }
+
+    protected static void writeRings(DataOutputStream out, List<double[]> rings) throws IOException {
+        out.writeInt(rings.size());
+        for (double[] ring : rings)
+            writeArray(out, ring);
+    }
+
+    protected static List<double[]> readRings(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        List<double[]> rings = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+            rings.add(readArray(in));
+        return rings;
+    }
+
+    protected static void writeArray(DataOutputStream out, double[] values) throws IOException {
+        out.writeInt(values.length);
+        for (double value : values)
+            out.writeDouble(value);
+    }
+
+    protected static double[] readArray(DataInputStream in) throws IOException {
+        double[] values = new double[in.readInt()];
+        for (int i = 0; i < values.length; i++)
+            values[i] = in.readDouble();
+        return values;
+    }
+}
@@ -32,6 +32,7 @@ import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.graphics.Color;
+import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.PointF;
 import android.graphics.RectF;
@@ -74,6 +75,7 @@ import com.nextgis.maplibui.api.Overlay;
 import com.nextgis.maplibui.api.OverlayItem;
 import com.nextgis.maplibui.api.VertexStyle;
 import com.nextgis.maplibui.fragment.BottomToolbar;
+import com.nextgis.maplibui.mapui.HitTestService;
 import com.nextgis.maplibui.mapui.MapViewOverlays;
 import com.nextgis.maplibui.service.WalkEditService;
 import com.nextgis.maplibui.util.ConstantsUI;
@@ -81,6 +83,7 @@ import com.nextgis.maplibui.util.ControlHelper;
 import com.nextgis.maplibui.util.SettingsConstantsUI;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import static com.nextgis.maplibui.api.DrawItem.LINE_WIDTH;
@@ -105,6 +108,9 @@ public class EditLayerOverlay extends Overlay implements MapViewEventListener, G
 
     protected static final int mType = 3;
 
+    // map moves the draw items follow by a matrix before they are projected again
+    protected static final int MAX_DRAWN_MOVES = 32;
+
     /**
      * Store keys
      */
@@ -136,6 +142,15 @@ public class EditLayerOverlay extends Overlay implements MapViewEventListener, G
     protected List<EditEventListener> mListeners;
     protected WalkEditReceiver mReceiver;
     protected GpsEventSource mGpsEventSource;
+    protected HitTestService mHitTestService;
+
+    // geometry and map position the draw items were projected for
+    protected GeoGeometry mDrawnGeometry;
+    protected double mDrawnOriginX, mDrawnOriginY;
+    protected float mDrawnZoom;
+    protected int mDrawnMoves;
+    protected final Matrix mTransform = new Matrix();
+    protected final Matrix mMoveTransform = new Matrix();
 
     public EditLayerOverlay(
             Context context,
@@ -838,7 +853,7 @@ public class EditLayerOverlay extends Overlay implements MapViewEventListener, G
         if (mMode == MODE_CHANGE || mFeature == null)
             return;
 
-        fillDrawItems(mFeature.getGeometry());
+        updateDrawItems(mapDrawable);
 
         for (DrawItem drawItem : mDrawItems) {
             boolean isSelected = mSelectedItem == drawItem;
@@ -856,20 +871,16 @@ public class EditLayerOverlay extends Overlay implements MapViewEventListener, G
         if (mOverlayPoint.isVisible())
             drawOnPanning(canvas, currentMouseOffset, mOverlayPoint);
 
+        Matrix transform = null;
+        if (mMode != MODE_CHANGE && mMode != MODE_EDIT_BY_TOUCH) {
+            mTransform.setTranslate(-currentMouseOffset.x, -currentMouseOffset.y);
+            transform = mTransform;
+        }
+
         List<DrawItem> drawItems = mDrawItems;
         for (DrawItem drawItem : drawItems) {
             boolean isSelected = mSelectedItem == drawItem;
-
-            if (mMode != MODE_CHANGE && mMode != MODE_EDIT_BY_TOUCH) {
-                drawItem = drawItem.pan(currentMouseOffset);
-
-                if (isSelected) {
-                    drawItem.setSelectedRing(mSelectedItem.getSelectedRingId());
-                    drawItem.setSelectedPoint(mSelectedItem.getSelectedPointId());
-                }
-            }
-
-            drawItem(drawItem, canvas, isSelected);
+            drawItem(drawItem, canvas, transform, isSelected);
             if (mLayer != null) {
                 int type = mLayer.getGeometryType();
                 if (type == GeoConstants.GTPoint || type == GeoConstants.GTMultiPoint) {
@@ -892,20 +903,61 @@ public class EditLayerOverlay extends Overlay implements MapViewEventListener, G
         if (mOverlayPoint.isVisible())
             drawOnZooming(canvas, currentFocusLocation, scale, mOverlayPoint, false);
 
+        mTransform.setScale(scale, scale);
+        mTransform.postTranslate(-(1 - scale) * currentFocusLocation.x, -(1 - scale) * currentFocusLocation.y);
+
         List<DrawItem> drawItems = mDrawItems;
         for (DrawItem drawItem : drawItems) {
             boolean isSelected = mSelectedItem == drawItem;
-            drawItem = drawItem.zoom(currentFocusLocation, scale);
+            drawItem(drawItem, canvas, mTransform, isSelected);
+        }
 
-            if (isSelected) {
-                drawItem.setSelectedRing(mSelectedItem.getSelectedRingId());
-                drawItem.setSelectedPoint(mSelectedItem.getSelectedPointId());
-            }
+        drawCross(canvas);
+    }
 
-            drawItem(drawItem, canvas, isSelected);
+
+    /**
+     * Projects the feature geometry to draw items only if the geometry changed since the last
+     * projection. If only the map position changed, the items are moved by a matrix from the
+     * position they were projected at, and projected again after {@link #MAX_DRAWN_MOVES}
+     * moves so float errors do not add up.
+     */
+    protected void updateDrawItems(MapDrawable mapDrawable) {
+        GeoGeometry geometry = mFeature.getGeometry();
+        GeoPoint origin = mapDrawable.mapToScreen(new GeoPoint(0, 0));
+        float zoom = mapDrawable.getZoomLevel();
+        boolean isMoved = origin.getX() != mDrawnOriginX || origin.getY() != mDrawnOriginY || zoom != mDrawnZoom;
+        if (geometry != null && geometry == mDrawnGeometry && !mDrawItems.isEmpty() &&
+                (!isMoved || mDrawnMoves < MAX_DRAWN_MOVES)) {
+            if (!isMoved)
+                return;
+
+            // screen point = origin + map point * 2^zoom, so the move is linear in screen space
+            float scale = (float) Math.pow(2, zoom - mDrawnZoom);
+            mMoveTransform.setTranslate((float) -mDrawnOriginX, (float) -mDrawnOriginY);
+            mMoveTransform.postScale(scale, scale);
+            mMoveTransform.postTranslate((float) origin.getX(), (float) origin.getY());
+            for (DrawItem drawItem : mDrawItems)
+                drawItem.transform(mMoveTransform);
+            mDrawnMoves++;
+        } else {
+            fillDrawItems(geometry);
+            mDrawnMoves = 0;
         }
 
-        drawCross(canvas);
+        mDrawnGeometry = geometry;
+        mDrawnOriginX = origin.getX();
+        mDrawnOriginY = origin.getY();
+        mDrawnZoom = zoom;
+    }
+
+
+    /**
+     * Forces the draw items to be projected again on the next draw. Call if the feature geometry
+     * was changed in place.
+     */
+    public void invalidateDrawItems() {
+        mDrawnGeometry = null;
     }
 
 
@@ -1048,18 +1100,23 @@ public class EditLayerOverlay extends Overlay implements MapViewEventListener, G
 
 
     protected void drawItem(DrawItem drawItem, Canvas canvas, boolean isSelected) {
+        drawItem(drawItem, canvas, null, isSelected);
+    }
+
+
+    protected void drawItem(DrawItem drawItem, Canvas canvas, Matrix transform, boolean isSelected) {
         isSelected = isSelected && mMode == MODE_EDIT;
         switch (mFeature.getGeometry().getType()) {
             case GeoConstants.GTPoint:
             case GeoConstants.GTMultiPoint:
-                drawItem.drawPoints(canvas, isSelected);
+                drawItem.drawPoints(canvas, transform, isSelected);
                 break;
             case GeoConstants.GTLineString:
             case GeoConstants.GTMultiLineString:
             case GeoConstants.GTPolygon:
             case GeoConstants.GTMultiPolygon:
                 boolean closed = mFeature.getGeometry().getType() == GeoConstants.GTPolygon || mFeature.getGeometry().getType() == GeoConstants.GTMultiPolygon;
-                drawItem.drawLines(canvas, isSelected, mMode == MODE_EDIT || mMode == MODE_CHANGE, mMode == MODE_EDIT, closed);
+                drawItem.drawLines(canvas, transform, isSelected, mMode == MODE_EDIT || mMode == MODE_CHANGE, mMode == MODE_EDIT, closed);
                 break;
             default:
                 break;
@@ -1118,10 +1175,19 @@ public class EditLayerOverlay extends Overlay implements MapViewEventListener, G
     }
 
 
+    /**
+     * Select point in current geometry or another geometry of the layer. Another geometry is
+     * searched off the UI thread and selected when found, a newer tap cancels the search.
+     *
+     * @return true if an edge of the current geometry is tapped
+     */
     public boolean selectGeometryInScreenCoordinates(float x, float y) {
         if (null == mLayer)
             return false;
 
+        if (null != mHitTestService)
+            mHitTestService.cancel();
+
         double dMinX = x - mTolerancePX;
         double dMaxX = x + mTolerancePX;
         double dMinY = y - mTolerancePX;
@@ -1150,33 +1216,37 @@ public class EditLayerOverlay extends Overlay implements MapViewEventListener, G
         }
 
         //2. select another geometry
-        GeoEnvelope mapEnv = mMapViewOverlays.screenToMap(screenEnv);
-        if (null == mapEnv)
-            return false;
-
-        List<Long> items = mLayer.query(mapEnv);
-        if (items.isEmpty())
-            return false;
-
-        long previousFeatureId = Constants.NOT_FOUND;
-        if (null != mFeature)
-            previousFeatureId = mFeature.getId();
+        if (null == mHitTestService)
+            mHitTestService = new HitTestService(mMapViewOverlays);
+
+        final VectorLayer layer = mLayer;
+        mHitTestService.hitTest(x, y, mTolerancePX, Collections.singletonList(layer),
+                new HitTestService.OnHitTestListener() {
+                    @Override
+                    public void onHitTestFinished(List<HitTestService.Candidate> candidates) {
+                        if (layer != mLayer || mHasEdits)
+                            return;
+
+                        long previousFeatureId = getSelectedFeatureId();
+                        for (HitTestService.Candidate candidate : candidates) {
+                            if (candidate.getFeatureId() != previousFeatureId) {
+                                selectFeature(previousFeatureId, candidate.getFeatureId(), candidate.getGeometry());
+                                break;
+                            }
+                        }
+                    }
+                });
+        return false;
+    }
 
-        for (int i = 0; i < items.size(); i++) {    // FIXME hack for bad RTree cache
-            long featureId = items.get(i);
-            GeoGeometry geometry = mLayer.getGeometryForId(featureId);
-            if (geometry != null && previousFeatureId != featureId) {
-                mFeature = new Feature(featureId, mLayer.getFields());
-                mFeature.setGeometry(mLayer.getGeometryForId(featureId));
-            }
-        }
 
-        if (mFeature == null || previousFeatureId == mFeature.getId())
-            return false;
+    protected void selectFeature(long previousFeatureId, long featureId, GeoGeometry geometry) {
+        mFeature = new Feature(featureId, mLayer.getFields());
+        mFeature.setGeometry(geometry);
 
         if (mMode == MODE_HIGHLIGHT) {
             mMapViewOverlays.invalidate();
-            return false;
+            return;
         }
 
         // this part should execute only in edit mode
@@ -1184,8 +1254,6 @@ public class EditLayerOverlay extends Overlay implements MapViewEventListener, G
             mLayer.hideFeature(mFeature.getId());
         else
             mLayer.swapFeaturesVisibility(previousFeatureId, mFeature.getId());
-
-        return false;
     }
 
 
@@ -1397,5 +1465,7 @@ public class EditLayerOverlay extends Overlay implements MapViewEventListener, G
                 mFeature.setGeometry(multiPolygon);
                 break;
         }
+
+        invalidateDrawItems();
     }
 }
@@ -0,0 +1,436 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2019 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplibui.overlay;
+
+import com.nextgis.maplib.util.GeoConstants;
+
+import java.util.Arrays;
+
+
+/**
+ * Reduces polylines to what can be seen on the screen, so the count of drawn segments depends
+ * on the screen resolution instead of the vertex count.
+ * <p>
+ * A vertex closer than the tolerance to the previous kept vertex is dropped (pixel grid
+ * decimation), and a vertex is dropped if it and both its neighbours lie on the same outer side
+ * of the viewport, where the chord between the neighbours is not visible either and a polygon
+ * fill inside the viewport does not change. Segments are clipped to the viewport by the
+ * Cohen-Sutherland algorithm.
+ * <p>
+ * An instance keeps a growing polyline in map coordinates and its decimated copies per zoom
+ * level, updated incrementally as points are appended.
+ */
+public class PolylineSimplifier
+{
+    public static final int OUT_MIN_X = 1;
+    public static final int OUT_MAX_X = 1 << 1;
+    public static final int OUT_MIN_Y = 1 << 2;
+    public static final int OUT_MAX_Y = 1 << 3;
+
+    // distance in pixels between kept vertices
+    public static final float DEFAULT_TOLERANCE = 1;
+
+    protected static final int BLOCK_SIZE = 256;
+    protected static final int MAX_LEVEL  = 25;
+    // map units per pixel at zoom 0 with 256 pixel tiles
+    protected static final double ZERO_PIXEL_SIZE = GeoConstants.MERCATOR_MAX * 2 / 256;
+
+    protected final float    mTolerance;
+    protected       double[] mPoints = new double[BLOCK_SIZE * 2];
+    protected       int      mPointCount;
+    protected final Level[]  mLevels = new Level[MAX_LEVEL + 1];
+
+
+    /**
+     * @param tolerance
+     *         distance in pixels between kept vertices
+     */
+    public PolylineSimplifier(float tolerance)
+    {
+        mTolerance = tolerance;
+    }
+
+
+    public void add(
+            double x,
+            double y)
+    {
+        if (mPointCount * 2 + 2 > mPoints.length) {
+            mPoints = Arrays.copyOf(mPoints, mPoints.length * 2);
+        }
+        mPoints[mPointCount * 2] = x;
+        mPoints[mPointCount * 2 + 1] = y;
+        mPointCount++;
+    }
+
+
+    public void clear()
+    {
+        mPointCount = 0;
+        Arrays.fill(mLevels, null);
+    }
+
+
+    public int getPointCount()
+    {
+        return mPointCount;
+    }
+
+
+    public double getX(int index)
+    {
+        return mPoints[index * 2];
+    }
+
+
+    public double getY(int index)
+    {
+        return mPoints[index * 2 + 1];
+    }
+
+
+    /**
+     * @param unitsPerPixel
+     *         map units in a screen pixel
+     *
+     * @return the polyline decimated for the zoom level at least as detailed as the resolution,
+     * built on the first request and brought up to date with points added since
+     */
+    public Level getLevel(double unitsPerPixel)
+    {
+        int zoom = (int) Math.ceil(Math.log(ZERO_PIXEL_SIZE / unitsPerPixel) / Math.log(2));
+        zoom = zoom < 0 ? 0 : zoom > MAX_LEVEL ? MAX_LEVEL : zoom;
+
+        Level level = mLevels[zoom];
+        if (null == level) {
+            level = new Level(mTolerance * ZERO_PIXEL_SIZE / (1 << zoom));
+            mLevels[zoom] = level;
+        }
+        for (int i = level.mSourceCount; i < mPointCount; i++) {
+            level.add(mPoints[i * 2], mPoints[i * 2 + 1]);
+        }
+        level.mSourceCount = mPointCount;
+        return level;
+    }
+
+
+    /**
+     * Decimated polyline of a zoom level split to blocks with bounding boxes. Its last point is
+     * always the last point of the source, while it is closer than the tolerance to the previous
+     * point it is floating and is replaced by the next point.
+     */
+    public static class Level
+    {
+        protected final double mTolerance;
+
+        protected double[] mPoints      = new double[BLOCK_SIZE * 2];
+        protected int      mCount;
+        protected boolean  mIsLastFloating;
+        // minX, minY, maxX, maxY of every block including the point before it
+        protected double[] mBlockBounds = new double[16];
+        protected int      mSourceCount;
+
+
+        protected Level(double tolerance)
+        {
+            mTolerance = tolerance;
+        }
+
+
+        protected void add(
+                double x,
+                double y)
+        {
+            if (mIsLastFloating) {
+                mCount--;
+            }
+            put(x, y);
+
+            if (mCount == 1) {
+                mIsLastFloating = false;
+            } else {
+                double dx = x - mPoints[mCount * 2 - 4];
+                double dy = y - mPoints[mCount * 2 - 3];
+                mIsLastFloating = dx * dx + dy * dy < mTolerance * mTolerance;
+            }
+        }
+
+
+        protected void put(
+                double x,
+                double y)
+        {
+            int index = mCount;
+            if (index * 2 + 2 > mPoints.length) {
+                mPoints = Arrays.copyOf(mPoints, mPoints.length * 2);
+            }
+            mPoints[index * 2] = x;
+            mPoints[index * 2 + 1] = y;
+
+            int b = index / BLOCK_SIZE * 4;
+            if (index % BLOCK_SIZE == 0) {
+                if (b + 4 > mBlockBounds.length) {
+                    mBlockBounds = Arrays.copyOf(mBlockBounds, mBlockBounds.length * 2);
+                }
+                mBlockBounds[b] = mBlockBounds[b + 2] = x;
+                mBlockBounds[b + 1] = mBlockBounds[b + 3] = y;
+                if (index > 0) {
+                    // the segment joining the previous block belongs to this one
+                    expandBlock(b, mPoints[index * 2 - 2], mPoints[index * 2 - 1]);
+                }
+            } else {
+                expandBlock(b, x, y);
+            }
+
+            mCount++;
+        }
+
+
+        protected void expandBlock(
+                int b,
+                double x,
+                double y)
+        {
+            mBlockBounds[b] = Math.min(mBlockBounds[b], x);
+            mBlockBounds[b + 1] = Math.min(mBlockBounds[b + 1], y);
+            mBlockBounds[b + 2] = Math.max(mBlockBounds[b + 2], x);
+            mBlockBounds[b + 3] = Math.max(mBlockBounds[b + 3], y);
+        }
+
+
+        public int getCount()
+        {
+            return mCount;
+        }
+
+
+        /**
+         * @return count of source points the level is built from
+         */
+        public int getSourceCount()
+        {
+            return mSourceCount;
+        }
+
+
+        /**
+         * @return count of points which are not replaced by the next added point
+         */
+        public int getStableCount()
+        {
+            return mIsLastFloating ? mCount - 1 : mCount;
+        }
+
+
+        public double getX(int index)
+        {
+            return mPoints[index * 2];
+        }
+
+
+        public double getY(int index)
+        {
+            return mPoints[index * 2 + 1];
+        }
+
+
+        public int getBlockCount()
+        {
+            return (mCount + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        }
+
+
+        /**
+         * @return index of the first point of the block
+         */
+        public static int getBlockStart(int block)
+        {
+            return block * BLOCK_SIZE;
+        }
+
+
+        public boolean intersectsBlock(
+                int block,
+                double minX,
+                double minY,
+                double maxX,
+                double maxY)
+        {
+            int b = block * 4;
+            return mBlockBounds[b] <= maxX && mBlockBounds[b + 2] >= minX &&
+                   mBlockBounds[b + 1] <= maxY && mBlockBounds[b + 3] >= minY;
+        }
+    }
+
+
+    public static int getOutCode(
+            double x,
+            double y,
+            double minX,
+            double minY,
+            double maxX,
+            double maxY)
+    {
+        int code = 0;
+        if (x < minX) {
+            code |= OUT_MIN_X;
+        } else if (x > maxX) {
+            code |= OUT_MAX_X;
+        }
+        if (y < minY) {
+            code |= OUT_MIN_Y;
+        } else if (y > maxY) {
+            code |= OUT_MAX_Y;
+        }
+        return code;
+    }
+
+
+    /**
+     * Clips the segment to the rect in place.
+     *
+     * @param segment
+     *         x0, y0, x1, y1
+     *
+     * @return false if the segment is outside of the rect
+     */
+    public static boolean clipSegment(
+            double[] segment,
+            double minX,
+            double minY,
+            double maxX,
+            double maxY)
+    {
+        double x0 = segment[0], y0 = segment[1], x1 = segment[2], y1 = segment[3];
+        int code0 = getOutCode(x0, y0, minX, minY, maxX, maxY);
+        int code1 = getOutCode(x1, y1, minX, minY, maxX, maxY);
+
+        while (true) {
+            if ((code0 | code1) == 0) {
+                segment[0] = x0;
+                segment[1] = y0;
+                segment[2] = x1;
+                segment[3] = y1;
+                return true;
+            }
+            if ((code0 & code1) != 0) {
+                return false;
+            }
+
+            // move the outer end to the border it is beyond
+            int code = code0 != 0 ? code0 : code1;
+            double x, y;
+            if ((code & OUT_MAX_Y) != 0) {
+                x = x0 + (x1 - x0) * (maxY - y0) / (y1 - y0);
+                y = maxY;
+            } else if ((code & OUT_MIN_Y) != 0) {
+                x = x0 + (x1 - x0) * (minY - y0) / (y1 - y0);
+                y = minY;
+            } else if ((code & OUT_MAX_X) != 0) {
+                y = y0 + (y1 - y0) * (maxX - x0) / (x1 - x0);
+                x = maxX;
+            } else {
+                y = y0 + (y1 - y0) * (minX - x0) / (x1 - x0);
+                x = minX;
+            }
+
+            if (code == code0) {
+                x0 = x;
+                y0 = y;
+                code0 = getOutCode(x0, y0, minX, minY, maxX, maxY);
+            } else {
+                x1 = x;
+                y1 = y;
+                code1 = getOutCode(x1, y1, minX, minY, maxX, maxY);
+            }
+        }
+    }
+
+
+    /**
+     * Decimates screen vertices of a line or a ring for the viewport. The first and the last
+     * vertices are kept.
+     *
+     * @param points
+     *         x, y pairs
+     * @param out
+     *         array at least as long as the points
+     *
+     * @return count of values written to the out array
+     */
+    public static int simplify(
+            float[] points,
+            float tolerance,
+            float minX,
+            float minY,
+            float maxX,
+            float maxY,
+            float[] out)
+    {
+        return simplify(points, 0, points.length & ~1, tolerance, minX, minY, maxX, maxY, out);
+    }
+
+
+    /**
+     * Decimates the part of the array from the offset, see
+     * {@link #simplify(float[], float, float, float, float, float, float[])}.
+     *
+     * @param length
+     *         count of values, even
+     */
+    public static int simplify(
+            float[] points,
+            int offset,
+            int length,
+            float tolerance,
+            float minX,
+            float minY,
+            float maxX,
+            float maxY,
+            float[] out)
+    {
+        int count = 0;
+        int last = offset + length - 2;
+        float tolerance2 = tolerance * tolerance;
+        for (int i = offset; i <= last; i += 2) {
+            float x = points[i], y = points[i + 1];
+            if (count > 0 && i < last) {
+                float dx = x - out[count - 2], dy = y - out[count - 1];
+                if (dx * dx + dy * dy < tolerance2) {
+                    continue;
+                }
+            }
+
+            if (count >= 4 && (getOutCode(out[count - 4], out[count - 3], minX, minY, maxX, maxY) &
+                               getOutCode(out[count - 2], out[count - 1], minX, minY, maxX, maxY) &
+                               getOutCode(x, y, minX, minY, maxX, maxY)) != 0) {
+                count -= 2; // the previous vertex is replaced by the chord
+            }
+
+            out[count++] = x;
+            out[count++] = y;
+        }
+        return count;
+    }
+}
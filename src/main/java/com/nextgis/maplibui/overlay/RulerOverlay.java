@@ -24,8 +24,8 @@ package com.nextgis.maplibui.overlay;
 import android.content.Context;
 import android.graphics.Canvas;
 import android.graphics.DashPathEffect;
+import android.graphics.Matrix;
 import android.graphics.Paint;
-import android.graphics.Path;
 import android.graphics.PointF;
 import android.os.Bundle;
 import android.view.MotionEvent;
@@ -57,6 +57,9 @@ public class RulerOverlay extends Overlay implements MapViewEventListener {
     protected GeoLineString mRulerString;
     protected GeoPolygon mRulerPolygon;
     protected OnRulerChanged mListener;
+    // pan and zoom frames move the item by the transform instead of copying it
+    protected final Matrix mTransform = new Matrix();
+    protected final float[] mClosingLine = new float[4];
 
     public interface OnRulerChanged {
         void onLengthChanged(double length);
@@ -166,39 +169,46 @@ public class RulerOverlay extends Overlay implements MapViewEventListener {
         if (isMeasuring()) {
             fillDrawItem();
             mRulerItem.drawLines(canvas, true, true, false, false);
-            drawClosingLine(canvas, mRulerItem);
+            drawClosingLine(canvas, mRulerItem, null);
         }
     }
 
     @Override
     public void drawOnPanning(Canvas canvas, PointF currentMouseOffset) {
         if (isMeasuring()) {
-            DrawItem draw = mRulerItem;
-
-            if (!mIsMoving)
-                draw = mRulerItem.pan(currentMouseOffset);
+            Matrix transform = null;
+            if (!mIsMoving) {
+                mTransform.setTranslate(-currentMouseOffset.x, -currentMouseOffset.y);
+                transform = mTransform;
+            }
 
-            draw.drawLines(canvas, true, true, false, false);
-            drawClosingLine(canvas, draw);
+            mRulerItem.drawLines(canvas, transform, true, true, false, false);
+            drawClosingLine(canvas, mRulerItem, transform);
         }
     }
 
     @Override
     public void drawOnZooming(Canvas canvas, PointF currentFocusLocation, float scale) {
         if (isMeasuring()) {
-            DrawItem drawItem = mRulerItem.zoom(currentFocusLocation, scale);
-            drawItem.drawLines(canvas, true, true, false, false);
-            drawClosingLine(canvas, drawItem);
+            mTransform.setScale(scale, scale);
+            mTransform.postTranslate(-(1 - scale) * currentFocusLocation.x, -(1 - scale) * currentFocusLocation.y);
+            mRulerItem.drawLines(canvas, mTransform, true, true, false, false);
+            drawClosingLine(canvas, mRulerItem, mTransform);
         }
     }
 
-    protected void drawClosingLine(Canvas canvas, DrawItem drawItem) {
-        float[] points = drawItem.getSelectedRing();
-        if (points != null && points.length >= 6) {
-            Path path = new Path();
-            path.moveTo(points[0], points[1]);
-            path.lineTo(points[points.length - 2], points[points.length - 1]);
-            canvas.drawPath(path, mPaint);
+    protected void drawClosingLine(Canvas canvas, DrawItem drawItem, Matrix transform) {
+        int ring = drawItem.getSelectedRingId();
+        int length = drawItem.getRingLength(ring);
+        if (length >= 6) {
+            mClosingLine[0] = drawItem.getRingValue(ring, 0);
+            mClosingLine[1] = drawItem.getRingValue(ring, 1);
+            mClosingLine[2] = drawItem.getRingValue(ring, length - 2);
+            mClosingLine[3] = drawItem.getRingValue(ring, length - 1);
+            if (transform != null)
+                transform.mapPoints(mClosingLine);
+
+            canvas.drawLine(mClosingLine[0], mClosingLine[1], mClosingLine[2], mClosingLine[3], mPaint);
         }
     }
 
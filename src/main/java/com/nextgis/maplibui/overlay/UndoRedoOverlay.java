@@ -3,7 +3,7 @@
  * Purpose:  Mobile GIS for Android.
  * Author:   Stanislav Petriakov, becomeglory@gmail.com
  * *****************************************************************************
- * Copyright (c) 2016-2017 NextGIS, info@nextgis.com
+ * Copyright (c) 2016-2019 NextGIS, info@nextgis.com
  *
  * This program is free software: you can redistribute it and/or modify
  * it under the terms of the GNU Lesser Public License as published by
@@ -29,33 +29,37 @@ import android.support.v7.widget.Toolbar;
 import android.view.MenuItem;
 
 import com.nextgis.maplib.datasource.Feature;
-import com.nextgis.maplib.datasource.GeoGeometry;
-import com.nextgis.maplib.datasource.GeoGeometryFactory;
 import com.nextgis.maplib.map.MapDrawable;
-import com.nextgis.maplib.map.VectorLayer;
 import com.nextgis.maplibui.R;
 import com.nextgis.maplibui.api.Overlay;
 import com.nextgis.maplibui.mapui.MapViewOverlays;
 import com.nextgis.maplibui.util.ControlHelper;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.LinkedList;
 
 public class UndoRedoOverlay extends Overlay {
-    private static final String BUNDLE_KEY_HISTORY = "history_";
-    private static final String BUNDLE_KEY_HISTORY_SIZE = "history_size";
+    private static final String BUNDLE_KEY_HISTORY_FILE = "history_file";
     private static final String BUNDLE_KEY_HISTORY_STATE = "history_state";
-
-    private final static int MAX_UNDO = 10;
+    // one file per application, a new save overwrites it instead of leaving temporary files
+    private static final String HISTORY_FILE = "edit_history";
 
     private Toolbar mTopToolbar;
     private int mHistoryState;
-    private LinkedList<GeoGeometry> mHistory;
+    private EditHistory mHistory;
+    // the history is saved to a file instead of the bundle, it may exceed the transaction limit
+    private File mHistoryFile;
     private Feature mFeature;
 
     public UndoRedoOverlay(Context context, MapViewOverlays mapViewOverlays) {
         super(context, mapViewOverlays);
-        mHistory = new LinkedList<>();
+        mHistory = new EditHistory();
         mFeature = new Feature();
     }
 
@@ -79,13 +83,23 @@ public class UndoRedoOverlay extends Overlay {
         Bundle bundle = super.onSaveState();
 
         bundle.putInt(BUNDLE_KEY_HISTORY_STATE, mHistoryState);
-        bundle.putInt(BUNDLE_KEY_HISTORY_SIZE, mHistory.size());
-        for (int i = 0; i < mHistory.size(); i++)
+        if (mHistory.size() == 0)
+            return bundle;
+
+        try {
+            if (mHistoryFile == null)
+                mHistoryFile = new File(mContext.getCacheDir(), HISTORY_FILE);
+
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mHistoryFile)));
             try {
-                bundle.putByteArray(BUNDLE_KEY_HISTORY + i, mHistory.get(i).toBlob());
-            } catch (IOException e) {
-                e.printStackTrace();
+                mHistory.write(out);
+            } finally {
+                out.close();
             }
+            bundle.putString(BUNDLE_KEY_HISTORY_FILE, mHistoryFile.getAbsolutePath());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
 
         return bundle;
     }
@@ -93,12 +107,22 @@ public class UndoRedoOverlay extends Overlay {
     @Override
     public void onRestoreState(Bundle bundle) {
         mHistoryState = bundle.getInt(BUNDLE_KEY_HISTORY_STATE, mHistoryState);
-        for (int i = 0; i < bundle.getInt(BUNDLE_KEY_HISTORY_SIZE, mHistory.size()); i++)
+        String path = bundle.getString(BUNDLE_KEY_HISTORY_FILE);
+        if (path != null) {
+            mHistoryFile = new File(path);
             try {
-                mHistory.add(GeoGeometryFactory.fromBlob(bundle.getByteArray(BUNDLE_KEY_HISTORY + i)));
-            } catch (IOException | ClassNotFoundException e) {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(mHistoryFile)));
+                try {
+                    mHistory.read(in);
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
                 e.printStackTrace();
+                mHistory.clear();
+                mHistoryState = -1;
             }
+        }
 
         super.onRestoreState(bundle);
     }
@@ -122,15 +146,10 @@ public class UndoRedoOverlay extends Overlay {
         if (null == feature || null == feature.getGeometry())
             return;
 
-        for (int i = mHistory.size() - 1; i > mHistoryState; i--)
-            mHistory.remove(i);
-
-        if (mHistory.size() >= MAX_UNDO + 1)
-            mHistory.removeFirst();
-
-        mHistoryState++;
-        mHistory.add(feature.getGeometry().copy());
-        mFeature.setGeometry(mHistory.getLast());
+        mHistory.truncate(Math.max(mHistoryState + 1, 0));
+        mHistory.add(feature.getGeometry());
+        mHistoryState = mHistory.size() - 1;
+        mFeature.setGeometry(feature.getGeometry().copy());
         defineUndoRedo();
     }
 
@@ -139,7 +158,7 @@ public class UndoRedoOverlay extends Overlay {
         if (id < 0 || id >= mHistory.size())
             return false;
 
-        mFeature.setGeometry(mHistory.get(id).copy());
+        mFeature.setGeometry(mHistory.get(id));
         defineUndoRedo();
 
         return true;
@@ -149,6 +168,8 @@ public class UndoRedoOverlay extends Overlay {
     public void clearHistory() {
         mHistory.clear();
         mHistoryState = -1;
+        if (mHistoryFile != null && mHistoryFile.delete())
+            mHistoryFile = null;
     }
 
 
@@ -0,0 +1,90 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2019 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplibui.service;
+
+import com.nextgis.maplib.datasource.GeoEnvelope;
+import com.nextgis.maplib.datasource.TileItem;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+
+/**
+ * Walks only the tiles of a job failure ledger, for a follow-up job which retries them without
+ * enumerating the whole envelope again.
+ */
+public class FailedTileIterator
+        extends TileIterator
+{
+    protected final Iterator<TileDownloadJournal.Failure> mFailures;
+    protected final int                                    mCount;
+
+
+    public FailedTileIterator(
+            GeoEnvelope bounds,
+            Collection<TileDownloadJournal.Failure> failures,
+            int tmsType)
+    {
+        super(bounds, Collections.<Integer>emptyList(), tmsType);
+        mFailures = failures.iterator();
+        mCount = failures.size();
+        mZoom = -1;
+    }
+
+
+    @Override
+    public long getTileCount()
+    {
+        return mCount;
+    }
+
+
+    @Override
+    public boolean hasNext()
+    {
+        return mFailures.hasNext();
+    }
+
+
+    @Override
+    public TileItem next()
+    {
+        if (!mFailures.hasNext()) {
+            throw new NoSuchElementException();
+        }
+
+        TileDownloadJournal.Failure failure = mFailures.next();
+        if (failure.getZoom() != mZoom) {
+            setZoom(failure.getZoom());
+        }
+
+        int width = mEndX - mBegX;
+        long index = failure.getIndex();
+        mCurrentZoom = mZoom;
+        mCurrentIndex = index;
+        return createTile(mBegX + (int) (index % width), mBegY + (int) (index / width));
+    }
+}
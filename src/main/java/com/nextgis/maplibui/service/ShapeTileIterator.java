@@ -0,0 +1,105 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2019 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplibui.service;
+
+import java.util.List;
+
+
+/**
+ * Walks only tiles of a shape in the order of {@link TileIterator}. Tile indexes are those of
+ * the shape envelope range, so the job journal and the failure ledger work as for an envelope.
+ * The tile mask is kept for the current zoom only.
+ */
+public class ShapeTileIterator
+        extends TileIterator
+{
+    protected final TileShape mShape;
+    protected       long[]    mMask;
+    protected       long      mTileCount = -1;
+
+
+    public ShapeTileIterator(
+            TileShape shape,
+            List<Integer> zoomList,
+            int tmsType)
+    {
+        super(shape.getEnvelope(), zoomList, tmsType, false);
+        mShape = shape;
+        start();
+    }
+
+
+    @Override
+    public long getTileCount()
+    {
+        if (mTileCount < 0) {
+            long count = 0;
+            for (Integer zoom : mZoomList) {
+                count += mShape.getTileCount(zoom);
+            }
+            mTileCount = count;
+        }
+        return mTileCount;
+    }
+
+
+    @Override
+    protected boolean setZoom(int zoom)
+    {
+        if (!super.setZoom(zoom)) {
+            return false;
+        }
+        mMask = mShape.getMask(zoom, mBegX, mBegY, mEndX, mEndY);
+        return true;
+    }
+
+
+    @Override
+    protected boolean acceptBlock(
+            int x,
+            int y)
+    {
+        // an empty block is skipped without walking its curve
+        int endX = Math.min(x + BLOCK_SIZE, mEndX);
+        int endY = Math.min(y + BLOCK_SIZE, mEndY);
+        for (int row = y; row < endY; row++) {
+            for (int column = x; column < endX; column++) {
+                if (accept(column, row)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+
+    @Override
+    protected boolean accept(
+            int x,
+            int y)
+    {
+        long index = (long) (y - mBegY) * (mEndX - mBegX) + (x - mBegX);
+        return (mMask[(int) (index >>> 6)] & (1L << index)) != 0;
+    }
+}
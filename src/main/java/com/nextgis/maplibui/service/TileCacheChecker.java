@@ -0,0 +1,226 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2019 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplibui.service;
+
+import com.nextgis.maplib.datasource.TileItem;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+
+/**
+ * Checks cached tiles of a layer without a file system call per tile. The cache stores tiles as
+ * z/x/y.tile, so a column directory is listed once and the listing answers every tile of the
+ * column, while a missing directory answers them all at once. Column listings are kept for the
+ * columns of the current tile block only. The checker also keeps ETag validators of the column
+ * in a .etags file of its directory.
+ */
+public class TileCacheChecker
+{
+    public static final int STATE_MISSING = 0;
+    public static final int STATE_STALE   = 1;
+    public static final int STATE_FRESH   = 2;
+
+    public static final String TILE_EXT        = ".tile";
+    // two weeks, as the layer keeps a cached tile before it is loaded again
+    public static final long   DEFAULT_MAX_AGE = 14L * 24 * 60 * 60 * 1000;
+
+    protected static final String ETAGS_FILE  = ".etags";
+    protected static final int    MAX_COLUMNS = 64;
+
+    protected final File mCachePath;
+    protected final long mMaxAge;
+
+    protected final Map<String, Column> mColumns;
+
+
+    protected static class Column
+    {
+        File        mDir;
+        Set<String> mNames;
+        Properties  mETags;
+        boolean     mIsETagsChanged;
+    }
+
+
+    public TileCacheChecker(
+            File cachePath,
+            long maxAge)
+    {
+        mCachePath = cachePath;
+        mMaxAge = maxAge;
+        mColumns = new LinkedHashMap<String, Column>(MAX_COLUMNS, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Entry<String, Column> eldest)
+            {
+                if (size() > MAX_COLUMNS) {
+                    saveETags(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+
+    public File getTileFile(TileItem tile)
+    {
+        return getTileFile(mCachePath, tile);
+    }
+
+
+    public static File getTileFile(
+            File cachePath,
+            TileItem tile)
+    {
+        return new File(
+                cachePath,
+                tile.getZoomLevel() + File.separator + tile.getX() + File.separator + tile.getY() +
+                TILE_EXT);
+    }
+
+
+    protected synchronized Column getColumn(TileItem tile)
+    {
+        String key = tile.getZoomLevel() + File.separator + tile.getX();
+        Column column = mColumns.get(key);
+        if (null == column) {
+            column = new Column();
+            column.mDir = new File(mCachePath, key);
+            String[] names = column.mDir.list();
+            column.mNames = null == names
+                            ? Collections.<String>emptySet()
+                            : new HashSet<>(Arrays.asList(names));
+            mColumns.put(key, column);
+        }
+        return column;
+    }
+
+
+    /**
+     * @return {@link #STATE_MISSING}, {@link #STATE_STALE} or {@link #STATE_FRESH}
+     */
+    public int getState(TileItem tile)
+    {
+        String name = tile.getY() + TILE_EXT;
+        Column column = getColumn(tile);
+        if (!column.mNames.contains(name)) {
+            return STATE_MISSING;
+        }
+        if (mMaxAge <= 0) {
+            return STATE_FRESH;
+        }
+
+        long modified = new File(column.mDir, name).lastModified();
+        return System.currentTimeMillis() - modified > mMaxAge ? STATE_STALE : STATE_FRESH;
+    }
+
+
+    public synchronized String getETag(TileItem tile)
+    {
+        return getETags(getColumn(tile)).getProperty(Integer.toString(tile.getY()));
+    }
+
+
+    public synchronized void setETag(
+            TileItem tile,
+            String eTag)
+    {
+        Column column = getColumn(tile);
+        Properties eTags = getETags(column);
+        String key = Integer.toString(tile.getY());
+        if (null == eTag) {
+            column.mIsETagsChanged |= null != eTags.remove(key);
+        } else if (!eTag.equals(eTags.getProperty(key))) {
+            eTags.setProperty(key, eTag);
+            column.mIsETagsChanged = true;
+        }
+    }
+
+
+    protected Properties getETags(Column column)
+    {
+        if (null == column.mETags) {
+            column.mETags = new Properties();
+            if (column.mNames.contains(ETAGS_FILE)) {
+                try {
+                    FileInputStream in = new FileInputStream(new File(column.mDir, ETAGS_FILE));
+                    try {
+                        column.mETags.load(in);
+                    } finally {
+                        in.close();
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        return column.mETags;
+    }
+
+
+    protected void saveETags(Column column)
+    {
+        if (!column.mIsETagsChanged) {
+            return;
+        }
+
+        try {
+            column.mDir.mkdirs();
+            FileOutputStream out = new FileOutputStream(new File(column.mDir, ETAGS_FILE));
+            try {
+                column.mETags.store(out, null);
+            } finally {
+                out.close();
+            }
+            column.mIsETagsChanged = false;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+
+    /**
+     * Saves changed validators and drops the column listings.
+     */
+    public synchronized void flush()
+    {
+        Iterator<Column> iterator = mColumns.values().iterator();
+        while (iterator.hasNext()) {
+            saveETags(iterator.next());
+            iterator.remove();
+        }
+    }
+}
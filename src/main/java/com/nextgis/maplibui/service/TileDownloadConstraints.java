@@ -0,0 +1,197 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2019 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplibui.service;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.BatteryManager;
+import android.support.v4.net.ConnectivityManagerCompat;
+
+import com.nextgis.maplibui.R;
+
+
+/**
+ * Conditions a tile download job runs under. A job waits while the device is offline, and
+ * optionally while the network is metered, the device is not charging or the battery is below
+ * a level, so a large download started in the field does not drain the battery and the mobile
+ * quota or spend retries on a lost connection.
+ */
+public class TileDownloadConstraints
+{
+    public static final int FLAG_UNMETERED = 1;
+    public static final int FLAG_CHARGING  = 1 << 1;
+
+    public static final TileDownloadConstraints NONE = new TileDownloadConstraints(0, 0);
+
+    protected final int mFlags;
+    protected final int mMinBattery;
+
+
+    /**
+     * Snapshot of the device conditions.
+     */
+    public static class State
+    {
+        protected final boolean mIsConnected;
+        protected final boolean mIsMetered;
+        protected final boolean mIsCharging;
+        protected final int     mBattery;
+
+
+        public State(
+                boolean connected,
+                boolean metered,
+                boolean charging,
+                int battery)
+        {
+            mIsConnected = connected;
+            mIsMetered = metered;
+            mIsCharging = charging;
+            mBattery = battery;
+        }
+
+
+        public static State read(Context context)
+        {
+            ConnectivityManager cm =
+                    (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+            NetworkInfo info = null == cm ? null : cm.getActiveNetworkInfo();
+            boolean connected = null != info && info.isConnected();
+            boolean metered = connected && ConnectivityManagerCompat.isActiveNetworkMetered(cm);
+
+            // the sticky broadcast answers without a receiver
+            Intent battery = context.registerReceiver(
+                    null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+            boolean charging = false;
+            int level = 100;
+            if (null != battery) {
+                int plugged = battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0);
+                charging = plugged != 0;
+                int scale = battery.getIntExtra(BatteryManager.EXTRA_SCALE, 100);
+                int value = battery.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+                if (value >= 0 && scale > 0) {
+                    level = value * 100 / scale;
+                }
+            }
+            return new State(connected, metered, charging, level);
+        }
+
+
+        public boolean isConnected()
+        {
+            return mIsConnected;
+        }
+
+
+        public boolean isMetered()
+        {
+            return mIsMetered;
+        }
+
+
+        public boolean isCharging()
+        {
+            return mIsCharging;
+        }
+
+
+        /**
+         * @return battery level in percent
+         */
+        public int getBattery()
+        {
+            return mBattery;
+        }
+    }
+
+
+    /**
+     * @param flags
+     *         {@link #FLAG_UNMETERED}, {@link #FLAG_CHARGING} or both
+     * @param minBattery
+     *         battery level in percent the job pauses below, 0 for any level
+     */
+    public TileDownloadConstraints(
+            int flags,
+            int minBattery)
+    {
+        mFlags = flags;
+        mMinBattery = Math.max(0, Math.min(100, minBattery));
+    }
+
+
+    public int getFlags()
+    {
+        return mFlags;
+    }
+
+
+    public int getMinBattery()
+    {
+        return mMinBattery;
+    }
+
+
+    public boolean isUnmeteredRequired()
+    {
+        return (mFlags & FLAG_UNMETERED) != 0;
+    }
+
+
+    public boolean isChargingRequired()
+    {
+        return (mFlags & FLAG_CHARGING) != 0;
+    }
+
+
+    public boolean isSatisfied(State state)
+    {
+        return 0 == getWaitingReason(state);
+    }
+
+
+    /**
+     * @return string resource describing the unmet condition, 0 if the job may run
+     */
+    public int getWaitingReason(State state)
+    {
+        if (!state.isConnected()) {
+            return R.string.tile_download_waiting_network;
+        }
+        if (isUnmeteredRequired() && state.isMetered()) {
+            return R.string.tile_download_waiting_unmetered;
+        }
+        if (isChargingRequired() && !state.isCharging()) {
+            return R.string.tile_download_waiting_charging;
+        }
+        // a charging device is not limited by the battery level
+        if (mMinBattery > 0 && !state.isCharging() && state.getBattery() < mMinBattery) {
+            return R.string.tile_download_waiting_battery;
+        }
+        return 0;
+    }
+}
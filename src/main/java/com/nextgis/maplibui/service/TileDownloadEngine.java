@@ -0,0 +1,763 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2019 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplibui.service;
+
+import android.util.Log;
+
+import com.nextgis.maplib.util.Constants;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static com.nextgis.maplib.util.Constants.KEEP_ALIVE_TIME;
+import static com.nextgis.maplib.util.Constants.KEEP_ALIVE_TIME_UNIT;
+
+
+/**
+ * Executes tile downloads with a bounded queue, per host connection limits and parallelism
+ * adapted to the measured throughput. {@link #submit(String, Runnable)} blocks while the queue is
+ * full, so a producer never gets ahead of the network by more than the queue capacity.
+ * <p>
+ * Downloads are queued per priority class. A free worker always takes an interactive download
+ * first, then a prefetch and then a bulk one, so tiles of the visible viewport overtake queued
+ * bulk work. Tiles the map renderer waits for run on its own thread through
+ * {@link #runInteractive(String, Runnable)} and take their host capacity from queued downloads.
+ * While the map is interactive or such tiles load, bulk downloads are throttled to
+ * {@link #THROTTLED_BULK_PARALLELISM} running at once.
+ * <p>
+ * An engine serves its process only. The tile download service runs bulk jobs in its own process
+ * with its own engine, it is throttled by the map interaction broadcast, not by renderer loads.
+ * <p>
+ * Host limits are checked by the dispatcher before a worker takes a download, so a worker never
+ * waits for a host and the adaptive parallelism measures the network, not parked threads.
+ */
+public class TileDownloadEngine
+{
+    public static final int  MIN_PARALLELISM         = 1;
+    public static final int  MAX_PARALLELISM         = 16;
+    public static final int  DEFAULT_QUEUE_CAPACITY  = 64;
+    // connections to a single host, browsers use the same limit
+    public static final int  DEFAULT_HOST_LIMIT      = 6;
+    // subdomains assumed for a {s} placeholder without explicit list, e.g. OSM a, b, c
+    public static final int  DEFAULT_SUBDOMAIN_COUNT = 3;
+
+    // tiles a caller waits for run on its thread via runInteractive(), asynchronous ones queue here
+    public static final int PRIORITY_INTERACTIVE = 0;
+    public static final int PRIORITY_PREFETCH    = 1;
+    public static final int PRIORITY_BULK        = 2;
+    public static final int PRIORITY_COUNT       = 3;
+
+    public static final int  THROTTLED_BULK_PARALLELISM = 1;
+    // the map is considered idle if it does not confirm the interaction for this time
+    public static final long INTERACTIVE_TIMEOUT        = 10000;
+
+    protected static final long    ADAPT_INTERVAL     = 2000;
+    // throughput change which is considered as a real improvement or degradation
+    protected static final double  ADAPT_THRESHOLD    = 0.05;
+    protected static final Pattern SUBDOMAINS_LIST    = Pattern.compile("\\{([^{}]*[,\\-][^{}]*)\\}");
+    protected static final Pattern SUBDOMAINS_ANY     = Pattern.compile("\\{[^{}]*\\}");
+
+    protected final ThreadPoolExecutor     mExecutor;
+    protected final Semaphore              mSlots;
+    protected final int                    mQueueCapacity;
+    protected final int                    mMaxParallelism;
+    protected final Map<String, Host>      mHosts;
+    protected final Set<Task>              mTasks;
+    protected final Runnable               mDispatcher;
+
+    // queues of priority classes and dispatch state, guarded by this
+    protected final ArrayDeque<Task>[]          mQueues;
+    protected       int                         mRunningBulk;
+    protected       int                         mRunningInteractive;
+    protected       int                         mDeferred;
+    protected       long                        mInteractiveUntil;
+
+    protected static TileDownloadEngine mInstance;
+    protected static boolean            mIsKeepAliveEnabled;
+
+    protected final AtomicLong mSubmitted;
+    protected final AtomicLong mCompleted;
+
+    // adaptive parallelism state, guarded by this
+    protected int    mParallelism;
+    protected int    mDirection;
+    protected long   mWindowStart;
+    protected long   mWindowCompleted;
+    protected double mLastThroughput;
+
+
+    /**
+     * Download limit and count of running downloads of a host, guarded by the engine.
+     */
+    protected static class Host
+    {
+        protected int mLimit = DEFAULT_HOST_LIMIT;
+        protected int mRunning;
+        protected int mQueued;
+    }
+
+
+    protected class Task
+            extends FutureTask<Void>
+    {
+        protected final Host    mHost;
+        protected final boolean mIsBulk;
+
+
+        protected Task(
+                Runnable download,
+                Host host,
+                boolean isBulk)
+        {
+            super(download, null);
+            mHost = host;
+            mIsBulk = isBulk;
+        }
+
+
+        @Override
+        protected void done()
+        {
+            // called once for finished and cancelled tasks, queued or running
+            mTasks.remove(this);
+            onCompleted(mIsBulk);
+        }
+    }
+
+
+    public TileDownloadEngine()
+    {
+        this(MAX_PARALLELISM, DEFAULT_QUEUE_CAPACITY);
+    }
+
+
+    public TileDownloadEngine(
+            int maxParallelism,
+            int queueCapacity)
+    {
+        mMaxParallelism = Math.max(MIN_PARALLELISM, maxParallelism);
+        mQueueCapacity = queueCapacity;
+        mParallelism = Math.min(DEFAULT_HOST_LIMIT, mMaxParallelism);
+        mDirection = 1;
+
+        mExecutor = new ThreadPoolExecutor(
+                mParallelism, mParallelism, KEEP_ALIVE_TIME, KEEP_ALIVE_TIME_UNIT,
+                new LinkedBlockingQueue<Runnable>());
+        mExecutor.allowCoreThreadTimeOut(true);
+        mSlots = new Semaphore(mMaxParallelism + queueCapacity);
+        mHosts = new HashMap<>();
+        mTasks = Collections.newSetFromMap(new ConcurrentHashMap<Task, Boolean>());
+        //noinspection unchecked
+        mQueues = new ArrayDeque[PRIORITY_COUNT];
+        for (int i = 0; i < PRIORITY_COUNT; i++) {
+            mQueues[i] = new ArrayDeque<>();
+        }
+        mDispatcher = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                dispatch();
+            }
+        };
+
+        mSubmitted = new AtomicLong();
+        mCompleted = new AtomicLong();
+        mWindowStart = System.currentTimeMillis();
+
+        enableKeepAlive(MAX_PARALLELISM);
+    }
+
+
+    /**
+     * @return the engine shared by the map of the process, e.g. for viewport and prefetch
+     * downloads
+     */
+    public static synchronized TileDownloadEngine getInstance()
+    {
+        if (null == mInstance) {
+            mInstance = new TileDownloadEngine();
+        }
+        return mInstance;
+    }
+
+
+    /**
+     * HttpURLConnection keeps idle connections for reuse only up to http.maxConnections per
+     * host, which is 5 by default. Raise it to the maximal parallelism so every worker reuses its
+     * connection instead of a new TCP and TLS handshake per tile.
+     * <p>
+     * The properties are process wide, the tile loading of maplib uses HttpURLConnection too. They
+     * are set once per process, only raised and never lowered.
+     */
+    protected static synchronized void enableKeepAlive(int connections)
+    {
+        if (mIsKeepAliveEnabled) {
+            return;
+        }
+        mIsKeepAliveEnabled = true;
+
+        System.setProperty("http.keepAlive", "true");
+        String current = System.getProperty("http.maxConnections");
+        try {
+            if (null != current && Integer.parseInt(current) >= connections) {
+                return;
+            }
+        } catch (NumberFormatException ignored) {
+        }
+        System.setProperty("http.maxConnections", Integer.toString(connections));
+    }
+
+
+    /**
+     * @return the host part of a tile URL template, subdomain placeholders included, so all
+     * rotated subdomains of a server share one key
+     */
+    public static String getHost(String urlTemplate)
+    {
+        return SUBDOMAINS_ANY.matcher(getHostTemplate(urlTemplate)).replaceAll("*");
+    }
+
+
+    protected static String getHostTemplate(String urlTemplate)
+    {
+        if (null == urlTemplate) {
+            return "";
+        }
+
+        int start = urlTemplate.indexOf("://");
+        start = start < 0 ? 0 : start + 3;
+        int end = urlTemplate.indexOf('/', start);
+        if (end < 0) {
+            end = urlTemplate.length();
+        }
+
+        return urlTemplate.substring(start, end).toLowerCase(Locale.US);
+    }
+
+
+    /**
+     * @return count of subdomains the URL template rotates, e.g. 3 for {a,b,c} or {s}, 4 for {0-3}
+     */
+    public static int getSubdomainCount(String urlTemplate)
+    {
+        String host = getHostTemplate(urlTemplate);
+        Matcher matcher = SUBDOMAINS_LIST.matcher(host);
+        if (matcher.find()) {
+            String list = matcher.group(1);
+            int dash = list.indexOf('-');
+            if (dash > 0 && list.indexOf(',') < 0) {
+                String from = list.substring(0, dash).trim();
+                String to = list.substring(dash + 1).trim();
+                if (from.length() == 1 && to.length() == 1) {
+                    return Math.max(1, to.charAt(0) - from.charAt(0) + 1);
+                }
+                return 1;
+            }
+            return list.split(",").length;
+        }
+
+        return host.contains("{s}") ? DEFAULT_SUBDOMAIN_COUNT : 1;
+    }
+
+
+    /**
+     * Fills the URL template with the tile numbers. Subdomains rotate with the counter, so
+     * neighbour tiles go to different subdomains.
+     */
+    public static String getTileUrl(
+            String urlTemplate,
+            int x,
+            int y,
+            int zoom,
+            int counter)
+    {
+        String url = urlTemplate.replace("{x}", Integer.toString(x))
+                .replace("{y}", Integer.toString(y))
+                .replace("{z}", Integer.toString(zoom));
+
+        Matcher matcher = SUBDOMAINS_LIST.matcher(url);
+        if (matcher.find()) {
+            String list = matcher.group(1);
+            String subdomain;
+            int dash = list.indexOf('-');
+            if (dash > 0 && list.indexOf(',') < 0) {
+                char from = list.substring(0, dash).trim().charAt(0);
+                int count = getSubdomainCount(urlTemplate);
+                subdomain = String.valueOf((char) (from + Math.abs(counter % count)));
+            } else {
+                String[] items = list.split(",");
+                subdomain = items[Math.abs(counter % items.length)].trim();
+            }
+            return url.substring(0, matcher.start()) + subdomain + url.substring(matcher.end());
+        }
+
+        if (url.contains("{s}")) {
+            char subdomain = (char) ('a' + Math.abs(counter % DEFAULT_SUBDOMAIN_COUNT));
+            return url.replace("{s}", String.valueOf(subdomain));
+        }
+        return url;
+    }
+
+
+    /**
+     * Limits concurrent downloads from the host. The limit is multiplied by the count of rotated
+     * subdomains, as every subdomain is a separate connection pool for the server.
+     */
+    public synchronized void setHostLimit(
+            String urlTemplate,
+            int connectionsPerSubdomain)
+    {
+        int limit = connectionsPerSubdomain * getSubdomainCount(urlTemplate);
+        getHostState(getHost(urlTemplate)).mLimit = Math.max(1, limit);
+        resumeDeferred();
+    }
+
+
+    protected synchronized Host getHostState(String host)
+    {
+        Host state = mHosts.get(host);
+        if (null == state) {
+            state = new Host();
+            mHosts.put(host, state);
+        }
+        return state;
+    }
+
+
+    /**
+     * Queues a bulk download, blocking while the queue is full.
+     *
+     * @param host
+     *         key from {@link #getHost(String)}
+     */
+    public Future<?> submit(
+            String host,
+            Runnable download)
+            throws InterruptedException
+    {
+        return submit(PRIORITY_BULK, host, download);
+    }
+
+
+    /**
+     * Queues the download. Only bulk downloads take the queue capacity and block while it is
+     * full, interactive and prefetch downloads are few and never wait for the bulk ones.
+     *
+     * @param priority
+     *         {@link #PRIORITY_INTERACTIVE}, {@link #PRIORITY_PREFETCH} or {@link #PRIORITY_BULK}
+     * @param host
+     *         key from {@link #getHost(String)}
+     */
+    public Future<?> submit(
+            final int priority,
+            String host,
+            final Runnable download)
+            throws InterruptedException
+    {
+        final boolean isBulk = priority == PRIORITY_BULK;
+        if (isBulk) {
+            mSlots.acquire();
+        }
+        mSubmitted.incrementAndGet();
+
+        Task task = new Task(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                android.os.Process.setThreadPriority(Constants.DEFAULT_DRAW_THREAD_PRIORITY);
+                download.run();
+            }
+        }, getHostState(host), isBulk);
+
+        mTasks.add(task);
+        synchronized (this) {
+            mQueues[priority].add(task);
+            task.mHost.mQueued++;
+        }
+        try {
+            mExecutor.execute(mDispatcher);
+        } catch (RuntimeException e) {
+            // rejected after shutdown
+            task.cancel(false);
+            throw e;
+        }
+        return task;
+    }
+
+
+    /**
+     * Runs an interactive download on the calling thread, e.g. a tile the map renderer waits
+     * for. It waits neither for a worker nor for the host limit, but counts as running for its
+     * host, so queued prefetch and bulk downloads of the host yield to it, and bulk downloads of
+     * this engine are throttled while it runs.
+     *
+     * @param host
+     *         key from {@link #getHost(String)}
+     */
+    public void runInteractive(
+            String host,
+            Runnable download)
+    {
+        Host state = getHostState(host);
+        synchronized (this) {
+            state.mRunning++;
+            mRunningInteractive++;
+        }
+
+        try {
+            download.run();
+        } finally {
+            synchronized (this) {
+                state.mRunning--;
+                mRunningInteractive--;
+            }
+            resumeDeferred();
+        }
+    }
+
+
+    /**
+     * Runs the most urgent queued download whose host is below its limit. Every submit executes
+     * one dispatch, a dispatch which finds only throttled bulk downloads or busy hosts is
+     * deferred until a running download completes.
+     */
+    protected void dispatch()
+    {
+        Task task;
+        synchronized (this) {
+            task = poll();
+            if (null == task) {
+                mDeferred++;
+                return;
+            }
+
+            task.mHost.mRunning++;
+            if (task.mIsBulk) {
+                mRunningBulk++;
+            }
+        }
+
+        try {
+            task.run();
+        } finally {
+            synchronized (this) {
+                task.mHost.mRunning--;
+                if (task.mIsBulk) {
+                    mRunningBulk--;
+                }
+            }
+            resumeDeferred();
+        }
+    }
+
+
+    /**
+     * @return the first download of the most urgent class which may start now, removed from its
+     * queue, or null
+     */
+    protected synchronized Task poll()
+    {
+        for (int priority = 0; priority < PRIORITY_COUNT; priority++) {
+            if (priority == PRIORITY_BULK && mRunningBulk >= getBulkLimit()) {
+                break;
+            }
+
+            Iterator<Task> iterator = mQueues[priority].iterator();
+            while (iterator.hasNext()) {
+                Task task = iterator.next();
+                if (task.mHost.mRunning < task.mHost.mLimit) {
+                    iterator.remove();
+                    task.mHost.mQueued--;
+                    return task;
+                }
+            }
+        }
+        return null;
+    }
+
+
+    /**
+     * @return count of queued downloads which may start now
+     */
+    protected synchronized int getStartableCount()
+    {
+        Map<Host, Integer> free = new HashMap<>();
+        int count = 0;
+        for (int priority = 0; priority < PRIORITY_COUNT; priority++) {
+            int bulk = Math.max(0, getBulkLimit() - mRunningBulk);
+            for (Task task : mQueues[priority]) {
+                if (priority == PRIORITY_BULK && bulk == 0) {
+                    break;
+                }
+
+                Integer available = free.get(task.mHost);
+                if (null == available) {
+                    available = task.mHost.mLimit - task.mHost.mRunning;
+                }
+                if (available > 0) {
+                    free.put(task.mHost, available - 1);
+                    count++;
+                    if (priority == PRIORITY_BULK) {
+                        bulk--;
+                    }
+                }
+            }
+        }
+        return count;
+    }
+
+
+    /**
+     * Executes deferred dispatches which are able to take a download now.
+     */
+    protected void resumeDeferred()
+    {
+        int count;
+        synchronized (this) {
+            count = Math.min(mDeferred, getStartableCount());
+            mDeferred -= count;
+        }
+
+        for (int i = 0; i < count; i++) {
+            try {
+                mExecutor.execute(mDispatcher);
+            } catch (RuntimeException e) {
+                return; // shutdown
+            }
+        }
+    }
+
+
+    protected synchronized int getBulkLimit()
+    {
+        return isInteractive() || mRunningInteractive > 0
+               ? THROTTLED_BULK_PARALLELISM : Integer.MAX_VALUE;
+    }
+
+
+    /**
+     * Throttles bulk downloads while the map is panned or zoomed. The interaction expires after
+     * {@link #INTERACTIVE_TIMEOUT}, so a lost end of a gesture does not stall bulk work.
+     */
+    public void setInteractive(boolean interactive)
+    {
+        synchronized (this) {
+            mInteractiveUntil = interactive ? System.currentTimeMillis() + INTERACTIVE_TIMEOUT : 0;
+        }
+        if (!interactive) {
+            resumeDeferred();
+        }
+    }
+
+
+    public synchronized boolean isInteractive()
+    {
+        return System.currentTimeMillis() < mInteractiveUntil;
+    }
+
+
+    /**
+     * @return count of downloads queued in the priority class, running ones excluded
+     */
+    public synchronized int getQueueDepth(int priority)
+    {
+        return mQueues[priority].size();
+    }
+
+
+    protected void onCompleted(boolean isBulk)
+    {
+        mCompleted.incrementAndGet();
+        if (isBulk) {
+            mSlots.release();
+        }
+        adapt();
+    }
+
+
+    /**
+     * Hill climbing on throughput: parallelism keeps moving in the same direction while the
+     * tiles per second grow and turns back when they drop.
+     */
+    protected synchronized void adapt()
+    {
+        long now = System.currentTimeMillis();
+        long elapsed = now - mWindowStart;
+        if (elapsed < ADAPT_INTERVAL) {
+            return;
+        }
+
+        long completed = mCompleted.get();
+        double throughput = (completed - mWindowCompleted) * 1000.0 / elapsed;
+        mWindowStart = now;
+        mWindowCompleted = completed;
+
+        if (mLastThroughput > 0) {
+            double change = (throughput - mLastThroughput) / mLastThroughput;
+            if (change < -ADAPT_THRESHOLD) {
+                mDirection = -mDirection;
+            } else if (change <= ADAPT_THRESHOLD) {
+                mLastThroughput = throughput;
+                return; // plateau, keep the current parallelism
+            }
+        }
+        mLastThroughput = throughput;
+
+        int parallelism = Math.max(
+                MIN_PARALLELISM, Math.min(getHostCapacity(), mParallelism + mDirection));
+        if (parallelism == mParallelism) {
+            mDirection = -mDirection;
+            return;
+        }
+
+        setParallelism(parallelism);
+
+        if (Constants.DEBUG_MODE) {
+            Log.d(Constants.TAG, "TileDownloadEngine: " + String.format("%.1f", throughput) +
+                                 " tiles/s, parallelism " + mParallelism);
+        }
+    }
+
+
+    /**
+     * @return sum of limits of hosts with queued or running downloads, more workers would only
+     * wait for them, at most the maximal parallelism
+     */
+    protected synchronized int getHostCapacity()
+    {
+        int capacity = 0;
+        for (Host host : mHosts.values()) {
+            if (host.mRunning > 0 || host.mQueued > 0) {
+                capacity += host.mLimit;
+            }
+        }
+        return Math.min(mMaxParallelism, Math.max(MIN_PARALLELISM, capacity));
+    }
+
+
+    protected synchronized void setParallelism(int parallelism)
+    {
+        if (parallelism > mExecutor.getMaximumPoolSize()) {
+            mExecutor.setMaximumPoolSize(parallelism);
+            mExecutor.setCorePoolSize(parallelism);
+        } else {
+            mExecutor.setCorePoolSize(parallelism);
+            mExecutor.setMaximumPoolSize(parallelism);
+        }
+        mParallelism = parallelism;
+    }
+
+
+    public synchronized int getParallelism()
+    {
+        return mParallelism;
+    }
+
+
+    /**
+     * @return tiles per second measured in the last adaptation window
+     */
+    public synchronized double getThroughput()
+    {
+        return mLastThroughput;
+    }
+
+
+    public long getSubmittedCount()
+    {
+        return mSubmitted.get();
+    }
+
+
+    public long getCompletedCount()
+    {
+        return mCompleted.get();
+    }
+
+
+    public int getQueueCapacity()
+    {
+        return mQueueCapacity;
+    }
+
+
+    /**
+     * Waits until every submitted bulk download is finished.
+     *
+     * @return false if the timeout elapsed first
+     */
+    public boolean awaitIdle(long timeoutMillis)
+            throws InterruptedException
+    {
+        int permits = mMaxParallelism + mQueueCapacity;
+        if (mSlots.tryAcquire(permits, timeoutMillis, TimeUnit.MILLISECONDS)) {
+            mSlots.release(permits);
+            return true;
+        }
+        return false;
+    }
+
+
+    /**
+     * Drops queued downloads and interrupts running ones. The engine stays usable.
+     */
+    public void cancel()
+    {
+        for (Task task : mTasks.toArray(new Task[0])) {
+            task.cancel(true);
+        }
+        synchronized (this) {
+            for (ArrayDeque<Task> queue : mQueues) {
+                for (Task task : queue) {
+                    task.mHost.mQueued--;
+                }
+                queue.clear();
+            }
+        }
+    }
+
+
+    public void shutdown()
+    {
+        cancel();
+        mExecutor.shutdownNow();
+    }
+}
@@ -0,0 +1,616 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2019 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplibui.service;
+
+import com.nextgis.maplib.datasource.GeoEnvelope;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+
+/**
+ * Progress of a tile download job stored next to the layer cache. Every zoom keeps a bitmap of
+ * completed tiles indexed by {@link TileIterator#getCurrentIndex()}, so a job resumes after a
+ * process restart with only the missing tiles. Tiles failed after all retries are kept in a
+ * ledger with their last status, a follow-up job downloads only them. The journal also keeps
+ * the constraints of the job, a resumed job waits for the same conditions, the shape of a job
+ * limited to a geometry, and the refresh and retry parameters, so a resumed job skips the same
+ * tiles as the first run.
+ */
+public class TileDownloadJournal
+{
+    public static final String JOURNAL_PREFIX = "tiles_";
+    public static final String JOURNAL_EXT    = ".journal";
+
+    protected static final int MAGIC   = 0x4E47544A; // NGTJ
+    protected static final int VERSION = 5;
+
+    protected final File          mFile;
+    protected final String        mLayerPathName;
+    protected final GeoEnvelope   mEnvelope;
+    protected final List<Integer> mZoomList;
+    protected final TileShape     mShape;
+    protected final long[][]      mCompleted;
+    protected final long          mTileCount;
+    protected       long          mCompletedCount;
+    protected       boolean       mIsDirty;
+
+    protected final Map<String, Failure> mFailures;
+
+    protected TileDownloadConstraints mConstraints = TileDownloadConstraints.NONE;
+
+    protected int     mRefreshMode = TileDownloadService.REFRESH_ALL;
+    protected long    mMaxAge      = TileCacheChecker.DEFAULT_MAX_AGE;
+    protected int     mMaxAttempts = TileRetryPolicy.DEFAULT_MAX_ATTEMPTS;
+    protected float   mErrorBudget = TileDownloadService.DEFAULT_ERROR_BUDGET;
+    protected boolean mIsPacked;
+
+
+    public static class Failure
+    {
+        protected final int  mZoom;
+        protected final long mIndex;
+        protected       int  mStatus;
+
+
+        protected Failure(
+                int zoom,
+                long index,
+                int status)
+        {
+            mZoom = zoom;
+            mIndex = index;
+            mStatus = status;
+        }
+
+
+        public int getZoom()
+        {
+            return mZoom;
+        }
+
+
+        public long getIndex()
+        {
+            return mIndex;
+        }
+
+
+        /**
+         * @return HTTP response code or a {@link TileDownloadMetrics} status of the last attempt
+         */
+        public int getStatus()
+        {
+            return mStatus;
+        }
+    }
+
+
+    protected TileDownloadJournal(
+            File file,
+            String layerPathName,
+            GeoEnvelope envelope,
+            List<Integer> zoomList,
+            TileShape shape)
+    {
+        mFile = file;
+        mLayerPathName = layerPathName;
+        mEnvelope = envelope;
+        mZoomList = zoomList;
+        mShape = shape;
+        mCompleted = new long[zoomList.size()][];
+        mFailures = new LinkedHashMap<>();
+
+        // indexes are those of the envelope range, a shape takes a part of them
+        long count = 0;
+        for (Integer zoom : zoomList) {
+            count += null == shape
+                     ? TileIterator.getTileCount(envelope, zoom)
+                     : shape.getTileCount(zoom);
+        }
+        mTileCount = count;
+    }
+
+
+    /**
+     * Opens the journal of the job, loading the progress saved by a previous run.
+     *
+     * @param layerDir
+     *         the layer cache directory
+     */
+    public static TileDownloadJournal open(
+            File layerDir,
+            String layerPathName,
+            GeoEnvelope envelope,
+            List<Integer> zoomList)
+    {
+        return open(layerDir, layerPathName, envelope, zoomList, null);
+    }
+
+
+    /**
+     * @param shape
+     *         shape of the job or null for the whole envelope
+     */
+    public static TileDownloadJournal open(
+            File layerDir,
+            String layerPathName,
+            GeoEnvelope envelope,
+            List<Integer> zoomList,
+            TileShape shape)
+    {
+        File file = new File(layerDir, getFileName(envelope, zoomList, shape));
+        if (file.exists()) {
+            try {
+                TileDownloadJournal journal = load(file);
+                if (journal.mZoomList.equals(zoomList)) {
+                    return journal;
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return new TileDownloadJournal(file, layerPathName, envelope, zoomList, shape);
+    }
+
+
+    /**
+     * @return journals of unfinished jobs of the layer, e.g. to show their progress or resume
+     */
+    public static List<TileDownloadJournal> list(File layerDir)
+    {
+        List<TileDownloadJournal> result = new ArrayList<>();
+        File[] files = layerDir.listFiles(new FilenameFilter()
+        {
+            @Override
+            public boolean accept(
+                    File dir,
+                    String name)
+            {
+                return name.startsWith(JOURNAL_PREFIX) && name.endsWith(JOURNAL_EXT);
+            }
+        });
+
+        if (null != files) {
+            for (File file : files) {
+                try {
+                    result.add(load(file));
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        return result;
+    }
+
+
+    protected static String getFileName(
+            GeoEnvelope envelope,
+            List<Integer> zoomList)
+    {
+        return getFileName(envelope, zoomList, null);
+    }
+
+
+    protected static String getFileName(
+            GeoEnvelope envelope,
+            List<Integer> zoomList,
+            TileShape shape)
+    {
+        long hash = 17;
+        hash = hash * 31 + Double.doubleToLongBits(envelope.getMinX());
+        hash = hash * 31 + Double.doubleToLongBits(envelope.getMaxX());
+        hash = hash * 31 + Double.doubleToLongBits(envelope.getMinY());
+        hash = hash * 31 + Double.doubleToLongBits(envelope.getMaxY());
+        hash = hash * 31 + zoomList.hashCode();
+        if (null != shape) {
+            hash = hash * 31 + shape.getHash();
+        }
+        return JOURNAL_PREFIX + String.format(Locale.US, "%016x", hash) + JOURNAL_EXT;
+    }
+
+
+    public static TileDownloadJournal load(File file)
+            throws IOException
+    {
+        DataInputStream in =
+                new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            int version = in.readInt() == MAGIC ? in.readInt() : 0;
+            if (version < 1 || version > VERSION) {
+                throw new IOException("Unsupported tile journal " + file);
+            }
+
+            String layerPathName = in.readUTF();
+            double minX = in.readDouble();
+            double maxX = in.readDouble();
+            double minY = in.readDouble();
+            double maxY = in.readDouble();
+            GeoEnvelope envelope = new GeoEnvelope(minX, maxX, minY, maxY);
+
+            int zoomCount = in.readInt();
+            List<Integer> zoomList = new ArrayList<>(zoomCount);
+            long[][] completed = new long[zoomCount][];
+            for (int i = 0; i < zoomCount; i++) {
+                zoomList.add(in.readInt());
+                int words = in.readInt();
+                if (words > 0) {
+                    completed[i] = new long[words];
+                    for (int j = 0; j < words; j++) {
+                        completed[i][j] = in.readLong();
+                    }
+                }
+            }
+
+            TileShape shape = null;
+            if (version >= 4 && in.readBoolean()) {
+                shape = TileShape.read(in);
+            }
+
+            TileDownloadJournal journal =
+                    new TileDownloadJournal(file, layerPathName, envelope, zoomList, shape);
+            for (int i = 0; i < zoomCount; i++) {
+                journal.mCompleted[i] = completed[i];
+                if (null != completed[i]) {
+                    for (long word : completed[i]) {
+                        journal.mCompletedCount += Long.bitCount(word);
+                    }
+                }
+            }
+
+            if (version >= 2) {
+                int failureCount = in.readInt();
+                for (int i = 0; i < failureCount; i++) {
+                    Failure failure = new Failure(in.readInt(), in.readLong(), in.readInt());
+                    journal.mFailures.put(getKey(failure.mZoom, failure.mIndex), failure);
+                }
+            }
+            if (version >= 3) {
+                journal.mConstraints = new TileDownloadConstraints(in.readInt(), in.readInt());
+            }
+            if (version >= 5) {
+                journal.mRefreshMode = in.readInt();
+                journal.mMaxAge = in.readLong();
+                journal.mMaxAttempts = in.readInt();
+                journal.mErrorBudget = in.readFloat();
+                journal.mIsPacked = in.readBoolean();
+            }
+            return journal;
+        } finally {
+            in.close();
+        }
+    }
+
+
+    /**
+     * Writes the journal to a temporary file and renames it, so a kill during the write keeps
+     * the previous state.
+     */
+    public synchronized void save()
+            throws IOException
+    {
+        if (!mIsDirty && mFile.exists()) {
+            return;
+        }
+
+        File temp = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out =
+                new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(mLayerPathName);
+            out.writeDouble(mEnvelope.getMinX());
+            out.writeDouble(mEnvelope.getMaxX());
+            out.writeDouble(mEnvelope.getMinY());
+            out.writeDouble(mEnvelope.getMaxY());
+            out.writeInt(mZoomList.size());
+            for (int i = 0; i < mZoomList.size(); i++) {
+                out.writeInt(mZoomList.get(i));
+                long[] words = mCompleted[i];
+                out.writeInt(null == words ? 0 : words.length);
+                if (null != words) {
+                    for (long word : words) {
+                        out.writeLong(word);
+                    }
+                }
+            }
+
+            out.writeBoolean(null != mShape);
+            if (null != mShape) {
+                mShape.write(out);
+            }
+
+            out.writeInt(mFailures.size());
+            for (Failure failure : mFailures.values()) {
+                out.writeInt(failure.mZoom);
+                out.writeLong(failure.mIndex);
+                out.writeInt(failure.mStatus);
+            }
+
+            out.writeInt(mConstraints.getFlags());
+            out.writeInt(mConstraints.getMinBattery());
+
+            out.writeInt(mRefreshMode);
+            out.writeLong(mMaxAge);
+            out.writeInt(mMaxAttempts);
+            out.writeFloat(mErrorBudget);
+            out.writeBoolean(mIsPacked);
+        } finally {
+            out.close();
+        }
+
+        if (!temp.renameTo(mFile)) {
+            throw new IOException("Failed to save tile journal " + mFile);
+        }
+        mIsDirty = false;
+    }
+
+
+    public synchronized void delete()
+    {
+        mFile.delete();
+        mIsDirty = false;
+    }
+
+
+    protected int getZoomIndex(int zoom)
+    {
+        return mZoomList.indexOf(zoom);
+    }
+
+
+    public synchronized boolean isCompleted(
+            int zoom,
+            long index)
+    {
+        int zoomIndex = getZoomIndex(zoom);
+        if (zoomIndex < 0) {
+            return false;
+        }
+
+        long[] words = mCompleted[zoomIndex];
+        int word = (int) (index >>> 6);
+        return null != words && word < words.length && (words[word] & (1L << index)) != 0;
+    }
+
+
+    public synchronized void setCompleted(
+            int zoom,
+            long index)
+    {
+        int zoomIndex = getZoomIndex(zoom);
+        if (zoomIndex < 0) {
+            return;
+        }
+
+        long[] words = mCompleted[zoomIndex];
+        if (null == words) {
+            long tiles = TileIterator.getTileCount(mEnvelope, zoom);
+            words = new long[(int) ((tiles + 63) >>> 6)];
+            mCompleted[zoomIndex] = words;
+        }
+
+        int word = (int) (index >>> 6);
+        long mask = 1L << index;
+        if ((words[word] & mask) == 0) {
+            words[word] |= mask;
+            mCompletedCount++;
+            mIsDirty = true;
+        }
+        if (null != mFailures.remove(getKey(zoom, index))) {
+            mIsDirty = true;
+        }
+    }
+
+
+    protected static String getKey(
+            int zoom,
+            long index)
+    {
+        return zoom + "/" + index;
+    }
+
+
+    /**
+     * Records the tile to the failure ledger.
+     *
+     * @param status
+     *         HTTP response code or a {@link TileDownloadMetrics} status of the last attempt
+     */
+    public synchronized void setFailed(
+            int zoom,
+            long index,
+            int status)
+    {
+        String key = getKey(zoom, index);
+        Failure failure = mFailures.get(key);
+        if (null == failure) {
+            mFailures.put(key, new Failure(zoom, index, status));
+        } else {
+            failure.mStatus = status;
+        }
+        mIsDirty = true;
+    }
+
+
+    public synchronized int getFailedCount()
+    {
+        return mFailures.size();
+    }
+
+
+    /**
+     * @return copy of the failure ledger in the order of failures
+     */
+    public synchronized Collection<Failure> getFailures()
+    {
+        return new ArrayList<>(mFailures.values());
+    }
+
+
+    public synchronized TileDownloadConstraints getConstraints()
+    {
+        return mConstraints;
+    }
+
+
+    public synchronized void setConstraints(TileDownloadConstraints constraints)
+    {
+        if (mConstraints.getFlags() != constraints.getFlags() ||
+            mConstraints.getMinBattery() != constraints.getMinBattery()) {
+            mConstraints = constraints;
+            mIsDirty = true;
+        }
+    }
+
+
+    /**
+     * Keeps the parameters of the job, a resumed job is created with the same ones.
+     *
+     * @param refreshMode
+     *         {@link TileDownloadService#REFRESH_ALL}, {@link TileDownloadService#REFRESH_MISSING}
+     *         or {@link TileDownloadService#REFRESH_STALE}
+     */
+    public synchronized void setParameters(
+            int refreshMode,
+            long maxAge,
+            int maxAttempts,
+            float errorBudget,
+            boolean isPacked)
+    {
+        if (mRefreshMode != refreshMode || mMaxAge != maxAge || mMaxAttempts != maxAttempts ||
+            mErrorBudget != errorBudget || mIsPacked != isPacked) {
+            mRefreshMode = refreshMode;
+            mMaxAge = maxAge;
+            mMaxAttempts = maxAttempts;
+            mErrorBudget = errorBudget;
+            mIsPacked = isPacked;
+            mIsDirty = true;
+        }
+    }
+
+
+    public synchronized int getRefreshMode()
+    {
+        return mRefreshMode;
+    }
+
+
+    public synchronized long getMaxAge()
+    {
+        return mMaxAge;
+    }
+
+
+    public synchronized int getMaxAttempts()
+    {
+        return mMaxAttempts;
+    }
+
+
+    public synchronized float getErrorBudget()
+    {
+        return mErrorBudget;
+    }
+
+
+    public synchronized boolean isPacked()
+    {
+        return mIsPacked;
+    }
+
+
+    public String getFileName()
+    {
+        return mFile.getName();
+    }
+
+
+    public String getLayerPathName()
+    {
+        return mLayerPathName;
+    }
+
+
+    public GeoEnvelope getEnvelope()
+    {
+        return mEnvelope;
+    }
+
+
+    public List<Integer> getZoomList()
+    {
+        return mZoomList;
+    }
+
+
+    /**
+     * @return shape of the job or null for the whole envelope
+     */
+    public TileShape getShape()
+    {
+        return mShape;
+    }
+
+
+    public long getTileCount()
+    {
+        return mTileCount;
+    }
+
+
+    public synchronized long getCompletedCount()
+    {
+        return mCompletedCount;
+    }
+
+
+    /**
+     * @return completed part of the job from 0 to 1
+     */
+    public synchronized float getProgress()
+    {
+        return mTileCount == 0 ? 1 : (float) mCompletedCount / mTileCount;
+    }
+
+
+    public synchronized boolean isFinished()
+    {
+        return mCompletedCount >= mTileCount;
+    }
+}
@@ -0,0 +1,307 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2019 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplibui.service;
+
+import android.os.Bundle;
+import android.os.SystemClock;
+
+import com.nextgis.maplibui.util.LatencyHistogram;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Counters of a tile download job. Network latency is measured per host and storage latency
+ * separately, so a slow job shows whether it waits for the network or for the disk. Rates are
+ * averaged over the last one to two windows of {@link #RATE_WINDOW} milliseconds.
+ */
+public class TileDownloadMetrics
+{
+    // status of a tile failed without an HTTP response
+    public static final int STATUS_IO_ERROR = -1;
+    // status of a tile failed inside the layer, which does not report the response code
+    public static final int STATUS_UNKNOWN  = 0;
+
+    public static final String KEY_TILES_PER_SECOND = "tiles_per_second";
+    public static final String KEY_BYTES_PER_SECOND = "bytes_per_second";
+    public static final String KEY_BYTES            = "bytes";
+    public static final String KEY_ETA              = "eta";
+    public static final String KEY_RETRIES          = "retries";
+    public static final String KEY_SKIPPED          = "skipped";
+    public static final String KEY_ERRORS           = "errors";
+    public static final String KEY_LATENCY          = "latency";
+    public static final String KEY_STORAGE_LATENCY  = "storage_latency";
+
+    protected static final long RATE_WINDOW = 10000;
+
+    protected final long mStartTime;
+
+    protected final AtomicLong mTiles;
+    protected final AtomicLong mSkipped;
+    protected final AtomicLong mBytes;
+    protected final AtomicLong mRetries;
+
+    protected final ConcurrentHashMap<Integer, AtomicLong>      mErrors;
+    protected final ConcurrentHashMap<String, LatencyHistogram> mLatency;
+    protected final LatencyHistogram                            mStorageLatency;
+
+    // rates are measured from the start of the previous window, guarded by this
+    protected long mPreviousStart, mPreviousTiles, mPreviousBytes;
+    protected long mWindowStart, mWindowTiles, mWindowBytes;
+
+
+    public TileDownloadMetrics()
+    {
+        mStartTime = SystemClock.elapsedRealtime();
+        mPreviousStart = mStartTime;
+        mWindowStart = mStartTime;
+
+        mTiles = new AtomicLong();
+        mSkipped = new AtomicLong();
+        mBytes = new AtomicLong();
+        mRetries = new AtomicLong();
+
+        mErrors = new ConcurrentHashMap<>();
+        mLatency = new ConcurrentHashMap<>();
+        mStorageLatency = new LatencyHistogram();
+    }
+
+
+    /**
+     * @param networkNanos
+     *         time from the request to the last byte of the response
+     * @param storageNanos
+     *         time to write the tile to the cache, 0 if it is not measured separately
+     */
+    public void recordTile(
+            String host,
+            long bytes,
+            long networkNanos,
+            long storageNanos)
+    {
+        mTiles.incrementAndGet();
+        mBytes.addAndGet(bytes);
+        getLatency(host).recordNanos(networkNanos);
+        if (storageNanos > 0) {
+            mStorageLatency.recordNanos(storageNanos);
+        }
+    }
+
+
+    /**
+     * Counts a tile which was fresh in the cache and needs no network work.
+     */
+    public void recordSkipped()
+    {
+        mSkipped.incrementAndGet();
+    }
+
+
+    public void recordRetry()
+    {
+        mRetries.incrementAndGet();
+    }
+
+
+    /**
+     * @param status
+     *         HTTP response code, {@link #STATUS_IO_ERROR} or {@link #STATUS_UNKNOWN}
+     */
+    public void recordError(int status)
+    {
+        AtomicLong counter = mErrors.get(status);
+        if (null == counter) {
+            counter = new AtomicLong();
+            AtomicLong previous = mErrors.putIfAbsent(status, counter);
+            if (null != previous) {
+                counter = previous;
+            }
+        }
+        counter.incrementAndGet();
+    }
+
+
+    protected LatencyHistogram getLatency(String host)
+    {
+        LatencyHistogram histogram = mLatency.get(host);
+        if (null == histogram) {
+            histogram = new LatencyHistogram();
+            LatencyHistogram previous = mLatency.putIfAbsent(host, histogram);
+            if (null != previous) {
+                histogram = previous;
+            }
+        }
+        return histogram;
+    }
+
+
+    protected void updateWindow(long now)
+    {
+        if (now - mWindowStart >= RATE_WINDOW) {
+            mPreviousStart = mWindowStart;
+            mPreviousTiles = mWindowTiles;
+            mPreviousBytes = mWindowBytes;
+            mWindowStart = now;
+            mWindowTiles = mTiles.get();
+            mWindowBytes = mBytes.get();
+        }
+    }
+
+
+    public synchronized double getTilesPerSecond()
+    {
+        long now = SystemClock.elapsedRealtime();
+        updateWindow(now);
+        long elapsed = now - mPreviousStart;
+        return elapsed <= 0 ? 0 : (mTiles.get() - mPreviousTiles) * 1000.0 / elapsed;
+    }
+
+
+    public synchronized double getBytesPerSecond()
+    {
+        long now = SystemClock.elapsedRealtime();
+        updateWindow(now);
+        long elapsed = now - mPreviousStart;
+        return elapsed <= 0 ? 0 : (mBytes.get() - mPreviousBytes) * 1000.0 / elapsed;
+    }
+
+
+    /**
+     * @return estimated milliseconds to download the remaining tiles, -1 if unknown yet
+     */
+    public long getEta(long remainingTiles)
+    {
+        double rate = getTilesPerSecond();
+        if (rate <= 0) {
+            return remainingTiles <= 0 ? 0 : -1;
+        }
+        return (long) (remainingTiles * 1000 / rate);
+    }
+
+
+    public long getElapsedTime()
+    {
+        return SystemClock.elapsedRealtime() - mStartTime;
+    }
+
+
+    public long getTileCount()
+    {
+        return mTiles.get();
+    }
+
+
+    public long getSkippedCount()
+    {
+        return mSkipped.get();
+    }
+
+
+    public long getBytes()
+    {
+        return mBytes.get();
+    }
+
+
+    public long getRetryCount()
+    {
+        return mRetries.get();
+    }
+
+
+    public long getErrorCount()
+    {
+        long count = 0;
+        for (AtomicLong counter : mErrors.values()) {
+            count += counter.get();
+        }
+        return count;
+    }
+
+
+    /**
+     * @return error counts by HTTP status
+     */
+    public Map<Integer, Long> getErrors()
+    {
+        Map<Integer, Long> errors = new TreeMap<>();
+        for (Map.Entry<Integer, AtomicLong> entry : mErrors.entrySet()) {
+            errors.put(entry.getKey(), entry.getValue().get());
+        }
+        return errors;
+    }
+
+
+    public Map<String, LatencyHistogram> getLatency()
+    {
+        return mLatency;
+    }
+
+
+    public LatencyHistogram getStorageLatency()
+    {
+        return mStorageLatency;
+    }
+
+
+    /**
+     * Packs the metrics to broadcast extras. Latencies are {count, p50, p95, p99, max} arrays in
+     * microseconds, the network ones keyed by host.
+     */
+    public Bundle toBundle(long remainingTiles)
+    {
+        Bundle bundle = new Bundle();
+        bundle.putDouble(KEY_TILES_PER_SECOND, getTilesPerSecond());
+        bundle.putDouble(KEY_BYTES_PER_SECOND, getBytesPerSecond());
+        bundle.putLong(KEY_BYTES, getBytes());
+        bundle.putLong(KEY_ETA, getEta(remainingTiles));
+        bundle.putLong(KEY_RETRIES, getRetryCount());
+        bundle.putLong(KEY_SKIPPED, getSkippedCount());
+
+        Bundle errors = new Bundle();
+        for (Map.Entry<Integer, Long> entry : getErrors().entrySet()) {
+            errors.putLong(Integer.toString(entry.getKey()), entry.getValue());
+        }
+        bundle.putBundle(KEY_ERRORS, errors);
+
+        Bundle latency = new Bundle();
+        for (Map.Entry<String, LatencyHistogram> entry : mLatency.entrySet()) {
+            latency.putLongArray(entry.getKey(), toArray(entry.getValue()));
+        }
+        bundle.putBundle(KEY_LATENCY, latency);
+        bundle.putLongArray(KEY_STORAGE_LATENCY, toArray(mStorageLatency));
+        return bundle;
+    }
+
+
+    protected static long[] toArray(LatencyHistogram histogram)
+    {
+        return new long[] {
+                histogram.getCount(), histogram.getPercentile(50), histogram.getPercentile(95),
+                histogram.getPercentile(99), histogram.getMax()};
+    }
+}
@@ -26,47 +26,58 @@ package com.nextgis.maplibui.service;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
+import android.content.BroadcastReceiver;
+import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.graphics.Bitmap;
+import android.net.ConnectivityManager;
 import android.os.Build;
+import android.os.Bundle;
 import android.os.IBinder;
 import android.support.v4.app.NotificationCompat;
 import android.text.TextUtils;
+import android.text.format.DateUtils;
+import android.text.format.Formatter;
 import android.util.Log;
 
 import com.nextgis.maplib.api.ILayer;
 import com.nextgis.maplib.datasource.GeoEnvelope;
 import com.nextgis.maplib.datasource.TileItem;
+import com.nextgis.maplib.map.LayerGroup;
 import com.nextgis.maplib.map.MapBase;
 import com.nextgis.maplib.map.RemoteTMSLayer;
 import com.nextgis.maplib.util.Constants;
 import com.nextgis.maplib.util.GeoConstants;
 import com.nextgis.maplib.util.MapUtil;
+import com.nextgis.maplib.util.NetworkUtil;
 import com.nextgis.maplibui.R;
+import com.nextgis.maplibui.mapui.RemoteTMSLayerUI;
 import com.nextgis.maplibui.util.NotificationHelper;
-
+import com.nextgis.maplibui.util.TileArchive;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
 import java.util.ArrayList;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Queue;
-import java.util.concurrent.CancellationException;
 import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.RejectedExecutionHandler;
-import java.util.concurrent.ThreadPoolExecutor;
-
-import static com.nextgis.maplib.util.Constants.DRAWING_SEPARATE_THREADS;
-import static com.nextgis.maplib.util.Constants.KEEP_ALIVE_TIME;
-import static com.nextgis.maplib.util.Constants.KEEP_ALIVE_TIME_UNIT;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import static com.nextgis.maplibui.util.NotificationHelper.createBuilder;
 
 /**
  * The service to batch download tiles
  */
 public class TileDownloadService extends Service {
-    protected static final int TILE_DOWNLOAD_NOTIFICATION_ID = 7;
+    protected static final int  TILE_DOWNLOAD_NOTIFICATION_ID = 7;
+    protected static final long PROGRESS_INTERVAL             = 1000;
+    protected static final long JOURNAL_SAVE_INTERVAL         = 5000;
 
     public static final String KEY_MINX        = "env_minx";
     public static final String KEY_MAXX        = "env_maxx";
@@ -76,14 +87,79 @@ public class TileDownloadService extends Service {
     public static final String KEY_ZOOM_FROM   = "zoom_from";
     public static final String KEY_ZOOM_TO     = "zoom_to";
     public static final String KEY_ZOOM_LIST   = "zoom_list";
+    public static final String KEY_REFRESH     = "refresh_mode";
+    public static final String KEY_MAX_AGE     = "max_age";
+    public static final String KEY_ATTEMPTS    = "max_attempts";
+    public static final String KEY_ERROR_RATE  = "error_budget";
+    public static final String KEY_PACKED      = "packed";
+    public static final String KEY_UNMETERED   = "unmetered_only";
+    public static final String KEY_CHARGING    = "charging_only";
+    public static final String KEY_MIN_BATTERY = "min_battery";
+    public static final String KEY_PAUSED      = "paused";
+    // path of a file from TileShape.save(), the service deletes it once read
+    public static final String KEY_SHAPE       = "shape";
     public static final String ACTION_STOP     = "tile_download_stop";
     public static final String ACTION_ADD_TASK = "add_tile_download_task";
+    public static final String ACTION_RESUME   = "resume_tile_download_tasks";
+    public static final String ACTION_RETRY    = "retry_failed_tile_download";
+    public static final String ACTION_UPDATE   = "tile_download_update_progress";
+    public static final String KEY_PROGRESS    = "progress";
+    public static final String KEY_MAX         = "max";
+    public static final String KEY_METRICS     = "metrics";
+    public static final String KEY_QUEUE_DEPTH = "queue_depth";
+    public static final String KEY_INTERACTIVE = "interactive";
+    public static final String ACTION_MAP_INTERACTION = "tile_download_map_interaction";
+
+    // request every tile, the layer decides whether its cached tile is usable
+    public static final int REFRESH_ALL     = 0;
+    // request only tiles missing in the cache
+    public static final int REFRESH_MISSING = 1;
+    // request missing tiles and revalidate tiles older than the max age
+    public static final int REFRESH_STALE   = 2;
+
+    // part of failed tiles the job tolerates before it is aborted
+    public static final float DEFAULT_ERROR_BUDGET = 0.05f;
+    // failed tiles tolerated at the beginning, when the part is not representative yet
+    protected static final int MIN_ERROR_BUDGET    = 20;
 
     protected NotificationManager        mNotifyManager;
     protected NotificationCompat.Builder mBuilder;
 
     protected Queue<DownloadTask> mQueue;
     protected Thread              mDownloadThread;
+    protected TileDownloadEngine  mEngine;
+    protected Intent              mProgressIntent;
+
+    // metrics of the current job
+    protected volatile TileDownloadMetrics mMetrics;
+
+    protected BroadcastReceiver mInteractionReceiver = new BroadcastReceiver()
+    {
+        @Override
+        public void onReceive(
+                Context context,
+                Intent intent)
+        {
+            mEngine.setInteractive(intent.getBooleanExtra(KEY_INTERACTIVE, false));
+        }
+    };
+    protected AtomicInteger       mUrlCounter = new AtomicInteger();
+
+    // conditions of the running job and of the device, waiters are woken on device changes
+    protected volatile TileDownloadConstraints       mConstraints = TileDownloadConstraints.NONE;
+    protected volatile TileDownloadConstraints.State mDeviceState;
+    protected final    Object                        mConstraintLock = new Object();
+
+    protected BroadcastReceiver mDeviceReceiver = new BroadcastReceiver()
+    {
+        @Override
+        public void onReceive(
+                Context context,
+                Intent intent)
+        {
+            updateDeviceState();
+        }
+    };
 
     protected volatile boolean mIsDownloadError = false;
 
@@ -123,6 +199,68 @@ public class TileDownloadService extends Service {
         }
 
         mQueue = new ConcurrentLinkedQueue<>();
+        mEngine = new TileDownloadEngine();
+        mProgressIntent = new Intent(ACTION_UPDATE);
+        registerReceiver(mInteractionReceiver, new IntentFilter(ACTION_MAP_INTERACTION));
+
+        mDeviceState = TileDownloadConstraints.State.read(this);
+        IntentFilter deviceFilter = new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION);
+        deviceFilter.addAction(Intent.ACTION_BATTERY_CHANGED);
+        deviceFilter.addAction(Intent.ACTION_POWER_CONNECTED);
+        deviceFilter.addAction(Intent.ACTION_POWER_DISCONNECTED);
+        registerReceiver(mDeviceReceiver, deviceFilter);
+    }
+
+    protected void updateDeviceState() {
+        mDeviceState = TileDownloadConstraints.State.read(this);
+        synchronized (mConstraintLock) {
+            mConstraintLock.notifyAll();
+        }
+    }
+
+    /**
+     * @return string resource of the condition the running job waits for, 0 if it may run
+     */
+    protected int getWaitingReason() {
+        return mConstraints.getWaitingReason(mDeviceState);
+    }
+
+    /**
+     * Blocks until the device meets the constraints of the running job.
+     *
+     * @return false if the job is stopped or failed meanwhile
+     */
+    protected boolean waitForConstraints() {
+        synchronized (mConstraintLock) {
+            while (getWaitingReason() != 0) {
+                if (mIsDownloadInterrupted || isDownloadError()) {
+                    return false;
+                }
+                try {
+                    mConstraintLock.wait(PROGRESS_INTERVAL);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+        return !mIsDownloadInterrupted;
+    }
+
+    /**
+     * Tells bulk downloads of the process and of the running service the map is panned or
+     * zoomed, they are throttled until the interaction ends.
+     */
+    public static void notifyMapInteraction(
+            Context context,
+            boolean interactive)
+    {
+        TileDownloadEngine.getInstance().setInteractive(interactive);
+
+        Intent intent = new Intent(ACTION_MAP_INTERACTION);
+        intent.setPackage(context.getPackageName());
+        intent.putExtra(KEY_INTERACTIVE, interactive);
+        context.sendBroadcast(intent);
     }
 
     // For overriding in subclasses
@@ -154,13 +292,133 @@ public class TileDownloadService extends Service {
                         cancelDownload();
                         stopSelf();
                         break;
+                    case ACTION_RESUME:
+                        if (Constants.DEBUG_MODE) {
+                            Log.d(Constants.TAG, "TileDownloadService, ACTION_RESUME");
+                        }
+                        resumeTasks();
+                        break;
+                    case ACTION_RETRY:
+                        if (Constants.DEBUG_MODE) {
+                            Log.d(Constants.TAG, "TileDownloadService, ACTION_RETRY");
+                        }
+                        retryFailedTiles(intent.getStringExtra(KEY_PATH));
+                        break;
                 }
                 return START_STICKY;
             }
+        } else if (resumeTasks()) {
+            // restarted by the system after the process was killed
+            return START_STICKY;
+        }
+
+        if (mDownloadThread == null) {
+            stopSelf();
         }
         return START_NOT_STICKY;
     }
 
+    /**
+     * Queues unfinished jobs of all tile layers, stopped or lost with the killed process.
+     *
+     * @return true if any job is queued
+     */
+    protected boolean resumeTasks() {
+        boolean isQueued = false;
+        for (TileDownloadJournal journal : getPendingJournals(null)) {
+            if (isQueued(journal)) {
+                continue;
+            }
+            addTask(createTask(journal));
+            isQueued = true;
+        }
+        return isQueued;
+    }
+
+    /**
+     * Queues follow-up jobs which download only the tiles failed after all retries.
+     *
+     * @param layerPathName
+     *         the layer or null for all layers
+     */
+    protected void retryFailedTiles(String layerPathName) {
+        for (TileDownloadJournal journal : getPendingJournals(layerPathName)) {
+            if (journal.getFailedCount() == 0 || isQueued(journal)) {
+                continue;
+            }
+
+            DownloadTask task = createTask(journal);
+            task.setRetryFailed(true);
+            addTask(task);
+        }
+
+        if (mDownloadThread == null) {
+            stopSelf();
+        }
+    }
+
+    /**
+     * @return the job of the journal with the parameters of its first run
+     */
+    protected DownloadTask createTask(TileDownloadJournal journal) {
+        DownloadTask task = new DownloadTask(
+                journal.getLayerPathName(), journal.getEnvelope(), journal.getZoomList(),
+                journal.getRefreshMode(), journal.getMaxAge());
+        task.setMaxAttempts(journal.getMaxAttempts());
+        task.setErrorBudget(journal.getErrorBudget());
+        task.setPacked(journal.isPacked());
+        task.setConstraints(journal.getConstraints());
+        task.setShape(journal.getShape());
+        return task;
+    }
+
+    /**
+     * @param layerPathName
+     *         the layer or null for all layers
+     */
+    protected List<TileDownloadJournal> getPendingJournals(String layerPathName) {
+        List<TileDownloadJournal> journals = new ArrayList<>();
+        MapBase map = MapBase.getInstance();
+        if (null == map) {
+            return journals;
+        }
+
+        map.load();
+        List<ILayer> layers = new ArrayList<>();
+        LayerGroup.getLayersByType(
+                map, Constants.LAYERTYPE_REMOTE_TMS | Constants.LAYERTYPE_NGW_RASTER, layers);
+
+        for (ILayer layer : layers) {
+            if (layer instanceof RemoteTMSLayer) {
+                RemoteTMSLayer tmsLayer = (RemoteTMSLayer) layer;
+                if (null == layerPathName || layerPathName.equals(tmsLayer.getPath().getName())) {
+                    journals.addAll(getJournals(tmsLayer));
+                }
+            }
+        }
+        return journals;
+    }
+
+    protected boolean isQueued(TileDownloadJournal journal) {
+        String name = journal.getFileName();
+        for (DownloadTask task : mQueue) {
+            if (task.getLayerPathName().equals(journal.getLayerPathName()) &&
+                name.equals(TileDownloadJournal.getFileName(
+                        task.getEnvelope(), task.getZoomList(), task.getShape()))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return unfinished download jobs of the layer, the progress of each is
+     * {@link TileDownloadJournal#getCompletedCount()} of {@link TileDownloadJournal#getTileCount()}
+     */
+    public static List<TileDownloadJournal> getJournals(RemoteTMSLayer layer) {
+        return TileDownloadJournal.list(layer.getPath());
+    }
+
     protected void addDownloadTask(Intent intent) {
         if (Constants.DEBUG_MODE) {
             Log.d(Constants.TAG, "Add task to download queue");
@@ -172,13 +430,54 @@ public class TileDownloadService extends Service {
         double dfMaxY = intent.getDoubleExtra(KEY_MAXY, GeoConstants.MERCATOR_MAX);
         GeoEnvelope env = new GeoEnvelope(dfMinX, dfMaxX, dfMinY, dfMaxY);
 
+        // a geometry in map coordinates limits the job to tiles of the shape, it is passed in
+        // a file as the journal keeps it
+        TileShape shape = null;
+        if (intent.hasExtra(KEY_SHAPE)) {
+            File shapeFile = new File(intent.getStringExtra(KEY_SHAPE));
+            try {
+                shape = TileShape.load(shapeFile);
+                env = shape.getEnvelope();
+            } catch (IOException e) {
+                e.printStackTrace();
+                return;
+            } finally {
+                shapeFile.delete();
+            }
+        }
+
+        int refreshMode = intent.getIntExtra(KEY_REFRESH, REFRESH_ALL);
+        long maxAge = intent.getLongExtra(KEY_MAX_AGE, TileCacheChecker.DEFAULT_MAX_AGE);
+        int maxAttempts = intent.getIntExtra(KEY_ATTEMPTS, TileRetryPolicy.DEFAULT_MAX_ATTEMPTS);
+        float errorBudget = intent.getFloatExtra(KEY_ERROR_RATE, DEFAULT_ERROR_BUDGET);
+
+        List<Integer> zoomList = null;
         if (intent.hasExtra(KEY_ZOOM_FROM) && intent.hasExtra(KEY_ZOOM_TO)) {
             int zoomFrom = intent.getIntExtra(KEY_ZOOM_FROM, 0);
             int zoomTo = intent.getIntExtra(KEY_ZOOM_TO, 18);
-            addTask(layerPathName, env, zoomFrom, zoomTo);
+            zoomList = getZoomList(zoomFrom, zoomTo);
         } else if (intent.hasExtra(KEY_ZOOM_LIST)) {
-            List<Integer> zoomList = intent.getIntegerArrayListExtra(KEY_ZOOM_LIST);
-            addTask(layerPathName, env, zoomList);
+            zoomList = intent.getIntegerArrayListExtra(KEY_ZOOM_LIST);
+        }
+
+        if (null != zoomList) {
+            DownloadTask task =
+                    new DownloadTask(layerPathName, env, zoomList, refreshMode, maxAge);
+            task.setMaxAttempts(maxAttempts);
+            task.setErrorBudget(errorBudget);
+            task.setPacked(intent.getBooleanExtra(KEY_PACKED, false));
+            task.setShape(shape);
+
+            int flags = 0;
+            if (intent.getBooleanExtra(KEY_UNMETERED, false)) {
+                flags |= TileDownloadConstraints.FLAG_UNMETERED;
+            }
+            if (intent.getBooleanExtra(KEY_CHARGING, false)) {
+                flags |= TileDownloadConstraints.FLAG_CHARGING;
+            }
+            task.setConstraints(new TileDownloadConstraints(
+                    flags, intent.getIntExtra(KEY_MIN_BATTERY, 0)));
+            addTask(task);
         }
     }
 
@@ -201,6 +500,7 @@ public class TileDownloadService extends Service {
     // For overriding in subclasses
     protected void clearResources() {
         mQueue.clear();
+        mEngine.cancel();
         if (mDownloadThread != null && mDownloadThread.isAlive()) {
             mDownloadThread.interrupt();
             mDownloadThread = null;
@@ -218,16 +518,17 @@ public class TileDownloadService extends Service {
 
     @Override
     public void onDestroy() {
+        unregisterReceiver(mInteractionReceiver);
+        unregisterReceiver(mDeviceReceiver);
         clearResources();
+        mEngine.shutdown();
         if (Constants.DEBUG_MODE) {
             Log.d(Constants.TAG, "TileDownloadService.onDestroy(), service is stopped");
         }
         super.onDestroy();
     }
 
-    protected void addTask(
-            String layerPathName,
-            GeoEnvelope env,
+    protected static List<Integer> getZoomList(
             int zoomFrom,
             int zoomTo)
     {
@@ -235,7 +536,16 @@ public class TileDownloadService extends Service {
         for (int zoom = zoomFrom; zoom < zoomTo + 1; ++zoom) {
             zoomList.add(zoom);
         }
-        addTask(layerPathName, env, zoomList);
+        return zoomList;
+    }
+
+    protected void addTask(
+            String layerPathName,
+            GeoEnvelope env,
+            int zoomFrom,
+            int zoomTo)
+    {
+        addTask(layerPathName, env, getZoomList(zoomFrom, zoomTo));
     }
 
     protected void addTask(
@@ -243,7 +553,21 @@ public class TileDownloadService extends Service {
             GeoEnvelope env,
             List<Integer> zoomList)
     {
-        DownloadTask task = new DownloadTask(layerPathName, env, zoomList);
+        addTask(layerPathName, env, zoomList, REFRESH_ALL, TileCacheChecker.DEFAULT_MAX_AGE);
+    }
+
+    protected void addTask(
+            String layerPathName,
+            GeoEnvelope env,
+            List<Integer> zoomList,
+            int refreshMode,
+            long maxAge)
+    {
+        addTask(new DownloadTask(layerPathName, env, zoomList, refreshMode, maxAge));
+    }
+
+    protected void addTask(DownloadTask task)
+    {
         mQueue.add(task);
 
         if (mDownloadThread == null) {
@@ -290,7 +614,11 @@ public class TileDownloadService extends Service {
         });
     }
 
-    // For overriding in subclasses
+    /**
+     * @deprecated materialises every tile of the zoom, the download uses
+     * {@link #getTileIterator(DownloadTask, RemoteTMSLayer)}
+     */
+    @Deprecated
     protected List<TileItem> getTileItems(
             GeoEnvelope bounds,
             double zoom,
@@ -299,6 +627,118 @@ public class TileDownloadService extends Service {
         return MapUtil.getTileItems(bounds, zoom, tmsLayer.getTMSType());
     }
 
+    // For overriding in subclasses
+    protected TileIterator getTileIterator(
+            DownloadTask task,
+            RemoteTMSLayer tmsLayer)
+    {
+        if (null != task.getShape()) {
+            return new ShapeTileIterator(
+                    task.getShape(), task.getZoomList(), tmsLayer.getTMSType());
+        }
+        return new TileIterator(task.getEnvelope(), task.getZoomList(), tmsLayer.getTMSType());
+    }
+
+    // For overriding in subclasses
+    protected TileDownloadJournal openJournal(
+            DownloadTask task,
+            RemoteTMSLayer tmsLayer)
+    {
+        return TileDownloadJournal.open(
+                tmsLayer.getPath(), task.getLayerPathName(), task.getEnvelope(),
+                task.getZoomList(), task.getShape());
+    }
+
+    /**
+     * Writes queued tiles of the archive before the journal, so no tile is marked completed
+     * while it is only in memory. The journal is not saved if the archive was deleted, it keeps
+     * the progress of tiles really stored.
+     */
+    protected void saveJournal(
+            TileDownloadJournal journal,
+            TileArchive archive)
+    {
+        if (null == archive || archive.flush()) {
+            saveJournal(journal);
+        }
+    }
+
+    protected void saveJournal(TileDownloadJournal journal) {
+        try {
+            journal.save();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    protected void notifyProgress(
+            RemoteTMSLayer tmsLayer,
+            long maxValue,
+            long value)
+    {
+        // notification and progressors take int values
+        int divider = 1;
+        while (maxValue / divider > Integer.MAX_VALUE) {
+            divider *= 2;
+        }
+        int max = (int) (maxValue / divider);
+        int current = (int) Math.min(max, value / divider);
+
+        mBuilder.setProgress(max, current, false)
+                .setContentText(getString(R.string.processing) + " " + tmsLayer.getName());
+
+        TileDownloadMetrics metrics = mMetrics;
+        Bundle extras = null;
+        if (null != metrics) {
+            extras = metrics.toBundle(maxValue - value);
+            mBuilder.setSubText(getMetricsText(metrics, maxValue - value));
+        }
+        // a paused job tells what it waits for instead of the rates
+        int reason = getWaitingReason();
+        if (0 != reason) {
+            mBuilder.setSubText(getString(reason));
+        }
+
+        mNotifyManager.notify(TILE_DOWNLOAD_NOTIFICATION_ID, mBuilder.build());
+        sendProgressorsValues(max, current, tmsLayer.getPath().getName());
+        sendMetrics(maxValue, value, tmsLayer.getPath().getName(), extras);
+    }
+
+    protected String getMetricsText(
+            TileDownloadMetrics metrics,
+            long remainingTiles)
+    {
+        long eta = metrics.getEta(remainingTiles);
+        return getString(
+                R.string.tile_download_metrics, metrics.getTilesPerSecond(),
+                Formatter.formatShortFileSize(this, (long) metrics.getBytesPerSecond()),
+                eta < 0 ? "-" : DateUtils.formatElapsedTime(eta / 1000));
+    }
+
+    /**
+     * Broadcasts the progress with the job metrics, see {@link TileDownloadMetrics} keys, and
+     * the engine queue depth by priority class.
+     */
+    protected void sendMetrics(
+            long maxValue,
+            long value,
+            String layerPathName,
+            Bundle metrics)
+    {
+        int[] queueDepth = new int[TileDownloadEngine.PRIORITY_COUNT];
+        for (int i = 0; i < queueDepth.length; i++) {
+            queueDepth[i] = mEngine.getQueueDepth(i);
+        }
+
+        mProgressIntent.putExtra(KEY_PROGRESS, value)
+                .putExtra(KEY_MAX, maxValue)
+                .putExtra(KEY_PATH, layerPathName)
+                .putExtra(KEY_METRICS, metrics)
+                .putExtra(KEY_QUEUE_DEPTH, queueDepth)
+                .putExtra(KEY_PAUSED, getWaitingReason() != 0);
+        sendBroadcast(mProgressIntent);
+    }
+
     protected void download(DownloadTask task) {
         mIsDownloadError = false;
 
@@ -317,70 +757,69 @@ public class TileDownloadService extends Service {
             mNotifyManager.notify(TILE_DOWNLOAD_NOTIFICATION_ID, mBuilder.build());
 
             final RemoteTMSLayer tmsLayer = (RemoteTMSLayer) layer;
-            final List<TileItem> tiles = new LinkedList<>();
-            int zoomCount = task.getZoomList().size();
-
-            sendProgressorsValues(zoomCount, 0, tmsLayer.getPath().getName());
-
-            for (Integer zoom : task.getZoomList()) {
-                if (mIsDownloadInterrupted) {
-                    if (Constants.DEBUG_MODE) {
-                        Log.d(
-                                Constants.TAG,
-                                "TileDownloadService.mDownloadThread is interrupted, point 01");
-                    }
-                    return;
-                }
-
-                tiles.addAll(getTileItems(task.getEnvelope(), zoom, tmsLayer));
-
-                mBuilder.setProgress(zoomCount, zoom, false)
-                        .setContentText(getString(R.string.form_tiles_list));
-                mNotifyManager.notify(TILE_DOWNLOAD_NOTIFICATION_ID, mBuilder.build());
-                sendProgressorsValues(zoomCount, zoom, tmsLayer.getPath().getName());
-
-                if (tiles.size() > Constants.MAX_TILES_COUNT) {
-                    break;
+            if (mIsDownloadInterrupted) {
+                if (Constants.DEBUG_MODE) {
+                    Log.d(
+                            Constants.TAG,
+                            "TileDownloadService.mDownloadThread is interrupted, point 01");
                 }
+                return;
             }
 
-            int threadCount = DRAWING_SEPARATE_THREADS;
-            int coreCount = Runtime.getRuntime().availableProcessors();
-
-            // FIXME: More than 1 pool size causing strange behaviour on 6.0.
-            // FIXME: Check this again after 29.06.2017.
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
-                coreCount = 1;
-            }
-
-            ThreadPoolExecutor threadPool =
-                    new ThreadPoolExecutor(coreCount, threadCount, KEEP_ALIVE_TIME,
-                            KEEP_ALIVE_TIME_UNIT, new LinkedBlockingQueue<Runnable>(),
-                            new RejectedExecutionHandler()
-                            {
-                                @Override
-                                public void rejectedExecution(
-                                        Runnable r,
-                                        ThreadPoolExecutor executor)
-                                {
-                                    try {
-                                        executor.getQueue().put(r);
-                                    } catch (InterruptedException e) {
-                                        e.printStackTrace();
-                                        //throw new RuntimeException("Interrupted while submitting task", e);
-                                    }
-                                }
-                            });
-
-            int tilesSize = tiles.size();
-            List<Future> futures = new ArrayList<>(tilesSize);
-
-            int nStep = tilesSize / Constants.DRAW_NOTIFY_STEP_PERCENT;
+            // completed tiles survive a stop or a killed process, a new run skips them
+            final TileDownloadJournal journal = openJournal(task, tmsLayer);
+            journal.setConstraints(task.getConstraints());
+            journal.setParameters(
+                    task.getRefreshMode(), task.getMaxAge(), task.getMaxAttempts(),
+                    task.getErrorBudget(), task.isPacked());
+            mConstraints = task.getConstraints();
+            saveJournal(journal);
+            long lastSave = System.currentTimeMillis();
+
+            // tiles are enumerated lazily while the engine takes them, memory does not depend
+            // on the tile count, a follow-up job takes only tiles of the failure ledger
+            TileIterator tiles = task.isRetryFailed()
+                                 ? new FailedTileIterator(
+                                         task.getEnvelope(), journal.getFailures(),
+                                         tmsLayer.getTMSType())
+                                 : getTileIterator(task, tmsLayer);
+            long progressBase = task.isRetryFailed() ? journal.getCompletedCount() : 0;
+
+            // tiles of a packed layer go to its archive in batched transactions, only
+            // RemoteTMSLayerUI reads the archive, other remote layers keep tile files
+            boolean isPacked = tmsLayer instanceof RemoteTMSLayerUI &&
+                               (task.isPacked() || TileArchive.exists(tmsLayer.getPath()));
+            final TileArchive archive =
+                    isPacked ? TileArchive.open(tmsLayer.getPath(), tmsLayer.getTMSType()) : null;
+
+            // cached tiles are checked by column listings before any network work is queued
+            final int refreshMode = task.getRefreshMode();
+            final TileCacheChecker cache = refreshMode == REFRESH_ALL || null != archive
+                                           ? null
+                                           : new TileCacheChecker(
+                                                   tmsLayer.getPath(),
+                                                   refreshMode == REFRESH_STALE ? task.getMaxAge() : 0);
+
+            final TileDownloadMetrics metrics = new TileDownloadMetrics();
+            mMetrics = metrics;
+            final TileRetryPolicy retryPolicy = new TileRetryPolicy(
+                    task.getMaxAttempts(), TileRetryPolicy.DEFAULT_BASE_DELAY,
+                    TileRetryPolicy.DEFAULT_MAX_DELAY);
+            final float errorBudget = task.getErrorBudget();
+
+            String url = tmsLayer.getURL();
+            final String host = TileDownloadEngine.getHost(url);
+            mEngine.setHostLimit(url, TileDownloadEngine.DEFAULT_HOST_LIMIT);
+
+            long tilesSize = tiles.getTileCount();
+            long nStep = tilesSize / Constants.DRAW_NOTIFY_STEP_PERCENT;
             if (nStep == 0) {
                 nStep = 1;
             }
 
-            for (int i = 0; i < tilesSize; ++i) {
+            long i = 0;
+            while (tiles.hasNext()) {
+                final TileItem tile = tiles.next();
                 boolean isError = isDownloadError();
                 if (isError || mIsDownloadInterrupted) {
                     if (Constants.DEBUG_MODE) {
@@ -392,97 +831,122 @@ public class TileDownloadService extends Service {
                     break;
                 }
 
-                final TileItem tile = tiles.get(i);
-                futures.add(threadPool.submit(new Runnable()
-                {
-                    @Override
-                    public void run()
+                final int zoom = tiles.getCurrentZoom();
+                final long index = tiles.getCurrentIndex();
+                if (journal.isCompleted(zoom, index)) {
+                    continue;
+                }
+                if (null != cache && cache.getState(tile) == TileCacheChecker.STATE_FRESH) {
+                    metrics.recordSkipped();
+                    journal.setCompleted(zoom, index);
+                    continue;
+                }
+                // packed tiles keep no age, an archived tile is fresh for both refresh modes
+                if (null != archive && refreshMode != REFRESH_ALL && archive.contains(tile)) {
+                    metrics.recordSkipped();
+                    journal.setCompleted(zoom, index);
+                    continue;
+                }
+
+                // the job pauses with its progress saved until the device meets its constraints
+                if (getWaitingReason() != 0) {
+                    saveJournal(journal, archive);
+                    notifyProgress(tmsLayer, tilesSize, journal.getCompletedCount() - progressBase);
+                    if (!waitForConstraints()) {
+                        break;
+                    }
+                }
+
+                try {
+                    // blocks while the engine queue is full
+                    mEngine.submit(host, new Runnable()
                     {
-                        android.os.Process.setThreadPriority(
-                                Constants.DEFAULT_DRAW_THREAD_PRIORITY);
-
-                        if (!downloadTile(tmsLayer, tile)) {
-                            mIsDownloadError = true;
-                            if (Constants.DEBUG_MODE) {
-                                Log.d(
-                                        Constants.TAG,
-                                        "TileDownloadService.mDownloadThread, downloadTile() with error, layer: "
-                                                + tmsLayer.getName() + ", tile: "
-                                                + tile.toString());
+                        @Override
+                        public void run()
+                        {
+                            int status = downloadWithRetry(
+                                    tmsLayer, tile, host, refreshMode, cache, archive,
+                                    metrics, retryPolicy);
+
+                            if (isSuccess(status)) {
+                                journal.setCompleted(zoom, index);
+                            } else {
+                                // the tile goes to the ledger, the job goes on while the
+                                // failures fit the error budget
+                                journal.setFailed(zoom, index, status);
+                                if (isErrorBudgetExceeded(journal, metrics, errorBudget)) {
+                                    mIsDownloadError = true;
+                                }
+                                if (Constants.DEBUG_MODE) {
+                                    Log.d(
+                                            Constants.TAG,
+                                            "TileDownloadService.mDownloadThread, downloadTile() with error, layer: "
+                                                    + tmsLayer.getName() + ", tile: "
+                                                    + tile.toString() + ", status: " + status);
+                                }
                             }
                         }
-                    }
-                }));
+                    });
+                } catch (InterruptedException e) {
+                    break;
+                }
 
                 if (i % nStep == 0) {
-                    mBuilder.setProgress(tilesSize, i, false)
-                            .setContentText(
-                                    getString(R.string.processing) + " " + tmsLayer.getName());
                     // Displays the progress bar for the first time.
-                    mNotifyManager.notify(TILE_DOWNLOAD_NOTIFICATION_ID, mBuilder.build());
-                    sendProgressorsValues(tilesSize, i, tmsLayer.getPath().getName());
-                }
-            }
-
-            // in separate thread
+                    notifyProgress(tmsLayer, tilesSize, journal.getCompletedCount() - progressBase);
 
-            // wait for download ending
-            nStep = futures.size() / Constants.DRAW_NOTIFY_STEP_PERCENT;
-            if (nStep == 0) {
-                nStep = 1;
-            }
-
-            int futuresSize = futures.size();
-            for (int i = 0; i < futuresSize; ++i) {
-                boolean isError = isDownloadError();
-                if (isError || mIsDownloadInterrupted) {
-                    if (Constants.DEBUG_MODE) {
-                        Log.d(
-                                Constants.TAG,
-                                "TileDownloadService.mDownloadThread is interrupted, point 03, isDownloadError: "
-                                        + isError);
+                    long now = System.currentTimeMillis();
+                    if (now - lastSave > JOURNAL_SAVE_INTERVAL) {
+                        saveJournal(journal, archive);
+                        lastSave = now;
                     }
-                    break;
                 }
+                ++i;
+            }
 
-                try {
-                    Future future = futures.get(i);
-                    future.get(); // wait for task ending
-
-                    if (i % nStep == 0) {
-                        mBuilder.setProgress(futuresSize, i, false)
-                                .setContentText(
-                                        getString(R.string.processing) + " " + tmsLayer.getName());
-                        // Displays the progress bar for the first time.
-                        mNotifyManager.notify(TILE_DOWNLOAD_NOTIFICATION_ID, mBuilder.build());
-                        sendProgressorsValues(futuresSize, i, tmsLayer.getPath().getName());
+            // wait for download ending
+            try {
+                while (!mEngine.awaitIdle(PROGRESS_INTERVAL)) {
+                    boolean isError = isDownloadError();
+                    if (isError || mIsDownloadInterrupted) {
+                        if (Constants.DEBUG_MODE) {
+                            Log.d(
+                                    Constants.TAG,
+                                    "TileDownloadService.mDownloadThread is interrupted, point 03, isDownloadError: "
+                                            + isError);
+                        }
+                        mEngine.cancel();
+                        break;
                     }
 
-                } catch (CancellationException | InterruptedException e) {
-                    //e.printStackTrace();
-                } catch (ExecutionException e) {
-                    e.printStackTrace();
-                }
-            }
+                    notifyProgress(tmsLayer, tilesSize, journal.getCompletedCount() - progressBase);
 
-            sendProgressorsValues(futuresSize, futuresSize, tmsLayer.getPath().getName());
-
-            threadPool.shutdownNow(); // Cancel currently executing tasks
-            try {
-                // Wait a while for tasks to respond to being cancelled
-                if (!threadPool.awaitTermination(2000, Constants.KEEP_ALIVE_TIME_UNIT)) {
-                    if (Constants.DEBUG_MODE) {
-                        Log.d(
-                                Constants.TAG,
-                                "TileDownloadService.mDownloadThread, threadPool did not terminate");
+                    long now = System.currentTimeMillis();
+                    if (now - lastSave > JOURNAL_SAVE_INTERVAL) {
+                        saveJournal(journal, archive);
+                        lastSave = now;
                     }
                 }
             } catch (InterruptedException e) {
-                // (Re-)Cancel if current thread also interrupted
-                threadPool.shutdownNow();
+                mEngine.cancel();
                 // Preserve interrupt status
                 Thread.currentThread().interrupt();
             }
+
+            if (null != cache) {
+                cache.flush();
+            }
+            // a stopped or failed job keeps its journal to resume later
+            if (null != archive && !archive.flush()) {
+                Log.w(Constants.TAG, "TileDownloadService: the tile archive was deleted");
+            } else if (journal.isFinished()) {
+                journal.delete();
+            } else {
+                saveJournal(journal);
+            }
+
+            notifyProgress(tmsLayer, tilesSize, journal.getCompletedCount() - progressBase);
+            mConstraints = TileDownloadConstraints.NONE;
         } else {
             if (Constants.DEBUG_MODE) {
                 if (layer == null) {
@@ -499,6 +963,87 @@ public class TileDownloadService extends Service {
         }
     }
 
+    protected static boolean isSuccess(int status) {
+        return status == HttpURLConnection.HTTP_OK || status == HttpURLConnection.HTTP_NOT_MODIFIED;
+    }
+
+    /**
+     * @return true if the failed tiles are more than the budget part of the processed ones
+     */
+    protected boolean isErrorBudgetExceeded(
+            TileDownloadJournal journal,
+            TileDownloadMetrics metrics,
+            float errorBudget)
+    {
+        long failed = journal.getFailedCount();
+        long processed = metrics.getTileCount() + failed;
+        return failed > Math.max(MIN_ERROR_BUDGET, errorBudget * processed);
+    }
+
+    /**
+     * Downloads the tile, retrying with backoff while the policy allows.
+     *
+     * @return HTTP response code of the last attempt or a {@link TileDownloadMetrics} status
+     */
+    protected int downloadWithRetry(
+            RemoteTMSLayer tmsLayer,
+            TileItem tile,
+            String host,
+            int refreshMode,
+            TileCacheChecker cache,
+            TileArchive archive,
+            TileDownloadMetrics metrics,
+            TileRetryPolicy retryPolicy)
+    {
+        int attempt = 0;
+        while (true) {
+            int status;
+            if (null != archive) {
+                status = packTile(tmsLayer, tile, archive, metrics);
+            } else if (refreshMode == REFRESH_STALE) {
+                status = refreshTile(tmsLayer, tile, cache, metrics);
+            } else {
+                // the layer neither reports the response nor splits network and storage time,
+                // so the whole call is counted as network
+                long start = System.nanoTime();
+                if (downloadTile(tmsLayer, tile)) {
+                    long bytes = TileCacheChecker.getTileFile(tmsLayer.getPath(), tile).length();
+                    metrics.recordTile(host, bytes, System.nanoTime() - start, 0);
+                    status = HttpURLConnection.HTTP_OK;
+                } else {
+                    status = TileDownloadMetrics.STATUS_UNKNOWN;
+                    metrics.recordError(status);
+                }
+            }
+
+            if (isSuccess(status)) {
+                return status;
+            }
+
+            // a lost connection or a paused job does not spend attempts, the tile is tried
+            // again once the device meets the constraints
+            if (getWaitingReason() != 0) {
+                if (!waitForConstraints()) {
+                    return status;
+                }
+                continue;
+            }
+
+            ++attempt;
+            if (mIsDownloadInterrupted || !retryPolicy.shouldRetry(attempt, status)) {
+                return status;
+            }
+
+            metrics.recordRetry();
+            try {
+                Thread.sleep(retryPolicy.getDelay(attempt));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return status;
+            }
+        }
+    }
+
     protected void sendProgressorsValues(
             int maxValue,
             int value,
@@ -515,13 +1060,194 @@ public class TileDownloadService extends Service {
         return tmsLayer.downloadTile(tile, false);
     }
 
+    /**
+     * Downloads the tile with a conditional request. An unchanged tile costs a 304 response
+     * without a body, its cached file is only touched to be fresh again.
+     *
+     * @return HTTP response code or a {@link TileDownloadMetrics} status
+     */
     // For overriding in subclasses
-    protected boolean isDownloadError()
+    protected int refreshTile(
+            RemoteTMSLayer tmsLayer,
+            TileItem tile,
+            TileCacheChecker cache,
+            TileDownloadMetrics metrics)
     {
-        return false;
+        File tileFile = cache.getTileFile(tile);
+        String host = TileDownloadEngine.getHost(tmsLayer.getURL());
+        String url = TileDownloadEngine.getTileUrl(
+                tmsLayer.getURL(), tile.getX(), tile.getY(), tile.getZoomLevel(),
+                mUrlCounter.getAndIncrement());
+
+        long start = System.nanoTime();
+        try {
+            // no disconnect(), the connection goes back to the keep-alive pool
+            HttpURLConnection connection = NetworkUtil.getHttpConnection(
+                    "GET", url, tmsLayer.getLogin(), tmsLayer.getPassword());
+            if (null == connection) {
+                metrics.recordError(TileDownloadMetrics.STATUS_IO_ERROR);
+                return TileDownloadMetrics.STATUS_IO_ERROR;
+            }
+
+            if (tileFile.exists()) {
+                connection.setIfModifiedSince(tileFile.lastModified());
+                String eTag = cache.getETag(tile);
+                if (null != eTag) {
+                    connection.setRequestProperty("If-None-Match", eTag);
+                }
+            }
+
+            int code = connection.getResponseCode();
+            if (code == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                metrics.recordTile(host, 0, System.nanoTime() - start, 0);
+                tileFile.setLastModified(System.currentTimeMillis());
+                return code;
+            }
+            if (code != HttpURLConnection.HTTP_OK) {
+                drainErrorStream(connection);
+                metrics.recordError(code);
+                return code;
+            }
+
+            // write to a temporary file, a broken download must not replace the cached tile
+            File tempFile = new File(tileFile.getPath() + ".tmp");
+            tileFile.getParentFile().mkdirs();
+            InputStream input = connection.getInputStream();
+            OutputStream output = new FileOutputStream(tempFile);
+            long bytes = 0;
+            long storage = 0;
+            try {
+                byte[] buffer = new byte[Constants.IO_BUFFER_SIZE];
+                int read;
+                while ((read = input.read(buffer)) != -1) {
+                    long writeStart = System.nanoTime();
+                    output.write(buffer, 0, read);
+                    storage += System.nanoTime() - writeStart;
+                    bytes += read;
+                }
+            } finally {
+                long closeStart = System.nanoTime();
+                output.close();
+                storage += System.nanoTime() - closeStart;
+                input.close();
+            }
 
-        // Example for error checking
-        //return mIsDownloadError;
+            long renameStart = System.nanoTime();
+            if (!tempFile.renameTo(tileFile)) {
+                tempFile.delete();
+                metrics.recordError(TileDownloadMetrics.STATUS_IO_ERROR);
+                return TileDownloadMetrics.STATUS_IO_ERROR;
+            }
+            storage += System.nanoTime() - renameStart;
+
+            metrics.recordTile(host, bytes, System.nanoTime() - start - storage, storage);
+            cache.setETag(tile, connection.getHeaderField("ETag"));
+            return code;
+        } catch (IOException e) {
+            metrics.recordError(TileDownloadMetrics.STATUS_IO_ERROR);
+            if (Constants.DEBUG_MODE) {
+                Log.d(Constants.TAG, "TileDownloadService.refreshTile(), " + e.getMessage());
+            }
+            return TileDownloadMetrics.STATUS_IO_ERROR;
+        }
+    }
+
+    /**
+     * Downloads the tile to memory and queues it to the archive, which writes it with the next
+     * batch.
+     *
+     * @return HTTP response code or a {@link TileDownloadMetrics} status
+     */
+    // For overriding in subclasses
+    protected int packTile(
+            RemoteTMSLayer tmsLayer,
+            TileItem tile,
+            TileArchive archive,
+            TileDownloadMetrics metrics)
+    {
+        String host = TileDownloadEngine.getHost(tmsLayer.getURL());
+        String url = TileDownloadEngine.getTileUrl(
+                tmsLayer.getURL(), tile.getX(), tile.getY(), tile.getZoomLevel(),
+                mUrlCounter.getAndIncrement());
+
+        long start = System.nanoTime();
+        try {
+            HttpURLConnection connection = NetworkUtil.getHttpConnection(
+                    "GET", url, tmsLayer.getLogin(), tmsLayer.getPassword());
+            if (null == connection) {
+                metrics.recordError(TileDownloadMetrics.STATUS_IO_ERROR);
+                return TileDownloadMetrics.STATUS_IO_ERROR;
+            }
+
+            int code = connection.getResponseCode();
+            if (code != HttpURLConnection.HTTP_OK) {
+                drainErrorStream(connection);
+                metrics.recordError(code);
+                return code;
+            }
+
+            InputStream input = connection.getInputStream();
+            ByteArrayOutputStream output = new ByteArrayOutputStream(Constants.IO_BUFFER_SIZE);
+            try {
+                byte[] buffer = new byte[Constants.IO_BUFFER_SIZE];
+                int read;
+                while ((read = input.read(buffer)) != -1) {
+                    output.write(buffer, 0, read);
+                }
+            } finally {
+                input.close();
+            }
+            long network = System.nanoTime() - start;
+
+            byte[] data = output.toByteArray();
+            long storageStart = System.nanoTime();
+            if (!archive.put(tile, data)) {
+                metrics.recordError(TileDownloadMetrics.STATUS_IO_ERROR);
+                return TileDownloadMetrics.STATUS_IO_ERROR;
+            }
+            metrics.recordTile(host, data.length, network, System.nanoTime() - storageStart);
+            return code;
+        } catch (IOException e) {
+            metrics.recordError(TileDownloadMetrics.STATUS_IO_ERROR);
+            if (Constants.DEBUG_MODE) {
+                Log.d(Constants.TAG, "TileDownloadService.packTile(), " + e.getMessage());
+            }
+            return TileDownloadMetrics.STATUS_IO_ERROR;
+        }
+    }
+
+    /**
+     * Reads out and closes the body of an error response, an unread body keeps the connection
+     * from going back to the keep-alive pool.
+     */
+    protected static void drainErrorStream(HttpURLConnection connection)
+    {
+        InputStream error = connection.getErrorStream();
+        if (null == error) {
+            return;
+        }
+
+        try {
+            byte[] buffer = new byte[Constants.IO_BUFFER_SIZE];
+            while (error.read(buffer) != -1) {
+                // skip the body
+            }
+        } catch (IOException e) {
+            // the connection is dropped instead of reused
+        } finally {
+            try {
+                error.close();
+            } catch (IOException e) {
+                // nothing to do
+            }
+        }
+    }
+
+    // For overriding in subclasses
+    protected boolean isDownloadError()
+    {
+        // set when failed tiles exceed the error budget of the job
+        return mIsDownloadError;
     }
 
     public class DownloadTask
@@ -529,15 +1255,35 @@ public class TileDownloadService extends Service {
         String        mLayerPathName;
         GeoEnvelope   mEnvelope;
         List<Integer> mZoomList;
+        int           mRefreshMode;
+        long          mMaxAge;
+        int           mMaxAttempts = TileRetryPolicy.DEFAULT_MAX_ATTEMPTS;
+        float         mErrorBudget = DEFAULT_ERROR_BUDGET;
+        boolean       mIsRetryFailed;
+        boolean       mIsPacked;
+        TileDownloadConstraints mConstraints = TileDownloadConstraints.NONE;
+        TileShape     mShape;
 
         DownloadTask(
                 String layerPathName,
                 GeoEnvelope envelope,
                 List<Integer> zoomList)
+        {
+            this(layerPathName, envelope, zoomList, REFRESH_ALL, TileCacheChecker.DEFAULT_MAX_AGE);
+        }
+
+        DownloadTask(
+                String layerPathName,
+                GeoEnvelope envelope,
+                List<Integer> zoomList,
+                int refreshMode,
+                long maxAge)
         {
             mLayerPathName = layerPathName;
             mEnvelope = envelope;
             mZoomList = zoomList;
+            mRefreshMode = refreshMode;
+            mMaxAge = maxAge;
         }
 
         public String getLayerPathName()
@@ -554,5 +1300,84 @@ public class TileDownloadService extends Service {
         {
             return mZoomList;
         }
+
+        int getRefreshMode()
+        {
+            return mRefreshMode;
+        }
+
+        long getMaxAge()
+        {
+            return mMaxAge;
+        }
+
+        int getMaxAttempts()
+        {
+            return mMaxAttempts;
+        }
+
+        void setMaxAttempts(int maxAttempts)
+        {
+            mMaxAttempts = maxAttempts;
+        }
+
+        float getErrorBudget()
+        {
+            return mErrorBudget;
+        }
+
+        void setErrorBudget(float errorBudget)
+        {
+            mErrorBudget = errorBudget;
+        }
+
+        /**
+         * @return true for a follow-up job which downloads only tiles of the failure ledger
+         */
+        boolean isRetryFailed()
+        {
+            return mIsRetryFailed;
+        }
+
+        void setRetryFailed(boolean retryFailed)
+        {
+            mIsRetryFailed = retryFailed;
+        }
+
+        /**
+         * @return true to store tiles in the layer archive even if the layer is not packed yet
+         */
+        boolean isPacked()
+        {
+            return mIsPacked;
+        }
+
+        void setPacked(boolean packed)
+        {
+            mIsPacked = packed;
+        }
+
+        TileDownloadConstraints getConstraints()
+        {
+            return mConstraints;
+        }
+
+        void setConstraints(TileDownloadConstraints constraints)
+        {
+            mConstraints = constraints;
+        }
+
+        /**
+         * @return shape the tiles are limited to or null for the whole envelope
+         */
+        TileShape getShape()
+        {
+            return mShape;
+        }
+
+        void setShape(TileShape shape)
+        {
+            mShape = shape;
+        }
     }
 }
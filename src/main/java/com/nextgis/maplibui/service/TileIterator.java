@@ -0,0 +1,347 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2019 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplibui.service;
+
+import com.nextgis.maplib.datasource.GeoEnvelope;
+import com.nextgis.maplib.datasource.TileItem;
+import com.nextgis.maplib.util.GeoConstants;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+
+/**
+ * Lazily walks tiles of an envelope zoom by zoom. Inside a zoom the tile range is split to
+ * square blocks visited row by row in alternating direction, tiles of a block are visited in
+ * Hilbert curve order, so neighbour tiles are requested close in time and memory does not
+ * depend on the tile count.
+ */
+public class TileIterator
+        implements Iterator<TileItem>
+{
+    protected static final int BLOCK_BITS = 4;
+    protected static final int BLOCK_SIZE = 1 << BLOCK_BITS;
+    protected static final int BLOCK_AREA = BLOCK_SIZE * BLOCK_SIZE;
+
+    protected final GeoEnvelope   mBounds;
+    protected final List<Integer> mZoomList;
+    protected final int           mTmsType;
+
+    protected int mZoomIndex = -1;
+    protected int mZoom;
+    protected int mTilesInDimension;
+    protected double mTileSize;
+    protected int mBegX, mBegY, mEndX, mEndY;
+    protected int mBlocksX, mBlocksY;
+    protected int mBlock, mCell;
+
+    protected final int[] mPoint = new int[2];
+
+    protected TileItem mNext;
+    protected int      mLastX, mLastY;
+    // zoom and row major index in the zoom range of the tile returned by next()
+    protected int      mCurrentZoom;
+    protected long     mCurrentIndex;
+
+
+    public TileIterator(
+            GeoEnvelope bounds,
+            List<Integer> zoomList,
+            int tmsType)
+    {
+        this(bounds, zoomList, tmsType, true);
+    }
+
+
+    /**
+     * @param start
+     *         false for a subclass which sets its state first and then calls {@link #start()}
+     */
+    protected TileIterator(
+            GeoEnvelope bounds,
+            List<Integer> zoomList,
+            int tmsType,
+            boolean start)
+    {
+        mBounds = bounds;
+        mZoomList = zoomList;
+        mTmsType = tmsType;
+        if (start) {
+            start();
+        }
+    }
+
+
+    protected void start()
+    {
+        nextZoom();
+        mNext = findNext();
+    }
+
+
+    /**
+     * @return tile count of all zooms, computed without walking the tiles
+     */
+    public long getTileCount()
+    {
+        long count = 0;
+        for (Integer zoom : mZoomList) {
+            int[] range = getRange(mBounds, zoom);
+            count += (long) (range[2] - range[0]) * (range[3] - range[1]);
+        }
+        return count;
+    }
+
+
+    /**
+     * @return tile count of the zoom
+     */
+    public static long getTileCount(
+            GeoEnvelope bounds,
+            int zoom)
+    {
+        int[] range = getRange(bounds, zoom);
+        return (long) (range[2] - range[0]) * (range[3] - range[1]);
+    }
+
+
+    /**
+     * @return {begX, begY, endX, endY} tile range of the envelope at the zoom, end exclusive, y
+     * from the south
+     */
+    public static int[] getRange(
+            GeoEnvelope bounds,
+            int zoom)
+    {
+        int tiles = 1 << zoom;
+        double tileSize = GeoConstants.MERCATOR_MAX * 2 / tiles;
+
+        int begX = clamp((int) Math.floor((bounds.getMinX() + GeoConstants.MERCATOR_MAX) / tileSize), tiles);
+        int begY = clamp((int) Math.floor((bounds.getMinY() + GeoConstants.MERCATOR_MAX) / tileSize), tiles);
+        int endX = clamp((int) Math.ceil((bounds.getMaxX() + GeoConstants.MERCATOR_MAX) / tileSize), tiles);
+        int endY = clamp((int) Math.ceil((bounds.getMaxY() + GeoConstants.MERCATOR_MAX) / tileSize), tiles);
+        return new int[] {begX, begY, Math.max(begX, endX), Math.max(begY, endY)};
+    }
+
+
+    protected static int clamp(
+            int value,
+            int max)
+    {
+        return value < 0 ? 0 : value > max ? max : value;
+    }
+
+
+    protected boolean nextZoom()
+    {
+        while (++mZoomIndex < mZoomList.size()) {
+            if (setZoom(mZoomList.get(mZoomIndex))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    /**
+     * @return false if the envelope has no tiles at the zoom
+     */
+    protected boolean setZoom(int zoom)
+    {
+        mZoom = zoom;
+        mTilesInDimension = 1 << mZoom;
+        mTileSize = GeoConstants.MERCATOR_MAX * 2 / mTilesInDimension;
+
+        int[] range = getRange(mBounds, mZoom);
+        mBegX = range[0];
+        mBegY = range[1];
+        mEndX = range[2];
+        mEndY = range[3];
+        if (mEndX > mBegX && mEndY > mBegY) {
+            mBlocksX = (mEndX - mBegX + BLOCK_SIZE - 1) / BLOCK_SIZE;
+            mBlocksY = (mEndY - mBegY + BLOCK_SIZE - 1) / BLOCK_SIZE;
+            mBlock = 0;
+            mCell = 0;
+            return true;
+        }
+        return false;
+    }
+
+
+    protected TileItem findNext()
+    {
+        if (mZoomIndex >= mZoomList.size()) {
+            return null;
+        }
+
+        int[] point = mPoint;
+        while (true) {
+            if (mCell >= BLOCK_AREA) {
+                mCell = 0;
+                if (++mBlock >= mBlocksX * mBlocksY && !nextZoom()) {
+                    return null;
+                }
+            }
+
+            int blockY = mBlock / mBlocksX;
+            int blockX = mBlock % mBlocksX;
+            if ((blockY & 1) == 1) {
+                blockX = mBlocksX - 1 - blockX; // serpentine rows keep blocks adjacent
+            }
+            if (mCell == 0 && !acceptBlock(
+                    mBegX + blockX * BLOCK_SIZE, mBegY + blockY * BLOCK_SIZE)) {
+                mCell = BLOCK_AREA;
+                continue;
+            }
+
+            hilbertToXY(BLOCK_SIZE, mCell++, point);
+            int x = mBegX + blockX * BLOCK_SIZE + point[0];
+            int y = mBegY + blockY * BLOCK_SIZE + point[1];
+            if (x < mEndX && y < mEndY && accept(x, y)) {
+                return createTile(x, y);
+            }
+        }
+    }
+
+
+    /**
+     * @return false to skip the whole block starting at the tile
+     */
+    protected boolean acceptBlock(
+            int x,
+            int y)
+    {
+        return true;
+    }
+
+
+    /**
+     * @return false to skip the tile of the range
+     */
+    protected boolean accept(
+            int x,
+            int y)
+    {
+        return true;
+    }
+
+
+    protected TileItem createTile(
+            int x,
+            int y)
+    {
+        mLastX = x;
+        mLastY = y;
+
+        double minX = -GeoConstants.MERCATOR_MAX + x * mTileSize;
+        double minY = -GeoConstants.MERCATOR_MAX + y * mTileSize;
+        GeoEnvelope env = new GeoEnvelope(minX, minX + mTileSize, minY, minY + mTileSize);
+
+        int realY = mTmsType == GeoConstants.TMSTYPE_OSM ? mTilesInDimension - y - 1 : y;
+        return new TileItem(x, realY, mZoom, env);
+    }
+
+
+    /**
+     * Converts a distance along the Hilbert curve filling a square to cell coordinates.
+     *
+     * @param size
+     *         side of the square, a power of two
+     */
+    protected static void hilbertToXY(
+            int size,
+            int distance,
+            int[] point)
+    {
+        int x = 0, y = 0;
+        int t = distance;
+        for (int s = 1; s < size; s *= 2) {
+            int rx = 1 & (t / 2);
+            int ry = 1 & (t ^ rx);
+            if (ry == 0) {
+                if (rx == 1) {
+                    x = s - 1 - x;
+                    y = s - 1 - y;
+                }
+                int temp = x;
+                x = y;
+                y = temp;
+            }
+            x += s * rx;
+            y += s * ry;
+            t /= 4;
+        }
+        point[0] = x;
+        point[1] = y;
+    }
+
+
+    @Override
+    public boolean hasNext()
+    {
+        return null != mNext;
+    }
+
+
+    @Override
+    public TileItem next()
+    {
+        if (null == mNext) {
+            throw new NoSuchElementException();
+        }
+
+        TileItem result = mNext;
+        mCurrentZoom = mZoom;
+        mCurrentIndex = (long) (mLastY - mBegY) * (mEndX - mBegX) + (mLastX - mBegX);
+        mNext = findNext();
+        return result;
+    }
+
+
+    /**
+     * @return zoom of the tile returned by the last {@link #next()}
+     */
+    public int getCurrentZoom()
+    {
+        return mCurrentZoom;
+    }
+
+
+    /**
+     * @return row major index of the tile returned by the last {@link #next()} inside the tile
+     * range of its zoom, stable between runs for the same envelope
+     */
+    public long getCurrentIndex()
+    {
+        return mCurrentIndex;
+    }
+
+
+    @Override
+    public void remove()
+    {
+        throw new UnsupportedOperationException();
+    }
+}
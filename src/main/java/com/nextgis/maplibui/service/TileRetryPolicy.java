@@ -0,0 +1,114 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2019 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplibui.service;
+
+import java.net.HttpURLConnection;
+import java.util.Random;
+
+
+/**
+ * Retry policy of a tile download: exponential backoff with full jitter, so tiles failed
+ * together do not hit the server again at the same moment. Only failures which may pass on
+ * their own are retried, e.g. a broken connection, 429 or 5xx, but not 404.
+ */
+public class TileRetryPolicy
+{
+    public static final int  DEFAULT_MAX_ATTEMPTS = 4;
+    public static final long DEFAULT_BASE_DELAY   = 500;
+    public static final long DEFAULT_MAX_DELAY    = 30000;
+
+    protected static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+    protected final int    mMaxAttempts;
+    protected final long   mBaseDelay;
+    protected final long   mMaxDelay;
+    protected final Random mRandom;
+
+
+    public TileRetryPolicy()
+    {
+        this(DEFAULT_MAX_ATTEMPTS, DEFAULT_BASE_DELAY, DEFAULT_MAX_DELAY);
+    }
+
+
+    public TileRetryPolicy(
+            int maxAttempts,
+            long baseDelay,
+            long maxDelay)
+    {
+        mMaxAttempts = Math.max(1, maxAttempts);
+        mBaseDelay = baseDelay;
+        mMaxDelay = maxDelay;
+        mRandom = new Random();
+    }
+
+
+    public int getMaxAttempts()
+    {
+        return mMaxAttempts;
+    }
+
+
+    /**
+     * @param status
+     *         HTTP response code or a {@link TileDownloadMetrics} status
+     */
+    public boolean isRetryable(int status)
+    {
+        return status == TileDownloadMetrics.STATUS_IO_ERROR ||
+               status == TileDownloadMetrics.STATUS_UNKNOWN ||
+               status == HttpURLConnection.HTTP_CLIENT_TIMEOUT ||
+               status == HTTP_TOO_MANY_REQUESTS || status >= 500;
+    }
+
+
+    /**
+     * @param attempt
+     *         count of failed attempts, from 1
+     *
+     * @return false if the tile should not be requested again
+     */
+    public boolean shouldRetry(
+            int attempt,
+            int status)
+    {
+        return attempt < mMaxAttempts && isRetryable(status);
+    }
+
+
+    /**
+     * @param attempt
+     *         count of failed attempts, from 1
+     *
+     * @return milliseconds to wait, random up to the exponential backoff
+     */
+    public long getDelay(int attempt)
+    {
+        long backoff = mBaseDelay << Math.min(attempt - 1, 20);
+        backoff = Math.min(mMaxDelay, backoff);
+        synchronized (mRandom) {
+            return (long) (mRandom.nextDouble() * backoff);
+        }
+    }
+}
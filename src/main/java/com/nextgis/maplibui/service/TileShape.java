@@ -0,0 +1,462 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2019 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplibui.service;
+
+import com.nextgis.maplib.datasource.GeoEnvelope;
+import com.nextgis.maplib.datasource.GeoGeometry;
+import com.nextgis.maplib.datasource.GeoGeometryCollection;
+import com.nextgis.maplib.datasource.GeoGeometryFactory;
+import com.nextgis.maplib.datasource.GeoLineString;
+import com.nextgis.maplib.datasource.GeoMultiLineString;
+import com.nextgis.maplib.datasource.GeoMultiPoint;
+import com.nextgis.maplib.datasource.GeoMultiPolygon;
+import com.nextgis.maplib.datasource.GeoPoint;
+import com.nextgis.maplib.datasource.GeoPolygon;
+import com.nextgis.maplib.util.GeoConstants;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * Area of a tile download given by a geometry in map coordinates instead of an envelope, e.g. a
+ * feature polygon or a track line with a buffer. Tiles of a zoom are rasterized to a bitmap of
+ * the shape envelope range: every segment marks the tiles its buffered band crosses row by row,
+ * and polygon interiors are filled by scanlines at the row centers. A corridor along a road
+ * then takes a small part of the tiles of its bounding box.
+ * <p>
+ * The buffer is applied as a square around every vertex and segment, so a few corner tiles
+ * beyond the round buffer may be taken, but no tile of the shape is missed.
+ */
+public class TileShape
+{
+    public static final String SHAPE_PREFIX = "tile_shape_";
+    public static final String SHAPE_EXT    = ".shape";
+
+    // a shape file nobody read within this time is left from a killed process, ms
+    protected static final long MAX_FILE_AGE = 24L * 60 * 60 * 1000;
+
+    protected final GeoGeometry mGeometry;
+    protected final double      mBuffer;
+
+    // flat x, y pairs
+    protected final List<double[]> mLines;
+    protected final List<double[]> mRings;
+
+    protected final GeoEnvelope mEnvelope;
+
+
+    /**
+     * @param geometry
+     *         geometry in map coordinates, lines and points need a buffer
+     * @param buffer
+     *         distance around the geometry in map units
+     */
+    public TileShape(
+            GeoGeometry geometry,
+            double buffer)
+    {
+        mGeometry = geometry;
+        mBuffer = Math.max(0, buffer);
+        mLines = new ArrayList<>();
+        mRings = new ArrayList<>();
+        addGeometry(geometry);
+
+        double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE;
+        double maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+        for (List<double[]> parts : Arrays.asList(mLines, mRings)) {
+            for (double[] part : parts) {
+                for (int i = 0; i < part.length; i += 2) {
+                    minX = Math.min(minX, part[i]);
+                    maxX = Math.max(maxX, part[i]);
+                    minY = Math.min(minY, part[i + 1]);
+                    maxY = Math.max(maxY, part[i + 1]);
+                }
+            }
+        }
+        mEnvelope = minX > maxX
+                    ? new GeoEnvelope(0, 0, 0, 0)
+                    : new GeoEnvelope(
+                            minX - mBuffer, maxX + mBuffer, minY - mBuffer, maxY + mBuffer);
+    }
+
+
+    protected void addGeometry(GeoGeometry geometry)
+    {
+        switch (geometry.getType()) {
+            case GeoConstants.GTPoint:
+                GeoPoint point = (GeoPoint) geometry;
+                mLines.add(new double[] {point.getX(), point.getY()});
+                break;
+            case GeoConstants.GTMultiPoint:
+                GeoMultiPoint multiPoint = (GeoMultiPoint) geometry;
+                for (int i = 0; i < multiPoint.size(); i++) {
+                    addGeometry(multiPoint.get(i));
+                }
+                break;
+            case GeoConstants.GTLineString:
+                mLines.add(toArray(((GeoLineString) geometry).getPoints()));
+                break;
+            case GeoConstants.GTMultiLineString:
+                GeoMultiLineString multiLine = (GeoMultiLineString) geometry;
+                for (int i = 0; i < multiLine.size(); i++) {
+                    addGeometry(multiLine.get(i));
+                }
+                break;
+            case GeoConstants.GTPolygon:
+                GeoPolygon polygon = (GeoPolygon) geometry;
+                mRings.add(toArray(polygon.getOuterRing().getPoints()));
+                for (int i = 0; i < polygon.getInnerRingCount(); i++) {
+                    mRings.add(toArray(polygon.getInnerRing(i).getPoints()));
+                }
+                break;
+            case GeoConstants.GTMultiPolygon:
+                GeoMultiPolygon multiPolygon = (GeoMultiPolygon) geometry;
+                for (int i = 0; i < multiPolygon.size(); i++) {
+                    addGeometry(multiPolygon.get(i));
+                }
+                break;
+            case GeoConstants.GTGeometryCollection:
+                GeoGeometryCollection collection = (GeoGeometryCollection) geometry;
+                for (int i = 0; i < collection.size(); i++) {
+                    addGeometry(collection.get(i));
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+
+    protected static double[] toArray(List<GeoPoint> points)
+    {
+        double[] result = new double[points.size() * 2];
+        for (int i = 0; i < points.size(); i++) {
+            GeoPoint point = points.get(i);
+            result[i * 2] = point.getX();
+            result[i * 2 + 1] = point.getY();
+        }
+        return result;
+    }
+
+
+    /**
+     * Writes the geometry blob and the buffer, the format of {@link #read(DataInputStream)}.
+     */
+    public void write(DataOutputStream out)
+            throws IOException
+    {
+        byte[] blob = mGeometry.toBlob();
+        out.writeInt(blob.length);
+        out.write(blob);
+        out.writeDouble(mBuffer);
+    }
+
+
+    public static TileShape read(DataInputStream in)
+            throws IOException
+    {
+        byte[] blob = new byte[in.readInt()];
+        in.readFully(blob);
+        double buffer = in.readDouble();
+        try {
+            return new TileShape(GeoGeometryFactory.fromBlob(blob), buffer);
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Unsupported tile shape geometry");
+        }
+    }
+
+
+    /**
+     * Writes the shape to a new file of the directory. Intent extras and saved states take the
+     * file path, a geometry may be larger than a binder transaction allows. Shape files left by
+     * a killed process are deleted at the same time.
+     *
+     * @return the written file
+     */
+    public File save(File dir)
+            throws IOException
+    {
+        File[] files = dir.listFiles();
+        long now = System.currentTimeMillis();
+        if (null != files) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.startsWith(SHAPE_PREFIX) && name.endsWith(SHAPE_EXT) &&
+                    now - file.lastModified() > MAX_FILE_AGE) {
+                    file.delete();
+                }
+            }
+        }
+
+        File file = File.createTempFile(SHAPE_PREFIX, SHAPE_EXT, dir);
+        DataOutputStream out =
+                new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            write(out);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+
+    public static TileShape load(File file)
+            throws IOException
+    {
+        DataInputStream in =
+                new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            return read(in);
+        } finally {
+            in.close();
+        }
+    }
+
+
+    public GeoGeometry getGeometry()
+    {
+        return mGeometry;
+    }
+
+
+    public double getBuffer()
+    {
+        return mBuffer;
+    }
+
+
+    /**
+     * @return envelope of the geometry extended by the buffer
+     */
+    public GeoEnvelope getEnvelope()
+    {
+        return mEnvelope;
+    }
+
+
+    /**
+     * @return hash of the coordinates and the buffer to name the job journal
+     */
+    public long getHash()
+    {
+        long hash = Double.doubleToLongBits(mBuffer);
+        for (List<double[]> parts : Arrays.asList(mLines, mRings)) {
+            for (double[] part : parts) {
+                hash = hash * 31 + Arrays.hashCode(part);
+            }
+            hash = hash * 31 + parts.size();
+        }
+        return hash;
+    }
+
+
+    /**
+     * @return count of tiles of the shape at the zoom
+     */
+    public long getTileCount(int zoom)
+    {
+        int[] range = TileIterator.getRange(mEnvelope, zoom);
+        long count = 0;
+        for (long word : getMask(zoom, range[0], range[1], range[2], range[3])) {
+            count += Long.bitCount(word);
+        }
+        return count;
+    }
+
+
+    /**
+     * Rasterizes the shape to tiles of the range, the bit of a tile is at its row major index
+     * (y - begY) * (endX - begX) + (x - begX) as in {@link TileIterator#getCurrentIndex()}.
+     */
+    public long[] getMask(
+            int zoom,
+            int begX,
+            int begY,
+            int endX,
+            int endY)
+    {
+        Mask mask = new Mask(zoom, begX, begY, endX, endY);
+        for (double[] line : mLines) {
+            if (line.length == 2) {
+                mask.addSegment(line[0], line[1], line[0], line[1], mBuffer);
+            }
+            for (int i = 2; i < line.length; i += 2) {
+                mask.addSegment(line[i - 2], line[i - 1], line[i], line[i + 1], mBuffer);
+            }
+        }
+
+        if (!mRings.isEmpty()) {
+            for (double[] ring : mRings) {
+                int n = ring.length;
+                for (int i = 0; i < n; i += 2) {
+                    // rings may be open, the closing edge is added anyway
+                    int j = (i + 2) % n;
+                    mask.addSegment(ring[i], ring[i + 1], ring[j], ring[j + 1], mBuffer);
+                }
+            }
+            mask.fillRings(mRings);
+        }
+        return mask.mBits;
+    }
+
+
+    protected static class Mask
+    {
+        final double mTileSize;
+        final int    mBegX, mBegY, mEndX, mEndY, mWidth;
+        final long[] mBits;
+
+
+        Mask(
+                int zoom,
+                int begX,
+                int begY,
+                int endX,
+                int endY)
+        {
+            mTileSize = GeoConstants.MERCATOR_MAX * 2 / (1 << zoom);
+            mBegX = begX;
+            mBegY = begY;
+            mEndX = endX;
+            mEndY = endY;
+            mWidth = endX - begX;
+            mBits = new long[(int) (((long) mWidth * (endY - begY) + 63) >>> 6)];
+        }
+
+
+        int toTile(double x)
+        {
+            return (int) Math.floor((x + GeoConstants.MERCATOR_MAX) / mTileSize);
+        }
+
+
+        void setSpan(
+                int y,
+                int fromX,
+                int toX)
+        {
+            if (y < mBegY || y >= mEndY) {
+                return;
+            }
+            fromX = Math.max(fromX, mBegX);
+            toX = Math.min(toX, mEndX - 1);
+            long row = (long) (y - mBegY) * mWidth - mBegX;
+            for (int x = fromX; x <= toX; x++) {
+                long index = row + x;
+                mBits[(int) (index >>> 6)] |= 1L << index;
+            }
+        }
+
+
+        /**
+         * Marks tiles of the segment band widened by the buffer, row by row.
+         */
+        void addSegment(
+                double x0,
+                double y0,
+                double x1,
+                double y1,
+                double buffer)
+        {
+            int fromY = toTile(Math.min(y0, y1) - buffer);
+            int toY = toTile(Math.max(y0, y1) + buffer);
+            fromY = Math.max(fromY, mBegY);
+            toY = Math.min(toY, mEndY - 1);
+
+            for (int y = fromY; y <= toY; y++) {
+                double bandMin = -GeoConstants.MERCATOR_MAX + y * mTileSize - buffer;
+                double bandMax = bandMin + mTileSize + buffer * 2;
+
+                // part of the segment inside the row band
+                double t0 = 0, t1 = 1;
+                double dy = y1 - y0;
+                if (dy != 0) {
+                    double ta = (bandMin - y0) / dy;
+                    double tb = (bandMax - y0) / dy;
+                    t0 = Math.max(0, Math.min(ta, tb));
+                    t1 = Math.min(1, Math.max(ta, tb));
+                    if (t0 > t1) {
+                        continue;
+                    }
+                }
+                double xa = x0 + (x1 - x0) * t0;
+                double xb = x0 + (x1 - x0) * t1;
+                setSpan(
+                        y, toTile(Math.min(xa, xb) - buffer),
+                        toTile(Math.max(xa, xb) + buffer));
+            }
+        }
+
+
+        /**
+         * Marks tiles whose centers are inside the rings by the even-odd rule. Tiles crossed by
+         * the boundary are marked by its segments.
+         */
+        void fillRings(List<double[]> rings)
+        {
+            double[] crossings = new double[16];
+            for (int y = mBegY; y < mEndY; y++) {
+                double centerY = -GeoConstants.MERCATOR_MAX + (y + 0.5) * mTileSize;
+                int count = 0;
+                for (double[] ring : rings) {
+                    int n = ring.length;
+                    for (int i = 0; i < n; i += 2) {
+                        int j = (i + 2) % n;
+                        double ya = ring[i + 1], yb = ring[j + 1];
+                        if ((ya <= centerY) == (yb <= centerY)) {
+                            continue;
+                        }
+                        if (count == crossings.length) {
+                            crossings = Arrays.copyOf(crossings, count * 2);
+                        }
+                        crossings[count++] =
+                                ring[i] + (centerY - ya) * (ring[j] - ring[i]) / (yb - ya);
+                    }
+                }
+
+                Arrays.sort(crossings, 0, count);
+                for (int k = 0; k + 1 < count; k += 2) {
+                    // tiles whose center x is inside the span
+                    int fromX = (int) Math.ceil(
+                            (crossings[k] + GeoConstants.MERCATOR_MAX) / mTileSize - 0.5);
+                    int toX = (int) Math.floor(
+                            (crossings[k + 1] + GeoConstants.MERCATOR_MAX) / mTileSize - 0.5);
+                    if (fromX <= toX) {
+                        setSpan(y, fromX, toX);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -85,6 +85,12 @@ public class TrackerService extends Service implements LocationListener, GpsStat
     public static final String ACTION_SYNC            = "com.nextgis.maplibui.TRACK_SYNC";
     public static final String ACTION_STOP            = "com.nextgis.maplibui.TRACK_STOP";
     private static final String ACTION_SPLIT          = "com.nextgis.maplibui.TRACK_SPLIT";
+    // sent to the app package after every stored point, coordinates in EPSG:3857
+    public static final String ACTION_TRACK_POINT     = "com.nextgis.maplibui.TRACK_POINT";
+    public static final String EXTRA_TRACK_ID         = "track_id";
+    public static final String EXTRA_X                = "x";
+    public static final String EXTRA_Y                = "y";
+    public static final String EXTRA_TIME             = "time";
     private static final int    TRACK_NOTIFICATION_ID = 1;
     public static final String SCHEME = "http";
 //    public static final String HOST = "dev.nextgis.com/tracker-dev1-hub";
@@ -445,7 +451,16 @@ public class TrackerService extends Service implements LocationListener, GpsStat
         try {
             getContentResolver().insert(mContentUriTrackPoints, mValues);
         } catch (Exception ignored) {
+            return;
         }
+
+        Intent point = new Intent(ACTION_TRACK_POINT);
+        point.setPackage(getPackageName());
+        point.putExtra(EXTRA_TRACK_ID, mTrackId);
+        point.putExtra(EXTRA_X, mPoint.getX());
+        point.putExtra(EXTRA_Y, mPoint.getY());
+        point.putExtra(EXTRA_TIME, location.getTime());
+        sendBroadcast(point);
     }
 
     @Override
@@ -0,0 +1,314 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2019 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplibui.util;
+
+import android.annotation.TargetApi;
+import android.app.ActivityManager;
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Color;
+import android.os.Build;
+
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+
+
+/**
+ * Memory bounded pool of mutable bitmaps shared by map rendering and overlays. Released bitmaps
+ * are kept in buckets by size and config and handed out again instead of allocating new ones.
+ * On KitKat and above a larger free bitmap is reconfigured and also used for decoding via
+ * {@link BitmapFactory.Options#inBitmap}.
+ */
+public class BitmapPool
+{
+    // part of the application memory class the pool may keep
+    protected static final int MEMORY_CLASS_DIVIDER = 8;
+    // a free bitmap larger than this times the request is not reconfigured
+    protected static final int MAX_REUSE_RATIO      = 2;
+
+    protected static BitmapPool sInstance;
+
+    protected final Map<Long, ArrayDeque<Bitmap>> mBuckets;
+    protected final LinkedList<Bitmap>            mOrder;
+    protected final long                          mMaxSize;
+    protected       long                          mSize;
+    // bitmaps taken from the pool and kept for long, they share the budget with free ones
+    protected       long                          mReserved;
+
+
+    public static synchronized BitmapPool getInstance(Context context)
+    {
+        if (null == sInstance) {
+            ActivityManager manager =
+                    (ActivityManager) context.getApplicationContext()
+                            .getSystemService(Context.ACTIVITY_SERVICE);
+            long memoryClass = null != manager ? manager.getMemoryClass() : 16;
+            sInstance = new BitmapPool(memoryClass * 1024 * 1024 / MEMORY_CLASS_DIVIDER);
+        }
+        return sInstance;
+    }
+
+
+    public BitmapPool(long maxSize)
+    {
+        mMaxSize = maxSize;
+        mBuckets = new HashMap<>();
+        mOrder = new LinkedList<>();
+    }
+
+
+    public long getMaxSize()
+    {
+        return mMaxSize;
+    }
+
+
+    public synchronized long getSize()
+    {
+        return mSize;
+    }
+
+
+    /**
+     * Counts bitmaps the caller keeps for long, e.g. cached screen tiles, against the budget.
+     * Free bitmaps are trimmed to what is left. A negative size returns the reservation.
+     */
+    public synchronized void reserve(long size)
+    {
+        mReserved = Math.max(0, mReserved + size);
+        trimTo(mMaxSize - mReserved);
+    }
+
+
+    /**
+     * @return a cleared mutable bitmap or null if there is no memory for it
+     */
+    public Bitmap get(
+            int width,
+            int height,
+            Bitmap.Config config)
+    {
+        Bitmap bitmap = take(width, height, config);
+        if (null != bitmap) {
+            bitmap.eraseColor(Color.TRANSPARENT);
+            return bitmap;
+        }
+
+        try {
+            return Bitmap.createBitmap(width, height, config);
+        } catch (OutOfMemoryError e) {
+            clear();
+            try {
+                return Bitmap.createBitmap(width, height, config);
+            } catch (OutOfMemoryError e1) {
+                e1.printStackTrace();
+                return null;
+            }
+        }
+    }
+
+
+    /**
+     * Returns a bitmap to the pool. The caller must not use it afterwards.
+     */
+    public synchronized void put(Bitmap bitmap)
+    {
+        if (null == bitmap || bitmap.isRecycled() || !bitmap.isMutable()) {
+            return;
+        }
+
+        long size = getByteCount(bitmap);
+        if (size > mMaxSize / 2 || size > mMaxSize - mReserved || mOrder.contains(bitmap)) {
+            return;
+        }
+
+        trimTo(mMaxSize - mReserved - size);
+
+        long key = getKey(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+        ArrayDeque<Bitmap> bucket = mBuckets.get(key);
+        if (null == bucket) {
+            bucket = new ArrayDeque<>();
+            mBuckets.put(key, bucket);
+        }
+        bucket.push(bitmap);
+        mOrder.addLast(bitmap);
+        mSize += size;
+    }
+
+
+    public synchronized void clear()
+    {
+        mBuckets.clear();
+        mOrder.clear();
+        mSize = 0;
+    }
+
+
+    protected synchronized Bitmap take(
+            int width,
+            int height,
+            Bitmap.Config config)
+    {
+        ArrayDeque<Bitmap> bucket = mBuckets.get(getKey(width, height, config));
+        if (null != bucket && !bucket.isEmpty()) {
+            Bitmap bitmap = bucket.pop();
+            mOrder.remove(bitmap);
+            mSize -= getByteCount(bitmap);
+            return bitmap;
+        }
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            return takeReconfigured(width, height, config);
+        }
+
+        return null;
+    }
+
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    protected Bitmap takeReconfigured(
+            int width,
+            int height,
+            Bitmap.Config config)
+    {
+        long needed = (long) width * height * getBytesPerPixel(config);
+        Iterator<Bitmap> iterator = mOrder.iterator();
+        while (iterator.hasNext()) {
+            Bitmap bitmap = iterator.next();
+            long size = bitmap.getAllocationByteCount();
+            if (size >= needed && size <= needed * MAX_REUSE_RATIO) {
+                iterator.remove();
+                mBuckets.get(getKey(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig()))
+                        .remove(bitmap);
+                mSize -= size;
+                bitmap.reconfigure(width, height, config);
+                return bitmap;
+            }
+        }
+
+        return null;
+    }
+
+
+    public Bitmap decodeResource(
+            Resources resources,
+            int id)
+    {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inMutable = true;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeResource(resources, id, options);
+            options.inJustDecodeBounds = false;
+            options.inBitmap =
+                    take(options.outWidth, options.outHeight, Bitmap.Config.ARGB_8888);
+        }
+
+        try {
+            return BitmapFactory.decodeResource(resources, id, options);
+        } catch (IllegalArgumentException e) {
+            // the pooled bitmap does not fit, decode to a new one
+            put(options.inBitmap);
+            options.inBitmap = null;
+            return BitmapFactory.decodeResource(resources, id, options);
+        }
+    }
+
+
+    /**
+     * Decodes the stream reusing a pooled bitmap if possible. Options must be prepared with
+     * bounds already decoded, e.g. by {@link ControlHelper#getOptions(InputStream, int, int)}.
+     *
+     * @return the bitmap or null if the pooled bitmap did not fit the image
+     */
+    public Bitmap decodeStream(
+            InputStream is,
+            BitmapFactory.Options options)
+    {
+        options.inMutable = true;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT && options.outWidth > 0) {
+            int sample = Math.max(1, options.inSampleSize);
+            options.inBitmap = take(
+                    (options.outWidth + sample - 1) / sample,
+                    (options.outHeight + sample - 1) / sample, Bitmap.Config.ARGB_8888);
+        }
+
+        try {
+            return ControlHelper.getBitmap(is, options);
+        } catch (IllegalArgumentException e) {
+            // the stream is consumed, the caller has to reopen it and decode without reuse
+            put(options.inBitmap);
+            options.inBitmap = null;
+            return null;
+        }
+    }
+
+
+    protected void trimTo(long size)
+    {
+        while (mSize > size && !mOrder.isEmpty()) {
+            Bitmap bitmap = mOrder.removeFirst();
+            mBuckets.get(getKey(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig()))
+                    .remove(bitmap);
+            mSize -= getByteCount(bitmap);
+        }
+    }
+
+
+    protected static long getKey(
+            int width,
+            int height,
+            Bitmap.Config config)
+    {
+        int ordinal = null == config ? 0 : config.ordinal() + 1;
+        return (long) width << 36 | (long) height << 8 | ordinal;
+    }
+
+
+    public static long getByteCount(Bitmap bitmap)
+    {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            return bitmap.getAllocationByteCount();
+        }
+        return (long) bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+
+    protected static int getBytesPerPixel(Bitmap.Config config)
+    {
+        if (config == Bitmap.Config.ALPHA_8) {
+            return 1;
+        }
+        if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444) {
+            return 2;
+        }
+        return 4;
+    }
+}
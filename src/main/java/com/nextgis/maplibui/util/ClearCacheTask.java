@@ -57,6 +57,10 @@ public class ClearCacheTask extends AsyncTask<File, Integer, Void> {
     protected Void doInBackground(File... path) {
         if (path.length > 0) {
             if (path[0].exists() && path[0].isDirectory()) {
+                // a packed cache is emptied at once, the file stays to keep the layer packed
+                if (TileArchive.exists(path[0]))
+                    TileArchive.clear(path[0]);
+
                 File[] data = path[0].listFiles();
                 int c = 0;
                 for (File file : data) {
@@ -34,6 +34,7 @@ public interface ConstantsUI
     int DRAW_STATE_panning = 3;
     int DRAW_STATE_zooming = 4;
     int DRAW_STATE_panning_fling = 5;
+    int DRAW_STATE_drawing_progressive = 6; // scaled preview while layers stream in after zoom
 
     String KEY_MESSAGE          = "msg";
     String KEY_LAYER_ID         = "layer_id";
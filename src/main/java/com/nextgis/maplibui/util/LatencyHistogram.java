@@ -0,0 +1,170 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2019 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplibui.util;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * Lock-free log-linear histogram of durations in microseconds. Every power of two range is split
+ * to {@link #SUB_BUCKETS} buckets, so percentiles are reported with less than 12.5% error.
+ */
+public class LatencyHistogram
+{
+    protected static final int SUB_BITS    = 3;
+    protected static final int SUB_BUCKETS = 1 << SUB_BITS;
+    protected static final int BUCKETS     = 64 * SUB_BUCKETS;
+
+    protected final AtomicLongArray mCounts;
+    protected final AtomicLong      mCount;
+    protected final AtomicLong      mTotal;
+    protected final AtomicLong      mMax;
+
+
+    public LatencyHistogram()
+    {
+        mCounts = new AtomicLongArray(BUCKETS);
+        mCount = new AtomicLong();
+        mTotal = new AtomicLong();
+        mMax = new AtomicLong();
+    }
+
+
+    public void recordNanos(long nanos)
+    {
+        record(nanos / 1000);
+    }
+
+
+    public void record(long micros)
+    {
+        if (micros < 0) {
+            micros = 0;
+        }
+
+        mCounts.incrementAndGet(getIndex(micros));
+        mCount.incrementAndGet();
+        mTotal.addAndGet(micros);
+
+        long max = mMax.get();
+        while (micros > max && !mMax.compareAndSet(max, micros)) {
+            max = mMax.get();
+        }
+    }
+
+
+    protected static int getIndex(long value)
+    {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+
+        int exp = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) ((value >>> (exp - SUB_BITS)) & (SUB_BUCKETS - 1));
+        return (exp - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+
+    protected static long getLowerBound(int index)
+    {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+
+        int exp = index / SUB_BUCKETS - 1 + SUB_BITS;
+        int sub = index % SUB_BUCKETS;
+        return (long) (SUB_BUCKETS + sub) << (exp - SUB_BITS);
+    }
+
+
+    /**
+     * @param percentile
+     *         value from 0 to 100
+     *
+     * @return lower bound of the bucket the percentile falls into, in microseconds
+     */
+    public long getPercentile(double percentile)
+    {
+        long count = mCount.get();
+        if (count == 0) {
+            return 0;
+        }
+
+        long target = (long) Math.ceil(count * percentile / 100);
+        if (target < 1) {
+            target = 1;
+        }
+
+        long cumulative = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            cumulative += mCounts.get(i);
+            if (cumulative >= target) {
+                return getLowerBound(i);
+            }
+        }
+
+        return mMax.get();
+    }
+
+
+    public long getCount()
+    {
+        return mCount.get();
+    }
+
+
+    public long getMax()
+    {
+        return mMax.get();
+    }
+
+
+    public long getMean()
+    {
+        long count = mCount.get();
+        return count == 0 ? 0 : mTotal.get() / count;
+    }
+
+
+    public void reset()
+    {
+        for (int i = 0; i < BUCKETS; i++) {
+            mCounts.set(i, 0);
+        }
+        mCount.set(0);
+        mTotal.set(0);
+        mMax.set(0);
+    }
+
+
+    @Override
+    public String toString()
+    {
+        return String.format(
+                Locale.US, "count=%d mean=%dus p50=%dus p95=%dus p99=%dus max=%dus", getCount(),
+                getMean(), getPercentile(50), getPercentile(95), getPercentile(99), getMax());
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2019 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplibui.util;
+
+import android.app.Activity;
+import android.app.ProgressDialog;
+import android.database.sqlite.SQLiteException;
+import android.os.AsyncTask;
+import android.util.Log;
+
+import com.nextgis.maplib.util.Constants;
+import com.nextgis.maplibui.R;
+
+import java.io.File;
+
+/**
+ * Creates or deletes the tile archive of a layer off the UI thread, a delete closes the database
+ * and removes its file with all packed tiles.
+ */
+public class PackedCacheTask extends AsyncTask<File, Void, Void> {
+    private Activity mActivity;
+    private ProgressDialog mProgressDialog;
+    private boolean mIsPacked;
+    private int mTmsType;
+
+    public PackedCacheTask(Activity activity, boolean isPacked, int tmsType) {
+        mActivity = activity;
+        mIsPacked = isPacked;
+        mTmsType = tmsType;
+    }
+
+    @Override
+    protected void onPreExecute() {
+        super.onPreExecute();
+        if (!mActivity.isFinishing()) {
+            mProgressDialog = new ProgressDialog(mActivity);
+            mProgressDialog.setIndeterminate(true);
+            mProgressDialog.setCancelable(false);
+            mProgressDialog.setMessage(mActivity.getString(R.string.waiting));
+            mProgressDialog.show();
+        }
+    }
+
+    @Override
+    protected Void doInBackground(File... path) {
+        if (path.length > 0) {
+            try {
+                if (mIsPacked)
+                    TileArchive.open(path[0], mTmsType);
+                else
+                    TileArchive.delete(path[0]);
+            } catch (SQLiteException e) {
+                Log.w(Constants.TAG, "PackedCacheTask: " + e.getMessage());
+            }
+        }
+
+        return null;
+    }
+
+    @Override
+    protected void onPostExecute(Void aVoid) {
+        super.onPostExecute(aVoid);
+
+        if (mProgressDialog != null && mProgressDialog.isShowing())
+            mProgressDialog.dismiss();
+    }
+}
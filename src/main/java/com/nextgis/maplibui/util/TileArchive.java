@@ -0,0 +1,630 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2019 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplibui.util;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.nextgis.maplib.datasource.GeoEnvelope;
+import com.nextgis.maplib.datasource.TileItem;
+import com.nextgis.maplib.util.Constants;
+import com.nextgis.maplib.util.GeoConstants;
+
+import java.io.File;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Packed tile cache of a layer in one MBTiles file. Rows are stored in the TMS scheme of the
+ * MBTiles specification, so the file is a valid offline package as is. Writes are buffered and
+ * committed in one transaction per {@link #BATCH_SIZE} tiles, so a bulk download does not pay a
+ * file creation and a sync per tile, and the whole cache is cleared or exported as one file.
+ * <p>
+ * Tile bodies are stored once per content hash in the images table and tiles point to them by
+ * the hash, as in the deduplicated MBTiles layout, where a tiles view joins both tables. Sea,
+ * forest or blank tiles of an offline area are then one blob each. A body seen twice is kept in
+ * memory, so a further duplicate costs an index row only.
+ * <p>
+ * Reads take the instance lock only to look up the pending batch. The database itself is read
+ * without it, write-ahead logging lets the map read while a batch is committed.
+ */
+public class TileArchive
+{
+    public static final String ARCHIVE_FILE = "tiles.mbtiles";
+    public static final int    BATCH_SIZE   = 64;
+
+    protected static final int SCHEMA_VERSION = 1;
+
+    protected static final String TABLE_TILES    = "tiles";
+    protected static final String TABLE_MAP      = "map";
+    protected static final String TABLE_IMAGES   = "images";
+    protected static final String TABLE_METADATA = "metadata";
+    protected static final String COLUMN_ZOOM    = "zoom_level";
+    protected static final String COLUMN_COLUMN  = "tile_column";
+    protected static final String COLUMN_ROW     = "tile_row";
+    protected static final String COLUMN_ID      = "tile_id";
+    protected static final String COLUMN_DATA    = "tile_data";
+
+    protected static final int HOT_BLOBS_SIZE = 4 * 1024 * 1024;
+    protected static final int SEEN_IDS       = 4096;
+
+    protected static final Map<String, TileArchive> mArchives   = new HashMap<>();
+    protected static final AtomicInteger            mGeneration = new AtomicInteger();
+
+    protected final File            mFile;
+    protected final int             mTmsType;
+    protected final SQLiteDatabase  mDatabase;
+    protected final SQLiteStatement mInsertImage;
+    protected final SQLiteStatement mInsertTile;
+    protected final MessageDigest   mDigest;
+    protected final List<Pending>   mPending;
+
+    protected final LruCache<String, byte[]> mHotBlobs;
+    protected final Map<String, Boolean>     mSeenIds;
+    protected volatile boolean               mIsClosed;
+    // the file is deleted by another process, e.g. the settings while the service downloads
+    protected boolean                        mIsLost;
+    // changes when stored bodies are deleted, a body read before must not be kept then
+    protected volatile int                   mEpoch;
+
+
+    protected static class Pending
+    {
+        int     mZoom;
+        int     mColumn;
+        int     mRow;
+        String  mId;
+        byte[]  mData;
+    }
+
+
+    protected TileArchive(
+            File file,
+            int tmsType)
+    {
+        mFile = file;
+        mTmsType = tmsType;
+        mDatabase = SQLiteDatabase.openOrCreateDatabase(file, null);
+        // the map reads while a download writes, often from another process
+        mDatabase.enableWriteAheadLogging();
+
+        try {
+            mDigest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        if (mDatabase.getVersion() < SCHEMA_VERSION) {
+            createSchema();
+        }
+
+        mInsertImage = mDatabase.compileStatement(
+                "INSERT OR IGNORE INTO " + TABLE_IMAGES + " (" + COLUMN_ID + ", " + COLUMN_DATA +
+                ") VALUES (?, ?)");
+        mInsertTile = mDatabase.compileStatement(
+                "INSERT OR REPLACE INTO " + TABLE_MAP + " (" + COLUMN_ZOOM + ", " +
+                COLUMN_COLUMN + ", " + COLUMN_ROW + ", " + COLUMN_ID + ") VALUES (?, ?, ?, ?)");
+        mPending = new ArrayList<>(BATCH_SIZE);
+
+        mHotBlobs = new LruCache<String, byte[]>(HOT_BLOBS_SIZE)
+        {
+            @Override
+            protected int sizeOf(
+                    String key,
+                    byte[] value)
+            {
+                return value.length;
+            }
+        };
+        mSeenIds = new LinkedHashMap<String, Boolean>(SEEN_IDS, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Entry<String, Boolean> eldest)
+            {
+                return size() > SEEN_IDS;
+            }
+        };
+    }
+
+
+    protected void createSchema()
+    {
+        mDatabase.beginTransaction();
+        try {
+            mDatabase.execSQL(
+                    "CREATE TABLE IF NOT EXISTS " + TABLE_METADATA + " (name TEXT, value TEXT)");
+            mDatabase.execSQL(
+                    "CREATE TABLE IF NOT EXISTS " + TABLE_MAP + " (" + COLUMN_ZOOM + " INTEGER, " +
+                    COLUMN_COLUMN + " INTEGER, " + COLUMN_ROW + " INTEGER, " + COLUMN_ID +
+                    " TEXT)");
+            mDatabase.execSQL(
+                    "CREATE UNIQUE INDEX IF NOT EXISTS map_index ON " + TABLE_MAP + " (" +
+                    COLUMN_ZOOM + ", " + COLUMN_COLUMN + ", " + COLUMN_ROW + ")");
+            mDatabase.execSQL(
+                    "CREATE TABLE IF NOT EXISTS " + TABLE_IMAGES + " (" + COLUMN_ID +
+                    " TEXT PRIMARY KEY, " + COLUMN_DATA + " BLOB)");
+
+            mDatabase.execSQL(
+                    "CREATE VIEW IF NOT EXISTS " + TABLE_TILES + " AS SELECT " + TABLE_MAP + "." +
+                    COLUMN_ZOOM + " AS " + COLUMN_ZOOM + ", " + TABLE_MAP + "." + COLUMN_COLUMN +
+                    " AS " + COLUMN_COLUMN + ", " + TABLE_MAP + "." + COLUMN_ROW + " AS " +
+                    COLUMN_ROW + ", " + TABLE_IMAGES + "." + COLUMN_DATA + " AS " + COLUMN_DATA +
+                    " FROM " + TABLE_MAP + " JOIN " + TABLE_IMAGES + " ON " + TABLE_IMAGES +
+                    "." + COLUMN_ID + " = " + TABLE_MAP + "." + COLUMN_ID);
+            mDatabase.setVersion(SCHEMA_VERSION);
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            mDatabase.endTransaction();
+        }
+    }
+
+
+    /**
+     * @return true if the layer keeps its cache packed
+     */
+    public static boolean exists(File layerDir)
+    {
+        return new File(layerDir, ARCHIVE_FILE).exists();
+    }
+
+
+    /**
+     * Opens the archive of the layer, creating it if needed. The archive is shared by all users
+     * in the process.
+     *
+     * @param tmsType
+     *         tile scheme of the layer, rows are converted to the TMS scheme
+     */
+    public static synchronized TileArchive open(
+            File layerDir,
+            int tmsType)
+    {
+        File file = new File(layerDir, ARCHIVE_FILE);
+        TileArchive archive = mArchives.get(file.getPath());
+        if (null != archive && !file.exists()) {
+            // deleted by another process, the stale instance takes no more tiles
+            mArchives.remove(file.getPath());
+            archive.close();
+            archive = null;
+        }
+        if (null == archive) {
+            archive = new TileArchive(file, tmsType);
+            mArchives.put(file.getPath(), archive);
+            mGeneration.incrementAndGet();
+        }
+        return archive;
+    }
+
+
+    /**
+     * @return a number which changes when an archive of the process is opened or deleted, a
+     * cached result of {@link #openExisting(File, int)} is valid while it stays the same
+     */
+    public static int getGeneration()
+    {
+        return mGeneration.get();
+    }
+
+
+    /**
+     * @return the archive of the layer or null if the layer cache is not packed
+     */
+    public static TileArchive openExisting(
+            File layerDir,
+            int tmsType)
+    {
+        if (!exists(layerDir)) {
+            return null;
+        }
+
+        try {
+            return open(layerDir, tmsType);
+        } catch (SQLiteException e) {
+            Log.w(Constants.TAG, "TileArchive: " + e.getMessage());
+            return null;
+        }
+    }
+
+
+    /**
+     * Closes and deletes the archive of the layer.
+     */
+    public static synchronized void delete(File layerDir)
+    {
+        File file = new File(layerDir, ARCHIVE_FILE);
+        TileArchive archive = mArchives.remove(file.getPath());
+        if (null != archive) {
+            archive.close();
+        }
+        SQLiteDatabase.deleteDatabase(file);
+        mGeneration.incrementAndGet();
+    }
+
+
+    /**
+     * Drops all tiles of the archive at once and keeps it to store new ones.
+     */
+    public static synchronized void clear(File layerDir)
+    {
+        File file = new File(layerDir, ARCHIVE_FILE);
+        TileArchive archive = mArchives.get(file.getPath());
+        if (null != archive) {
+            archive.clear();
+            return;
+        }
+
+        // rows are not converted here, so the scheme of a temporary instance does not matter
+        archive = new TileArchive(file, GeoConstants.TMSTYPE_NORMAL);
+        try {
+            archive.clear();
+        } finally {
+            archive.close();
+        }
+    }
+
+
+    public synchronized void clear()
+    {
+        mPending.clear();
+        // a delete without a condition truncates the table instead of deleting row by row
+        mDatabase.delete(TABLE_MAP, null, null);
+        mDatabase.delete(TABLE_IMAGES, null, null);
+        forget();
+        mDatabase.execSQL("VACUUM");
+    }
+
+
+    protected int getRow(
+            int zoom,
+            int y)
+    {
+        return mTmsType == GeoConstants.TMSTYPE_OSM ? (1 << zoom) - 1 - y : y;
+    }
+
+
+    protected String getId(byte[] data)
+    {
+        byte[] hash = mDigest.digest(data);
+        StringBuilder id = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            id.append(Character.forDigit((b >> 4) & 0xF, 16));
+            id.append(Character.forDigit(b & 0xF, 16));
+        }
+        return id.toString();
+    }
+
+
+    /**
+     * Keeps a body in memory once it is seen the second time, unique bodies of a bulk download
+     * do not push out the repeating ones.
+     */
+    protected void admit(
+            String id,
+            byte[] data,
+            int epoch)
+    {
+        synchronized (mSeenIds) {
+            if (epoch != mEpoch) {
+                return;
+            }
+            if (null != mSeenIds.remove(id)) {
+                mHotBlobs.put(id, data);
+            } else {
+                mSeenIds.put(id, Boolean.TRUE);
+            }
+        }
+    }
+
+
+    /**
+     * Drops kept bodies after stored ones are deleted, bodies read before the delete are not
+     * admitted any more.
+     */
+    protected void forget()
+    {
+        synchronized (mSeenIds) {
+            mEpoch++;
+            mHotBlobs.evictAll();
+            mSeenIds.clear();
+        }
+    }
+
+
+    /**
+     * Queues the tile to be written with the next batch.
+     *
+     * @return false if the archive file is deleted by another process, see {@link #flush()}
+     */
+    public synchronized boolean put(
+            TileItem tile,
+            byte[] data)
+    {
+        int zoom = tile.getZoomLevel();
+        Pending pending = new Pending();
+        pending.mZoom = zoom;
+        pending.mColumn = tile.getX();
+        pending.mRow = getRow(zoom, tile.getY());
+        pending.mId = getId(data);
+
+        // a kept body is shared, the row is still inserted, another process may have deleted
+        // the stored one by a clear or an area delete
+        byte[] hot = mHotBlobs.get(pending.mId);
+        if (null != hot) {
+            pending.mData = hot;
+        } else {
+            pending.mData = data;
+            admit(pending.mId, data, mEpoch);
+        }
+
+        mPending.add(pending);
+        return mPending.size() < BATCH_SIZE ? !mIsLost : flush();
+    }
+
+
+    /**
+     * Writes queued tiles in one transaction.
+     *
+     * @return false if the archive file is deleted by another process, queued tiles are dropped
+     * then and the archive takes no more tiles
+     */
+    public synchronized boolean flush()
+    {
+        if (!mIsLost && !mFile.exists()) {
+            mIsLost = true;
+        }
+        if (mIsLost) {
+            mPending.clear();
+            return false;
+        }
+        if (mPending.isEmpty()) {
+            return true;
+        }
+
+        mDatabase.beginTransaction();
+        try {
+            for (Pending tile : mPending) {
+                // ignored by the primary key if the body is stored already
+                mInsertImage.bindString(1, tile.mId);
+                mInsertImage.bindBlob(2, tile.mData);
+                mInsertImage.executeInsert();
+                mInsertTile.bindLong(1, tile.mZoom);
+                mInsertTile.bindLong(2, tile.mColumn);
+                mInsertTile.bindLong(3, tile.mRow);
+                mInsertTile.bindString(4, tile.mId);
+                mInsertTile.executeInsert();
+            }
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            mDatabase.endTransaction();
+        }
+        mPending.clear();
+        return true;
+    }
+
+
+    protected Pending getPending(
+            int zoom,
+            int column,
+            int row)
+    {
+        for (Pending pending : mPending) {
+            if (pending.mZoom == zoom && pending.mColumn == column && pending.mRow == row) {
+                return pending;
+            }
+        }
+        return null;
+    }
+
+
+    /**
+     * @return tile data or null if the archive has no such tile or is closed
+     */
+    public byte[] get(TileItem tile)
+    {
+        int zoom = tile.getZoomLevel();
+        int row = getRow(zoom, tile.getY());
+        synchronized (this) {
+            Pending pending = getPending(zoom, tile.getX(), row);
+            if (null != pending) {
+                return pending.mData;
+            }
+        }
+
+        if (mIsClosed) {
+            return null;
+        }
+
+        try {
+            return read(zoom, tile.getX(), row);
+        } catch (IllegalStateException e) {
+            // the archive is closed by a delete while the tile is read
+            return null;
+        }
+    }
+
+
+    protected byte[] read(
+            int zoom,
+            int column,
+            int row)
+    {
+        int epoch = mEpoch;
+        String id;
+        Cursor cursor = mDatabase.query(
+                TABLE_MAP, new String[] {COLUMN_ID},
+                COLUMN_ZOOM + " = ? AND " + COLUMN_COLUMN + " = ? AND " + COLUMN_ROW + " = ?",
+                new String[] {
+                        Integer.toString(zoom), Integer.toString(column),
+                        Integer.toString(row)}, null, null, null);
+        try {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            id = cursor.getString(0);
+        } finally {
+            cursor.close();
+        }
+
+        byte[] data = mHotBlobs.get(id);
+        if (null != data) {
+            return data;
+        }
+
+        cursor = mDatabase.query(
+                TABLE_IMAGES, new String[] {COLUMN_DATA}, COLUMN_ID + " = ?", new String[] {id},
+                null, null, null);
+        try {
+            data = cursor.moveToFirst() ? cursor.getBlob(0) : null;
+        } finally {
+            cursor.close();
+        }
+        if (null != data) {
+            admit(id, data, epoch);
+        }
+        return data;
+    }
+
+
+    public synchronized boolean contains(TileItem tile)
+    {
+        int zoom = tile.getZoomLevel();
+        int row = getRow(zoom, tile.getY());
+        if (null != getPending(zoom, tile.getX(), row)) {
+            return true;
+        }
+        if (mIsClosed || mIsLost) {
+            return false;
+        }
+
+        return DatabaseUtils.queryNumEntries(
+                mDatabase, TABLE_MAP,
+                COLUMN_ZOOM + " = " + zoom + " AND " + COLUMN_COLUMN + " = " + tile.getX() +
+                " AND " + COLUMN_ROW + " = " + row) > 0;
+    }
+
+
+    protected static String getAreaSelection(
+            GeoEnvelope envelope,
+            int zoom)
+    {
+        int tiles = 1 << zoom;
+        double tileSize = GeoConstants.MERCATOR_MAX * 2 / tiles;
+        long minX = (long) Math.floor((envelope.getMinX() + GeoConstants.MERCATOR_MAX) / tileSize);
+        long maxX = (long) Math.ceil((envelope.getMaxX() + GeoConstants.MERCATOR_MAX) / tileSize);
+        long minY = (long) Math.floor((envelope.getMinY() + GeoConstants.MERCATOR_MAX) / tileSize);
+        long maxY = (long) Math.ceil((envelope.getMaxY() + GeoConstants.MERCATOR_MAX) / tileSize);
+
+        // TMS rows grow to the north as the map coordinates do
+        return COLUMN_ZOOM + " = " + zoom + " AND " + COLUMN_COLUMN + " >= " + minX + " AND " +
+               COLUMN_COLUMN + " < " + maxX + " AND " + COLUMN_ROW + " >= " + minY + " AND " +
+               COLUMN_ROW + " < " + maxY;
+    }
+
+
+    /**
+     * Deletes tiles of the area with one statement per zoom, then bodies no tile points to.
+     *
+     * @return count of deleted tiles
+     */
+    public synchronized int deleteArea(
+            GeoEnvelope envelope,
+            List<Integer> zoomList)
+    {
+        flush();
+        int count = 0;
+        mDatabase.beginTransaction();
+        try {
+            for (Integer zoom : zoomList) {
+                count += mDatabase.delete(TABLE_MAP, getAreaSelection(envelope, zoom), null);
+            }
+            mDatabase.delete(
+                    TABLE_IMAGES,
+                    COLUMN_ID + " NOT IN (SELECT " + COLUMN_ID + " FROM " + TABLE_MAP + ")", null);
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            mDatabase.endTransaction();
+        }
+
+        // a kept body may be deleted now, it must not be taken as stored by a next put
+        forget();
+        return count;
+    }
+
+
+    /**
+     * Copies tiles of the area to a new MBTiles file, e.g. to share an offline area.
+     */
+    public synchronized void exportArea(
+            File target,
+            GeoEnvelope envelope,
+            List<Integer> zoomList)
+    {
+        flush();
+        SQLiteDatabase.deleteDatabase(target);
+        TileArchive export = new TileArchive(target, GeoConstants.TMSTYPE_NORMAL);
+        export.close();
+
+        mDatabase.execSQL("ATTACH DATABASE ? AS export", new Object[] {target.getPath()});
+        try {
+            for (Integer zoom : zoomList) {
+                mDatabase.execSQL(
+                        "INSERT INTO export." + TABLE_MAP + " SELECT * FROM " + TABLE_MAP +
+                        " WHERE " + getAreaSelection(envelope, zoom));
+            }
+            mDatabase.execSQL(
+                    "INSERT OR IGNORE INTO export." + TABLE_IMAGES + " SELECT * FROM " +
+                    TABLE_IMAGES + " WHERE " + COLUMN_ID + " IN (SELECT " + COLUMN_ID +
+                    " FROM export." + TABLE_MAP + ")");
+            mDatabase.execSQL(
+                    "INSERT INTO export." + TABLE_METADATA + " SELECT * FROM " + TABLE_METADATA);
+        } finally {
+            mDatabase.execSQL("DETACH DATABASE export");
+        }
+    }
+
+
+    public synchronized void close()
+    {
+        mIsClosed = true;
+        try {
+            flush();
+        } finally {
+            mInsertImage.close();
+            mInsertTile.close();
+            mDatabase.close();
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2019 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplibui.api;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class RingsTest {
+    // the index must answer as this scan does
+    protected static int findLinear(DrawItem.Rings rings, float minX, float minY, float maxX, float maxY) {
+        float[] data = rings.getData();
+        for (int ring = 0; ring < rings.getCount(); ring++)
+            for (int i = rings.getStart(ring); i < rings.getEnd(ring) - 1; i += 2)
+                if (data[i] >= minX && data[i] <= maxX && data[i + 1] >= minY && data[i + 1] <= maxY)
+                    return i;
+        return -1;
+    }
+
+    @Test
+    public void findsFirstPointInRingOrder() {
+        DrawItem.Rings rings = new DrawItem.Rings();
+        rings.add(new float[] {500, 500, 10, 10});
+        rings.add(new float[] {11, 11, 12, 12});
+
+        assertEquals(2, rings.find(0, 0, 20, 20));
+        assertEquals(4, rings.find(10.5f, 10.5f, 20, 20));
+        assertEquals(0, rings.find(0, 0, 1000, 1000));
+        assertEquals(-1, rings.find(100, 100, 200, 200));
+    }
+
+    @Test
+    public void firstHitOfLaterRowWins() {
+        // the point of the lower cell row comes first in the array, it is found even though
+        // the row of the later point is searched first
+        DrawItem.Rings rings = new DrawItem.Rings();
+        rings.add(new float[] {0, 300, 300, 0});
+
+        assertEquals(0, rings.find(0, 0, 300, 300));
+        assertEquals(2, rings.find(100, 0, 300, 300));
+    }
+
+    @Test
+    public void emptyRings() {
+        DrawItem.Rings rings = new DrawItem.Rings();
+        assertEquals(-1, rings.find(-1000, -1000, 1000, 1000));
+
+        rings.add(new float[0]);
+        assertEquals(-1, rings.find(-1000, -1000, 1000, 1000));
+
+        rings.add(new float[] {5, 5});
+        rings.add(new float[0]);
+        rings.add(new float[] {7, 7});
+        assertEquals(2, rings.find(6, 6, 8, 8));
+        assertEquals(0, rings.find(0, 0, 10, 10));
+    }
+
+    @Test
+    public void negativeAndFarCoordinates() {
+        DrawItem.Rings rings = new DrawItem.Rings();
+        rings.add(new float[] {-2e7f, -2e7f, -50, -60, 2e7f, 2e7f, 1e6f, -1e6f});
+
+        assertEquals(0, rings.find(-2e7f - 1, -2e7f - 1, -2e7f + 1, -2e7f + 1));
+        assertEquals(2, rings.find(-51, -61, -49, -59));
+        assertEquals(4, rings.find(2e7f - 1, 2e7f - 1, 2e7f + 1, 2e7f + 1));
+        assertEquals(6, rings.find(1e6f - 1, -1e6f - 1, 1e6f + 1, -1e6f + 1));
+        assertEquals(-1, rings.find(-3e7f, -3e7f, -2.5e7f, -2.5e7f));
+        assertEquals(-1, rings.find(3e7f, 3e7f, 4e7f, 4e7f));
+    }
+
+    @Test
+    public void matchesLinearScan() {
+        Random random = new Random(1);
+        DrawItem.Rings rings = new DrawItem.Rings();
+        for (int ring = 0; ring < 3; ring++) {
+            float[] points = new float[2000];
+            for (int i = 0; i < points.length; i += 2) {
+                boolean isFar = random.nextInt(10) == 0;
+                points[i] = isFar ? random.nextFloat() * 4e7f - 2e7f : random.nextFloat() * 2000;
+                points[i + 1] = isFar ? random.nextFloat() * 4e7f - 2e7f : random.nextFloat() * 2000;
+            }
+            rings.add(points);
+        }
+
+        for (int q = 0; q < 2000; q++) {
+            boolean isFar = q % 3 == 0;
+            float x = isFar ? random.nextFloat() * 4e7f - 2e7f : random.nextFloat() * 2200 - 100;
+            float y = isFar ? random.nextFloat() * 4e7f - 2e7f : random.nextFloat() * 2200 - 100;
+            float tolerance = q % 5 == 0 ? 5000 : 30;
+            assertEquals(
+                    findLinear(rings, x - tolerance, y - tolerance, x + tolerance, y + tolerance),
+                    rings.find(x - tolerance, y - tolerance, x + tolerance, y + tolerance));
+        }
+    }
+
+    @Test
+    public void indexFollowsChanges() {
+        DrawItem.Rings rings = new DrawItem.Rings();
+        rings.add(new float[] {0, 0, 100, 100});
+        assertEquals(-1, rings.find(40, 40, 60, 60));
+
+        rings.setPoint(2, 50, 50);
+        assertEquals(2, rings.find(40, 40, 60, 60));
+
+        rings.insert(0, 0, 45, 45);
+        assertEquals(0, rings.find(40, 40, 60, 60));
+
+        rings.delete(0, 0, 2);
+        assertEquals(2, rings.find(40, 40, 60, 60));
+    }
+
+    @Test
+    public void getRing() {
+        DrawItem.Rings rings = new DrawItem.Rings();
+        rings.add(new float[] {1, 1, 2, 2});
+        assertEquals(0, rings.getRing(0));
+        assertEquals(0, rings.getRing(2));
+
+        rings.add(new float[] {3, 3});
+        assertEquals(1, rings.getRing(4));
+    }
+
+    @Test
+    public void getRingSkipsEmptyRings() {
+        DrawItem.Rings rings = new DrawItem.Rings();
+        rings.add(new float[0]);
+        rings.add(new float[] {1, 1, 2, 2});
+        rings.add(new float[0]);
+        rings.add(new float[0]);
+        rings.add(new float[] {3, 3});
+        rings.add(new float[0]);
+
+        // a point belongs to the ring it is stored in, not to an empty ring with the same start
+        assertEquals(1, rings.getRing(0));
+        assertEquals(1, rings.getRing(2));
+        assertEquals(4, rings.getRing(4));
+    }
+}
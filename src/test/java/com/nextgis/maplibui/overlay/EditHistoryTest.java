@@ -0,0 +1,282 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2016-2019 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplibui.overlay;
+
+import com.nextgis.maplib.datasource.GeoGeometry;
+import com.nextgis.maplib.datasource.GeoLineString;
+import com.nextgis.maplib.datasource.GeoLinearRing;
+import com.nextgis.maplib.datasource.GeoPoint;
+import com.nextgis.maplib.datasource.GeoPolygon;
+import com.nextgis.maplib.util.GeoConstants;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class EditHistoryTest {
+    protected static final int CRS = GeoConstants.CRS_WEB_MERCATOR;
+
+    protected static GeoLineString line(double[] coordinates) {
+        GeoLineString line = new GeoLineString();
+        line.setCRS(CRS);
+        for (int i = 0; i < coordinates.length; i += 2)
+            line.add(new GeoPoint(coordinates[i], coordinates[i + 1]));
+        return line;
+    }
+
+    protected static GeoPolygon polygon(double[] outer, double[]... holes) {
+        GeoPolygon polygon = new GeoPolygon();
+        polygon.setCRS(CRS);
+        for (int i = 0; i < outer.length; i += 2)
+            polygon.add(new GeoPoint(outer[i], outer[i + 1]));
+        for (double[] hole : holes) {
+            GeoLinearRing ring = new GeoLinearRing();
+            for (int i = 0; i < hole.length; i += 2)
+                ring.add(new GeoPoint(hole[i], hole[i + 1]));
+            polygon.addInnerRing(ring);
+        }
+        return polygon;
+    }
+
+    protected static EditHistory.Shape shape(int type, int[] parts, double[]... rings) {
+        return new EditHistory.Shape(type, CRS, parts, new ArrayList<>(Arrays.asList(rings)));
+    }
+
+    protected static void assertShape(EditHistory.Shape expected, EditHistory.Shape actual) {
+        assertEquals(expected.mType, actual.mType);
+        assertArrayEquals(expected.mParts, actual.mParts);
+        assertEquals(expected.mRings.size(), actual.mRings.size());
+        for (int i = 0; i < expected.mRings.size(); i++)
+            assertArrayEquals(expected.mRings.get(i), actual.mRings.get(i), 0);
+    }
+
+    protected static void assertGeometry(GeoGeometry expected, GeoGeometry actual) {
+        assertShape(EditHistory.Shape.from(expected), EditHistory.Shape.from(actual));
+    }
+
+    @Test
+    public void diffOfMovedVertexIsSplice() {
+        EditHistory.Shape from = shape(GeoConstants.GTLineString, new int[] {1},
+                new double[] {0, 0, 1, 1, 2, 2, 3, 3});
+        EditHistory.Shape to = shape(GeoConstants.GTLineString, new int[] {1},
+                new double[] {0, 0, 1, 1, 5, 5, 3, 3});
+
+        List<EditHistory.Op> ops = EditHistory.diff(from, to);
+        assertEquals(1, ops.size());
+        EditHistory.Op op = ops.get(0);
+        assertEquals(EditHistory.OP_SPLICE, op.mKind);
+        assertEquals(4, op.mPosition);
+        assertArrayEquals(new double[] {2, 2}, op.mRemoved, 0);
+        assertArrayEquals(new double[] {5, 5}, op.mInserted, 0);
+
+        EditHistory.Shape shape = from.copy();
+        EditHistory.apply(shape, ops, true);
+        assertShape(to, shape);
+        EditHistory.apply(shape, ops, false);
+        assertShape(from, shape);
+    }
+
+    @Test
+    public void diffOfInsertedAndDeletedVertices() {
+        EditHistory.Shape from = shape(GeoConstants.GTPolygon, new int[] {1},
+                new double[] {0, 0, 10, 0, 10, 10, 0, 10, 0, 0});
+        EditHistory.Shape to = shape(GeoConstants.GTPolygon, new int[] {1},
+                new double[] {0, 0, 5, -1, 10, 0, 10, 10, 0, 0});
+
+        List<EditHistory.Op> ops = EditHistory.diff(from, to);
+        EditHistory.Shape shape = from.copy();
+        EditHistory.apply(shape, ops, true);
+        assertShape(to, shape);
+        EditHistory.apply(shape, ops, false);
+        assertShape(from, shape);
+    }
+
+    @Test
+    public void diffOfAddedRingReplacesRings() {
+        double[] outer = {0, 0, 10, 0, 10, 10, 0, 10, 0, 0};
+        double[] hole = {2, 2, 4, 2, 4, 4, 2, 2};
+        EditHistory.Shape from = shape(GeoConstants.GTPolygon, new int[] {1}, outer);
+        EditHistory.Shape to = shape(GeoConstants.GTPolygon, new int[] {2}, outer, hole);
+
+        List<EditHistory.Op> ops = EditHistory.diff(from, to);
+        assertEquals(1, ops.size());
+        assertEquals(EditHistory.OP_RINGS, ops.get(0).mKind);
+        assertEquals(1, ops.get(0).mRing);
+        assertEquals(0, ops.get(0).mRemovedRings.size());
+        assertEquals(1, ops.get(0).mInsertedRings.size());
+
+        EditHistory.Shape shape = from.copy();
+        EditHistory.apply(shape, ops, true);
+        assertShape(to, shape);
+        EditHistory.apply(shape, ops, false);
+        assertShape(from, shape);
+    }
+
+    @Test
+    public void diffOfOtherTypeIsNull() {
+        EditHistory.Shape line = shape(GeoConstants.GTLineString, new int[] {1},
+                new double[] {0, 0, 1, 1});
+        EditHistory.Shape points = shape(GeoConstants.GTMultiPoint, new int[] {1, 1},
+                new double[] {0, 0}, new double[] {1, 1});
+        assertNull(EditHistory.diff(line, points));
+    }
+
+    /**
+     * @return versions of a line edited vertex by vertex
+     */
+    protected static List<double[]> edit(int steps) {
+        Random random = new Random(7);
+        List<double[]> versions = new ArrayList<>();
+        double[] coordinates = new double[200];
+        for (int i = 0; i < coordinates.length; i++)
+            coordinates[i] = i;
+        versions.add(coordinates);
+
+        for (int step = 1; step < steps; step++) {
+            int vertex = random.nextInt(coordinates.length / 2) * 2;
+            switch (step % 3) {
+                case 0:
+                    coordinates = coordinates.clone();
+                    coordinates[vertex] += 100;
+                    break;
+                case 1:
+                    double[] inserted = new double[coordinates.length + 2];
+                    System.arraycopy(coordinates, 0, inserted, 0, vertex);
+                    inserted[vertex] = -step;
+                    inserted[vertex + 1] = step;
+                    System.arraycopy(coordinates, vertex, inserted, vertex + 2, coordinates.length - vertex);
+                    coordinates = inserted;
+                    break;
+                default:
+                    double[] deleted = new double[coordinates.length - 2];
+                    System.arraycopy(coordinates, 0, deleted, 0, vertex);
+                    System.arraycopy(coordinates, vertex + 2, deleted, vertex, deleted.length - vertex);
+                    coordinates = deleted;
+                    break;
+            }
+            versions.add(coordinates);
+        }
+        return versions;
+    }
+
+    @Test
+    public void replayRestoresEveryStep() {
+        List<double[]> versions = edit(300);
+        EditHistory history = new EditHistory();
+        for (double[] version : versions)
+            history.add(line(version));
+        assertEquals(versions.size(), history.size());
+
+        // steps are stored as operations with a few checkpoints
+        int checkpoints = 0;
+        for (EditHistory.Entry entry : history.mEntries)
+            if (entry.mCheckpoint != null)
+                checkpoints++;
+        assertNotNull(history.mEntries.get(0).mCheckpoint);
+        assertTrue(checkpoints > 1 && checkpoints < versions.size() / 10);
+
+        // undo and redo move by one step, other steps replay from a checkpoint
+        for (int i = versions.size() - 1; i >= 0; i--)
+            assertGeometry(line(versions.get(i)), history.get(i));
+        for (int i = 0; i < versions.size(); i++)
+            assertGeometry(line(versions.get(i)), history.get(i));
+        Random random = new Random(11);
+        for (int i = 0; i < 100; i++) {
+            int index = random.nextInt(versions.size());
+            assertGeometry(line(versions.get(index)), history.get(index));
+        }
+    }
+
+    @Test
+    public void typeChangeStoresCheckpoint() {
+        EditHistory history = new EditHistory();
+        history.add(line(new double[] {0, 0, 1, 1, 2, 2}));
+        history.add(polygon(new double[] {0, 0, 1, 1, 2, 0, 0, 0}));
+        assertNotNull(history.mEntries.get(1).mCheckpoint);
+        assertGeometry(line(new double[] {0, 0, 1, 1, 2, 2}), history.get(0));
+        assertGeometry(polygon(new double[] {0, 0, 1, 1, 2, 0, 0, 0}), history.get(1));
+    }
+
+    @Test
+    public void truncateDropsRedoSteps() {
+        EditHistory history = new EditHistory();
+        history.add(line(new double[] {0, 0, 1, 1}));
+        history.add(line(new double[] {0, 0, 2, 2}));
+        history.add(line(new double[] {0, 0, 3, 3}));
+        history.get(0);
+
+        history.truncate(1);
+        history.add(line(new double[] {0, 0, 4, 4}));
+        assertEquals(2, history.size());
+        assertGeometry(line(new double[] {0, 0, 1, 1}), history.get(0));
+        assertGeometry(line(new double[] {0, 0, 4, 4}), history.get(1));
+    }
+
+    @Test
+    public void writeAndReadRoundTrip() throws IOException {
+        List<double[]> versions = edit(60);
+        double[] outer = {0, 0, 10, 0, 10, 10, 0, 10, 0, 0};
+        EditHistory history = new EditHistory();
+        for (double[] version : versions)
+            history.add(line(version));
+        history.add(polygon(outer));
+        history.add(polygon(outer, new double[] {2, 2, 4, 2, 4, 4, 2, 2}));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        history.write(out);
+        out.close();
+
+        EditHistory read = new EditHistory();
+        read.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        assertEquals(history.size(), read.size());
+        for (int i = 0; i < versions.size(); i++)
+            assertGeometry(line(versions.get(i)), read.get(i));
+        assertGeometry(polygon(outer), read.get(versions.size()));
+        assertGeometry(polygon(outer, new double[] {2, 2, 4, 2, 4, 4, 2, 2}),
+                read.get(versions.size() + 1));
+    }
+
+    @Test(expected = IOException.class)
+    public void readRejectsOtherVersion() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(EditHistory.VERSION + 1);
+        out.writeInt(0);
+        out.close();
+        new EditHistory().read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+    }
+}
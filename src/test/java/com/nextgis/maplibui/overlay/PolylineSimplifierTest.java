@@ -0,0 +1,202 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2019 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplibui.overlay;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+
+public class PolylineSimplifierTest
+{
+    protected static final double DELTA = 1e-9;
+
+
+    @Test
+    public void outCodes()
+    {
+        assertEquals(0, PolylineSimplifier.getOutCode(5, 5, 0, 0, 10, 10));
+        assertEquals(0, PolylineSimplifier.getOutCode(10, 0, 0, 0, 10, 10));
+        assertEquals(
+                PolylineSimplifier.OUT_MIN_X | PolylineSimplifier.OUT_MAX_Y,
+                PolylineSimplifier.getOutCode(-1, 11, 0, 0, 10, 10));
+        assertEquals(
+                PolylineSimplifier.OUT_MAX_X | PolylineSimplifier.OUT_MIN_Y,
+                PolylineSimplifier.getOutCode(11, -1, 0, 0, 10, 10));
+    }
+
+
+    @Test
+    public void clipKeepsInnerSegment()
+    {
+        double[] segment = {1, 2, 9, 8};
+        assertTrue(PolylineSimplifier.clipSegment(segment, 0, 0, 10, 10));
+        assertArrayEquals(new double[] {1, 2, 9, 8}, segment, DELTA);
+    }
+
+
+    @Test
+    public void clipMovesOuterEnds()
+    {
+        double[] segment = {-5, 5, 5, 5};
+        assertTrue(PolylineSimplifier.clipSegment(segment, 0, 0, 10, 10));
+        assertArrayEquals(new double[] {0, 5, 5, 5}, segment, DELTA);
+
+        segment = new double[] {-10, -10, 20, 20};
+        assertTrue(PolylineSimplifier.clipSegment(segment, 0, 0, 10, 10));
+        assertArrayEquals(new double[] {0, 0, 10, 10}, segment, DELTA);
+
+        segment = new double[] {5, 20, 5, -20};
+        assertTrue(PolylineSimplifier.clipSegment(segment, 0, 0, 10, 10));
+        assertArrayEquals(new double[] {5, 10, 5, 0}, segment, DELTA);
+    }
+
+
+    @Test
+    public void clipRejectsOuterSegment()
+    {
+        // both ends beyond the same border
+        assertFalse(PolylineSimplifier.clipSegment(new double[] {11, 0, 20, 10}, 0, 0, 10, 10));
+        // ends beyond different borders, the line passes by the corner
+        assertFalse(PolylineSimplifier.clipSegment(new double[] {-6, 5, 5, 16}, 0, 0, 10, 10));
+    }
+
+
+    @Test
+    public void simplifyDropsCloseVertices()
+    {
+        float[] points = {0, 0, 0.5f, 0, 1, 0, 5, 0, 5.2f, 0};
+        float[] out = new float[points.length];
+        int count = PolylineSimplifier.simplify(points, 1, -100, -100, 100, 100, out);
+        // the last vertex is kept even if it is close
+        assertArrayEquals(
+                new float[] {0, 0, 1, 0, 5, 0, 5.2f, 0}, Arrays.copyOf(out, count), 0);
+    }
+
+
+    @Test
+    public void simplifyReplacesOuterVerticesByChord()
+    {
+        float[] points = {5, 5, 20, 0, 30, 5, 40, 10, 20, 8, 5, 8};
+        float[] out = new float[points.length];
+        int count = PolylineSimplifier.simplify(points, 1, 0, 0, 10, 10, out);
+        assertArrayEquals(new float[] {5, 5, 20, 0, 20, 8, 5, 8}, Arrays.copyOf(out, count), 0);
+    }
+
+
+    @Test
+    public void simplifyKeepsVerticesAroundTheViewport()
+    {
+        // neighbours are beyond different borders, the chord would cut the corner
+        float[] points = {-5, 5, -5, -5, 5, -5};
+        float[] out = new float[points.length];
+        int count = PolylineSimplifier.simplify(points, 1, 0, 0, 10, 10, out);
+        assertArrayEquals(points, Arrays.copyOf(out, count), 0);
+    }
+
+
+    @Test
+    public void simplifyPartOfArray()
+    {
+        float[] points = {99, 99, 0, 0, 0.1f, 0, 3, 3, 99, 99};
+        float[] out = new float[points.length];
+        int count = PolylineSimplifier.simplify(points, 2, 6, 1, -10, -10, 10, 10, out);
+        assertArrayEquals(new float[] {0, 0, 3, 3}, Arrays.copyOf(out, count), 0);
+    }
+
+
+    @Test
+    public void levelKeepsFloatingLastPoint()
+    {
+        PolylineSimplifier simplifier = new PolylineSimplifier(1);
+        double unitsPerPixel = PolylineSimplifier.ZERO_PIXEL_SIZE / 1024;
+        double tolerance = unitsPerPixel;
+        simplifier.add(0, 0);
+        simplifier.add(tolerance * 0.6, 0);
+        simplifier.add(tolerance * 1.2, 0);
+        simplifier.add(tolerance * 1.5, 0);
+
+        PolylineSimplifier.Level level = simplifier.getLevel(unitsPerPixel);
+        assertEquals(4, level.getSourceCount());
+        assertEquals(3, level.getCount());
+        assertEquals(2, level.getStableCount());
+        assertEquals(tolerance * 1.2, level.getX(1), DELTA);
+        assertEquals(tolerance * 1.5, level.getX(2), DELTA);
+
+        // the floating point is replaced by a new one, a coarser resolution of the same level
+        // is served by the same instance
+        simplifier.add(tolerance * 3, 0);
+        assertSame(level, simplifier.getLevel(PolylineSimplifier.ZERO_PIXEL_SIZE / 1000));
+        assertEquals(5, level.getSourceCount());
+        assertEquals(3, level.getCount());
+        assertEquals(3, level.getStableCount());
+        assertEquals(tolerance * 3, level.getX(2), DELTA);
+    }
+
+
+    @Test
+    public void levelBlockBoundsIncludeJoiningSegment()
+    {
+        PolylineSimplifier simplifier = new PolylineSimplifier(1);
+        int count = PolylineSimplifier.BLOCK_SIZE + 44;
+        for (int i = 0; i < count; i++) {
+            simplifier.add(i * 1000, 0);
+        }
+
+        PolylineSimplifier.Level level = simplifier.getLevel(1);
+        assertEquals(count, level.getCount());
+        assertEquals(2, level.getBlockCount());
+        assertEquals(
+                PolylineSimplifier.BLOCK_SIZE, PolylineSimplifier.Level.getBlockStart(1));
+
+        double joint = (PolylineSimplifier.BLOCK_SIZE - 1) * 1000;
+        assertTrue(level.intersectsBlock(1, joint - 1, -1, joint + 1, 1));
+        assertTrue(level.intersectsBlock(0, joint - 1, -1, joint + 1, 1));
+        assertFalse(level.intersectsBlock(0, joint + 500, -1, joint + 600, 1));
+        assertFalse(level.intersectsBlock(1, 0, 1, joint, 2));
+    }
+
+
+    @Test
+    public void clearDropsPointsAndLevels()
+    {
+        PolylineSimplifier simplifier = new PolylineSimplifier(1);
+        simplifier.add(0, 0);
+        simplifier.add(10, 10);
+        PolylineSimplifier.Level level = simplifier.getLevel(1);
+        simplifier.clear();
+
+        assertEquals(0, simplifier.getPointCount());
+        PolylineSimplifier.Level cleared = simplifier.getLevel(1);
+        assertNotSame(level, cleared);
+        assertEquals(0, cleared.getCount());
+    }
+}
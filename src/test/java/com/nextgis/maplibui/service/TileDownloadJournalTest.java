@@ -0,0 +1,257 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2019 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplibui.service;
+
+import com.nextgis.maplib.datasource.GeoEnvelope;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+public class TileDownloadJournalTest
+{
+    protected static final String      LAYER    = "layer_1";
+    protected static final GeoEnvelope ENVELOPE =
+            new GeoEnvelope(-1000000, 2500000, -500000, 800000);
+    protected static final int[]       ZOOMS    = {3, 7, 9};
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+
+    protected static List<Integer> getZoomList()
+    {
+        List<Integer> zoomList = new ArrayList<>();
+        for (int zoom : ZOOMS) {
+            zoomList.add(zoom);
+        }
+        return zoomList;
+    }
+
+
+    protected TileDownloadJournal open()
+    {
+        return TileDownloadJournal.open(mFolder.getRoot(), LAYER, ENVELOPE, getZoomList());
+    }
+
+
+    @Test
+    public void tileCountOfAllZooms()
+    {
+        long count = 0;
+        for (int zoom : ZOOMS) {
+            count += TileIterator.getTileCount(ENVELOPE, zoom);
+        }
+        assertEquals(count, open().getTileCount());
+    }
+
+
+    @Test
+    public void completedBits()
+    {
+        TileDownloadJournal journal = open();
+        long last = TileIterator.getTileCount(ENVELOPE, 9) - 1;
+        assertTrue(last > 64);
+
+        for (long index : new long[] {0, 63, 64, last}) {
+            assertFalse(journal.isCompleted(9, index));
+            journal.setCompleted(9, index);
+            assertTrue(journal.isCompleted(9, index));
+        }
+        // a tile completed again is counted once
+        journal.setCompleted(9, 63);
+
+        assertEquals(4, journal.getCompletedCount());
+        assertFalse(journal.isCompleted(9, 1));
+        assertFalse(journal.isCompleted(9, 62));
+        assertFalse(journal.isCompleted(7, 0));
+    }
+
+
+    @Test
+    public void unknownZoomIsIgnored()
+    {
+        TileDownloadJournal journal = open();
+        journal.setCompleted(5, 0);
+        assertFalse(journal.isCompleted(5, 0));
+        assertEquals(0, journal.getCompletedCount());
+    }
+
+
+    @Test
+    public void completedTileLeavesFailureLedger()
+    {
+        TileDownloadJournal journal = open();
+        journal.setFailed(7, 10, 503);
+        journal.setFailed(7, 10, 404);
+        journal.setFailed(9, 2, 500);
+        assertEquals(2, journal.getFailedCount());
+
+        journal.setCompleted(7, 10);
+        assertEquals(1, journal.getFailedCount());
+        TileDownloadJournal.Failure failure = journal.getFailures().iterator().next();
+        assertEquals(9, failure.getZoom());
+        assertEquals(2, failure.getIndex());
+        assertEquals(500, failure.getStatus());
+    }
+
+
+    @Test
+    public void saveAndLoadRoundTrip()
+            throws IOException
+    {
+        TileDownloadJournal journal = open();
+        journal.setCompleted(3, 0);
+        journal.setCompleted(9, 64);
+        journal.setCompleted(9, 130);
+        journal.setFailed(7, 5, 429);
+        journal.setFailed(9, 1, 404);
+        journal.setConstraints(
+                new TileDownloadConstraints(TileDownloadConstraints.FLAG_UNMETERED, 30));
+        journal.save();
+
+        TileDownloadJournal loaded = TileDownloadJournal.load(
+                new File(mFolder.getRoot(), journal.getFileName()));
+        assertEquals(LAYER, loaded.getLayerPathName());
+        assertEquals(ENVELOPE.getMinX(), loaded.getEnvelope().getMinX(), 0);
+        assertEquals(ENVELOPE.getMaxX(), loaded.getEnvelope().getMaxX(), 0);
+        assertEquals(ENVELOPE.getMinY(), loaded.getEnvelope().getMinY(), 0);
+        assertEquals(ENVELOPE.getMaxY(), loaded.getEnvelope().getMaxY(), 0);
+        assertEquals(getZoomList(), loaded.getZoomList());
+        assertNull(loaded.getShape());
+        assertEquals(journal.getTileCount(), loaded.getTileCount());
+
+        assertEquals(3, loaded.getCompletedCount());
+        assertTrue(loaded.isCompleted(3, 0));
+        assertTrue(loaded.isCompleted(9, 64));
+        assertTrue(loaded.isCompleted(9, 130));
+        assertFalse(loaded.isCompleted(9, 0));
+        assertFalse(loaded.isCompleted(7, 0));
+
+        List<TileDownloadJournal.Failure> failures = new ArrayList<>(loaded.getFailures());
+        assertEquals(2, failures.size());
+        assertEquals(7, failures.get(0).getZoom());
+        assertEquals(5, failures.get(0).getIndex());
+        assertEquals(429, failures.get(0).getStatus());
+        assertEquals(9, failures.get(1).getZoom());
+        assertEquals(404, failures.get(1).getStatus());
+
+        assertEquals(
+                TileDownloadConstraints.FLAG_UNMETERED, loaded.getConstraints().getFlags());
+        assertEquals(30, loaded.getConstraints().getMinBattery());
+    }
+
+
+    @Test
+    public void jobParametersRoundTrip()
+            throws IOException
+    {
+        TileDownloadJournal journal = open();
+        assertEquals(TileDownloadService.REFRESH_ALL, journal.getRefreshMode());
+        assertFalse(journal.isPacked());
+
+        journal.setParameters(TileDownloadService.REFRESH_STALE, 3600000, 7, 0.25f, true);
+        journal.save();
+
+        TileDownloadJournal loaded = TileDownloadJournal.load(
+                new File(mFolder.getRoot(), journal.getFileName()));
+        assertEquals(TileDownloadService.REFRESH_STALE, loaded.getRefreshMode());
+        assertEquals(3600000, loaded.getMaxAge());
+        assertEquals(7, loaded.getMaxAttempts());
+        assertEquals(0.25f, loaded.getErrorBudget(), 0);
+        assertTrue(loaded.isPacked());
+    }
+
+
+    @Test
+    public void openResumesSavedJob()
+            throws IOException
+    {
+        TileDownloadJournal journal = open();
+        journal.setCompleted(7, 3);
+        journal.save();
+
+        TileDownloadJournal resumed = open();
+        assertTrue(resumed.isCompleted(7, 3));
+        assertEquals(1, resumed.getCompletedCount());
+
+        List<TileDownloadJournal> journals = TileDownloadJournal.list(mFolder.getRoot());
+        assertEquals(1, journals.size());
+        assertEquals(journal.getFileName(), journals.get(0).getFileName());
+
+        // other zooms are another job
+        TileDownloadJournal other = TileDownloadJournal.open(
+                mFolder.getRoot(), LAYER, ENVELOPE, Arrays.asList(3, 7));
+        assertEquals(0, other.getCompletedCount());
+
+        resumed.delete();
+        assertTrue(TileDownloadJournal.list(mFolder.getRoot()).isEmpty());
+    }
+
+
+    @Test
+    public void progressOfJob()
+    {
+        TileDownloadJournal journal = TileDownloadJournal.open(
+                mFolder.getRoot(), LAYER, ENVELOPE, Arrays.asList(0));
+        assertEquals(1, journal.getTileCount());
+        assertEquals(0, journal.getProgress(), 0);
+        assertFalse(journal.isFinished());
+
+        journal.setCompleted(0, 0);
+        assertEquals(1, journal.getProgress(), 0);
+        assertTrue(journal.isFinished());
+    }
+
+
+    @Test(expected = IOException.class)
+    public void foreignFileIsRejected()
+            throws IOException
+    {
+        File file = mFolder.newFile(TileDownloadJournal.JOURNAL_PREFIX + "0" +
+                                    TileDownloadJournal.JOURNAL_EXT);
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+        try {
+            out.writeInt(42);
+            out.writeInt(1);
+        } finally {
+            out.close();
+        }
+        TileDownloadJournal.load(file);
+    }
+}
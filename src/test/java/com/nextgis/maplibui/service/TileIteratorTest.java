@@ -0,0 +1,206 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2019 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplibui.service;
+
+import com.nextgis.maplib.datasource.GeoEnvelope;
+import com.nextgis.maplib.datasource.TileItem;
+import com.nextgis.maplib.util.GeoConstants;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class TileIteratorTest
+{
+    /**
+     * @return envelope which covers the tile range at the zoom, end exclusive
+     */
+    protected static GeoEnvelope getEnvelope(
+            int zoom,
+            int begX,
+            int begY,
+            int endX,
+            int endY)
+    {
+        double tileSize = GeoConstants.MERCATOR_MAX * 2 / (1 << zoom);
+        // inner points of the border tiles, so rounding does not add a tile
+        return new GeoEnvelope(
+                -GeoConstants.MERCATOR_MAX + (begX + 0.5) * tileSize,
+                -GeoConstants.MERCATOR_MAX + (endX - 0.5) * tileSize,
+                -GeoConstants.MERCATOR_MAX + (begY + 0.5) * tileSize,
+                -GeoConstants.MERCATOR_MAX + (endY - 0.5) * tileSize);
+    }
+
+
+    @Test
+    public void rangeOfEnvelope()
+    {
+        int[] range = TileIterator.getRange(getEnvelope(10, 3, 5, 40, 21), 10);
+        assertEquals(3, range[0]);
+        assertEquals(5, range[1]);
+        assertEquals(40, range[2]);
+        assertEquals(21, range[3]);
+        assertEquals(37 * 16, TileIterator.getTileCount(getEnvelope(10, 3, 5, 40, 21), 10));
+    }
+
+
+    @Test
+    public void rangeIsClampedToTheWorld()
+    {
+        double max = GeoConstants.MERCATOR_MAX * 2;
+        int[] range = TileIterator.getRange(new GeoEnvelope(-max, max, -max, max), 2);
+        assertEquals(0, range[0]);
+        assertEquals(0, range[1]);
+        assertEquals(4, range[2]);
+        assertEquals(4, range[3]);
+    }
+
+
+    @Test
+    public void everyTileIsVisitedOnce()
+    {
+        // the range is not a multiple of the block size at the second zoom
+        GeoEnvelope bounds = getEnvelope(6, 10, 20, 47, 39);
+        List<Integer> zooms = Arrays.asList(5, 6);
+        TileIterator iterator = new TileIterator(bounds, zooms, GeoConstants.TMSTYPE_NORMAL);
+
+        Set<String> visited = new HashSet<>();
+        int[] counts = new int[7];
+        while (iterator.hasNext()) {
+            TileItem tile = iterator.next();
+            int zoom = tile.getZoomLevel();
+            assertEquals(zoom, iterator.getCurrentZoom());
+            assertTrue(visited.add(zoom + "/" + tile.getX() + "/" + tile.getY()));
+
+            int[] range = TileIterator.getRange(bounds, zoom);
+            assertTrue(tile.getX() >= range[0] && tile.getX() < range[2]);
+            assertTrue(tile.getY() >= range[1] && tile.getY() < range[3]);
+            assertEquals(
+                    (long) (tile.getY() - range[1]) * (range[2] - range[0]) + tile.getX() -
+                    range[0], iterator.getCurrentIndex());
+            counts[zoom]++;
+        }
+
+        assertEquals(iterator.getTileCount(), visited.size());
+        assertEquals(TileIterator.getTileCount(bounds, 5), counts[5]);
+        assertEquals(37 * 19, counts[6]);
+    }
+
+
+    @Test
+    public void tilesOfBlockAreNeighbours()
+    {
+        int size = TileIterator.BLOCK_SIZE;
+        TileIterator iterator = new TileIterator(
+                getEnvelope(8, 0, 0, size, size), Arrays.asList(8),
+                GeoConstants.TMSTYPE_NORMAL);
+
+        TileItem previous = iterator.next();
+        int count = 1;
+        while (iterator.hasNext()) {
+            TileItem tile = iterator.next();
+            assertEquals(
+                    1, Math.abs(tile.getX() - previous.getX()) +
+                       Math.abs(tile.getY() - previous.getY()));
+            previous = tile;
+            count++;
+        }
+        assertEquals(TileIterator.BLOCK_AREA, count);
+    }
+
+
+    @Test
+    public void hilbertCurveFillsTheSquare()
+    {
+        int size = TileIterator.BLOCK_SIZE;
+        boolean[] seen = new boolean[size * size];
+        int[] point = new int[2];
+        for (int distance = 0; distance < size * size; distance++) {
+            TileIterator.hilbertToXY(size, distance, point);
+            assertFalse(seen[point[1] * size + point[0]]);
+            seen[point[1] * size + point[0]] = true;
+        }
+        TileIterator.hilbertToXY(size, 0, point);
+        assertEquals(0, point[0]);
+        assertEquals(0, point[1]);
+    }
+
+
+    @Test
+    public void osmRowsCountFromTheNorth()
+    {
+        TileIterator iterator = new TileIterator(
+                getEnvelope(3, 2, 1, 3, 2), Arrays.asList(3), GeoConstants.TMSTYPE_OSM);
+        TileItem tile = iterator.next();
+        assertEquals(2, tile.getX());
+        assertEquals(8 - 1 - 1, tile.getY());
+        assertFalse(iterator.hasNext());
+    }
+
+
+    @Test
+    public void skippedTilesAreNotReturned()
+    {
+        TileIterator iterator = new TileIterator(
+                getEnvelope(7, 0, 0, 40, 40), Arrays.asList(7), GeoConstants.TMSTYPE_NORMAL,
+                false)
+        {
+            @Override
+            protected boolean accept(
+                    int x,
+                    int y)
+            {
+                return x == y;
+            }
+        };
+        iterator.start();
+
+        int count = 0;
+        while (iterator.hasNext()) {
+            TileItem tile = iterator.next();
+            assertEquals(tile.getX(), tile.getY());
+            count++;
+        }
+        assertEquals(40, count);
+    }
+
+
+    @Test(expected = NoSuchElementException.class)
+    public void nextAfterTheEndThrows()
+    {
+        TileIterator iterator = new TileIterator(
+                getEnvelope(1, 0, 0, 1, 1), Arrays.asList(1), GeoConstants.TMSTYPE_NORMAL);
+        iterator.next();
+        iterator.next();
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2019 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplibui.service;
+
+import org.junit.Test;
+
+import java.net.HttpURLConnection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class TileRetryPolicyTest
+{
+    @Test
+    public void transientFailuresAreRetried()
+    {
+        TileRetryPolicy policy = new TileRetryPolicy();
+        assertTrue(policy.isRetryable(TileDownloadMetrics.STATUS_IO_ERROR));
+        assertTrue(policy.isRetryable(TileDownloadMetrics.STATUS_UNKNOWN));
+        assertTrue(policy.isRetryable(HttpURLConnection.HTTP_CLIENT_TIMEOUT));
+        assertTrue(policy.isRetryable(429));
+        assertTrue(policy.isRetryable(HttpURLConnection.HTTP_INTERNAL_ERROR));
+        assertTrue(policy.isRetryable(HttpURLConnection.HTTP_UNAVAILABLE));
+
+        assertFalse(policy.isRetryable(HttpURLConnection.HTTP_NOT_FOUND));
+        assertFalse(policy.isRetryable(HttpURLConnection.HTTP_FORBIDDEN));
+        assertFalse(policy.isRetryable(HttpURLConnection.HTTP_BAD_REQUEST));
+    }
+
+
+    @Test
+    public void attemptsAreLimited()
+    {
+        TileRetryPolicy policy = new TileRetryPolicy(3, 100, 1000);
+        assertEquals(3, policy.getMaxAttempts());
+        assertTrue(policy.shouldRetry(1, HttpURLConnection.HTTP_UNAVAILABLE));
+        assertTrue(policy.shouldRetry(2, HttpURLConnection.HTTP_UNAVAILABLE));
+        assertFalse(policy.shouldRetry(3, HttpURLConnection.HTTP_UNAVAILABLE));
+        assertFalse(policy.shouldRetry(1, HttpURLConnection.HTTP_NOT_FOUND));
+
+        // the first attempt is always made
+        assertEquals(1, new TileRetryPolicy(0, 100, 1000).getMaxAttempts());
+    }
+
+
+    @Test
+    public void delayIsJitteredUnderExponentialBackoff()
+    {
+        TileRetryPolicy policy = new TileRetryPolicy(10, 100, 1000);
+        for (int attempt = 1; attempt <= 6; attempt++) {
+            long backoff = Math.min(1000, 100L << (attempt - 1));
+            long max = 0;
+            for (int i = 0; i < 1000; i++) {
+                long delay = policy.getDelay(attempt);
+                assertTrue(delay >= 0 && delay < backoff);
+                max = Math.max(max, delay);
+            }
+            // full jitter spreads delays over the whole backoff
+            assertTrue(max > backoff / 2);
+        }
+    }
+
+
+    @Test
+    public void delayOfLateAttemptDoesNotOverflow()
+    {
+        TileRetryPolicy policy = new TileRetryPolicy(100, 500, 30000);
+        long delay = policy.getDelay(90);
+        assertTrue(delay >= 0 && delay < 30000);
+    }
+}
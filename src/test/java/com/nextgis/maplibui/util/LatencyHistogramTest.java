@@ -0,0 +1,97 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2019 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplibui.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+public class LatencyHistogramTest
+{
+    @Test
+    public void bucketBoundsCoverEveryValue()
+    {
+        for (long value = 0; value < 100000; value++) {
+            int index = LatencyHistogram.getIndex(value);
+            assertTrue(LatencyHistogram.getLowerBound(index) <= value);
+            assertTrue(value < LatencyHistogram.getLowerBound(index + 1));
+        }
+    }
+
+
+    @Test
+    public void bucketErrorIsBelowSubBucketWidth()
+    {
+        for (long value = LatencyHistogram.SUB_BUCKETS; value < 1L << 40; value = value * 3 / 2) {
+            long bound = LatencyHistogram.getLowerBound(LatencyHistogram.getIndex(value));
+            assertTrue(value - bound <= value / LatencyHistogram.SUB_BUCKETS);
+        }
+    }
+
+
+    @Test
+    public void percentilesOfUniformDurations()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int micros = 1; micros <= 1000; micros++) {
+            histogram.record(micros);
+        }
+
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1000, histogram.getMax());
+        assertEquals(500, histogram.getMean());
+        assertEquals(480, histogram.getPercentile(50));
+        assertEquals(896, histogram.getPercentile(95));
+        assertEquals(1, histogram.getPercentile(0));
+    }
+
+
+    @Test
+    public void negativeAndNanoDurations()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        histogram.recordNanos(2500);
+
+        assertEquals(2, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(50));
+        assertEquals(2, histogram.getPercentile(100));
+    }
+
+
+    @Test
+    public void resetDropsAllSamples()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(100);
+        histogram.reset();
+
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getMean());
+        assertEquals(0, histogram.getPercentile(99));
+    }
+}